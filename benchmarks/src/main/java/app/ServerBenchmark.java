@@ -0,0 +1,113 @@
+package app;
+
+import db.ChatMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebChatServer 请求路径上的小函数：房间秘钥规范化、multipart 边界查找、在线用户列表和 SSE 广播
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-DLOG_LEVEL=WARN")
+public class ServerBenchmark {
+
+    // 输入放在字段里，避免常量折叠
+    private String cleanKey;
+    private String dirtyKey;
+    private byte[] multipartBody;
+    private byte[] boundary;
+
+    /**
+     * 只计数、不保存数据的连接输出流
+     */
+    static final class CountingSink extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    /**
+     * 一个有 N 个 SSE 连接的房间
+     */
+    @State(Scope.Thread)
+    public static class Room {
+        @Param({"10", "100"})
+        public int subscribers;
+
+        String key;
+        ChatMessage message;
+
+        @Setup
+        public void setup() {
+            key = "bench-" + subscribers;
+            WebChatServer.RoomClients clients = WebChatServer.getRoomClients(key);
+            for (int i = 0; i < subscribers; i++) {
+                // 一半的昵称重复（同一用户多个标签页）
+                clients.add(new WebChatServer.SseClient(new CountingSink(), "用户" + (i / 2)));
+            }
+            message = ChatMessage.of(42, 7, "小明", System.currentTimeMillis(), "今天下午三点在东校园图书馆门口集合，记得带上实验报告。");
+        }
+    }
+
+    @Setup
+    public void setup() {
+        cleanKey = "24336064";
+        dirtyKey = " 2433<script>6064 ";
+
+        // 1MB 文件字段之后才是下一个边界，与上传图片时的查找一致
+        String b = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+        boundary = ("--" + b).getBytes(StandardCharsets.ISO_8859_1);
+        byte[] file = new byte[1024 * 1024];
+        for (int i = 0; i < file.length; i++) {
+            file[i] = (byte) (i * 31 + (i >>> 7));
+        }
+        byte[] head = ("--" + b + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.png\"\r\n"
+            + "Content-Type: image/png\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] tail = ("\r\n--" + b + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        multipartBody = new byte[head.length + file.length + tail.length];
+        System.arraycopy(head, 0, multipartBody, 0, head.length);
+        System.arraycopy(file, 0, multipartBody, head.length, file.length);
+        System.arraycopy(tail, 0, multipartBody, head.length + file.length, tail.length);
+    }
+
+    @Benchmark
+    public String normalizeRoomKeyClean() {
+        return WebChatServer.normalizeRoomKey(cleanKey);
+    }
+
+    @Benchmark
+    public String normalizeRoomKeyDirty() {
+        return WebChatServer.normalizeRoomKey(dirtyKey);
+    }
+
+    @Benchmark
+    public int multipartIndexOf() {
+        return WebChatServer.UploadHandler.indexOf(multipartBody, boundary, 100);
+    }
+
+    @Benchmark
+    public List<String> onlineUsers(Room room) {
+        return WebChatServer.getOnlineUsers(room.key);
+    }
+
+    @Benchmark
+    public void broadcastFanOut(Room room) {
+        WebChatServer.broadcast(room.message, room.key);
+    }
+}
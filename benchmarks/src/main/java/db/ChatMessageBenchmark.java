@@ -0,0 +1,43 @@
+package db;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单条消息的构造和序列化（原 formatMsg 的替代），以及兼容旧客户端的文本格式
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-DLOG_LEVEL=WARN")
+public class ChatMessageBenchmark {
+
+    private String text;
+    private String image;
+    private long time;
+
+    @Setup
+    public void setup() {
+        text = "今天下午三点在东校园图书馆门口集合，记得带上实验报告。";
+        image = "[IMAGE:/uploads/variants/t1.jpg|/uploads/variants/p1.jpg|/uploads/20240101_120000_000_a.png]";
+        time = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public String textToJson() {
+        return ChatMessage.of(42, 7, "小明", time, text).toJson();
+    }
+
+    @Benchmark
+    public String imageToJson() {
+        return ChatMessage.of(42, 7, "小明", time, image).toJson();
+    }
+
+    @Benchmark
+    public String legacyLine() {
+        return ChatMessage.of(42, 7, "小明", time, text).legacyLine();
+    }
+}
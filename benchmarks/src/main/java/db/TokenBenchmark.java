@@ -0,0 +1,44 @@
+package db;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token 校验：缓存命中（每个需要登录的请求都会走）和首次校验（HMAC + 解码）
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-DLOG_LEVEL=WARN", "-DTOKEN_SECRET=benchmark-secret"})
+public class TokenBenchmark {
+
+    private String warmToken;
+    private String[] coldTokens;
+    private int next;
+
+    @Setup
+    public void setup() {
+        warmToken = UserDao.generateToken(1001, "xiaoming", "小明", "24336064", false);
+        UserDao.validateToken(warmToken);
+        // 首次校验用的 Token 轮换使用，数量超过缓存容量，保证每次都未命中
+        coldTokens = new String[20_000];
+        for (int i = 0; i < coldTokens.length; i++) {
+            coldTokens[i] = UserDao.generateToken(2000 + i, "user" + i, "用户" + i, "24336064", false);
+        }
+    }
+
+    @Benchmark
+    public UserDao.UserInfo validateWarm() {
+        return UserDao.validateToken(warmToken);
+    }
+
+    @Benchmark
+    public UserDao.UserInfo validateCold() {
+        String token = coldTokens[next];
+        next = (next + 1) % coldTokens.length;
+        return UserDao.validateToken(token);
+    }
+}
@@ -0,0 +1,55 @@
+package util;
+
+import db.ChatMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON 热点：/send 请求体解析（原 extract 逐字段扫描的替代）和 500 条消息的历史记录页输出
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-DLOG_LEVEL=WARN")
+public class JsonBenchmark {
+
+    private byte[] sendBody;
+    private List<ChatMessage> history;
+
+    @Setup
+    public void setup() {
+        sendBody = ("{\"name\":\"小明\",\"message\":\"今天下午三点在东校园图书馆门口集合，记得带上实验报告。\","
+            + "\"roomKey\":\"24336064\",\"clientId\":\"c-7f3a9d\"}").getBytes(StandardCharsets.UTF_8);
+        history = new ArrayList<>(500);
+        long time = 1_700_000_000_000L;
+        for (int i = 0; i < 500; i++) {
+            String body = i % 10 == 0
+                ? "[IMAGE:/uploads/variants/t" + i + ".jpg|/uploads/variants/p" + i + ".jpg|/uploads/2024_" + i + ".png]"
+                : "第 " + i + " 条消息，带一点 \"引号\" 和换行\n第二行";
+            history.add(ChatMessage.of(i + 1, 0, "用户" + (i % 17), time + i * 1000L, body));
+        }
+    }
+
+    @Benchmark
+    public String parseSendBody() {
+        Json.Obj obj = Json.parseObject(sendBody);
+        return obj.getString("message");
+    }
+
+    @Benchmark
+    public int writeHistoryPage() {
+        Json.Writer w = Json.local();
+        w.beginObject().name("messages").beginArray();
+        for (ChatMessage m : history) {
+            m.writeJson(w);
+        }
+        w.endArray().endObject();
+        return w.toBytes().length;
+    }
+}
@@ -0,0 +1,28 @@
+package util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 密码哈希：登录和注册时一次 PBKDF2 的耗时，用于选择 PASSWORD_HASH_ITERATIONS（默认 210000）
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-DLOG_LEVEL=WARN")
+public class PasswordHasherBenchmark {
+
+    @Param({"100000", "210000", "600000"})
+    public int iterations;
+
+    private final byte[] salt = "0123456789abcdef".getBytes();
+
+    @Benchmark
+    public byte[] pbkdf2() throws GeneralSecurityException {
+        return PasswordHasher.pbkdf2("correct horse battery staple", salt, iterations);
+    }
+}
@@ -20,6 +20,7 @@ BEGIN
     download_count BIGINT NOT NULL DEFAULT 0,
     folder_path NVARCHAR(1024) DEFAULT '/',
     room_key NVARCHAR(128) NOT NULL DEFAULT 'public',
+    blob_hash CHAR(64) NULL,
     created_at DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME(),
     updated_at DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME()
   );
@@ -30,6 +31,18 @@ BEGIN
 END
 GO
 
+-- 内容寻址存储表（相同内容只存一份）
+IF NOT EXISTS (SELECT * FROM sys.tables WHERE name = 'file_blobs' AND schema_id = SCHEMA_ID('dbo'))
+BEGIN
+  CREATE TABLE dbo.file_blobs (
+    blob_hash CHAR(64) NOT NULL PRIMARY KEY,
+    blob_size BIGINT NOT NULL,
+    ref_count INT NOT NULL DEFAULT 0,
+    created_at DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME()
+  );
+END
+GO
+
 -- 用户存储配额表
 IF NOT EXISTS (SELECT * FROM sys.tables WHERE name = 'user_storage_quota' AND schema_id = SCHEMA_ID('dbo'))
 BEGIN
@@ -17,6 +17,7 @@ CREATE TABLE IF NOT EXISTS `user_files` (
   `download_count` BIGINT NOT NULL DEFAULT 0 COMMENT '下载次数',
   `folder_path` VARCHAR(1024) DEFAULT '/' COMMENT '文件夹路径',
   `room_key` VARCHAR(128) NOT NULL DEFAULT 'public' COMMENT '所属房间',
+  `blob_hash` CHAR(64) DEFAULT NULL COMMENT '内容 SHA-256（指向 file_blobs）',
   `created_at` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '上传时间',
   `updated_at` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
   INDEX `idx_user_id` (`user_id`),
@@ -25,6 +26,14 @@ CREATE TABLE IF NOT EXISTS `user_files` (
   INDEX `idx_created_at` (`created_at`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='用户文件表';
 
+-- 内容寻址存储表（相同内容只存一份）
+CREATE TABLE IF NOT EXISTS `file_blobs` (
+  `blob_hash` CHAR(64) NOT NULL PRIMARY KEY COMMENT '内容 SHA-256',
+  `blob_size` BIGINT NOT NULL COMMENT '内容大小（字节）',
+  `ref_count` INT NOT NULL DEFAULT 0 COMMENT '引用该内容的文件数',
+  `created_at` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='文件内容表';
+
 -- 用户存储配额表
 CREATE TABLE IF NOT EXISTS `user_storage_quota` (
   `id` BIGINT PRIMARY KEY AUTO_INCREMENT,
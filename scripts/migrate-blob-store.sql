@@ -0,0 +1,42 @@
+-- 内容寻址存储迁移脚本
+-- 为 user_files 增加 blob_hash 列，并创建 file_blobs 引用计数表
+--
+-- 说明：
+-- - 服务器首次上传文件时会自动执行同样的检查，此脚本用于手动迁移
+-- - 旧文件 blob_hash 为 NULL，仍按原路径读取和删除
+-- - simplechat / homechat 两个数据库都需要执行
+
+-- ===========================================
+-- MySQL:
+-- ===========================================
+-- USE simplechat;
+-- CREATE TABLE IF NOT EXISTS file_blobs (
+--   blob_hash CHAR(64) NOT NULL PRIMARY KEY,
+--   blob_size BIGINT NOT NULL,
+--   ref_count INT NOT NULL DEFAULT 0,
+--   created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+-- ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+-- ALTER TABLE user_files ADD COLUMN blob_hash CHAR(64) NULL;
+
+-- ===========================================
+-- SQL Server:
+-- ===========================================
+-- USE simplechat;
+-- IF NOT EXISTS (SELECT * FROM sys.tables WHERE name = 'file_blobs')
+-- CREATE TABLE dbo.file_blobs (
+--   blob_hash CHAR(64) NOT NULL PRIMARY KEY,
+--   blob_size BIGINT NOT NULL,
+--   ref_count INT NOT NULL DEFAULT 0,
+--   created_at DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME()
+-- );
+-- IF NOT EXISTS (SELECT * FROM sys.columns WHERE object_id = OBJECT_ID('user_files') AND name = 'blob_hash')
+-- ALTER TABLE user_files ADD blob_hash CHAR(64) NULL;
+
+-- ===========================================
+-- 查看节省的空间：
+-- ===========================================
+-- SELECT COUNT(*) AS blobs,
+--        SUM(blob_size) AS physical_bytes,
+--        SUM(blob_size * ref_count) AS logical_bytes,
+--        SUM(blob_size * (ref_count - 1)) AS saved_bytes
+-- FROM file_blobs WHERE ref_count > 0;
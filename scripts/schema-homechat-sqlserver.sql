@@ -33,10 +33,12 @@ BEGIN
     nickname NVARCHAR(64) NOT NULL,
     content NVARCHAR(MAX) NOT NULL,
     room_key NVARCHAR(128) NOT NULL DEFAULT '061318',
-    created_at DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME()
+    created_at DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME(),
+    room_seq BIGINT NOT NULL CONSTRAINT DF_messages_room_seq DEFAULT (0)
   );
-  CREATE INDEX idx_messages_room_key ON dbo.messages(room_key);
-  CREATE INDEX idx_messages_created_at ON dbo.messages(created_at);
+  -- 与 db.Migrations 版本 1~3 一致
+  CREATE NONCLUSTERED INDEX idx_messages_room_id ON dbo.messages (room_key, id DESC) INCLUDE (nickname, content, created_at);
+  CREATE NONCLUSTERED INDEX idx_messages_room_created ON dbo.messages (room_key, created_at);
 END
 GO
 
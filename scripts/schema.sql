@@ -7,5 +7,9 @@ CREATE TABLE IF NOT EXISTS `messages` (
   `nickname` VARCHAR(64) NOT NULL,
   `content` TEXT NOT NULL,
   `room_key` VARCHAR(128) NOT NULL DEFAULT 'public',
-  `created_at` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+  `created_at` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `room_seq` BIGINT NOT NULL DEFAULT 0,
+  -- 与 db.Migrations 版本 1~3 一致（启动时检测到已存在会直接记为已执行）
+  INDEX `idx_messages_room_id` (`room_key`, `id`),
+  INDEX `idx_messages_room_created` (`room_key`, `created_at`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
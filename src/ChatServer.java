@@ -11,6 +11,7 @@ import java.time.format.DateTimeFormatter;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import util.Log;
 
 /**
  * 简易多线程聊天服务器，适合 10 人左右同时在线。
@@ -29,7 +30,7 @@ public class ChatServer {
         if (args.length > 0) {
             try { port = Integer.parseInt(args[0]); } catch (NumberFormatException ignored) {}
         }
-        System.out.println("[Server] Starting chat server on port " + port + " ...");
+        Log.info("Server", "Starting chat server on port " + port + " ...");
         try (ServerSocket server = new ServerSocket(port)) {
             while (true) {
                 Socket socket = server.accept();
@@ -38,7 +39,7 @@ public class ChatServer {
                 new Thread(handler).start();
             }
         } catch (IOException e) {
-            System.err.println("[Server] Error: " + e.getMessage());
+            Log.error("Server", "Error: " + e.getMessage());
         }
     }
 
@@ -74,7 +75,7 @@ public class ChatServer {
                 }
                 writer.println("Hi, " + name + "! Type /quit to exit.");
                 String joinMsg = formatMsg("SERVER", name + " joined the room");
-                System.out.println("[Server] " + joinMsg);
+                Log.info("Server", joinMsg);
                 broadcast(joinMsg, this);
 
                 String line;
@@ -83,15 +84,15 @@ public class ChatServer {
                         break;
                     }
                     String chat = formatMsg(name, line);
-                    System.out.println(chat);
+                    Log.info("Server", chat);
                     broadcast(chat, this);
                 }
             } catch (IOException e) {
-                System.err.println("[Server] Connection error: " + e.getMessage());
+                Log.error("Server", "Connection error: " + e.getMessage());
             } finally {
                 CLIENTS.remove(this);
                 String left = formatMsg("SERVER", name + " left the room");
-                System.out.println("[Server] " + left);
+                Log.info("Server", left);
                 broadcast(left, this);
                 try { socket.close(); } catch (IOException ignored) {}
             }
@@ -0,0 +1,122 @@
+package app;
+
+import java.sql.*;
+import db.Db;
+import db.Migrations;
+
+/**
+ * 查看 messages 热点查询的执行计划和耗时，用于确认组合索引是否生效。
+ * 用法：java app.ExplainMessages [房间秘钥] [每条查询执行次数]
+ * MySQL 输出 EXPLAIN，SQL Server 输出 SHOWPLAN_TEXT。
+ */
+public class ExplainMessages {
+    public static void main(String[] args) {
+        String roomKey = args.length > 0 ? args[0] : "24336064";
+        int iterations = args.length > 1 ? Math.max(1, Integer.parseInt(args[1])) : 200;
+        if (!Db.isValidRoomKey(roomKey)) {
+            System.err.println("无效的房间秘钥: " + roomKey);
+            return;
+        }
+        boolean sqlServer = Db.type() == Db.DbType.SQLSERVER;
+        // 秘钥已通过白名单校验，可直接拼入语句
+        String room = "'" + roomKey + "'";
+        String[][] queries = sqlServer ? new String[][] {
+            {"最新消息分页", "SELECT nickname, content, created_at FROM messages WHERE room_key = " + room
+                + " ORDER BY id DESC OFFSET 0 ROWS FETCH NEXT 50 ROWS ONLY"},
+            {"消息总数", "SELECT COUNT(*) FROM messages WHERE room_key = " + room},
+            {"增量加载", "SELECT nickname, content, created_at FROM messages WHERE room_key = " + room
+                + " AND created_at > DATEADD(HOUR, -1, SYSDATETIME()) ORDER BY id ASC"}
+        } : new String[][] {
+            {"最新消息分页", "SELECT nickname, content, created_at FROM messages WHERE room_key = " + room
+                + " ORDER BY id DESC LIMIT 50 OFFSET 0"},
+            {"消息总数", "SELECT COUNT(*) FROM messages WHERE room_key = " + room},
+            {"增量加载", "SELECT nickname, content, created_at FROM messages WHERE room_key = " + room
+                + " AND created_at > NOW() - INTERVAL 1 HOUR ORDER BY id ASC"}
+        };
+
+        try {
+            Db.ensureDriver();
+            try (Connection c = Db.getConnection(roomKey)) {
+                int applied = Migrations.apply(c);
+                System.out.println("========== 迁移版本 ==========");
+                System.out.println("本次执行: " + applied + "，已执行: " + Migrations.appliedVersions(c));
+
+                for (String[] q : queries) {
+                    System.out.println("\n========== " + q[0] + " ==========");
+                    System.out.println(q[1]);
+                    System.out.println("--- 执行计划 ---");
+                    if (sqlServer) {
+                        printShowplan(c, q[1]);
+                    } else {
+                        printExplain(c, q[1]);
+                    }
+                    System.out.println("--- 耗时 ---");
+                    time(c, q[1], iterations);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void printExplain(Connection c, String sql) throws SQLException {
+        try (Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("EXPLAIN " + sql)) {
+            ResultSetMetaData md = rs.getMetaData();
+            while (rs.next()) {
+                StringBuilder sb = new StringBuilder("  ");
+                for (int i = 1; i <= md.getColumnCount(); i++) {
+                    if (i > 1) sb.append(", ");
+                    sb.append(md.getColumnLabel(i)).append('=').append(rs.getString(i));
+                }
+                System.out.println(sb);
+            }
+        }
+    }
+
+    private static void printShowplan(Connection c, String sql) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            st.execute("SET SHOWPLAN_TEXT ON");
+            try {
+                // 第一个结果集是语句本身，之后是计划树
+                boolean hasResult = st.execute(sql);
+                while (true) {
+                    if (hasResult) {
+                        try (ResultSet rs = st.getResultSet()) {
+                            while (rs.next()) {
+                                System.out.println("  " + rs.getString(1));
+                            }
+                        }
+                    } else if (st.getUpdateCount() == -1) {
+                        break;
+                    }
+                    hasResult = st.getMoreResults();
+                }
+            } finally {
+                st.execute("SET SHOWPLAN_TEXT OFF");
+            }
+        }
+    }
+
+    private static void time(Connection c, String sql, int iterations) throws SQLException {
+        long rows = 0;
+        long[] samples = new long[iterations];
+        try (Statement st = c.createStatement()) {
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                try (ResultSet rs = st.executeQuery(sql)) {
+                    while (rs.next()) {
+                        rows++;
+                    }
+                }
+                samples[i] = System.nanoTime() - start;
+            }
+        }
+        java.util.Arrays.sort(samples);
+        long total = 0;
+        for (long s : samples) total += s;
+        System.out.printf("  %d 次，平均 %.3f ms，p50 %.3f ms，p95 %.3f ms，每次 %d 行%n",
+            iterations, total / 1e6 / iterations, samples[iterations / 2] / 1e6,
+            samples[Math.min(iterations - 1, iterations * 95 / 100)] / 1e6, rows / iterations);
+    }
+}
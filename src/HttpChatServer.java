@@ -5,6 +5,9 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import util.Json;
+import util.Log;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -40,7 +43,7 @@ public class HttpChatServer {
         server.createContext("/send", new SendHandler());
         server.setExecutor(Executors.newCachedThreadPool());
         server.start();
-        System.out.println("[HTTP] Chat SSE server started at http://localhost:" + port);
+        Log.info("HTTP", "Chat SSE server started at http://localhost:" + port);
     }
 
     // SSE 连接
@@ -58,7 +61,7 @@ public class HttpChatServer {
             SseClient client = new SseClient(os);
             CLIENTS.add(client);
             client.send("event: info\ndata: {\"msg\":\"connected\"}\n\n");
-            System.out.println("[HTTP] client connected, total=" + CLIENTS.size());
+            Log.info("HTTP", "client connected, total=" + CLIENTS.size());
 
             // 保持阻塞，直到对端关闭
             try {
@@ -69,7 +72,7 @@ public class HttpChatServer {
             } finally {
                 CLIENTS.remove(client);
                 try { os.close(); } catch (IOException ignored) {}
-                System.out.println("[HTTP] client disconnected, total=" + CLIENTS.size());
+                Log.info("HTTP", "client disconnected, total=" + CLIENTS.size());
             }
         }
     }
@@ -84,11 +87,15 @@ public class HttpChatServer {
             }
             addCors(exchange.getResponseHeaders());
 
-            byte[] body = exchange.getRequestBody().readAllBytes();
-            String json = new String(body, StandardCharsets.UTF_8).trim();
-            // 非严格 JSON 解析，简单获取 name/message
-            String name = extract(json, "name");
-            String msg = extract(json, "message");
+            Json.Obj json;
+            try {
+                json = Json.parseObject(exchange.getRequestBody().readAllBytes());
+            } catch (Json.ParseException e) {
+                respond(exchange, 400, "invalid payload");
+                return;
+            }
+            String name = json.getString("name");
+            String msg = json.getString("message");
             if (name.isEmpty() || msg.isEmpty()) {
                 respond(exchange, 400, "invalid payload");
                 return;
@@ -104,20 +111,7 @@ public class HttpChatServer {
         synchronized (CLIENTS) {
             CLIENTS.removeIf(c -> !c.send(payload));
         }
-        System.out.println("[HTTP] broadcast: " + data);
-    }
-
-    private static String extract(String json, String key) {
-        // 极简提取："key":"value"
-        String pattern = "\"" + key + "\"";
-        int idx = json.indexOf(pattern);
-        if (idx < 0) return "";
-        int colon = json.indexOf(':', idx);
-        if (colon < 0) return "";
-        int firstQuote = json.indexOf('"', colon + 1);
-        int secondQuote = json.indexOf('"', firstQuote + 1);
-        if (firstQuote < 0 || secondQuote < 0) return "";
-        return json.substring(firstQuote + 1, secondQuote);
+        Log.info("HTTP", "broadcast: " + data);
     }
 
     private static String formatMsg(String sender, String text) {
@@ -0,0 +1,337 @@
+package app;
+
+import util.Json;
+import util.Metrics;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 端到端压测工具：在 M 个房间中打开 N 个 SSE 订阅，按目标速率通过 /send 发消息，
+ * 统计每条消息从计划发送到各订阅者收到的延迟，结果以 JSON 输出。
+ * 消息内容为 "lg:运行ID:序号:计划发送时间(纳秒)"，发送和接收在同一进程内，直接用 System.nanoTime 计算延迟。
+ * 按固定节拍开环发送，延迟从计划时间算起，发送端落后也会计入（避免协调遗漏）。
+ *
+ * 用法: java -cp out app.LoadGenerator --rooms 房间秘钥[,房间秘钥...] [--url http://127.0.0.1:8080]
+ *          [--subscribers 100] [--rate 50] [--duration 30] [--warmup 5] [--late-ms 1000] [--out result.json]
+ * 服务器应在未配置 DB_URL 的目录下启动（不持久化），否则测的是数据库写入速度。
+ */
+public class LoadGenerator {
+
+    private final String baseUrl;
+    private final String[] rooms;
+    private final int subscribers;
+    private final int rate;
+    private final int durationSec;
+    private final int warmupSec;
+    private final long lateNanos;
+
+    private final String runId = Long.toString(System.nanoTime() & 0xffffff, 36);
+    private final HttpClient http;
+
+    // 每个房间当前在线的订阅数，发送时据此确定这条消息应被收到几次
+    private final AtomicInteger[] online;
+    private final int maxMessages;
+    private final long[] sentAt;
+    private final int[] expected;
+    private final AtomicIntegerArray received;
+
+    private final Metrics.Histogram latency = new Metrics.Histogram();
+    private final AtomicLong late = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+    private final AtomicLong sendRejected = new AtomicLong();
+    private final AtomicInteger connectFailures = new AtomicInteger();
+    private final AtomicInteger disconnects = new AtomicInteger();
+    private volatile int firstMeasured = Integer.MAX_VALUE;
+
+    LoadGenerator(Map<String, String> opts) {
+        baseUrl = opts.getOrDefault("url", "http://127.0.0.1:8080").replaceAll("/+$", "");
+        String roomList = opts.get("rooms");
+        if (roomList == null || roomList.isBlank()) {
+            throw new IllegalArgumentException("必须用 --rooms 指定至少一个有效的房间秘钥");
+        }
+        rooms = roomList.split(",");
+        subscribers = Integer.parseInt(opts.getOrDefault("subscribers", "100"));
+        rate = Integer.parseInt(opts.getOrDefault("rate", "50"));
+        durationSec = Integer.parseInt(opts.getOrDefault("duration", "30"));
+        warmupSec = Integer.parseInt(opts.getOrDefault("warmup", "5"));
+        lateNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(opts.getOrDefault("late-ms", "1000")));
+        if (subscribers < 1 || rate < 1 || durationSec < 1 || warmupSec < 0) {
+            throw new IllegalArgumentException("subscribers、rate、duration 必须为正数");
+        }
+
+        online = new AtomicInteger[rooms.length];
+        for (int i = 0; i < rooms.length; i++) {
+            online[i] = new AtomicInteger();
+        }
+        maxMessages = rate * (warmupSec + durationSec) + 16;
+        sentAt = new long[maxMessages];
+        expected = new int[maxMessages];
+        received = new AtomicIntegerArray(maxMessages);
+        http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .executor(Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors())))
+            .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                System.err.println("参数格式: --名称 值，见 LoadGenerator 类注释");
+                System.exit(2);
+            }
+            opts.put(args[i].substring(2), args[++i]);
+        }
+        LoadGenerator lg;
+        try {
+            lg = new LoadGenerator(opts);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        String json = lg.run();
+        String out = opts.get("out");
+        if (out != null) {
+            Files.write(Paths.get(out), json.getBytes(StandardCharsets.UTF_8));
+        }
+        System.out.println(json);
+        System.exit(0);
+    }
+
+    String run() throws InterruptedException {
+        System.err.println("[LoadGen] 连接 " + subscribers + " 个订阅者到 " + rooms.length + " 个房间...");
+        CountDownLatch connected = new CountDownLatch(subscribers);
+        for (int i = 0; i < subscribers; i++) {
+            subscribe(i % rooms.length, "lg-" + runId + "-" + i, connected);
+        }
+        if (!connected.await(30, TimeUnit.SECONDS)) {
+            System.err.println("[LoadGen] 30 秒内仍有 " + connected.getCount() + " 个订阅未连上，继续压测");
+        }
+
+        System.err.println("[LoadGen] 以 " + rate + " 条/秒发送，预热 " + warmupSec + " 秒，测量 " + durationSec + " 秒...");
+        int warmupMessages = rate * warmupSec;
+        int total = rate * (warmupSec + durationSec);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long measureStart = 0;
+        for (int seq = 0; seq < total; seq++) {
+            long due = start + seq * interval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (seq == warmupMessages) {
+                firstMeasured = seq;
+                measureStart = System.nanoTime();
+            }
+            int room = seq % rooms.length;
+            sentAt[seq] = due;
+            expected[seq] = online[room].get();
+            send(room, seq, due);
+        }
+        long measureEnd = System.nanoTime();
+
+        // 等最后一批消息送达
+        long grace = Math.max(TimeUnit.SECONDS.toNanos(2), lateNanos * 2);
+        LockSupport.parkNanos(grace);
+        return report(warmupMessages, total, measureEnd - measureStart);
+    }
+
+    // ========== 订阅 ==========
+
+    private void subscribe(int room, String nickname, CountDownLatch connected) {
+        URI uri = URI.create(baseUrl + "/events?roomKey=" + encode(rooms[room]) + "&nickname=" + encode(nickname));
+        HttpRequest req = HttpRequest.newBuilder(uri).header("Accept", "text/event-stream").GET().build();
+        String marker = "lg:" + runId + ":";
+        Flow.Subscriber<String> lines = new Flow.Subscriber<>() {
+            private volatile boolean counted;
+            // 连接失败时不会回调 onSubscribe，由 sendAsync 的结果补一次 onError；只处理第一次关闭
+            private final AtomicBoolean closed = new AtomicBoolean();
+
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                s.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(String line) {
+                if (!line.startsWith("data:")) {
+                    return;
+                }
+                if (!counted && line.contains("\"type\":\"connected\"")) {
+                    counted = true;
+                    online[room].incrementAndGet();
+                    connected.countDown();
+                    return;
+                }
+                int at = line.indexOf(marker);
+                if (at >= 0) {
+                    onDelivered(line, at + marker.length());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                onClosed();
+            }
+
+            @Override
+            public void onComplete() {
+                onClosed();
+            }
+
+            private void onClosed() {
+                if (!closed.compareAndSet(false, true)) {
+                    return;
+                }
+                if (counted) {
+                    online[room].decrementAndGet();
+                    disconnects.incrementAndGet();
+                } else {
+                    connectFailures.incrementAndGet();
+                    connected.countDown();
+                }
+            }
+        };
+        http.sendAsync(req, HttpResponse.BodyHandlers.fromLineSubscriber(lines))
+            .whenComplete((resp, err) -> {
+                if (err != null) {
+                    lines.onError(err);
+                }
+            });
+    }
+
+    /**
+     * 解析 "序号:计划发送时间" 并记录延迟
+     */
+    private void onDelivered(String line, int pos) {
+        long now = System.nanoTime();
+        int seq = 0;
+        while (pos < line.length() && line.charAt(pos) != ':') {
+            seq = seq * 10 + (line.charAt(pos++) - '0');
+        }
+        if (seq < 0 || seq >= maxMessages) {
+            return;
+        }
+        int count = received.incrementAndGet(seq);
+        if (count > expected[seq] && expected[seq] > 0) {
+            duplicates.incrementAndGet();
+        }
+        if (seq < firstMeasured) {
+            return;
+        }
+        long lat = now - sentAt[seq];
+        latency.record(lat);
+        if (lat > lateNanos) {
+            late.incrementAndGet();
+        }
+    }
+
+    // ========== 发送 ==========
+
+    private void send(int room, int seq, long due) {
+        String body = Json.local().beginObject()
+            .field("name", "lg-sender")
+            .field("message", "lg:" + runId + ":" + seq + ":" + due)
+            .field("roomKey", rooms[room])
+            .endObject().toString();
+        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/send"))
+            .timeout(Duration.ofSeconds(10))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+            .build();
+        http.sendAsync(req, HttpResponse.BodyHandlers.discarding())
+            .whenComplete((resp, err) -> {
+                if (err != null) {
+                    sendErrors.incrementAndGet();
+                } else if (resp.statusCode() != 200) {
+                    sendRejected.incrementAndGet();
+                }
+            });
+    }
+
+    // ========== 结果 ==========
+
+    private String report(int from, int to, long measuredNanos) {
+        long expectedDeliveries = 0;
+        long delivered = 0;
+        for (int seq = from; seq < to; seq++) {
+            expectedDeliveries += expected[seq];
+            delivered += Math.min(received.get(seq), expected[seq]);
+        }
+        int messages = to - from;
+        double seconds = measuredNanos / 1e9;
+
+        Json.Writer w = new Json.Writer(1024);
+        w.beginObject()
+            .field("url", baseUrl)
+            .field("rooms", rooms.length)
+            .field("subscribers", subscribers)
+            .field("targetRate", rate)
+            .field("durationSec", durationSec)
+            .field("warmupSec", warmupSec);
+        w.name("connections").beginObject()
+            .field("failed", connectFailures.get())
+            .field("disconnected", disconnects.get())
+            .endObject();
+        w.name("send").beginObject()
+            .field("messages", messages)
+            .field("errors", sendErrors.get())
+            .field("rejected", sendRejected.get())
+            .field("ratePerSec", round(messages / seconds))
+            .endObject();
+        w.name("delivery").beginObject()
+            .field("expected", expectedDeliveries)
+            .field("delivered", delivered)
+            .field("dropped", expectedDeliveries - delivered)
+            .field("late", late.get())
+            .field("lateThresholdMs", TimeUnit.NANOSECONDS.toMillis(lateNanos))
+            .field("duplicates", duplicates.get())
+            .field("ratePerSec", round(delivered / seconds))
+            .endObject();
+        w.name("latencyMs").beginObject()
+            .field("p50", millis(latency.quantile(0.50)))
+            .field("p90", millis(latency.quantile(0.90)))
+            .field("p99", millis(latency.quantile(0.99)))
+            .field("p999", millis(latency.quantile(0.999)))
+            .field("max", millis(latency.max()))
+            .field("mean", latency.count() == 0 ? 0 : millis(latency.sum() / latency.count()))
+            .endObject();
+        w.endObject();
+        return w.toString();
+    }
+
+    private static double millis(long nanos) {
+        return round(nanos / 1e6);
+    }
+
+    private static double round(double v) {
+        return Math.round(v * 1000) / 1000.0;
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+}
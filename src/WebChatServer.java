@@ -1,32 +1,46 @@
 package app;
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import db.ChatMessage;
 import db.Db;
 import db.MessageDao;
 import db.UserDao;
 import db.FileDao;
 import util.Env;
 import util.FileManager;
+import util.FileTreeCache;
+import util.ImagePipeline;
+import util.InlineImageStore;
+import util.Json;
+import util.Log;
+import util.MessageSearchIndex;
+import util.Metrics;
+import util.PasswordHasher;
+import util.StaticAssetCache;
+import util.TimingWheel;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // 使用默认包下的 MessageDao
 
@@ -53,9 +67,68 @@ public class WebChatServer {
     private static final String UPLOAD_DIR = "web/uploads"; // 上传文件目录
     private static final String DEFAULT_ROOM = "public";
     private static final int MAX_ROOM_KEY_LENGTH = 128;
-    private static final Map<String, Set<SseClient>> CLIENTS_BY_ROOM = new ConcurrentHashMap<>();
+    private static final Map<String, RoomClients> CLIENTS_BY_ROOM = new ConcurrentHashMap<>();
+    // 在线状态变化的合并窗口
+    private static final long PRESENCE_COALESCE_MS = 250;
+    private static final java.util.concurrent.ScheduledExecutorService PRESENCE_TIMER =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-flush");
+            t.setDaemon(true);
+            return t;
+        });
+    // SSE 心跳由 sse-heartbeat 线程统一调度，只发给距上次写出已满一个间隔的连接；
+    // 该线程只做标记，心跳帧由各连接自己的 EventsHandler 线程写出，某个对端不读数据时不会拖住其他连接。
+    // 间隔从 SSE_HEARTBEAT_MS 起，订阅者多到每秒心跳帧数超过 SSE_HEARTBEAT_RATE 时按比例拉长，
+    // 最长 SSE_HEARTBEAT_MAX_MS：默认 25 秒，低于 Nginx proxy_read_timeout 默认的 60 秒和 Cloudflare 的 100 秒空闲超时
+    private static final long HEARTBEAT_MIN_MS = Long.parseLong(Env.get("SSE_HEARTBEAT_MS", "5000"));
+    private static final long HEARTBEAT_MAX_MS = Math.max(HEARTBEAT_MIN_MS, Long.parseLong(Env.get("SSE_HEARTBEAT_MAX_MS", "25000")));
+    private static final int HEARTBEAT_RATE = Math.max(1, Integer.parseInt(Env.get("SSE_HEARTBEAT_RATE", "2000")));
+    private static final long HEARTBEAT_TICK_MS = 1000;
+    private static final byte[] HEARTBEAT_FRAME = ": heartbeat\n\n".getBytes(StandardCharsets.UTF_8);
+    // 一次写出超过该时长仍未完成即视为对端停止读取：心跳线程将其移除，广播也不再排队等它
+    private static final long SSE_WRITE_STALL_MS = Long.parseLong(Env.get("SSE_WRITE_STALL_MS", "10000"));
+    private static final Metrics.Counter HEARTBEATS_SENT =
+        Metrics.counter("chat_sse_heartbeats_total", "发送的 SSE 心跳帧数");
+    // 心跳线程每个刻度更新的粗粒度时钟，写出时记录它而不是各自读系统时间
+    private static volatile long heartbeatClock = System.currentTimeMillis();
+    private static volatile long heartbeatInterval = HEARTBEAT_MIN_MS;
+    // SSE 连接超过该时长没有成功写出或 ping 即视为断开；由时间轮按 1 秒精度检测，至少是最长心跳间隔的两倍
+    private static final long CLIENT_TIMEOUT_MS = Math.max(20000, 2 * HEARTBEAT_MAX_MS);
+    private static final TimingWheel<SseClient> LIVENESS =
+        new TimingWheel<>("sse-liveness", 1000, 64, WebChatServer::expireClients);
+    private static final Metrics.Counter EXPIRED_CLIENTS =
+        Metrics.counter("chat_sse_expired_total", "因超时被移除的 SSE 连接数");
+    // 消息持久化线程，单线程按入队顺序入库；队列满时阻塞发布线程而不是由它抢先入库，退出时由关闭钩子排空
+    private static final java.util.concurrent.ThreadPoolExecutor PERSIST_EXECUTOR =
+        new java.util.concurrent.ThreadPoolExecutor(1, 1, 0, java.util.concurrent.TimeUnit.MILLISECONDS,
+            new java.util.concurrent.ArrayBlockingQueue<>(10000),
+            r -> {
+                Thread t = new Thread(r, "message-persist");
+                t.setDaemon(true);
+                return t;
+            },
+            (r, executor) -> {
+                if (executor.isShutdown()) {
+                    // 关闭钩子已开始排空，直接在当前线程保存，不丢消息
+                    r.run();
+                    return;
+                }
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    r.run();
+                }
+            });
+    private static final long PERSIST_DRAIN_TIMEOUT_MS = Long.parseLong(Env.get("PERSIST_DRAIN_TIMEOUT_MS", "10000"));
     private static final Map<String, AtomicInteger> ROOM_MESSAGE_COUNT = new ConcurrentHashMap<>();
-    private static final DateTimeFormatter TS = DateTimeFormatter.ofPattern("HH:mm:ss");
+    // 每个房间实时消息的序号，随消息入库（room_seq 列），重启后仍单调递增，客户端据此去重
+    private static final Map<String, AtomicLong> ROOM_SEQ = new ConcurrentHashMap<>();
+    // 每个房间的消息计数器（指标）
+    private static final Map<String, Metrics.Counter> MESSAGE_COUNTERS = new ConcurrentHashMap<>();
+    private static final Metrics.Meter UPLOAD_BYTES = Metrics.meter("chat_upload_bytes", "上传字节数");
+    // 兼容旧客户端：广播和历史记录仍使用 "[HH:mm:ss] 昵称: 内容" 文本
+    private static final boolean LEGACY_MESSAGE_FORMAT = Boolean.parseBoolean(Env.get("LEGACY_MESSAGE_FORMAT", "false"));
     private static final LocalDateTime START_TIME = LocalDateTime.now();
     
     // MIME 类型映射
@@ -88,55 +161,61 @@ public class WebChatServer {
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
         
         // API 端点
-        server.createContext("/events", new EventsHandler());
-        server.createContext("/send", new SendHandler());
-        server.createContext("/api/history", new HistoryHandler());
-        server.createContext("/api/status", new StatusHandler());
-        server.createContext("/api/register", new RegisterHandler());
-        server.createContext("/api/login", new LoginHandler());
-        server.createContext("/api/verify", new VerifyHandler());
-        server.createContext("/api/upload", new UploadHandler()); // 文件上传
-        server.createContext("/api/admin/users", new AdminUsersHandler()); // 管理员-用户列表
-        server.createContext("/api/admin/user/delete", new AdminDeleteUserHandler()); // 管理员-删除用户
-        server.createContext("/api/admin/user/update", new AdminUpdateUserHandler()); // 管理员-更新用户
-        server.createContext("/api/admin/user/reset-password", new AdminResetPasswordHandler()); // 管理员-重置密码
-        server.createContext("/api/ping", new PingHandler()); // 客户端心跳检测
-        server.createContext("/api/disconnect", new DisconnectHandler()); // 客户端主动断开通知
+        route(server, "/events", new EventsHandler());
+        route(server, "/send", new SendHandler());
+        route(server, "/api/history", new HistoryHandler());
+        route(server, "/api/messages/search", new MessageSearchHandler()); // 聊天记录搜索
+        route(server, "/api/status", new StatusHandler());
+        route(server, "/api/register", new RegisterHandler());
+        route(server, "/api/login", new LoginHandler());
+        route(server, "/api/verify", new VerifyHandler());
+        route(server, "/api/upload", new UploadHandler()); // 文件上传
+        route(server, "/api/admin/users", new AdminUsersHandler()); // 管理员-用户列表
+        route(server, "/api/admin/user/delete", new AdminDeleteUserHandler()); // 管理员-删除用户
+        route(server, "/api/admin/user/update", new AdminUpdateUserHandler()); // 管理员-更新用户
+        route(server, "/api/admin/user/reset-password", new AdminResetPasswordHandler()); // 管理员-重置密码
+        route(server, "/api/ping", new PingHandler()); // 客户端心跳检测
+        route(server, "/api/disconnect", new DisconnectHandler()); // 客户端主动断开通知
+        route(server, "/metrics", new MetricsHandler()); // Prometheus 指标
         
         // 文件管理 API
-        server.createContext("/api/files/upload", new FileUploadHandler()); // 用户文件上传
-        server.createContext("/api/files/list", new FileListHandler()); // 文件列表
-        server.createContext("/api/files/download", new FileDownloadHandler()); // 文件下载
-        server.createContext("/api/files/delete", new FileDeleteHandler()); // 删除文件
-        server.createContext("/api/files/search", new FileSearchHandler()); // 搜索文件
-        server.createContext("/api/files/quota", new FileQuotaHandler()); // 存储配额
-        server.createContext("/api/files/rename", new FileRenameHandler()); // 重命名文件
-        server.createContext("/api/files/move", new FileMoveHandler()); // 移动文件
+        route(server, "/api/files/upload", new FileUploadHandler()); // 用户文件上传
+        route(server, "/api/files/list", new FileListHandler()); // 文件列表
+        route(server, "/api/files/download", new FileDownloadHandler()); // 文件下载
+        route(server, "/api/files/delete", new FileDeleteHandler()); // 删除文件
+        route(server, "/api/files/search", new FileSearchHandler()); // 搜索文件
+        route(server, "/api/files/quota", new FileQuotaHandler()); // 存储配额
+        route(server, "/api/files/rename", new FileRenameHandler()); // 重命名文件
+        route(server, "/api/files/move", new FileMoveHandler()); // 移动文件
+        route(server, "/api/files/batch-delete", new FileBatchDeleteHandler()); // 批量删除文件
+        route(server, "/api/files/batch-move", new FileBatchMoveHandler()); // 批量移动文件
+        route(server, "/api/files/zip", new FileZipHandler()); // 打包下载（选中文件或文件夹）
         
         // 文件夹管理 API
-        server.createContext("/api/folders/create", new FolderCreateHandler()); // 创建文件夹
-        server.createContext("/api/folders/list", new FolderListHandler()); // 文件夹列表
-        server.createContext("/api/folders/delete", new FolderDeleteHandler()); // 删除文件夹
-        server.createContext("/api/folders/rename", new FolderRenameHandler()); // 重命名文件夹
-        server.createContext("/api/folders/contents", new FolderContentsHandler()); // 获取文件夹内容（文件夹+文件）
+        route(server, "/api/folders/create", new FolderCreateHandler()); // 创建文件夹
+        route(server, "/api/folders/list", new FolderListHandler()); // 文件夹列表
+        route(server, "/api/folders/delete", new FolderDeleteHandler()); // 删除文件夹
+        route(server, "/api/folders/rename", new FolderRenameHandler()); // 重命名文件夹
+        route(server, "/api/folders/contents", new FolderContentsHandler()); // 获取文件夹内容（文件夹+文件）
         
         // 静态文件服务 (放在最后，作为默认处理器)
-        server.createContext("/", new StaticFileHandler());
+        route(server, "/", new StaticFileHandler());
         
+        registerMetrics();
         server.setExecutor(Executors.newCachedThreadPool());
         server.start();
-        
-        // 启动定时清理任务（每10秒清理超时客户端）
-        startClientCleanupTask();
+        startHeartbeats();
+        Runtime.getRuntime().addShutdownHook(new Thread(WebChatServer::drainPersistQueue, "message-persist-drain"));
+        Log.info("CLEANUP", "SSE liveness tracked by timing wheel (tick 1s, timeout " + CLIENT_TIMEOUT_MS / 1000 + "s)");
 
         // 初始化数据库（可选，未配置则跳过）
         try {
             MessageDao.init();
             UserDao.init();
             FileDao.init();
-            System.out.println("[DB] Database tables ready (if DB configured)");
+            Log.info("DB", "Database tables ready (if DB configured)");
         } catch (Exception e) {
-            System.out.println("[DB] init skipped or failed: " + e.getMessage());
+            Log.warn("DB", "init skipped or failed: " + e.getMessage());
         }
         
         // 确保上传目录存在
@@ -145,19 +224,21 @@ public class WebChatServer {
             uploadDir.mkdirs();
         }
         
-        System.out.println("╔════════════════════════════════════════════╗");
-        System.out.println("║         SYSU Chat Server Started           ║");
-        System.out.println("╠════════════════════════════════════════════╣");
-        System.out.println("║  Local:   http://localhost:" + port + "             ║");
-        System.out.println("║  Domain:  https://sysu.asia:" + port + "            ║");
-        System.out.println("╠════════════════════════════════════════════╣");
-        System.out.println("║  Endpoints:                                ║");
-        System.out.println("║    GET  /          - Web UI                ║");
-        System.out.println("║    GET  /events    - SSE Stream            ║");
-        System.out.println("║    POST /send      - Send Message          ║");
-        System.out.println("║    POST /api/upload- Upload File           ║");
-        System.out.println("║    GET  /api/status - Server Status        ║");
-        System.out.println("╚════════════════════════════════════════════╝");
+        Log.banner(String.join("\n",
+            "╔════════════════════════════════════════════╗",
+            "║         SYSU Chat Server Started           ║",
+            "╠════════════════════════════════════════════╣",
+            "║  Local:   http://localhost:" + port + "             ║",
+            "║  Domain:  https://sysu.asia:" + port + "            ║",
+            "╠════════════════════════════════════════════╣",
+            "║  Endpoints:                                ║",
+            "║    GET  /          - Web UI                ║",
+            "║    GET  /events    - SSE Stream            ║",
+            "║    POST /send      - Send Message          ║",
+            "║    POST /api/upload- Upload File           ║",
+            "║    GET  /api/status - Server Status        ║",
+            "║    GET  /metrics   - Prometheus Metrics    ║",
+            "╚════════════════════════════════════════════╝"));
         
         // 保持服务器运行
         Thread.currentThread().join();
@@ -167,6 +248,10 @@ public class WebChatServer {
      * 静态文件处理器
      */
     static class StaticFileHandler implements HttpHandler {
+        private static final StaticAssetCache ASSETS = new StaticAssetCache(WEB_ROOT, "uploads");
+        private static final java.util.regex.Pattern HASHED_UPLOAD = 
+            java.util.regex.Pattern.compile("^/uploads/(variants/)?[0-9a-f]{64}(_\\d+)?\\.[a-z]+$");
+        
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             String path = exchange.getRequestURI().getPath();
@@ -189,34 +274,65 @@ public class WebChatServer {
                 return;
             }
             
-            // 查找文件
-            Path filePath = Paths.get(WEB_ROOT + path).normalize();
-            File file = filePath.toFile();
+            // 获取 MIME 类型
+            String mimeType = getMimeType(path);
             
-            if (!file.exists() || !file.isFile()) {
+            // 从缓存查找文件
+            StaticAssetCache.Asset asset = ASSETS.get(path, isCompressible(mimeType));
+            if (asset == null) {
                 // 文件不存在，返回 404
                 respond(exchange, 404, "Not Found: " + path);
                 return;
             }
             
-            // 获取 MIME 类型
-            String mimeType = getMimeType(path);
+            boolean useGzip = asset.gzip != null 
+                && StaticAssetCache.acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            String etag = useGzip ? asset.gzipEtag : asset.etag;
             
             // 设置响应头
             Headers headers = exchange.getResponseHeaders();
             addCors(headers);
             headers.add("Content-Type", mimeType);
             headers.add("Cache-Control", getCacheControl(path));
+            headers.set("ETag", etag);
+            if (asset.gzip != null) {
+                headers.add("Vary", "Accept-Encoding");
+            }
             
-            // 发送文件
-            byte[] fileBytes = Files.readAllBytes(filePath);
-            exchange.sendResponseHeaders(200, fileBytes.length);
+            // 协商缓存命中，返回 304
+            if (StaticAssetCache.matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
             
+            // 发送文件
+            if (useGzip) {
+                headers.set("Content-Encoding", "gzip");
+                sendBytes(exchange, asset.gzip);
+            } else if (asset.raw != null) {
+                sendBytes(exchange, asset.raw);
+            } else {
+                // 大文件直接从磁盘流式发送
+                exchange.sendResponseHeaders(200, asset.size);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    Files.copy(asset.file, os);
+                }
+            }
+        }
+        
+        private void sendBytes(HttpExchange exchange, byte[] bytes) throws IOException {
+            exchange.sendResponseHeaders(200, bytes.length);
             try (OutputStream os = exchange.getResponseBody()) {
-                os.write(fileBytes);
+                os.write(bytes);
             }
         }
         
+        private boolean isCompressible(String mimeType) {
+            return mimeType.startsWith("text/") || mimeType.startsWith("application/javascript")
+                || mimeType.startsWith("application/json") || mimeType.startsWith("image/svg");
+        }
+        
         private String getMimeType(String path) {
             int dotIndex = path.lastIndexOf('.');
             if (dotIndex > 0) {
@@ -231,6 +347,10 @@ public class WebChatServer {
             if (path.endsWith(".html") || path.endsWith(".htm")) {
                 return "no-cache";
             }
+            // 按内容哈希命名的上传文件永不变化
+            if (HASHED_UPLOAD.matcher(path).matches()) {
+                return "public, max-age=31536000, immutable";
+            }
             return "public, max-age=3600";
         }
     }
@@ -259,7 +379,9 @@ public class WebChatServer {
             h.add("CF-Cache-Status", "DYNAMIC"); // 告诉 Cloudflare 不缓存
             exchange.sendResponseHeaders(200, 0);
 
-            String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
+            // 查询参数只解析一次
+            RequestContext ctx = new RequestContext(exchange);
+            String roomKey = ctx.roomKey();
             
             // 验证房间秘钥是否有效
             if (!Db.isValidRoomKey(roomKey)) {
@@ -272,67 +394,45 @@ public class WebChatServer {
             }
 
             // 从 URL 参数获取用户昵称
-            String nickname = null;
-            String query = exchange.getRequestURI().getQuery();
-            if (query != null) {
-                for (String param : query.split("&")) {
-                    String[] kv = param.split("=", 2);
-                    if (kv.length == 2 && "nickname".equals(kv[0])) {
-                        try {
-                            nickname = java.net.URLDecoder.decode(kv[1], StandardCharsets.UTF_8);
-                        } catch (Exception e) {
-                            nickname = kv[1];
-                        }
-                        break;
-                    }
-                }
+            String nickname = ctx.param("nickname");
+            if (nickname.isEmpty()) {
+                nickname = null;
             }
             
             OutputStream os = exchange.getResponseBody();
             SseClient client = new SseClient(os, nickname);
-            Set<SseClient> clients = getRoomClients(roomKey);
+            RoomClients clients = getRoomClients(roomKey);
             clients.add(client);
-            
-            // 发送连接成功事件（包含在线用户列表）
-            // 在线人数应该是去重后的用户数
-            java.util.List<String> users = getOnlineUsers(roomKey);
-            int onlineCount = users.size();
-            StringBuilder initSb = new StringBuilder();
-            initSb.append("event: info\ndata: {\"type\":\"connected\",\"online\":").append(onlineCount);
-            initSb.append(",\"room\":\"").append(roomKey.replace("\\", "\\\\").replace("\"", "\\\""));
-            initSb.append("\",\"users\":[");
-            for (int i = 0; i < users.size(); i++) {
-                if (i > 0) initSb.append(",");
-                initSb.append("\"").append(users.get(i).replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
-            }
-            initSb.append("]}\n\n");
-            client.send(initSb.toString());
-            
-            // 广播在线人数更新（通知所有客户端有新用户加入）
-            broadcastOnlineCount(roomKey);
+            client.trackLiveness();
+            
+            // 发送连接成功事件，附带在线用户完整快照及其版本号，之后只推送增量
+            // 新用户自己的加入事件会在合并窗口结束后随 presence 增量发出
+            RoomClients.Presence presence = clients.presence();
+            int onlineCount = presence.users().size();
+            Json.Writer init = Json.local().beginObject()
+                .field("type", "connected")
+                .field("online", onlineCount)
+                .field("room", roomKey)
+                .field("v", presence.version())
+                .name("users").beginArray();
+            for (String user : presence.users()) {
+                init.value(user);
+            }
+            init.endArray().endObject();
+            client.send("event: info\ndata: " + init + "\n\n");
             
             String displayName = nickname != null ? nickname : "anonymous";
-            System.out.println("[SSE] Client connected: " + displayName + " @" + roomKey + ", online=" + onlineCount);
+            Log.info("SSE", "Client connected: " + displayName + " @" + Db.roomLabel(roomKey) + ", online=" + onlineCount);
 
-            // 保持连接
+            // 保持连接：sse-heartbeat 线程标记心跳到期后由本线程写出，直到连接被移除（写失败、超时或主动断开）
             try {
-                while (!Thread.currentThread().isInterrupted()) {
-                    // 发送心跳 (更频繁以保持连接并快速检测断开)
-                    long now = System.currentTimeMillis();
-                    String heartbeatPayload = ": heartbeat " + now + "\n\n";
-                    if (!client.send(heartbeatPayload)) {
-                        break;
-                    }
-                    client.updateLastActive();
-                    Thread.sleep(5000); // 每 5 秒心跳，快速检测断开
-                }
+                client.awaitDetached();
             } catch (InterruptedException ignored) {
             } finally {
                 clients.remove(client);
                 try { os.close(); } catch (IOException ignored) {}
-                broadcastOnlineCount(roomKey);
                 int remainingOnline = getOnlineUsers(roomKey).size();
-                System.out.println("[SSE] Client disconnected: " + displayName + " @" + roomKey + ", online=" + remainingOnline);
+                Log.info("SSE", "Client disconnected: " + displayName + " @" + Db.roomLabel(roomKey) + ", online=" + remainingOnline);
             }
         }
     }
@@ -340,29 +440,21 @@ public class WebChatServer {
     /**
      * 发送消息处理器
      */
-    static class SendHandler implements HttpHandler {
+    static class SendHandler extends ApiHandler {
+        private static final InlineImageStore INLINE_IMAGES = new InlineImageStore(UPLOAD_DIR, "/uploads/");
+        private static final int MAX_IMAGE_REF_LENGTH = 2048;
+        
+        SendHandler() {
+            super("POST", Auth.NONE);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            // 处理 OPTIONS
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            Json.Obj json = ctx.json();
             
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "Method Not Allowed");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-
-            byte[] body = exchange.getRequestBody().readAllBytes();
-            String json = new String(body, StandardCharsets.UTF_8).trim();
-            
-            String name = extract(json, "name");
-            String msg = extract(json, "message");
-            String roomKey = normalizeRoomKey(extract(json, "roomKey"));
+            String name = json.getString("name");
+            String msg = json.getString("message");
+            String roomKey = normalizeRoomKey(json.getString("roomKey"));
             
             // 验证房间秘钥是否有效
             if (!Db.isValidRoomKey(roomKey)) {
@@ -375,26 +467,27 @@ public class WebChatServer {
                 return;
             }
             
+            // 内联 base64 图片转存为文件，消息只保留引用
+            msg = INLINE_IMAGES.externalize(msg);
+            if (InlineImageStore.isInline(msg)) {
+                // 无法转存（格式不支持、内容与类型不符或过大）的内联图片不再原样广播
+                respond(exchange, 400, "{\"status\":\"error\",\"message\":\"不支持的图片格式\"}");
+                return;
+            }
+            
             // 简单的内容过滤
             name = sanitize(name, 20, false);
             msg = sanitize(msg, 500, true);
             
-            String line = formatMsg(name, msg);
-            broadcast(line, roomKey);
-            incrementMessageCount(roomKey);
-
-            // 持久化到数据库（若启用）
-            try {
-                MessageDao.save(name, msg, LocalDateTime.now(), roomKey);
-            } catch (Exception ignored) {}
+            postMessage(name, msg, roomKey);
             
             respond(exchange, 200, "{\"status\":\"ok\",\"message\":\"sent\"}");
         }
         
         private String sanitize(String input, int maxLength, boolean isMessage) {
-            // 对于包含表情包或图片的消息，使用更大的长度限制
+            // 表情包和图片消息只带地址引用（内联图片已转存），长度放宽到足够放下 [IMAGE:缩略图|预览图|原图]
             if (isMessage && (input.startsWith("[STICKER:") || input.startsWith("[IMAGE:"))) {
-                maxLength = 500000; // 500KB 用于 base64 编码的图片
+                maxLength = MAX_IMAGE_REF_LENGTH;
             }
             if (input.length() > maxLength) {
                 input = input.substring(0, maxLength);
@@ -408,27 +501,78 @@ public class WebChatServer {
     }
 
     /**
-     * 历史记录 API：GET /api/history?limit=50&offset=0
-     * 返回 JSON 数组，每项为一条格式化消息字符串。
-     * 支持分页加载：offset 表示跳过的消息数量
+     * 聊天记录搜索：GET /api/messages/search?roomKey=xxx&q=关键词&sort=relevance|time&offset=0&limit=20
+     * 由内存 + 段文件索引直接返回，不查询数据库
      */
-    static class HistoryHandler implements HttpHandler {
+    static class MessageSearchHandler extends ApiHandler {
+        MessageSearchHandler() {
+            super("GET", Auth.NONE);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            // CORS 和方法
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.roomKey();
+            
+            // 验证房间秘钥是否有效
+            if (!Db.isValidRoomKey(roomKey)) {
+                respond(exchange, 403, "{\"error\":\"无效的房间秘钥\"}");
                 return;
             }
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "Method Not Allowed");
+            
+            String q = ctx.param("q");
+            if (q == null || q.isBlank()) {
+                respond(exchange, 400, "{\"error\":\"缺少搜索关键词\"}");
                 return;
             }
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            boolean byTime = "time".equals(ctx.param("sort"));
+            int offset = 0;
+            int limit = 20;
+            try {
+                String o = ctx.param("offset");
+                String l = ctx.param("limit");
+                if (o != null) offset = Math.max(0, Integer.parseInt(o));
+                if (l != null) limit = Math.max(1, Math.min(100, Integer.parseInt(l)));
+            } catch (NumberFormatException ignored) {}
+
+            try {
+                MessageSearchIndex.Result result = MessageSearchIndex.search(roomKey, q, byTime, offset, limit);
+                Json.Writer w = Json.local().beginObject()
+                    .field("total", result.total)
+                    .field("offset", offset)
+                    .field("hasMore", offset + result.hits.size() < result.total)
+                    .field("indexing", result.indexing)
+                    .name("hits").beginArray();
+                for (MessageSearchIndex.Hit hit : result.hits) {
+                    w.beginObject()
+                        .field("id", hit.id)
+                        .field("time", hit.createdAt)
+                        .field("nickname", hit.nickname)
+                        .field("content", hit.content)
+                        .field("score", Math.round(hit.score * 1000) / 1000.0)
+                        .endObject();
+                }
+                w.endArray().endObject();
+                respond(exchange, 200, w);
+            } catch (Exception e) {
+                Log.error("Search", "Search failed", e);
+                respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
+            }
+        }
+    }
 
-            String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
+    /**
+     * 历史记录 API：GET /api/history?limit=50&offset=0
+     * messages 每项为一条消息对象（见 ChatMessage），LEGACY_MESSAGE_FORMAT=true 时为格式化文本。
+     * 支持分页加载：offset 表示跳过的消息数量
+     */
+    static class HistoryHandler extends ApiHandler {
+        HistoryHandler() {
+            super("GET", Auth.NONE);
+        }
+        
+        @Override
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.roomKey();
             
             // 验证房间秘钥是否有效
             if (!Db.isValidRoomKey(roomKey)) {
@@ -440,82 +584,57 @@ public class WebChatServer {
             int offset = 0;
             long since = 0; // 增量加载时间戳
             try {
-                String q = exchange.getRequestURI().getQuery();
-                if (q != null) {
-                    for (String p : q.split("&")) {
-                        String[] kv = p.split("=", 2);
-                        if (kv.length == 2) {
-                            if (kv[0].equals("limit")) {
-                                limit = Math.max(1, Math.min(500, Integer.parseInt(kv[1])));
-                            } else if (kv[0].equals("offset")) {
-                                offset = Math.max(0, Integer.parseInt(kv[1]));
-                            } else if (kv[0].equals("since")) {
-                                since = Long.parseLong(kv[1]);
-                            }
-                        }
-                    }
+                if (!ctx.param("limit").isEmpty()) {
+                    limit = Math.max(1, Math.min(500, Integer.parseInt(ctx.param("limit"))));
+                }
+                if (!ctx.param("offset").isEmpty()) {
+                    offset = Math.max(0, Integer.parseInt(ctx.param("offset")));
                 }
-            } catch (Exception ignored) {}
+                if (!ctx.param("since").isEmpty()) {
+                    since = Long.parseLong(ctx.param("since"));
+                }
+            } catch (NumberFormatException ignored) {}
 
             // 如果有 since 参数，使用增量加载
             if (since > 0) {
-                java.util.List<String> newMessages = MessageDao.latestSince(since, roomKey);
-                StringBuilder sb = new StringBuilder();
-                sb.append("{\"messages\":[");
-                for (int i = 0; i < newMessages.size(); i++) {
-                    if (i > 0) sb.append(',');
-                    String msg = newMessages.get(i)
-                        .replace("\\", "\\\\")
-                        .replace("\"", "\\\"")
-                        .replace("\n", "\\n")
-                        .replace("\r", "\\r")
-                        .replace("\t", "\\t");
-                    sb.append('"').append(msg).append('"');
+                java.util.List<ChatMessage> newMessages = MessageDao.latestSince(since, roomKey);
+                Json.Writer w = Json.local().beginObject().name("messages").beginArray();
+                for (ChatMessage msg : newMessages) {
+                    writeMessage(w, msg);
                 }
-                sb.append("],\"timestamp\":").append(System.currentTimeMillis()).append("}");
-                byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(200, bytes.length);
-                try (OutputStream os = exchange.getResponseBody()) { os.write(bytes); }
+                w.endArray().field("timestamp", System.currentTimeMillis()).endObject();
+                respond(exchange, 200, w);
                 return;
             }
 
-            java.util.List<String> history = MessageDao.latest(limit, offset, roomKey);
+            java.util.List<ChatMessage> history = MessageDao.latest(limit, offset, roomKey);
             int totalCount = MessageDao.getTotalCount(roomKey);
             boolean hasMore = (offset + history.size()) < totalCount;
             
-            StringBuilder sb = new StringBuilder();
-            sb.append("{\"total\":").append(totalCount);
-            sb.append(",\"offset\":").append(offset);
-            sb.append(",\"hasMore\":").append(hasMore);
-            sb.append(",\"messages\":[");
-            for (int i = 0; i < history.size(); i++) {
-                if (i > 0) sb.append(',');
-                // 正确转义所有特殊字符
-                String msg = history.get(i)
-                    .replace("\\", "\\\\")
-                    .replace("\"", "\\\"")
-                    .replace("\n", "\\n")
-                    .replace("\r", "\\r")
-                    .replace("\t", "\\t");
-                sb.append('"').append(msg).append('"');
-            }
-            sb.append("]}");
-
-            byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
-            exchange.sendResponseHeaders(200, bytes.length);
-            try (OutputStream os = exchange.getResponseBody()) { os.write(bytes); }
+            Json.Writer w = Json.local().beginObject()
+                .field("total", totalCount)
+                .field("offset", offset)
+                .field("hasMore", hasMore)
+                .name("messages").beginArray();
+            for (ChatMessage msg : history) {
+                writeMessage(w, msg);
+            }
+            w.endArray().endObject();
+            respond(exchange, 200, w);
         }
     }
 
     /**
      * 服务器状态 API
      */
-    static class StatusHandler implements HttpHandler {
+    static class StatusHandler extends ApiHandler {
+        StatusHandler() {
+            super(null, Auth.NONE);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.roomKey();
             
             // 验证房间秘钥是否有效
             if (!Db.isValidRoomKey(roomKey)) {
@@ -527,20 +646,13 @@ public class WebChatServer {
             int online = getOnlineUsers(roomKey).size();
             int totalMessages = getMessageCount(roomKey);
             
-            String json = String.format(
-                "{\"room\":\"%s\",\"online\":%d,\"totalMessages\":%d,\"uptime\":\"%s\",\"startTime\":\"%s\"}",
-                roomKey,
-                online,
-                totalMessages,
-                getUptime(),
-                START_TIME.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)
-            );
-            
-            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
-            exchange.sendResponseHeaders(200, bytes.length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(bytes);
-            }
+            respond(exchange, 200, Json.local().beginObject()
+                .field("room", roomKey)
+                .field("online", online)
+                .field("totalMessages", totalMessages)
+                .field("uptime", getUptime())
+                .field("startTime", START_TIME.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME))
+                .endObject());
         }
         
         private String getUptime() {
@@ -557,34 +669,29 @@ public class WebChatServer {
      * Body: {"username":"xxx","password":"xxx","nickname":"xxx","secretKey":"xxx"}
      * 注册秘钥同时作为用户的房间秘钥
      */
-    static class RegisterHandler implements HttpHandler {
+    static class RegisterHandler extends ApiHandler {
+        
+        RegisterHandler() {
+            super("POST", Auth.NONE);
+        }
         
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            Json.Obj json = ctx.json();
             
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            byte[] body = exchange.getRequestBody().readAllBytes();
-            String json = new String(body, StandardCharsets.UTF_8).trim();
-            
-            String username = extract(json, "username");
-            String password = extract(json, "password");
-            String nickname = extract(json, "nickname");
-            String secretKey = extract(json, "secretKey");
+            String username = json.getString("username");
+            String password = json.getString("password");
+            String nickname = json.getString("nickname");
+            String secretKey = json.getString("secretKey");
             
             // 注册时传入秘钥，UserDao 会验证秘钥并保存为用户的房间秘钥
-            String error = UserDao.register(username, password, nickname, secretKey);
+            String error;
+            try {
+                error = UserDao.register(username, password, nickname, secretKey);
+            } catch (PasswordHasher.BusyException e) {
+                respondBusy(exchange);
+                return;
+            }
             
             if (error == null) {
                 respond(exchange, 200, "{\"success\":true,\"message\":\"注册成功\"}");
@@ -598,33 +705,34 @@ public class WebChatServer {
      * 用户登录 API: POST /api/login
      * Body: {"username":"xxx","password":"xxx"}
      */
-    static class LoginHandler implements HttpHandler {
+    static class LoginHandler extends ApiHandler {
+        LoginHandler() {
+            super("POST", Auth.NONE);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            Json.Obj json = ctx.json();
             
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
+            String username = json.getString("username");
+            String password = json.getString("password");
+            
+            UserDao.LoginResult result;
+            try {
+                result = UserDao.login(username, password);
+            } catch (PasswordHasher.BusyException e) {
+                respondBusy(exchange);
                 return;
             }
             
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            byte[] body = exchange.getRequestBody().readAllBytes();
-            String json = new String(body, StandardCharsets.UTF_8).trim();
-            
-            String username = extract(json, "username");
-            String password = extract(json, "password");
-            
-            UserDao.LoginResult result = UserDao.login(username, password);
-            
             if (result.success()) {
-                respond(exchange, 200, "{\"success\":true,\"token\":\"" + result.token + "\",\"nickname\":\"" + escapeJson(result.nickname) + "\",\"roomKey\":\"" + escapeJson(result.roomKey) + "\",\"isAdmin\":" + result.isAdmin + "}");
+                respond(exchange, 200, Json.local().beginObject()
+                    .field("success", true)
+                    .field("token", result.token)
+                    .field("nickname", orEmpty(result.nickname))
+                    .field("roomKey", orEmpty(result.roomKey))
+                    .field("isAdmin", result.isAdmin)
+                    .endObject());
             } else {
                 respond(exchange, 401, "{\"success\":false,\"error\":\"" + escapeJson(result.error) + "\"}");
             }
@@ -635,31 +743,25 @@ public class WebChatServer {
      * Token 验证 API: POST /api/verify
      * Body: {"token":"xxx"}
      */
-    static class VerifyHandler implements HttpHandler {
+    static class VerifyHandler extends ApiHandler {
+        VerifyHandler() {
+            super("POST", Auth.NONE);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            Json.Obj json = ctx.json();
             
-            byte[] body = exchange.getRequestBody().readAllBytes();
-            String json = new String(body, StandardCharsets.UTF_8).trim();
-            
-            String token = extract(json, "token");
+            String token = json.getString("token");
             UserDao.UserInfo userInfo = UserDao.validateToken(token);
             
             if (userInfo != null) {
-                respond(exchange, 200, "{\"valid\":true,\"nickname\":\"" + escapeJson(userInfo.nickname) + "\",\"roomKey\":\"" + escapeJson(userInfo.roomKey) + "\",\"isAdmin\":" + userInfo.isAdmin + "}");
+                respond(exchange, 200, Json.local().beginObject()
+                    .field("valid", true)
+                    .field("nickname", orEmpty(userInfo.nickname))
+                    .field("roomKey", orEmpty(userInfo.roomKey))
+                    .field("isAdmin", userInfo.isAdmin)
+                    .endObject());
             } else {
                 respond(exchange, 401, "{\"valid\":false,\"error\":\"Token无效或已过期\"}");
             }
@@ -670,24 +772,16 @@ public class WebChatServer {
      * 文件上传 API: POST /api/upload
      * 支持图片和文件上传，使用 multipart/form-data
      */
-    static class UploadHandler implements HttpHandler {
+    static class UploadHandler extends ApiHandler {
         // 不限制单文件大小，由存储配额控制总空间
+        private static final ImagePipeline IMAGES = new ImagePipeline(UPLOAD_DIR, "/uploads/");
+        
+        UploadHandler() {
+            super("POST", Auth.NONE);
+        }
         
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
             try {
                 String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
                 if (contentType == null || !contentType.contains("multipart/form-data")) {
@@ -723,7 +817,7 @@ public class WebChatServer {
                 String senderName = null;
                 String fileType = "file";
                 // 优先从 URL 查询参数获取 roomKey，如果没有则从 FormData 中获取
-                String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
+                String roomKey = ctx.roomKey();
                 
                 byte[] fileData = null;
                 
@@ -815,39 +909,62 @@ public class WebChatServer {
                 // 保存文件
                 Path uploadPath = Paths.get(UPLOAD_DIR, safeFileName);
                 Files.write(uploadPath, fileData);
+                UPLOAD_BYTES.mark(fileData.length);
                 
-                System.out.println("[Upload] Saved: " + safeFileName + " (" + fileData.length + " bytes)");
+                Log.info("Upload", "Saved: " + safeFileName + " (" + fileData.length + " bytes)");
                 
                 // 生成访问 URL
                 String fileUrl = "/uploads/" + safeFileName;
                 
                 // 广播消息
-                String msgContent;
                 if ("image".equals(fileType)) {
-                    msgContent = "[IMAGE:" + fileUrl + "]";
+                    publishImage(senderName, fileUrl, fileData, roomKey);
                 } else {
-                    msgContent = "[FILE:" + fileName + "|" + fileUrl + "]";
+                    postMessage(senderName, "[FILE:" + fileName + "|" + fileUrl + "]", roomKey);
                 }
                 
-                String line = formatMsg(senderName, msgContent);
-                broadcast(line, roomKey);
-                incrementMessageCount(roomKey);
-                
-                // 持久化到数据库
-                try {
-                    MessageDao.save(senderName, msgContent, LocalDateTime.now(), roomKey);
-                } catch (Exception ignored) {}
-                
                 respond(exchange, 200, "{\"status\":\"ok\",\"url\":\"" + fileUrl + "\"}");
                 
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.error("Upload", "Upload failed", e);
                 respond(exchange, 500, "{\"error\":\"上传失败: " + escapeJson(e.getMessage()) + "\"}");
             }
         }
         
+        /**
+         * 图片消息先以原图地址立即广播，不占用请求线程等待缩略图；
+         * 变体生成后推送 image-variants 事件让在线客户端换成缩略图，并以 [IMAGE:缩略图|预览图|原图] 入库
+         */
+        private static void publishImage(String sender, String fileUrl, byte[] data, String roomKey) {
+            LocalDateTime now = LocalDateTime.now();
+            String original = "[IMAGE:" + fileUrl + "]";
+            long seq = publish(sender, original, now, roomKey).roomSeq();
+            java.util.concurrent.CompletableFuture<ImagePipeline.Variants> pending = IMAGES.submit(data);
+            if (pending == null) {
+                persist(sender, original, now, seq, roomKey);
+                return;
+            }
+            pending.whenComplete((variants, error) -> {
+                if (error != null) {
+                    Log.error("Image", "Variant generation failed for " + fileUrl + ": " + error);
+                }
+                if (variants == null || variants.thumbUrl == null) {
+                    persist(sender, original, now, seq, roomKey);
+                    return;
+                }
+                String previewUrl = variants.previewUrl != null ? variants.previewUrl : fileUrl;
+                persist(sender, "[IMAGE:" + variants.thumbUrl + "|" + previewUrl + "|" + fileUrl + "]", now, seq, roomKey);
+                String event = Json.local().beginObject()
+                    .field("url", fileUrl)
+                    .field("thumb", variants.thumbUrl)
+                    .field("preview", previewUrl)
+                    .endObject().toString();
+                getRoomClients(roomKey).broadcast("event: image-variants\ndata: " + event + "\n\n");
+            });
+        }
+        
         // 在字节数组中查找子数组
-        private int indexOf(byte[] data, byte[] pattern, int start) {
+        static int indexOf(byte[] data, byte[] pattern, int start) {
             outer:
             for (int i = start; i <= data.length - pattern.length; i++) {
                 for (int j = 0; j < pattern.length; j++) {
@@ -878,113 +995,114 @@ public class WebChatServer {
     }
 
     private static String escapeJson(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return Json.escape(s);
+    }
+    
+    /**
+     * null 输出为空字符串，与原先拼接时的输出保持一致
+     */
+    private static String orEmpty(String s) {
+        return s == null ? "" : s;
     }
 
-    private static void broadcast(String data, String roomKey) {
-        String payload = "data: " + data.replace("\n", "\\n") + "\n\n";
-        Set<SseClient> clients = getRoomClients(roomKey);
-        synchronized (clients) {
-            clients.removeIf(c -> !c.send(payload));
-        }
-        System.out.println("[MSG][" + roomKey + "] " + data);
+    /**
+     * 发布一条消息：先广播，再交给后台线程持久化（若启用）并加入搜索索引，数据库慢时不拖慢实时消息。
+     * 广播时还没有数据库 ID（为 -1），但已分配房间序号并随消息入库，客户端按序号去重
+     */
+    private static ChatMessage postMessage(String sender, String body, String roomKey) {
+        LocalDateTime now = LocalDateTime.now();
+        ChatMessage message = publish(sender, body, now, roomKey);
+        persist(sender, body, now, message.roomSeq(), roomKey);
+        return message;
     }
     
-    private static void broadcastOnlineCount(String roomKey) {
-        java.util.List<String> users = getOnlineUsers(roomKey);
-        Set<SseClient> clients = getRoomClients(roomKey);
-        // 在线人数应该是去重后的用户数，而不是连接数
-        int onlineCount = users.size();
-        StringBuilder sb = new StringBuilder();
-        sb.append("event: online\ndata: {\"count\":").append(onlineCount);
-        sb.append(",\"users\":[");
-        for (int i = 0; i < users.size(); i++) {
-            if (i > 0) sb.append(",");
-            sb.append("\"").append(users.get(i).replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
-        }
-        sb.append("]}\n\n");
-        String payload = sb.toString();
-        synchronized (clients) {
-            clients.removeIf(c -> !c.send(payload));
-        }
+    /**
+     * 只广播，不持久化；返回的消息带有已分配的房间序号，入库时须沿用
+     */
+    private static ChatMessage publish(String sender, String body, LocalDateTime now, String roomKey) {
+        long time = java.sql.Timestamp.valueOf(now).getTime();
+        ChatMessage message = ChatMessage.of(-1, nextRoomSeq(roomKey, time), sender, time, body);
+        broadcast(message, roomKey);
+        incrementMessageCount(roomKey);
+        MESSAGE_COUNTERS.computeIfAbsent(roomKey,
+            k -> Metrics.counter("chat_messages_total", "发布的聊天消息数", "room", Db.roomLabel(k))).inc();
+        return message;
     }
-
-    private static String extract(String json, String key) {
-        String pattern = "\"" + key + "\"";
-        int idx = json.indexOf(pattern);
-        if (idx < 0) return "";
-        int colon = json.indexOf(':', idx);
-        if (colon < 0) return "";
-        int firstQuote = json.indexOf('"', colon + 1);
-        if (firstQuote < 0) return "";
-        
-        // 正确处理转义字符，查找未转义的结束双引号
-        StringBuilder result = new StringBuilder();
-        boolean escaped = false;
-        for (int i = firstQuote + 1; i < json.length(); i++) {
-            char c = json.charAt(i);
-            if (escaped) {
-                // 处理转义字符
-                switch (c) {
-                    case 'n': result.append('\n'); break;
-                    case 'r': result.append('\r'); break;
-                    case 't': result.append('\t'); break;
-                    case '"': result.append('"'); break;
-                    case '\\': result.append('\\'); break;
-                    default: result.append(c); break;
-                }
-                escaped = false;
-            } else if (c == '\\') {
-                escaped = true;
-            } else if (c == '"') {
-                // 找到未转义的结束双引号
-                break;
-            } else {
-                result.append(c);
+    
+    /**
+     * 房间序号：不小于 发送时间毫秒 × 1000，且大于本房间上一条，重启后无需读库也不会与旧消息重复；
+     * 首次使用时再以库中最大值兜底，防止时钟回拨。最大约 1.8e15，在 JS 安全整数范围内
+     */
+    private static long nextRoomSeq(String roomKey, long epochMillis) {
+        AtomicLong seq = ROOM_SEQ.computeIfAbsent(roomKey, k -> new AtomicLong(MessageDao.maxRoomSeq(k)));
+        return seq.accumulateAndGet(epochMillis * 1000, (prev, floor) -> Math.max(prev + 1, floor));
+    }
+    
+    /**
+     * 在 message-persist 线程上按入队顺序保存消息；队列满时阻塞调用线程
+     */
+    private static void persist(String sender, String body, LocalDateTime now, long roomSeq, String roomKey) {
+        PERSIST_EXECUTOR.execute(() -> {
+            try {
+                long id = MessageDao.save(sender, body, now, roomSeq, roomKey);
+                MessageSearchIndex.add(roomKey, id, sender, body, java.sql.Timestamp.valueOf(now).getTime());
+            } catch (Exception e) {
+                Log.error("DB", "Persist message failed @" + Db.roomLabel(roomKey), e);
             }
-        }
-        return result.toString();
+        });
     }
 
     /**
-     * 从 JSON 中提取数字值（支持整数）
+     * 关闭钩子：停止接收新任务并等待队列中的消息入库
      */
-    private static String extractNumber(String json, String key) {
-        String pattern = "\"" + key + "\"";
-        int idx = json.indexOf(pattern);
-        if (idx < 0) return "";
-        int colon = json.indexOf(':', idx);
-        if (colon < 0) return "";
-        
-        // 跳过冒号后的空白字符
-        int start = colon + 1;
-        while (start < json.length() && Character.isWhitespace(json.charAt(start))) {
-            start++;
+    private static void drainPersistQueue() {
+        int pending = PERSIST_EXECUTOR.getQueue().size();
+        PERSIST_EXECUTOR.shutdown();
+        try {
+            if (!PERSIST_EXECUTOR.awaitTermination(PERSIST_DRAIN_TIMEOUT_MS, java.util.concurrent.TimeUnit.MILLISECONDS)) {
+                Log.warn("DB", "Persist queue not drained within " + PERSIST_DRAIN_TIMEOUT_MS + "ms, "
+                    + PERSIST_EXECUTOR.getQueue().size() + " message(s) lost");
+            } else if (pending > 0) {
+                Log.info("DB", "Persist queue drained (" + pending + " message(s))");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        if (start >= json.length()) return "";
-        
-        // 检查是否是字符串值（带引号）
-        if (json.charAt(start) == '"') {
-            // 字符串值，使用 extract 方法
-            return extract(json, key);
+    }
+
+    static void broadcast(ChatMessage message, String roomKey) {
+        // JSON 中的换行已转义，可直接作为单行 data
+        String data = LEGACY_MESSAGE_FORMAT ? message.legacyLine().replace("\n", "\\n") : message.toJson();
+        getRoomClients(roomKey).broadcast("data: " + data + "\n\n");
+        if (Log.enabled(Log.Level.INFO)) {
+            Log.info("MSG", Db.roomLabel(roomKey) + " " + message.legacyLine());
         }
-        
-        // 数字值，查找结束位置（逗号、}、] 或空白）
-        StringBuilder result = new StringBuilder();
-        for (int i = start; i < json.length(); i++) {
-            char c = json.charAt(i);
-            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
-                break;
-            }
-            result.append(c);
+    }
+    
+    /**
+     * 历史记录中的一条消息
+     */
+    private static void writeMessage(Json.Writer w, ChatMessage message) {
+        if (LEGACY_MESSAGE_FORMAT) {
+            w.value(message.legacyLine());
+        } else {
+            message.writeJson(w);
         }
-        return result.toString();
     }
-
-    private static String formatMsg(String sender, String text) {
-        String ts = LocalDateTime.now().format(TS);
-        return "[" + ts + "] " + sender + ": " + text;
+    
+    /**
+     * 逗号分隔的 ID 列表（查询参数 ids=1,2,3）
+     * @throws NumberFormatException 存在非数字项
+     */
+    private static List<Long> parseIdList(String ids) {
+        List<Long> values = new ArrayList<>();
+        for (String part : ids.split(",")) {
+            String item = part.trim();
+            if (!item.isEmpty()) {
+                values.add(Long.parseLong(item));
+            }
+        }
+        return values;
     }
 
     private static void respond(HttpExchange ex, int code, String msg) throws IOException {
@@ -996,6 +1114,26 @@ public class WebChatServer {
             os.write(bytes); 
         }
     }
+    
+    /**
+     * 写出 JSON 响应，直接发送写出器中的 UTF-8 字节
+     */
+    private static void respond(HttpExchange ex, int code, Json.Writer json) throws IOException {
+        addCors(ex.getResponseHeaders());
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(code, json.size());
+        try (OutputStream os = ex.getResponseBody()) {
+            json.writeTo(os);
+        }
+    }
+
+    /**
+     * 密码哈希排队已满：429，提示客户端稍后重试
+     */
+    private static void respondBusy(HttpExchange ex) throws IOException {
+        ex.getResponseHeaders().set("Retry-After", "1");
+        respond(ex, 429, "{\"success\":false,\"error\":\"服务器繁忙，请稍后重试\"}");
+    }
 
     private static void addCors(Headers h) {
         // 使用 set 而不是 add，防止重复添加导致 "*, *" 的问题
@@ -1004,72 +1142,424 @@ public class WebChatServer {
         h.set("Access-Control-Allow-Headers", "Content-Type, Authorization");
     }
 
-    private static class SseClient {
+    static class SseClient {
+        private static final java.lang.invoke.VarHandle LAST_WRITE;
+        private static final java.lang.invoke.VarHandle WRITE_STARTED;
+        
+        static {
+            try {
+                java.lang.invoke.MethodHandles.Lookup lookup = java.lang.invoke.MethodHandles.lookup();
+                LAST_WRITE = lookup.findVarHandle(SseClient.class, "lastWrite", long.class);
+                WRITE_STARTED = lookup.findVarHandle(SseClient.class, "writeStarted", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+        
         private final OutputStream out;
         private String nickname;
-        private volatile long lastActiveTime;
         private volatile long connectedTime;
+        // 广播和心跳可能在不同线程同时写同一连接，按连接加锁保证每个事件完整写出
+        private final java.util.concurrent.locks.ReentrantLock writeLock = new java.util.concurrent.locks.ReentrantLock();
+        // 最后一次成功写出时的心跳时钟，在写锁内写入；心跳线程以 opaque 方式读取，晚一个刻度看到无妨
+        private long lastWrite = heartbeatClock;
+        // 正在进行的写出开始时的心跳时钟，没有写出时为 0；同样以 opaque 方式读写，广播路径上不加内存屏障
+        @SuppressWarnings("unused")
+        private long writeStarted;
+        // 心跳线程标记心跳到期或连接被移除后释放一个许可，唤醒该连接的处理线程
+        private final java.util.concurrent.Semaphore wakeups = new java.util.concurrent.Semaphore(0);
+        private volatile boolean heartbeatDue;
+        private volatile boolean detached;
+        // 所属房间，加入房间时设置
+        private RoomClients room;
+        // 时间轮中的超时条目；未登记（如基准测试中的连接）时为 null
+        private volatile TimingWheel.Entry<SseClient> liveness;
         
         SseClient(OutputStream out) { 
             this.out = out; 
             this.nickname = null;
             this.connectedTime = System.currentTimeMillis();
-            this.lastActiveTime = this.connectedTime;
         }
         
         SseClient(OutputStream out, String nickname) { 
             this.out = out; 
             this.nickname = nickname;
             this.connectedTime = System.currentTimeMillis();
-            this.lastActiveTime = this.connectedTime;
         }
         
         String getNickname() {
             return nickname;
         }
         
-        long getLastActiveTime() {
-            return lastActiveTime;
+        /**
+         * 登记超时检测，CLIENT_TIMEOUT_MS 内没有活动即从房间移除
+         */
+        void trackLiveness() {
+            liveness = LIVENESS.schedule(this, CLIENT_TIMEOUT_MS);
         }
         
-        void updateLastActive() {
-            this.lastActiveTime = System.currentTimeMillis();
+        /**
+         * 已从房间移除：取消超时检测，唤醒等待的 EventsHandler 线程关闭连接
+         */
+        void detach() {
+            TimingWheel.Entry<SseClient> entry = liveness;
+            if (entry != null) {
+                entry.cancel();
+            }
+            detached = true;
+            wakeups.release();
         }
         
-        boolean isStale(long timeoutMs) {
-            return System.currentTimeMillis() - lastActiveTime > timeoutMs;
+        /**
+         * 在连接自己的处理线程上等待，直到连接被移除或心跳写失败；
+         * 到期的心跳在这里写出，写出阻塞只占用这一个线程
+         */
+        void awaitDetached() throws InterruptedException {
+            while (true) {
+                wakeups.acquire();
+                if (detached) {
+                    return;
+                }
+                if (heartbeatDue) {
+                    heartbeatDue = false;
+                    if (!heartbeatIfIdle(heartbeatClock, heartbeatInterval)) {
+                        return;
+                    }
+                }
+            }
         }
         
-        boolean send(String payload) {
-            try {
-                out.write(payload.getBytes(StandardCharsets.UTF_8));
-                out.flush();
-                return true;
-            } catch (IOException e) {
-                return false;
+        /**
+         * 心跳线程调用：已空闲满 idleMs 时标记心跳到期并唤醒处理线程，本身不做任何 I/O
+         */
+        void requestHeartbeat(long now, long idleMs) {
+            if (!heartbeatDue && now - (long) LAST_WRITE.getOpaque(this) >= idleMs) {
+                heartbeatDue = true;
+                wakeups.release();
             }
         }
-    }
-    
-    /**
-     * 获取在线用户列表
-     */
-    private static java.util.List<String> getOnlineUsers(String roomKey) {
-        java.util.List<String> users = new java.util.ArrayList<>();
-        Set<SseClient> clients = getRoomClients(roomKey);
-        synchronized (clients) {
-            for (SseClient client : clients) {
-                String nick = client.getNickname();
-                if (nick != null && !nick.isEmpty() && !users.contains(nick)) {
-                    users.add(nick);
-                }
+        
+        /**
+         * 当前写出已持续 SSE_WRITE_STALL_MS 以上
+         */
+        boolean stalled(long now) {
+            long started = (long) WRITE_STARTED.getOpaque(this);
+            return started != 0 && now - started >= SSE_WRITE_STALL_MS;
+        }
+        
+        /**
+         * 记录一次活动；只记下时间轮的当前刻度，同一秒内重复调用不写内存
+         */
+        void updateLastActive() {
+            TimingWheel.Entry<SseClient> entry = liveness;
+            if (entry != null) {
+                entry.touch();
+            }
+        }
+        
+        boolean send(String payload) {
+            return send(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        /**
+         * 写出一个事件；其他线程的写出卡住时最多等待 SSE_WRITE_STALL_MS，超时按失败处理，由调用方移除
+         */
+        boolean send(byte[] payload) {
+            try {
+                if (!writeLock.tryLock(SSE_WRITE_STALL_MS, java.util.concurrent.TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            try {
+                return write(payload);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        
+        /**
+         * 距上次写出已满 idleMs 时写一帧心跳；其他线程正在写的连接不算空闲，直接跳过而不等锁
+         * @return 心跳写失败时返回 false
+         */
+        boolean heartbeatIfIdle(long now, long idleMs) {
+            if (!writeLock.tryLock()) {
+                return true;
+            }
+            try {
+                if (now - lastWrite < idleMs) {
+                    return true;
+                }
+                HEARTBEATS_SENT.inc();
+                return write(HEARTBEAT_FRAME);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        
+        // 调用方持有写锁；成功写出即视为连接存活
+        private boolean write(byte[] payload) {
+            long clock = heartbeatClock;
+            WRITE_STARTED.setOpaque(this, clock);
+            try {
+                out.write(payload);
+                out.flush();
+            } catch (IOException e) {
+                return false;
+            } finally {
+                WRITE_STARTED.setOpaque(this, 0L);
+            }
+            if (lastWrite != clock) {
+                LAST_WRITE.setOpaque(this, clock);
+            }
+            updateLastActive();
+            return true;
+        }
+    }
+    
+    /**
+     * 一个房间的 SSE 连接
+     * 连接列表是写时复制的数组快照：广播直接遍历当前快照，不加锁；连接建立和断开（远少于消息数）时在锁内复制数组。
+     * 另按昵称建索引（数组长度即该昵称的连接引用计数），心跳和主动断开只处理该昵称的连接，不扫描整个房间。
+     *
+     * 在线状态：昵称的第一个连接建立时记为加入，最后一个连接断开时记为离开。变化在 PRESENCE_COALESCE_MS 内合并，
+     * 之后发出一条带版本号的 presence 增量事件（joined/left），同一窗口内先进后出的昵称互相抵消。
+     * 完整的在线列表只在连接建立时、以及客户端心跳携带的版本号过期时发送。
+     */
+    static final class RoomClients {
+        private static final SseClient[] EMPTY = new SseClient[0];
+        
+        final String roomKey;
+        
+        /**
+         * 某一版本的在线用户快照（不可变）
+         */
+        record Presence(long version, List<String> users) {}
+        
+        private volatile SseClient[] clients = EMPTY;
+        private volatile Presence presence = new Presence(0, List.of());
+        // 昵称 -> 该昵称的全部连接（同一用户可能开多个标签页），值同样是不可变数组
+        private final Map<String, SseClient[]> byNickname = new ConcurrentHashMap<>();
+        // 合并窗口内尚未发出的变化，在对象锁内读写
+        private final java.util.LinkedHashSet<String> joined = new java.util.LinkedHashSet<>();
+        private final java.util.LinkedHashSet<String> left = new java.util.LinkedHashSet<>();
+        private boolean flushScheduled;
+        
+        RoomClients(String roomKey) {
+            this.roomKey = roomKey;
+        }
+        
+        synchronized void add(SseClient client) {
+            client.room = this;
+            clients = append(clients, client);
+            String nick = client.getNickname();
+            if (nick != null && !nick.isEmpty()) {
+                SseClient[] same = byNickname.get(nick);
+                byNickname.put(nick, same == null ? new SseClient[] {client} : append(same, client));
+                if (same == null) {
+                    if (!left.remove(nick)) {
+                        joined.add(nick);
+                    }
+                    schedulePresenceFlush();
+                }
+            }
+        }
+        
+        boolean remove(SseClient client) {
+            return removeAll(List.of(client)) > 0;
+        }
+        
+        /**
+         * 移除该昵称的全部连接
+         * @return 移除的连接数
+         */
+        int removeNickname(String nickname) {
+            SseClient[] same = nickname == null ? null : byNickname.get(nickname);
+            return same == null ? 0 : removeAll(Arrays.asList(same));
+        }
+        
+        /**
+         * 刷新该昵称全部连接的最后活动时间
+         * @return 找到的连接数
+         */
+        int touch(String nickname) {
+            SseClient[] same = nickname == null ? null : byNickname.get(nickname);
+            if (same == null) {
+                return 0;
+            }
+            for (SseClient client : same) {
+                client.updateLastActive();
+            }
+            return same.length;
+        }
+        
+        /**
+         * 发给房间内所有连接，写失败的连接随后移除
+         */
+        void broadcast(String payload) {
+            byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+            List<SseClient> failed = null;
+            for (SseClient client : clients) {
+                if (!client.send(bytes)) {
+                    if (failed == null) failed = new ArrayList<>();
+                    failed.add(client);
+                }
+            }
+            if (failed != null) {
+                removeAll(failed);
+            }
+        }
+        
+        /**
+         * 给空闲的连接标记心跳到期（由各自的处理线程写出），写出卡住的连接直接移除；不做任何 I/O
+         * @return 因写出卡住移除的连接数
+         */
+        int heartbeat(long now, long idleMs) {
+            List<SseClient> stalled = null;
+            for (SseClient client : clients) {
+                if (client.stalled(now)) {
+                    if (stalled == null) stalled = new ArrayList<>();
+                    stalled.add(client);
+                } else {
+                    client.requestHeartbeat(now, idleMs);
+                }
+            }
+            if (stalled == null) {
+                return 0;
+            }
+            for (SseClient client : stalled) {
+                Log.info("CLEANUP", "Removed stalled client: " + client.getNickname() + " @" + Db.roomLabel(roomKey));
+            }
+            return removeAll(stalled);
+        }
+        
+        /**
+         * 去重后的在线昵称（不可变），截至最近一次发出的 presence 事件
+         */
+        List<String> users() {
+            return presence.users();
+        }
+        
+        Presence presence() {
+            return presence;
+        }
+        
+        int size() {
+            return clients.length;
+        }
+        
+        /**
+         * 一次移除多个连接（只复制一次数组），离开的昵称合并进同一条 presence 增量
+         * @return 实际移除的连接数
+         */
+        synchronized int removeAll(java.util.Collection<SseClient> targets) {
+            // 超时批量移除时 targets 可能很大，先转成按引用比较的集合，避免每个连接都线性查找
+            java.util.Set<SseClient> removing = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
+            removing.addAll(targets);
+            SseClient[] current = clients;
+            SseClient[] kept = new SseClient[current.length];
+            int n = 0;
+            for (SseClient client : current) {
+                if (!removing.contains(client)) {
+                    kept[n++] = client;
+                } else {
+                    client.detach();
+                }
+            }
+            int removed = current.length - n;
+            if (removed == 0) {
+                return 0;
+            }
+            clients = n == 0 ? EMPTY : Arrays.copyOf(kept, n);
+            for (SseClient client : removing) {
+                String nick = client.getNickname();
+                SseClient[] same = nick == null ? null : byNickname.get(nick);
+                if (same == null) continue;
+                SseClient[] rest = without(same, client);
+                if (rest.length == same.length) continue;
+                if (rest.length == 0) {
+                    byNickname.remove(nick);
+                    if (!joined.remove(nick)) {
+                        left.add(nick);
+                    }
+                    schedulePresenceFlush();
+                } else {
+                    byNickname.put(nick, rest);
+                }
+            }
+            return removed;
+        }
+        
+        // 调用方持有对象锁
+        private void schedulePresenceFlush() {
+            if (!flushScheduled) {
+                flushScheduled = true;
+                PRESENCE_TIMER.schedule(this::flushPresence, PRESENCE_COALESCE_MS, java.util.concurrent.TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        /**
+         * 发出合并窗口内的在线变化；全部抵消时不发送、版本号不变
+         */
+        void flushPresence() {
+            String payload;
+            synchronized (this) {
+                flushScheduled = false;
+                if (joined.isEmpty() && left.isEmpty()) {
+                    return;
+                }
+                Presence next = new Presence(presence.version() + 1, List.copyOf(byNickname.keySet()));
+                Json.Writer w = Json.local().beginObject()
+                    .field("v", next.version())
+                    .field("count", next.users().size())
+                    .name("joined").beginArray();
+                for (String nick : joined) {
+                    w.value(nick);
+                }
+                w.endArray().name("left").beginArray();
+                for (String nick : left) {
+                    w.value(nick);
+                }
+                w.endArray().endObject();
+                payload = "event: presence\ndata: " + w + "\n\n";
+                joined.clear();
+                left.clear();
+                presence = next;
+            }
+            // 在锁外发送；所有 flush 都在单个 presence-flush 线程上执行，版本号按顺序到达
+            broadcast(payload);
+        }
+        
+        private static SseClient[] append(SseClient[] array, SseClient client) {
+            SseClient[] copy = Arrays.copyOf(array, array.length + 1);
+            copy[array.length] = client;
+            return copy;
+        }
+        
+        private static SseClient[] without(SseClient[] array, SseClient client) {
+            for (int i = 0; i < array.length; i++) {
+                if (array[i] == client) {
+                    SseClient[] copy = new SseClient[array.length - 1];
+                    System.arraycopy(array, 0, copy, 0, i);
+                    System.arraycopy(array, i + 1, copy, i, array.length - i - 1);
+                    return copy;
+                }
             }
+            return array;
         }
-        return users;
+    }
+    
+    /**
+     * 获取在线用户列表
+     */
+    static java.util.List<String> getOnlineUsers(String roomKey) {
+        return getRoomClients(roomKey).users();
     }
 
-    private static Set<SseClient> getRoomClients(String roomKey) {
-        return CLIENTS_BY_ROOM.computeIfAbsent(roomKey, k -> Collections.synchronizedSet(new HashSet<>()));
+    static RoomClients getRoomClients(String roomKey) {
+        return CLIENTS_BY_ROOM.computeIfAbsent(roomKey, RoomClients::new);
     }
 
     private static AtomicInteger getRoomCounter(String roomKey) {
@@ -1084,12 +1574,23 @@ public class WebChatServer {
         return getRoomCounter(roomKey).get();
     }
 
-    private static String normalizeRoomKey(String roomKey) {
+    static String normalizeRoomKey(String roomKey) {
         if (roomKey == null) return "public";
         String trimmed = roomKey.trim();
         if (trimmed.isEmpty()) return "public";
-        // 仅允许字母、数字、下划线和中划线，其他字符移除
-        String safe = trimmed.replaceAll("[^A-Za-z0-9_-]", "");
+        // 仅允许字母、数字、下划线和中划线，其他字符移除；全部合法时不复制
+        StringBuilder filtered = null;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char ch = trimmed.charAt(i);
+            boolean allowed = (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')
+                || ch == '_' || ch == '-';
+            if (!allowed && filtered == null) {
+                filtered = new StringBuilder(trimmed.length()).append(trimmed, 0, i);
+            } else if (allowed && filtered != null) {
+                filtered.append(ch);
+            }
+        }
+        String safe = filtered == null ? trimmed : filtered.toString();
         if (safe.length() > MAX_ROOM_KEY_LENGTH) {
             safe = safe.substring(0, MAX_ROOM_KEY_LENGTH);
         }
@@ -1097,88 +1598,246 @@ public class WebChatServer {
         return safe.isEmpty() ? "public" : safe;
     }
 
-    private static String getQueryParam(HttpExchange exchange, String name) {
+    /**
+     * 解析查询参数，同名参数取第一个。
+     * 不能缓存在 exchange 属性里：JDK 17 的 HttpExchange 属性实际存放在 HttpContext 上，同一路由的并发请求会互相覆盖；
+     * 需要多次读取时由 RequestContext 保存结果。
+     */
+    private static Map<String, String> queryParams(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
         String query = exchange.getRequestURI().getQuery();
-        if (query == null) return "";
-        for (String param : query.split("&")) {
-            String[] kv = param.split("=", 2);
-            if (kv.length == 2 && name.equals(kv[0])) {
-                try {
-                    return java.net.URLDecoder.decode(kv[1], StandardCharsets.UTF_8);
-                } catch (Exception e) {
-                    return kv[1];
+        if (query != null) {
+            int from = 0;
+            while (from <= query.length()) {
+                int amp = query.indexOf('&', from);
+                if (amp < 0) amp = query.length();
+                int eq = query.indexOf('=', from);
+                if (eq >= 0 && eq < amp) {
+                    String key = query.substring(from, eq);
+                    if (!params.containsKey(key)) {
+                        String value = query.substring(eq + 1, amp);
+                        try {
+                            value = java.net.URLDecoder.decode(value, StandardCharsets.UTF_8);
+                        } catch (Exception ignored) {}
+                        params.put(key, value);
+                    }
                 }
+                from = amp + 1;
             }
         }
-        return "";
+        return params;
     }
     
-    // ========== 管理员 API ==========
+    // ========== 统一请求处理 ==========
     
     /**
-     * 验证管理员身份并返回用户信息
+     * 接口的认证要求
      */
-    private static UserDao.UserInfo validateAdminToken(HttpExchange exchange) throws IOException {
-        String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-            return null;
+    enum Auth {
+        NONE,                   // 不需要登录
+        USER,                   // Authorization: Bearer
+        USER_OR_QUERY_TOKEN,    // Bearer 或 URL 参数 token（浏览器直接下载）
+        ADMIN                   // 管理员 Bearer
+    }
+    
+    /**
+     * 单个请求的上下文：查询参数只解析一次，登录用户和房间秘钥只解析一次
+     */
+    static final class RequestContext {
+        final HttpExchange exchange;
+        // 已登录用户（Auth.NONE 时为 null）
+        UserDao.UserInfo user;
+        private Map<String, String> query;
+        private String roomKey;
+        private byte[] body;
+        private Json.Obj json;
+        
+        RequestContext(HttpExchange exchange) {
+            this.exchange = exchange;
         }
-        String token = authHeader.substring(7);
-        UserDao.UserInfo userInfo = UserDao.validateToken(token);
-        if (userInfo == null || !userInfo.isAdmin) {
-            return null;
+        
+        /**
+         * 查询参数，不存在返回空字符串
+         */
+        String param(String name) {
+            if (query == null) {
+                query = queryParams(exchange);
+            }
+            return query.getOrDefault(name, "");
+        }
+        
+        /**
+         * 归一化后的查询参数 roomKey
+         */
+        String roomKey() {
+            if (roomKey == null) {
+                roomKey = normalizeRoomKey(param("roomKey"));
+            }
+            return roomKey;
+        }
+        
+        /**
+         * 请求体原始字节，只读取一次
+         */
+        byte[] body() throws IOException {
+            if (body == null) {
+                body = exchange.getRequestBody().readAllBytes();
+            }
+            return body;
+        }
+        
+        /**
+         * 按 JSON 对象解析的请求体，格式错误时由 ApiHandler 返回 400
+         */
+        Json.Obj json() throws IOException {
+            if (json == null) {
+                json = Json.parseObject(body());
+            }
+            return json;
         }
-        return userInfo;
     }
     
     /**
-     * 管理员-获取用户列表
-     * GET /api/admin/users?roomKey=xxx
+     * 接口基类：统一处理 OPTIONS 预检、请求方法、CORS、认证和未捕获异常，子类只实现 serve
      */
-    static class AdminUsersHandler implements HttpHandler {
+    abstract static class ApiHandler implements HttpHandler {
+        private final String method;
+        private final Auth auth;
+        
+        /**
+         * @param method 允许的请求方法，null 表示不限
+         */
+        ApiHandler(String method, Auth auth) {
+            this.method = method;
+            this.auth = auth;
+        }
+        
+        protected abstract void serve(HttpExchange exchange, RequestContext ctx) throws Exception;
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
+        public final void handle(HttpExchange exchange) throws IOException {
             if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
                 addCors(exchange.getResponseHeaders());
                 exchange.sendResponseHeaders(204, -1);
                 return;
             }
-            
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            if (method != null && !method.equalsIgnoreCase(exchange.getRequestMethod())) {
                 respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
                 return;
             }
-            
             addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
             
-            // 验证管理员身份
-            UserDao.UserInfo adminInfo = validateAdminToken(exchange);
-            if (adminInfo == null) {
-                respond(exchange, 403, "{\"error\":\"无管理员权限\"}");
-                return;
+            RequestContext ctx = new RequestContext(exchange);
+            try {
+                switch (auth) {
+                    case USER -> ctx.user = requireUser(ctx, false);
+                    case USER_OR_QUERY_TOKEN -> ctx.user = requireUser(ctx, true);
+                    case ADMIN -> {
+                        ctx.user = validateAdminToken(exchange);
+                        if (ctx.user == null) {
+                            respond(exchange, 403, "{\"error\":\"无管理员权限\"}");
+                        }
+                    }
+                    default -> { }
+                }
+                if (auth != Auth.NONE && ctx.user == null) {
+                    return;
+                }
+                serve(exchange, ctx);
+            } catch (Json.ParseException e) {
+                respond(exchange, 400, "{\"error\":\"请求体不是有效的 JSON\"}");
+            } catch (Exception e) {
+                Log.error("API", "Request failed: " + exchange.getRequestURI().getPath(), e);
+                // 响应头已发出（例如流式下载中途出错）时只能关闭连接
+                if (exchange.getResponseCode() == -1) {
+                    respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
+                } else {
+                    exchange.close();
+                }
             }
-            
-            String roomKey = getQueryParam(exchange, "roomKey");
+        }
+    }
+    
+    // ========== 管理员 API ==========
+    
+    /**
+     * 验证管理员身份并返回用户信息
+     */
+    private static UserDao.UserInfo validateAdminToken(HttpExchange exchange) throws IOException {
+        String token = bearerToken(exchange);
+        if (token == null) {
+            return null;
+        }
+        UserDao.UserInfo userInfo = UserDao.validateToken(token);
+        if (userInfo == null || !userInfo.isAdmin) {
+            return null;
+        }
+        return userInfo;
+    }
+    
+    /**
+     * 读取 Authorization: Bearer 头中的 token，没有则返回 null
+     */
+    private static String bearerToken(HttpExchange exchange) {
+        String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+            return null;
+        }
+        return authHeader.substring(7);
+    }
+    
+    /**
+     * 校验登录状态，失败时直接返回 401
+     * @param allowQueryToken 没有 Authorization 头时是否接受 URL 参数 token（用于浏览器直接下载）
+     * @return 用户信息，校验失败返回 null（响应已发送）
+     */
+    private static UserDao.UserInfo requireUser(RequestContext ctx, boolean allowQueryToken) throws IOException {
+        HttpExchange exchange = ctx.exchange;
+        String token = bearerToken(exchange);
+        if (token == null && allowQueryToken) {
+            token = ctx.param("token");
+        }
+        if (token == null || token.isEmpty()) {
+            respond(exchange, 401, "{\"error\":\"未授权\"}");
+            return null;
+        }
+        UserDao.UserInfo userInfo = UserDao.validateToken(token);
+        if (userInfo == null) {
+            respond(exchange, 401, "{\"error\":\"无效的token\"}");
+            return null;
+        }
+        return userInfo;
+    }
+    
+    /**
+     * 管理员-获取用户列表
+     * GET /api/admin/users?roomKey=xxx
+     */
+    static class AdminUsersHandler extends ApiHandler {
+        AdminUsersHandler() {
+            super("GET", Auth.ADMIN);
+        }
+        
+        @Override
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.param("roomKey");
             java.util.List<UserDao.UserListItem> users = UserDao.listUsers(roomKey.isEmpty() ? null : roomKey);
             
-            StringBuilder sb = new StringBuilder();
-            sb.append("{\"users\":[");
-            for (int i = 0; i < users.size(); i++) {
-                if (i > 0) sb.append(",");
-                UserDao.UserListItem u = users.get(i);
-                sb.append("{\"id\":").append(u.id);
-                sb.append(",\"username\":\"").append(escapeJson(u.username)).append("\"");
-                sb.append(",\"nickname\":\"").append(escapeJson(u.nickname)).append("\"");
-                sb.append(",\"roomKey\":\"").append(escapeJson(u.roomKey)).append("\"");
-                sb.append(",\"createdAt\":\"").append(escapeJson(u.createdAt)).append("\"");
-                sb.append(",\"lastLogin\":\"").append(escapeJson(u.lastLogin)).append("\"");
-                sb.append(",\"isAdmin\":").append(u.isAdmin);
-                sb.append("}");
-            }
-            sb.append("]}");
-            
-            respond(exchange, 200, sb.toString());
+            Json.Writer w = Json.local().beginObject().name("users").beginArray();
+            for (UserDao.UserListItem u : users) {
+                w.beginObject()
+                    .field("id", u.id)
+                    .field("username", orEmpty(u.username))
+                    .field("nickname", orEmpty(u.nickname))
+                    .field("roomKey", orEmpty(u.roomKey))
+                    .field("createdAt", orEmpty(u.createdAt))
+                    .field("lastLogin", orEmpty(u.lastLogin))
+                    .field("isAdmin", u.isAdmin)
+                    .endObject();
+            }
+            w.endArray().endObject();
+            
+            respond(exchange, 200, w);
         }
     }
     
@@ -1187,42 +1846,24 @@ public class WebChatServer {
      * POST /api/admin/user/delete
      * Body: {"userId":123}
      */
-    static class AdminDeleteUserHandler implements HttpHandler {
+    static class AdminDeleteUserHandler extends ApiHandler {
+        AdminDeleteUserHandler() {
+            super("POST", Auth.ADMIN);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            // 验证管理员身份
-            UserDao.UserInfo adminInfo = validateAdminToken(exchange);
-            if (adminInfo == null) {
-                respond(exchange, 403, "{\"error\":\"无管理员权限\"}");
-                return;
-            }
-            
-            byte[] body = exchange.getRequestBody().readAllBytes();
-            String json = new String(body, StandardCharsets.UTF_8).trim();
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            Json.Obj json = ctx.json();
             
             long userId;
             try {
-                userId = Long.parseLong(extractNumber(json, "userId"));
+                userId = Long.parseLong(json.getString("userId"));
             } catch (NumberFormatException e) {
                 respond(exchange, 400, "{\"error\":\"无效的用户ID\"}");
                 return;
             }
             
-            String error = UserDao.deleteUser(userId, adminInfo.username);
+            String error = UserDao.deleteUser(userId, ctx.user.username);
             if (error == null) {
                 respond(exchange, 200, "{\"success\":true,\"message\":\"用户已删除\"}");
             } else {
@@ -1236,46 +1877,28 @@ public class WebChatServer {
      * POST /api/admin/user/update
      * Body: {"userId":123,"nickname":"新昵称","roomKey":"新秘钥"}
      */
-    static class AdminUpdateUserHandler implements HttpHandler {
+    static class AdminUpdateUserHandler extends ApiHandler {
+        AdminUpdateUserHandler() {
+            super("POST", Auth.ADMIN);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            // 验证管理员身份
-            UserDao.UserInfo adminInfo = validateAdminToken(exchange);
-            if (adminInfo == null) {
-                respond(exchange, 403, "{\"error\":\"无管理员权限\"}");
-                return;
-            }
-            
-            byte[] body = exchange.getRequestBody().readAllBytes();
-            String json = new String(body, StandardCharsets.UTF_8).trim();
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            Json.Obj json = ctx.json();
             
             long userId;
             try {
-                userId = Long.parseLong(extractNumber(json, "userId"));
+                userId = Long.parseLong(json.getString("userId"));
             } catch (NumberFormatException e) {
                 respond(exchange, 400, "{\"error\":\"无效的用户ID\"}");
                 return;
             }
             
-            String nickname = extract(json, "nickname");
-            String roomKey = extract(json, "roomKey");
+            String nickname = json.getString("nickname");
+            String roomKey = json.getString("roomKey");
             
             String error = UserDao.updateUser(userId, nickname.isEmpty() ? null : nickname, 
-                                              roomKey.isEmpty() ? null : roomKey, adminInfo.username);
+                                              roomKey.isEmpty() ? null : roomKey, ctx.user.username);
             if (error == null) {
                 respond(exchange, 200, "{\"success\":true,\"message\":\"用户信息已更新\"}");
             } else {
@@ -1289,48 +1912,36 @@ public class WebChatServer {
      * POST /api/admin/user/reset-password
      * Body: {"userId":123,"newPassword":"xxx"}
      */
-    static class AdminResetPasswordHandler implements HttpHandler {
+    static class AdminResetPasswordHandler extends ApiHandler {
+        AdminResetPasswordHandler() {
+            super("POST", Auth.ADMIN);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            // 验证管理员身份
-            UserDao.UserInfo adminInfo = validateAdminToken(exchange);
-            if (adminInfo == null) {
-                respond(exchange, 403, "{\"error\":\"无管理员权限\"}");
-                return;
-            }
-            
-            byte[] body = exchange.getRequestBody().readAllBytes();
-            String json = new String(body, StandardCharsets.UTF_8).trim();
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            Json.Obj json = ctx.json();
             
             long userId;
             try {
-                userId = Long.parseLong(extractNumber(json, "userId"));
+                userId = Long.parseLong(json.getString("userId"));
             } catch (NumberFormatException e) {
                 respond(exchange, 400, "{\"error\":\"无效的用户ID\"}");
                 return;
             }
             
-            String newPassword = extract(json, "newPassword");
+            String newPassword = json.getString("newPassword");
             if (newPassword.isEmpty()) {
                 respond(exchange, 400, "{\"error\":\"新密码不能为空\"}");
                 return;
             }
             
-            String error = UserDao.resetPassword(userId, newPassword, adminInfo.username);
+            String error;
+            try {
+                error = UserDao.resetPassword(userId, newPassword, ctx.user.username);
+            } catch (PasswordHasher.BusyException e) {
+                respondBusy(exchange);
+                return;
+            }
             if (error == null) {
                 respond(exchange, 200, "{\"success\":true,\"message\":\"密码已重置\"}");
             } else {
@@ -1343,50 +1954,40 @@ public class WebChatServer {
      * Ping 端点 - 客户端定期调用以保持连接活跃
      * GET /api/ping?roomKey=xxx&nickname=xxx
      */
-    static class PingHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
-            String nickname = getQueryParam(exchange, "nickname");
+    static class PingHandler extends ApiHandler {
+        PingHandler() {
+            super(null, Auth.NONE);
+        }
+        
+        @Override
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.roomKey();
+            String nickname = ctx.param("nickname");
             
             // 更新该用户的所有连接的最后活动时间
-            Set<SseClient> clients = getRoomClients(roomKey);
-            int updatedCount = 0;
-            synchronized (clients) {
-                for (SseClient client : clients) {
-                    if (nickname != null && nickname.equals(client.getNickname())) {
-                        client.updateLastActive();
-                        updatedCount++;
-                        // 不 break，更新所有该用户的连接
-                    }
-                }
-            }
+            RoomClients clients = getRoomClients(roomKey);
+            int updatedCount = clients.touch(nickname);
             
             // 在线人数应该是去重后的用户数，而不是连接数
-            java.util.List<String> users = getOnlineUsers(roomKey);
-            int onlineCount = users.size();
+            RoomClients.Presence presence = clients.presence();
             
-            StringBuilder sb = new StringBuilder();
-            sb.append("{\"pong\":true,\"time\":").append(System.currentTimeMillis());
-            sb.append(",\"online\":").append(onlineCount);
-            sb.append(",\"found\":").append(updatedCount > 0);
-            sb.append(",\"users\":[");
-            for (int i = 0; i < users.size(); i++) {
-                if (i > 0) sb.append(",");
-                sb.append("\"").append(users.get(i).replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+            Json.Writer w = Json.local().beginObject()
+                .field("pong", true)
+                .field("time", System.currentTimeMillis())
+                .field("online", presence.users().size())
+                .field("found", updatedCount > 0)
+                .field("v", presence.version());
+            // 客户端带上已有的版本号且未变化时不重复发送完整列表；旧客户端不带版本号，总是返回列表
+            if (!String.valueOf(presence.version()).equals(ctx.param("v"))) {
+                w.name("users").beginArray();
+                for (String user : presence.users()) {
+                    w.value(user);
+                }
+                w.endArray();
             }
-            sb.append("]}\n");
+            w.endObject();
             
-            respond(exchange, 200, sb.toString());
+            respond(exchange, 200, w);
         }
     }
     
@@ -1395,95 +1996,195 @@ public class WebChatServer {
      * POST /api/disconnect
      * Body: {"roomKey":"xxx","nickname":"xxx"}
      */
-    static class DisconnectHandler implements HttpHandler {
+    static class DisconnectHandler extends ApiHandler {
+        DisconnectHandler() {
+            super("POST", Auth.NONE);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            byte[] body = exchange.getRequestBody().readAllBytes();
-            String json = new String(body, StandardCharsets.UTF_8).trim();
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            Json.Obj json = ctx.json();
             
-            String roomKey = normalizeRoomKey(extract(json, "roomKey"));
-            String nickname = extract(json, "nickname");
+            String roomKey = normalizeRoomKey(json.getString("roomKey"));
+            String nickname = json.getString("nickname");
             
             // 移除该用户的所有客户端连接
-            Set<SseClient> clients = getRoomClients(roomKey);
-            int removedCount = 0;
-            synchronized (clients) {
-                java.util.Iterator<SseClient> it = clients.iterator();
-                while (it.hasNext()) {
-                    SseClient client = it.next();
-                    if (nickname != null && nickname.equals(client.getNickname())) {
-                        it.remove();
-                        removedCount++;
-                        // 不 break，移除所有该用户的连接
-                    }
-                }
-            }
+            int removedCount = getRoomClients(roomKey).removeNickname(nickname);
             
             if (removedCount > 0) {
-                System.out.println("[SSE] Client force disconnected: " + nickname + " @" + roomKey + ", removed " + removedCount + " connections");
-                // 立即广播在线人数更新
-                broadcastOnlineCount(roomKey);
+                Log.info("SSE", "Client force disconnected: " + nickname + " @" + Db.roomLabel(roomKey) + ", removed " + removedCount + " connections");
             }
             
             respond(exchange, 200, "{\"success\":true,\"removed\":" + removedCount + "}");
         }
     }
     
+    // ========== 指标 ==========
+    
+    /**
+     * 注册路由并挂上请求指标过滤器
+     */
+    private static void route(HttpServer server, String path, HttpHandler handler) {
+        // SSE 是长连接，耗时没有意义，只计数
+        server.createContext(path, handler).getFilters().add(new MetricsFilter(path, !"/events".equals(path)));
+    }
+    
+    /**
+     * 注册导出时取值的仪表
+     */
+    private static void registerMetrics() {
+        Metrics.gaugeFamily("chat_sse_subscribers", "SSE 连接数（按房间）", "room", () -> {
+            Map<String, Integer> counts = new HashMap<>();
+            for (Map.Entry<String, RoomClients> e : CLIENTS_BY_ROOM.entrySet()) {
+                counts.merge(Db.roomLabel(e.getKey()), e.getValue().size(), Integer::sum);
+            }
+            return counts;
+        });
+        Metrics.gauge("chat_queue_depth", "后台队列中等待的任务数", () -> PasswordHasher.queued(), "queue", "password_hash");
+        Metrics.gauge("chat_queue_depth", "后台队列中等待的任务数", () -> UploadHandler.IMAGES.queued(), "queue", "image_pipeline");
+        Metrics.gauge("chat_queue_depth", "后台队列中等待的任务数",
+            () -> FileDownloadHandler.downloadCountExecutor.getQueue().size(), "queue", "download_count");
+        Metrics.gauge("chat_queue_depth", "后台队列中等待的任务数", () -> Log.pending(), "queue", "log");
+        Metrics.gauge("chat_queue_depth", "后台队列中等待的任务数",
+            () -> PERSIST_EXECUTOR.getQueue().size(), "queue", "message_persist");
+        Metrics.gauge("chat_sse_heartbeat_interval_seconds", "当前 SSE 心跳间隔", () -> heartbeatInterval / 1000.0);
+        Runtime rt = Runtime.getRuntime();
+        Metrics.gauge("jvm_memory_heap_used_bytes", "已使用的堆内存", () -> rt.totalMemory() - rt.freeMemory());
+        Metrics.gauge("jvm_threads_live", "存活线程数", () -> Thread.activeCount());
+        Metrics.gauge("process_uptime_seconds", "进程运行时间",
+            () -> java.time.Duration.between(START_TIME, LocalDateTime.now()).toMillis() / 1000.0);
+    }
+    
     /**
-     * 启动定时清理任务
+     * 请求指标：每个路由一个耗时直方图和按状态码类别的计数器。
+     * 指标对象在注册路由时创建，请求时只有两次 nanoTime 和几次原子加法。
      */
-    private static void startClientCleanupTask() {
-        java.util.concurrent.ScheduledExecutorService scheduler = 
-            java.util.concurrent.Executors.newScheduledThreadPool(1);
+    static final class MetricsFilter extends Filter {
+        private final Metrics.Histogram latency;
+        // 下标为状态码百位，0 表示未发出响应
+        private final Metrics.Counter[] responses = new Metrics.Counter[6];
         
-        scheduler.scheduleAtFixedRate(() -> {
+        MetricsFilter(String path, boolean timed) {
+            latency = timed ? Metrics.histogram("http_request_duration_seconds", "HTTP 请求处理耗时", "path", path) : null;
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = Metrics.counter("http_responses_total", "HTTP 响应数（按路由和状态码类别）",
+                    "path", path, "code", i == 0 ? "none" : i + "xx");
+            }
+        }
+        
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long start = System.nanoTime();
             try {
-                long now = System.currentTimeMillis();
-                long timeout = 20000; // 20秒无活动则视为断开
-                
-                for (Map.Entry<String, Set<SseClient>> entry : CLIENTS_BY_ROOM.entrySet()) {
-                    String roomKey = entry.getKey();
-                    Set<SseClient> clients = entry.getValue();
-                    int beforeSize = clients.size();
-                    
-                    synchronized (clients) {
-                        java.util.Iterator<SseClient> it = clients.iterator();
-                        while (it.hasNext()) {
-                            SseClient client = it.next();
-                            if (client.isStale(timeout)) {
-                                it.remove();
-                                System.out.println("[CLEANUP] Removed stale client: " + 
-                                    client.getNickname() + " @" + roomKey);
-                            }
-                        }
-                    }
-                    
-                    int afterSize = clients.size();
-                    if (beforeSize != afterSize) {
-                        // 有客户端被清理，广播更新
-                        broadcastOnlineCount(roomKey);
-                    }
+                chain.doFilter(exchange);
+            } finally {
+                if (latency != null) {
+                    latency.record(System.nanoTime() - start);
                 }
-            } catch (Exception e) {
-                System.err.println("[CLEANUP] Error during cleanup: " + e.getMessage());
+                int code = exchange.getResponseCode();
+                responses[code >= 100 && code < 600 ? code / 100 : 0].inc();
             }
-        }, 10, 10, java.util.concurrent.TimeUnit.SECONDS);
+        }
         
-        System.out.println("[CLEANUP] Started client cleanup task (every 10s, timeout 20s)");
+        @Override
+        public String description() {
+            return "metrics";
+        }
+    }
+    
+    /**
+     * Prometheus 指标：GET /metrics
+     * 配置 METRICS_TOKEN 时需携带 Authorization: Bearer <token>；未配置时默认拒绝全部访问。
+     * METRICS_ALLOW_LOOPBACK=true 时额外放行本机地址——cloudflared 等本机反向代理转发的公网请求同样来自本机，
+     * 只应在没有这类代理的部署中开启
+     */
+    static class MetricsHandler extends ApiHandler {
+        private static final byte[] TOKEN = Env.get("METRICS_TOKEN", "").getBytes(StandardCharsets.UTF_8);
+        private static final boolean ALLOW_LOOPBACK = Boolean.parseBoolean(Env.get("METRICS_ALLOW_LOOPBACK", "false"));
+        
+        MetricsHandler() {
+            super("GET", Auth.NONE);
+        }
+        
+        @Override
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            boolean allowed = false;
+            if (TOKEN.length > 0) {
+                String token = bearerToken(exchange);
+                allowed = token != null && java.security.MessageDigest.isEqual(TOKEN, token.getBytes(StandardCharsets.UTF_8));
+            }
+            if (!allowed && ALLOW_LOOPBACK) {
+                allowed = exchange.getRemoteAddress().getAddress().isLoopbackAddress();
+            }
+            if (!allowed) {
+                respond(exchange, 403, "{\"error\":\"无权访问指标\"}");
+                return;
+            }
+            byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+    
+    /**
+     * 启动统一的 SSE 心跳线程，每秒检查一遍各房间的连接快照
+     */
+    private static void startHeartbeats() {
+        java.util.concurrent.ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "sse-heartbeat");
+                t.setDaemon(true);
+                return t;
+            });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                sendHeartbeats();
+            } catch (Exception e) {
+                Log.error("SSE", "Error sending heartbeats", e);
+            }
+        }, HEARTBEAT_TICK_MS, HEARTBEAT_TICK_MS, java.util.concurrent.TimeUnit.MILLISECONDS);
+        Log.info("SSE", "Shared heartbeat started (interval " + HEARTBEAT_MIN_MS / 1000 + "-" + HEARTBEAT_MAX_MS / 1000 + "s)");
+    }
+    
+    private static void sendHeartbeats() {
+        long now = System.currentTimeMillis();
+        heartbeatClock = now;
+        long subscribers = 0;
+        for (RoomClients room : CLIENTS_BY_ROOM.values()) {
+            subscribers += room.size();
+        }
+        // 每个连接每个间隔一帧，订阅者多时拉长间隔，把每秒心跳帧数控制在 HEARTBEAT_RATE 左右
+        long interval = Math.min(HEARTBEAT_MAX_MS, Math.max(HEARTBEAT_MIN_MS, subscribers * 1000 / HEARTBEAT_RATE));
+        heartbeatInterval = interval;
+        // 按刻度检查，实际静默时间最多比 interval 多一个刻度
+        for (RoomClients room : CLIENTS_BY_ROOM.values()) {
+            EXPIRED_CLIENTS.add(room.heartbeat(now, interval));
+        }
+    }
+    
+    /**
+     * 时间轮回调：移除本刻度超时的连接，按房间分组，每个房间只加锁、复制一次
+     * 在线列表的变化由 RoomClients 合并后以 presence 增量推送
+     */
+    private static void expireClients(List<SseClient> expired) {
+        Map<RoomClients, List<SseClient>> byRoom = new java.util.IdentityHashMap<>();
+        for (SseClient client : expired) {
+            if (client.room != null) {
+                byRoom.computeIfAbsent(client.room, r -> new ArrayList<>()).add(client);
+            }
+        }
+        for (Map.Entry<RoomClients, List<SseClient>> entry : byRoom.entrySet()) {
+            RoomClients room = entry.getKey();
+            room.removeAll(entry.getValue());
+            for (SseClient client : entry.getValue()) {
+                Log.info("CLEANUP", "Removed stale client: " +
+                    client.getNickname() + " @" + Db.roomLabel(room.roomKey));
+            }
+        }
+        EXPIRED_CLIENTS.add(expired.size());
     }
     
     // ========== 文件管理 API ==========
@@ -1492,82 +2193,65 @@ public class WebChatServer {
      * 用户文件上传
      * POST /api/files/upload?roomKey=xxx&folder=/path
      */
-    static class FileUploadHandler implements HttpHandler {
+    static class FileUploadHandler extends ApiHandler {
+        FileUploadHandler() {
+            super("POST", Auth.USER);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.roomKey();
+            String folderPath = ctx.param("folder");
+            if (folderPath.isEmpty()) {
+                folderPath = "/";
+            }
+            
+            // 上传内容直接流式写入存储（不整体读入内存）
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            long declaredSize = -1;
+            String lengthHeader = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (lengthHeader != null) {
+                try {
+                    declaredSize = Long.parseLong(lengthHeader.trim());
+                } catch (NumberFormatException ignored) {}
             }
             
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
+            // 从header获取文件名
+            String fileName = exchange.getRequestHeaders().getFirst("X-File-Name");
+            if (fileName == null || fileName.isEmpty()) {
+                fileName = "unnamed_" + System.currentTimeMillis();
+            } else {
+                // URL解码文件名（前端使用encodeURIComponent编码）
+                try {
+                    fileName = java.net.URLDecoder.decode(fileName, StandardCharsets.UTF_8);
+                } catch (Exception e) {
+                    // 解码失败则使用原始值
+                }
             }
             
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
-                String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
-                String folderPath = getQueryParam(exchange, "folder");
-                if (folderPath.isEmpty()) {
-                    folderPath = "/";
-                }
-                
-                // 读取上传的文件数据
-                String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
-                byte[] fileData = exchange.getRequestBody().readAllBytes();
-                
-                // 从header获取文件名
-                String fileName = exchange.getRequestHeaders().getFirst("X-File-Name");
-                if (fileName == null || fileName.isEmpty()) {
-                    fileName = "unnamed_" + System.currentTimeMillis();
-                } else {
-                    // URL解码文件名（前端使用encodeURIComponent编码）
-                    try {
-                        fileName = java.net.URLDecoder.decode(fileName, StandardCharsets.UTF_8);
-                    } catch (Exception e) {
-                        // 解码失败则使用原始值
-                    }
-                }
-                
-                // 保存文件
-                FileDao.FileInfo fileInfo = FileManager.saveFile(
-                    userInfo.userId, roomKey, fileName, folderPath, fileData, contentType
+            // 保存文件
+            FileDao.FileInfo fileInfo;
+            try (InputStream in = exchange.getRequestBody()) {
+                fileInfo = FileManager.saveFile(
+                    ctx.user.userId, roomKey, fileName, folderPath, in, declaredSize, contentType
                 );
-                
-                // 返回文件信息
-                StringBuilder sb = new StringBuilder();
-                sb.append("{\"success\":true,\"file\":{");
-                sb.append("\"id\":").append(fileInfo.id);
-                sb.append(",\"name\":\"").append(escapeJson(fileInfo.fileName)).append("\"");
-                sb.append(",\"size\":").append(fileInfo.fileSize);
-                sb.append(",\"type\":\"").append(escapeJson(fileInfo.fileType)).append("\"");
-                sb.append(",\"folder\":\"").append(escapeJson(fileInfo.folderPath)).append("\"");
-                sb.append(",\"createdAt\":\"").append(fileInfo.createdAt).append("\"");
-                sb.append("}}");
-                
-                respond(exchange, 200, sb.toString());
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
             }
+            UPLOAD_BYTES.mark(fileInfo.fileSize);
+            
+            // 返回文件信息
+            Json.Writer w = Json.local().beginObject()
+                .field("success", true)
+                .name("file").beginObject()
+                .field("id", fileInfo.id)
+                .field("name", orEmpty(fileInfo.fileName))
+                .field("size", fileInfo.fileSize)
+                .field("type", orEmpty(fileInfo.fileType))
+                .field("folder", orEmpty(fileInfo.folderPath))
+                .field("createdAt", String.valueOf(fileInfo.createdAt))
+                .endObject()
+                .endObject();
+            
+            respond(exchange, 200, w);
         }
     }
     
@@ -1575,87 +2259,56 @@ public class WebChatServer {
      * 获取用户文件列表
      * GET /api/files/list?roomKey=xxx&folder=/path
      */
-    static class FileListHandler implements HttpHandler {
+    static class FileListHandler extends ApiHandler {
+        FileListHandler() {
+            super("GET", Auth.USER);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
-                String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
-                String folderPath = getQueryParam(exchange, "folder");
-                if (folderPath.isEmpty()) {
-                    folderPath = "/";
-                }
-                
-                // 获取文件列表
-                List<FileDao.FileInfo> files = FileManager.getUserFiles(userInfo.userId, folderPath, roomKey);
-                // 获取文件夹列表
-                List<FileDao.FolderInfo> folders = FileManager.getUserFolders(userInfo.userId, folderPath, roomKey);
-                
-                // 构建JSON响应
-                StringBuilder sb = new StringBuilder();
-                sb.append("{\"success\":true,\"folders\":[");
-                for (int i = 0; i < folders.size(); i++) {
-                    if (i > 0) sb.append(",");
-                    FileDao.FolderInfo folder = folders.get(i);
-                    // 获取文件夹内的文件数量
-                    int fileCount = FileDao.getFileCountInFolder(userInfo.userId, folder.folderPath, roomKey);
-                    sb.append("{\"id\":").append(folder.id);
-                    sb.append(",\"name\":\"").append(escapeJson(folder.folderName)).append("\"");
-                    sb.append(",\"path\":\"").append(escapeJson(folder.folderPath)).append("\"");
-                    sb.append(",\"parentPath\":\"").append(escapeJson(folder.parentPath)).append("\"");
-                    sb.append(",\"fileCount\":").append(fileCount);
-                    sb.append(",\"createdAt\":\"").append(folder.createdAt).append("\"");
-                    sb.append("}");
-                }
-                sb.append("],\"files\":[");
-                for (int i = 0; i < files.size(); i++) {
-                    if (i > 0) sb.append(",");
-                    FileDao.FileInfo f = files.get(i);
-                    sb.append("{\"id\":").append(f.id);
-                    sb.append(",\"name\":\"").append(escapeJson(f.fileName)).append("\"");
-                    sb.append(",\"size\":").append(f.fileSize);
-                    sb.append(",\"sizeFormatted\":\"").append(FileManager.formatFileSize(f.fileSize)).append("\"");
-                    sb.append(",\"type\":\"").append(escapeJson(f.fileType != null ? f.fileType : "")).append("\"");
-                    sb.append(",\"extension\":\"").append(escapeJson(f.fileExtension != null ? f.fileExtension : "")).append("\"");
-                    sb.append(",\"folder\":\"").append(escapeJson(f.folderPath)).append("\"");
-                    sb.append(",\"downloads\":").append(f.downloadCount);
-                    sb.append(",\"createdAt\":\"").append(f.createdAt).append("\"");
-                    sb.append("}");
-                }
-                sb.append("]}");
-                
-                respond(exchange, 200, sb.toString());
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
-            }
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.roomKey();
+            String folderPath = ctx.param("folder");
+            if (folderPath.isEmpty()) {
+                folderPath = "/";
+            }
+            
+            // 获取文件列表
+            List<FileDao.FileInfo> files = FileManager.getUserFiles(ctx.user.userId, folderPath, roomKey);
+            // 获取文件夹列表
+            List<FileDao.FolderInfo> folders = FileManager.getUserFolders(ctx.user.userId, folderPath, roomKey);
+            
+            // 构建JSON响应
+            Json.Writer w = Json.local().beginObject()
+                .field("success", true)
+                .name("folders").beginArray();
+            for (FileDao.FolderInfo folder : folders) {
+                w.beginObject()
+                    .field("id", folder.id)
+                    .field("name", orEmpty(folder.folderName))
+                    .field("path", orEmpty(folder.folderPath))
+                    .field("parentPath", orEmpty(folder.parentPath))
+                    .field("fileCount", folder.fileCount)
+                    .field("totalSize", FileTreeCache.stats(roomKey, folder.folderPath).treeBytes)
+                    .field("createdAt", String.valueOf(folder.createdAt))
+                    .endObject();
+            }
+            w.endArray().name("files").beginArray();
+            for (FileDao.FileInfo f : files) {
+                w.beginObject()
+                    .field("id", f.id)
+                    .field("name", orEmpty(f.fileName))
+                    .field("size", f.fileSize)
+                    .field("sizeFormatted", FileManager.formatFileSize(f.fileSize))
+                    .field("type", orEmpty(f.fileType))
+                    .field("extension", orEmpty(f.fileExtension))
+                    .field("folder", orEmpty(f.folderPath))
+                    .field("downloads", f.downloadCount)
+                    .field("createdAt", String.valueOf(f.createdAt))
+                    .endObject();
+            }
+            w.endArray().endObject();
+            
+            respond(exchange, 200, w);
         }
     }
     
@@ -1666,125 +2319,90 @@ public class WebChatServer {
      * 1. Authorization header (用于 fetch 请求)
      * 2. URL 参数 token (用于浏览器直接下载，显示进度)
      */
-    static class FileDownloadHandler implements HttpHandler {
+    static class FileDownloadHandler extends ApiHandler {
         // 异步线程池用于更新下载计数
-        private static final java.util.concurrent.ExecutorService downloadCountExecutor = 
-            java.util.concurrent.Executors.newSingleThreadExecutor(r -> {
+        private static final java.util.concurrent.ThreadPoolExecutor downloadCountExecutor = 
+            new java.util.concurrent.ThreadPoolExecutor(1, 1, 0, java.util.concurrent.TimeUnit.MILLISECONDS,
+                new java.util.concurrent.LinkedBlockingQueue<>(), r -> {
                 Thread t = new Thread(r, "download-count-updater");
                 t.setDaemon(true);
                 return t;
             });
         
+        FileDownloadHandler() {
+            super("GET", Auth.USER_OR_QUERY_TOKEN);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.roomKey();
+            
+            // 验证 roomKey 是否有效
+            if (!db.Db.isValidRoomKey(roomKey)) {
+                respond(exchange, 400, "{\"error\":\"无效的房间秘钥\"}");
                 return;
             }
             
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
+            // 验证 roomKey 与用户绑定的房间一致
+            if (ctx.user.roomKey != null && !ctx.user.roomKey.isEmpty() 
+                && !roomKey.equals(normalizeRoomKey(ctx.user.roomKey))) {
+                respond(exchange, 403, "{\"error\":\"无权限访问该房间的文件\"}");
                 return;
             }
             
-            addCors(exchange.getResponseHeaders());
+            String fileIdStr = ctx.param("fileId");
+            if (fileIdStr == null || fileIdStr.isEmpty()) {
+                respond(exchange, 400, "{\"error\":\"缺少文件ID\"}");
+                return;
+            }
+            long fileId = Long.parseLong(fileIdStr);
             
-            try {
-                // 支持两种认证方式：header 或 URL 参数
-                String token = null;
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader != null && authHeader.startsWith("Bearer ")) {
-                    token = authHeader.substring(7);
-                } else {
-                    // 从 URL 参数获取 token（用于浏览器直接下载）
-                    token = getQueryParam(exchange, "token");
-                }
-                
-                if (token == null || token.isEmpty()) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
-                String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
-                
-                // 验证 roomKey 是否有效
-                if (!db.Db.isValidRoomKey(roomKey)) {
-                    respond(exchange, 400, "{\"error\":\"无效的房间秘钥\"}");
-                    return;
-                }
-                
-                // 验证 roomKey 与用户绑定的房间一致
-                if (userInfo.roomKey != null && !userInfo.roomKey.isEmpty() 
-                    && !roomKey.equals(normalizeRoomKey(userInfo.roomKey))) {
-                    respond(exchange, 403, "{\"error\":\"无权限访问该房间的文件\"}");
-                    return;
-                }
-                
-                String fileIdStr = getQueryParam(exchange, "fileId");
-                if (fileIdStr == null || fileIdStr.isEmpty()) {
-                    respond(exchange, 400, "{\"error\":\"缺少文件ID\"}");
-                    return;
-                }
-                long fileId = Long.parseLong(fileIdStr);
-                
-                // 获取文件信息
-                FileDao.FileInfo fileInfo = FileDao.getFileById(fileId, roomKey);
-                if (fileInfo == null) {
-                    respond(exchange, 404, "{\"error\":\"文件不存在\"}");
-                    return;
-                }
-                
-                // 同一房间的成员都可以访问该房间的文件（群文件共享）
-                // 不再检查 fileInfo.userId != userInfo.userId
-                
-                // 检查文件是否存在
-                java.nio.file.Path filePath = java.nio.file.Paths.get(fileInfo.filePath);
-                if (!java.nio.file.Files.exists(filePath)) {
-                    respond(exchange, 404, "{\"error\":\"文件物理存储不存在\"}");
-                    return;
+            // 获取文件信息
+            FileDao.FileInfo fileInfo = FileDao.getFileById(fileId, roomKey);
+            if (fileInfo == null) {
+                respond(exchange, 404, "{\"error\":\"文件不存在\"}");
+                return;
+            }
+            
+            // 同一房间的成员都可以访问该房间的文件（群文件共享）
+            // 不再检查 fileInfo.userId != ctx.user.userId
+            
+            // 检查文件是否存在
+            java.nio.file.Path filePath = java.nio.file.Paths.get(fileInfo.filePath);
+            if (!java.nio.file.Files.exists(filePath)) {
+                respond(exchange, 404, "{\"error\":\"文件物理存储不存在\"}");
+                return;
+            }
+            
+            // 获取文件大小
+            long fileSize = java.nio.file.Files.size(filePath);
+            
+            // 异步更新下载次数（不阻塞响应）
+            final long fid = fileId;
+            final String rk = roomKey;
+            downloadCountExecutor.submit(() -> {
+                try {
+                    FileManager.recordDownload(fid, rk);
+                } catch (Exception e) {
+                    Log.warn("Files", "更新下载次数失败: " + e.getMessage());
                 }
-                
-                // 获取文件大小
-                long fileSize = java.nio.file.Files.size(filePath);
-                
-                // 异步更新下载次数（不阻塞响应）
-                final long fid = fileId;
-                final String rk = roomKey;
-                downloadCountExecutor.submit(() -> {
-                    try {
-                        FileDao.incrementDownloadCount(fid, rk);
-                    } catch (Exception e) {
-                        System.err.println("更新下载次数失败: " + e.getMessage());
-                    }
-                });
-                
-                // 设置响应头
-                exchange.getResponseHeaders().add("Content-Type", 
-                    fileInfo.fileType != null ? fileInfo.fileType : "application/octet-stream");
-                exchange.getResponseHeaders().add("Content-Disposition", 
-                    "attachment; filename=\"" + fileInfo.fileName + "\"");
-                
-                // 使用流式传输发送文件（避免一次性读入内存）
-                exchange.sendResponseHeaders(200, fileSize);
-                try (InputStream is = java.nio.file.Files.newInputStream(filePath);
-                     OutputStream os = exchange.getResponseBody()) {
-                    byte[] buffer = new byte[8192]; // 8KB 缓冲区
-                    int bytesRead;
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        os.write(buffer, 0, bytesRead);
-                    }
+            });
+            
+            // 设置响应头
+            exchange.getResponseHeaders().add("Content-Type", 
+                fileInfo.fileType != null ? fileInfo.fileType : "application/octet-stream");
+            exchange.getResponseHeaders().add("Content-Disposition", 
+                "attachment; filename=\"" + fileInfo.fileName + "\"");
+            
+            // 使用流式传输发送文件（避免一次性读入内存）
+            exchange.sendResponseHeaders(200, fileSize);
+            try (InputStream is = java.nio.file.Files.newInputStream(filePath);
+                 OutputStream os = exchange.getResponseBody()) {
+                byte[] buffer = new byte[8192]; // 8KB 缓冲区
+                int bytesRead;
+                while ((bytesRead = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, bytesRead);
                 }
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
             }
         }
     }
@@ -1794,59 +2412,30 @@ public class WebChatServer {
      * POST /api/files/delete
      * Body: {"roomKey":"xxx","fileId":123}
      */
-    static class FileDeleteHandler implements HttpHandler {
+    static class FileDeleteHandler extends ApiHandler {
+        FileDeleteHandler() {
+            super("POST", Auth.USER);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            // 解析请求体
+            Json.Obj body = ctx.json();
+            String roomKey = normalizeRoomKey(body.getString("roomKey"));
+            String fileIdStr = body.getString("fileId");
+            if (fileIdStr.isEmpty()) {
+                respond(exchange, 400, "{\"error\":\"缺少文件ID\"}");
                 return;
             }
+            long fileId = Long.parseLong(fileIdStr);
             
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            // 删除文件
+            boolean deleted = FileManager.deleteFile(fileId, ctx.user.userId, roomKey);
             
-            try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
-                // 解析请求体
-                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                String roomKey = normalizeRoomKey(extract(body, "roomKey"));
-                String fileIdStr = extractNumber(body, "fileId");
-                if (fileIdStr.isEmpty()) {
-                    respond(exchange, 400, "{\"error\":\"缺少文件ID\"}");
-                    return;
-                }
-                long fileId = Long.parseLong(fileIdStr);
-                
-                // 删除文件
-                boolean deleted = FileManager.deleteFile(fileId, userInfo.userId, roomKey);
-                
-                if (deleted) {
-                    respond(exchange, 200, "{\"success\":true}");
-                } else {
-                    respond(exchange, 404, "{\"error\":\"文件不存在或无权限删除\"}");
-                }
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
+            if (deleted) {
+                respond(exchange, 200, "{\"success\":true}");
+            } else {
+                respond(exchange, 404, "{\"error\":\"文件不存在或无权限删除\"}");
             }
         }
     }
@@ -1855,66 +2444,37 @@ public class WebChatServer {
      * 搜索文件
      * GET /api/files/search?roomKey=xxx&keyword=test
      */
-    static class FileSearchHandler implements HttpHandler {
+    static class FileSearchHandler extends ApiHandler {
+        FileSearchHandler() {
+            super("GET", Auth.USER);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
-                String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
-                String keyword = getQueryParam(exchange, "keyword");
-                
-                // 搜索文件
-                List<FileDao.FileInfo> files = FileManager.searchFiles(userInfo.userId, keyword, roomKey);
-                
-                // 构建JSON响应
-                StringBuilder sb = new StringBuilder();
-                sb.append("{\"success\":true,\"files\":[");
-                for (int i = 0; i < files.size(); i++) {
-                    if (i > 0) sb.append(",");
-                    FileDao.FileInfo f = files.get(i);
-                    sb.append("{\"id\":").append(f.id);
-                    sb.append(",\"name\":\"").append(escapeJson(f.fileName)).append("\"");
-                    sb.append(",\"size\":").append(f.fileSize);
-                    sb.append(",\"sizeFormatted\":\"").append(FileManager.formatFileSize(f.fileSize)).append("\"");
-                    sb.append(",\"type\":\"").append(escapeJson(f.fileType != null ? f.fileType : "")).append("\"");
-                    sb.append(",\"folder\":\"").append(escapeJson(f.folderPath)).append("\"");
-                    sb.append(",\"createdAt\":\"").append(f.createdAt).append("\"");
-                    sb.append("}");
-                }
-                sb.append("]}");
-                
-                respond(exchange, 200, sb.toString());
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
-            }
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.roomKey();
+            String keyword = ctx.param("keyword");
+            
+            // 搜索文件
+            List<FileDao.FileInfo> files = FileManager.searchFiles(ctx.user.userId, keyword, roomKey);
+            
+            // 构建JSON响应
+            Json.Writer w = Json.local().beginObject()
+                .field("success", true)
+                .name("files").beginArray();
+            for (FileDao.FileInfo f : files) {
+                w.beginObject()
+                    .field("id", f.id)
+                    .field("name", orEmpty(f.fileName))
+                    .field("size", f.fileSize)
+                    .field("sizeFormatted", FileManager.formatFileSize(f.fileSize))
+                    .field("type", orEmpty(f.fileType))
+                    .field("folder", orEmpty(f.folderPath))
+                    .field("createdAt", String.valueOf(f.createdAt))
+                    .endObject();
+            }
+            w.endArray().endObject();
+            
+            respond(exchange, 200, w);
         }
     }
     
@@ -1922,61 +2482,42 @@ public class WebChatServer {
      * 获取用户存储配额信息
      * GET /api/files/quota?roomKey=xxx
      */
-    static class FileQuotaHandler implements HttpHandler {
+    static class FileQuotaHandler extends ApiHandler {
+        FileQuotaHandler() {
+            super("GET", Auth.USER);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
-                String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
-                
-                // 获取存储信息
-                FileDao.StorageQuota quota = FileManager.getUserStorageInfo(userInfo.userId, roomKey);
-                
-                // 构建JSON响应
-                StringBuilder sb = new StringBuilder();
-                sb.append("{\"success\":true,\"quota\":{");
-                sb.append("\"total\":").append(quota.totalQuota);
-                sb.append(",\"used\":").append(quota.usedSpace);
-                sb.append(",\"available\":").append(quota.totalQuota - quota.usedSpace);
-                sb.append(",\"fileCount\":").append(quota.fileCount);
-                sb.append(",\"totalFormatted\":\"").append(FileManager.formatFileSize(quota.totalQuota)).append("\"");
-                sb.append(",\"usedFormatted\":\"").append(FileManager.formatFileSize(quota.usedSpace)).append("\"");
-                sb.append(",\"availableFormatted\":\"").append(FileManager.formatFileSize(quota.totalQuota - quota.usedSpace)).append("\"");
-                sb.append(",\"usagePercent\":").append((quota.usedSpace * 100) / quota.totalQuota);
-                sb.append("}}");
-                
-                respond(exchange, 200, sb.toString());
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
-            }
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.roomKey();
+            
+            // 获取存储信息
+            FileDao.StorageQuota quota = FileManager.getUserStorageInfo(ctx.user.userId, roomKey);
+            FileDao.DedupStats dedup = FileManager.getDedupReport(roomKey);
+            
+            // 构建JSON响应
+            Json.Writer w = Json.local().beginObject()
+                .field("success", true)
+                .name("quota").beginObject()
+                .field("total", quota.totalQuota)
+                .field("used", quota.usedSpace)
+                .field("available", quota.totalQuota - quota.usedSpace)
+                .field("fileCount", quota.fileCount)
+                .field("totalFormatted", FileManager.formatFileSize(quota.totalQuota))
+                .field("usedFormatted", FileManager.formatFileSize(quota.usedSpace))
+                .field("availableFormatted", FileManager.formatFileSize(quota.totalQuota - quota.usedSpace))
+                .field("usagePercent", (quota.usedSpace * 100) / quota.totalQuota)
+                .endObject()
+                .name("dedup").beginObject()
+                .field("blobCount", dedup.blobCount)
+                .field("physicalBytes", dedup.physicalBytes)
+                .field("logicalBytes", dedup.logicalBytes)
+                .field("savedBytes", dedup.savedBytes())
+                .field("savedFormatted", FileManager.formatFileSize(dedup.savedBytes()))
+                .endObject()
+                .endObject();
+            
+            respond(exchange, 200, w);
         }
     }
     
@@ -1984,63 +2525,34 @@ public class WebChatServer {
      * 重命名文件
      * POST /api/files/rename
      * Body: {"roomKey":"xxx","fileId":123,"newName":"新文件名"}
-     */
-    static class FileRenameHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
+     */
+    static class FileRenameHandler extends ApiHandler {
+        FileRenameHandler() {
+            super("POST", Auth.USER);
+        }
+        
+        @Override
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            // 解析请求体
+            Json.Obj body = ctx.json();
+            String roomKey = normalizeRoomKey(body.getString("roomKey"));
+            String fileIdStr = body.getString("fileId");
+            String newName = body.getString("newName");
             
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
+            if (fileIdStr.isEmpty() || newName.isEmpty()) {
+                respond(exchange, 400, "{\"error\":\"缺少必要参数\"}");
                 return;
             }
             
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            long fileId = Long.parseLong(fileIdStr);
             
-            try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
-                // 解析请求体
-                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                String roomKey = normalizeRoomKey(extract(body, "roomKey"));
-                String fileIdStr = extractNumber(body, "fileId");
-                String newName = extract(body, "newName");
-                
-                if (fileIdStr.isEmpty() || newName.isEmpty()) {
-                    respond(exchange, 400, "{\"error\":\"缺少必要参数\"}");
-                    return;
-                }
-                
-                long fileId = Long.parseLong(fileIdStr);
-                
-                // 重命名文件
-                boolean renamed = FileManager.renameFile(fileId, userInfo.userId, newName, roomKey);
-                
-                if (renamed) {
-                    respond(exchange, 200, "{\"success\":true}");
-                } else {
-                    respond(exchange, 404, "{\"error\":\"文件不存在或无权限\"}");
-                }
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
+            // 重命名文件
+            boolean renamed = FileManager.renameFile(fileId, ctx.user.userId, newName, roomKey);
+            
+            if (renamed) {
+                respond(exchange, 200, "{\"success\":true}");
+            } else {
+                respond(exchange, 404, "{\"error\":\"文件不存在或无权限\"}");
             }
         }
     }
@@ -2050,65 +2562,194 @@ public class WebChatServer {
      * POST /api/files/move
      * Body: {"roomKey":"xxx","fileId":123,"targetFolder":"/newPath"}
      */
-    static class FileMoveHandler implements HttpHandler {
+    static class FileMoveHandler extends ApiHandler {
+        FileMoveHandler() {
+            super("POST", Auth.USER);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            // 解析请求体
+            Json.Obj body = ctx.json();
+            String roomKey = normalizeRoomKey(body.getString("roomKey"));
+            String fileIdStr = body.getString("fileId");
+            String targetFolder = body.getString("targetFolder");
+            
+            if (fileIdStr.isEmpty()) {
+                respond(exchange, 400, "{\"error\":\"缺少文件ID\"}");
                 return;
             }
             
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
+            long fileId = Long.parseLong(fileIdStr);
+            if (targetFolder.isEmpty()) {
+                targetFolder = "/";
             }
             
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            // 移动文件
+            boolean moved = FileManager.moveFile(fileId, ctx.user.userId, targetFolder, roomKey);
             
+            if (moved) {
+                respond(exchange, 200, "{\"success\":true}");
+            } else {
+                respond(exchange, 404, "{\"error\":\"文件不存在或无权限\"}");
+            }
+        }
+    }
+    
+    /**
+     * 批量操作结果转为 JSON：每个文件一条结果
+     */
+    private static Json.Writer batchResultJson(FileManager.BatchResult result) {
+        Json.Writer w = Json.local().beginObject()
+            .field("success", true)
+            .field("succeeded", result.succeeded.size())
+            .field("failed", result.errors.size())
+            .name("results").beginArray();
+        for (long id : result.succeeded) {
+            w.beginObject().field("id", id).field("ok", true).endObject();
+        }
+        for (Map.Entry<Long, String> e : result.errors.entrySet()) {
+            w.beginObject().field("id", e.getKey()).field("ok", false).field("error", orEmpty(e.getValue())).endObject();
+        }
+        return w.endArray().endObject();
+    }
+    
+    /**
+     * 批量删除文件
+     * POST /api/files/batch-delete
+     * Body: {"roomKey":"xxx","fileIds":[1,2,3]}
+     */
+    static class FileBatchDeleteHandler extends ApiHandler {
+        FileBatchDeleteHandler() {
+            super("POST", Auth.USER);
+        }
+        
+        @Override
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
             try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
+                // 解析请求体
+                Json.Obj body = ctx.json();
+                String roomKey = normalizeRoomKey(body.getString("roomKey"));
+                List<Long> fileIds = body.getLongList("fileIds");
+                if (fileIds.isEmpty()) {
+                    respond(exchange, 400, "{\"error\":\"缺少文件ID\"}");
                     return;
                 }
-                
+            
+                FileManager.BatchResult result = FileManager.deleteFiles(fileIds, ctx.user.userId, roomKey);
+                respond(exchange, 200, batchResultJson(result));
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, "{\"error\":\"文件ID格式错误\"}");
+            }
+        }
+    }
+    
+    /**
+     * 批量移动文件
+     * POST /api/files/batch-move
+     * Body: {"roomKey":"xxx","fileIds":[1,2,3],"targetFolder":"/目标文件夹"}
+     */
+    static class FileBatchMoveHandler extends ApiHandler {
+        FileBatchMoveHandler() {
+            super("POST", Auth.USER);
+        }
+        
+        @Override
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            try {
                 // 解析请求体
-                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                String roomKey = normalizeRoomKey(extract(body, "roomKey"));
-                String fileIdStr = extractNumber(body, "fileId");
-                String targetFolder = extract(body, "targetFolder");
-                
-                if (fileIdStr.isEmpty()) {
+                Json.Obj body = ctx.json();
+                String roomKey = normalizeRoomKey(body.getString("roomKey"));
+                List<Long> fileIds = body.getLongList("fileIds");
+                String targetFolder = body.getString("targetFolder");
+            
+                if (fileIds.isEmpty()) {
                     respond(exchange, 400, "{\"error\":\"缺少文件ID\"}");
                     return;
                 }
-                
-                long fileId = Long.parseLong(fileIdStr);
                 if (targetFolder.isEmpty()) {
                     targetFolder = "/";
                 }
+            
+                FileManager.BatchResult result = FileManager.moveFiles(fileIds, ctx.user.userId, targetFolder, roomKey);
+                respond(exchange, 200, batchResultJson(result));
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, "{\"error\":\"文件ID格式错误\"}");
+            }
+        }
+    }
+    
+    /**
+     * 打包下载
+     * GET /api/files/zip?roomKey=xxx&ids=1,2,3 或 ?roomKey=xxx&folder=/文件夹
+     * 边读边写 ZIP 到响应（分块传输），不在服务器上生成临时文件
+     */
+    static class FileZipHandler extends ApiHandler {
+        FileZipHandler() {
+            super("GET", Auth.USER_OR_QUERY_TOKEN);
+        }
+        
+        @Override
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            List<FileDao.FileInfo> files;
+            String baseFolder = null;
+            String zipName;
+            try {
+                String roomKey = ctx.roomKey();
                 
-                // 移动文件
-                boolean moved = FileManager.moveFile(fileId, userInfo.userId, targetFolder, roomKey);
+                // 验证 roomKey 是否有效
+                if (!db.Db.isValidRoomKey(roomKey)) {
+                    respond(exchange, 400, "{\"error\":\"无效的房间秘钥\"}");
+                    return;
+                }
                 
-                if (moved) {
-                    respond(exchange, 200, "{\"success\":true}");
+                // 验证 roomKey 与用户绑定的房间一致
+                if (ctx.user.roomKey != null && !ctx.user.roomKey.isEmpty() 
+                    && !roomKey.equals(normalizeRoomKey(ctx.user.roomKey))) {
+                    respond(exchange, 403, "{\"error\":\"无权限访问该房间的文件\"}");
+                    return;
+                }
+                
+                String folder = ctx.param("folder");
+                String ids = ctx.param("ids");
+                if (folder != null && !folder.isEmpty()) {
+                    baseFolder = folder;
+                    files = FileManager.getFolderFilesForZip(folder, roomKey);
+                    Path folderName = Paths.get(folder).getFileName();
+                    String name = folderName == null ? "files" : folderName.toString();
+                    zipName = name + ".zip";
+                } else if (ids != null && !ids.isEmpty()) {
+                    files = FileManager.getFilesForZip(parseIdList(ids), roomKey);
+                    zipName = "files.zip";
                 } else {
-                    respond(exchange, 404, "{\"error\":\"文件不存在或无权限\"}");
+                    respond(exchange, 400, "{\"error\":\"缺少文件ID或文件夹\"}");
+                    return;
                 }
                 
+                if (files.isEmpty()) {
+                    respond(exchange, 404, "{\"error\":\"没有可下载的文件\"}");
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, "{\"error\":\"文件ID格式错误\"}");
+                return;
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.error("Files", "Zip failed", e);
                 respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
+                return;
+            }
+            
+            // 响应头发出后出错只能中断连接，客户端会得到不完整的压缩包
+            exchange.getResponseHeaders().add("Content-Type", "application/zip");
+            exchange.getResponseHeaders().add("Content-Disposition", 
+                "attachment; filename*=UTF-8''" + URLEncoder.encode(zipName, StandardCharsets.UTF_8).replace("+", "%20"));
+            exchange.sendResponseHeaders(200, 0);
+            long start = System.currentTimeMillis();
+            try (OutputStream os = exchange.getResponseBody()) {
+                int count = FileManager.writeZip(files, baseFolder, new BufferedOutputStream(os, 64 * 1024));
+                Log.info("Files", "Zipped " + count + " files in " + (System.currentTimeMillis() - start) + "ms");
+            } catch (IOException e) {
+                Log.warn("Files", "Zip download aborted: " + e.getMessage());
             }
         }
     }
@@ -2120,42 +2761,19 @@ public class WebChatServer {
      * POST /api/folders/create
      * Body: {"roomKey":"xxx","folderName":"文件夹名","parentPath":"/"}
      */
-    static class FolderCreateHandler implements HttpHandler {
+    static class FolderCreateHandler extends ApiHandler {
+        FolderCreateHandler() {
+            super("POST", Auth.USER);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
             try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
                 // 解析请求体
-                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                String roomKey = normalizeRoomKey(extract(body, "roomKey"));
-                String folderName = extract(body, "folderName");
-                String parentPath = extract(body, "parentPath");
+                Json.Obj body = ctx.json();
+                String roomKey = normalizeRoomKey(body.getString("roomKey"));
+                String folderName = body.getString("folderName");
+                String parentPath = body.getString("parentPath");
                 
                 if (folderName.isEmpty()) {
                     respond(exchange, 400, "{\"error\":\"文件夹名称不能为空\"}");
@@ -2167,22 +2785,24 @@ public class WebChatServer {
                 }
                 
                 // 创建文件夹
-                FileDao.FolderInfo folder = FileManager.createFolder(userInfo.userId, folderName, parentPath, roomKey);
+                FileDao.FolderInfo folder = FileManager.createFolder(ctx.user.userId, folderName, parentPath, roomKey);
                 
                 // 返回文件夹信息
-                StringBuilder sb = new StringBuilder();
-                sb.append("{\"success\":true,\"folder\":{");
-                sb.append("\"id\":").append(folder.id);
-                sb.append(",\"name\":\"").append(escapeJson(folder.folderName)).append("\"");
-                sb.append(",\"path\":\"").append(escapeJson(folder.folderPath)).append("\"");
-                sb.append(",\"parentPath\":\"").append(escapeJson(folder.parentPath)).append("\"");
-                sb.append(",\"createdAt\":\"").append(folder.createdAt).append("\"");
-                sb.append("}}");
-                
-                respond(exchange, 200, sb.toString());
+                Json.Writer w = Json.local().beginObject()
+                    .field("success", true)
+                    .name("folder").beginObject()
+                    .field("id", folder.id)
+                    .field("name", orEmpty(folder.folderName))
+                    .field("path", orEmpty(folder.folderPath))
+                    .field("parentPath", orEmpty(folder.parentPath))
+                    .field("createdAt", String.valueOf(folder.createdAt))
+                    .endObject()
+                    .endObject();
+                
+                respond(exchange, 200, w);
                 
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.error("Folders", "Create folder failed", e);
                 String errorMsg = e.getMessage();
                 // MySQL: "Duplicate entry", SQL Server: "Violation of UNIQUE KEY constraint" 或 "Cannot insert duplicate key"
                 if (errorMsg != null && (errorMsg.contains("Duplicate entry") || 
@@ -2200,67 +2820,38 @@ public class WebChatServer {
      * 获取文件夹列表
      * GET /api/folders/list?roomKey=xxx&parentPath=/
      */
-    static class FolderListHandler implements HttpHandler {
+    static class FolderListHandler extends ApiHandler {
+        FolderListHandler() {
+            super("GET", Auth.USER);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
-                String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
-                String parentPath = getQueryParam(exchange, "parentPath");
-                if (parentPath.isEmpty()) {
-                    parentPath = "/";
-                }
-                
-                // 获取文件夹列表
-                List<FileDao.FolderInfo> folders = FileManager.getUserFolders(userInfo.userId, parentPath, roomKey);
-                
-                // 构建JSON响应
-                StringBuilder sb = new StringBuilder();
-                sb.append("{\"success\":true,\"folders\":[");
-                for (int i = 0; i < folders.size(); i++) {
-                    if (i > 0) sb.append(",");
-                    FileDao.FolderInfo f = folders.get(i);
-                    sb.append("{\"id\":").append(f.id);
-                    sb.append(",\"name\":\"").append(escapeJson(f.folderName)).append("\"");
-                    sb.append(",\"path\":\"").append(escapeJson(f.folderPath)).append("\"");
-                    sb.append(",\"parentPath\":\"").append(escapeJson(f.parentPath)).append("\"");
-                    sb.append(",\"createdAt\":\"").append(f.createdAt).append("\"");
-                    sb.append("}");
-                }
-                sb.append("]}");
-                
-                respond(exchange, 200, sb.toString());
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
-            }
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.roomKey();
+            String parentPath = ctx.param("parentPath");
+            if (parentPath.isEmpty()) {
+                parentPath = "/";
+            }
+            
+            // 获取文件夹列表
+            List<FileDao.FolderInfo> folders = FileManager.getUserFolders(ctx.user.userId, parentPath, roomKey);
+            
+            // 构建JSON响应
+            Json.Writer w = Json.local().beginObject()
+                .field("success", true)
+                .name("folders").beginArray();
+            for (FileDao.FolderInfo f : folders) {
+                w.beginObject()
+                    .field("id", f.id)
+                    .field("name", orEmpty(f.folderName))
+                    .field("path", orEmpty(f.folderPath))
+                    .field("parentPath", orEmpty(f.parentPath))
+                    .field("createdAt", String.valueOf(f.createdAt))
+                    .endObject();
+            }
+            w.endArray().endObject();
+            
+            respond(exchange, 200, w);
         }
     }
     
@@ -2269,77 +2860,48 @@ public class WebChatServer {
      * POST /api/folders/delete
      * Body: {"roomKey":"xxx","folderId":123,"recursive":false}
      */
-    static class FolderDeleteHandler implements HttpHandler {
+    static class FolderDeleteHandler extends ApiHandler {
+        FolderDeleteHandler() {
+            super("POST", Auth.USER);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
-                // 解析请求体
-                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                String roomKey = normalizeRoomKey(extract(body, "roomKey"));
-                String folderIdStr = extractNumber(body, "folderId");
-                String folderPath = extract(body, "folderPath");
-                boolean recursive = "true".equals(extract(body, "recursive"));
-                
-                boolean deleted = false;
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            // 解析请求体
+            Json.Obj body = ctx.json();
+            String roomKey = normalizeRoomKey(body.getString("roomKey"));
+            String folderIdStr = body.getString("folderId");
+            String folderPath = body.getString("folderPath");
+            boolean recursive = body.getBoolean("recursive");
+            
+            boolean deleted = false;
+            
+            if (!folderPath.isEmpty() && recursive) {
+                // 递归删除文件夹及其所有内容
+                deleted = FileManager.deleteFolderRecursive(ctx.user.userId, folderPath, roomKey);
+            } else if (!folderIdStr.isEmpty()) {
+                // 普通删除（需要文件夹为空）
+                long folderId = Long.parseLong(folderIdStr);
                 
-                if (!folderPath.isEmpty() && recursive) {
-                    // 递归删除文件夹及其所有内容
-                    deleted = FileManager.deleteFolderRecursive(userInfo.userId, folderPath, roomKey);
-                } else if (!folderIdStr.isEmpty()) {
-                    // 普通删除（需要文件夹为空）
-                    long folderId = Long.parseLong(folderIdStr);
-                    
-                    // 先检查文件夹是否为空
-                    if (!folderPath.isEmpty()) {
-                        boolean isEmpty = FileManager.isFolderEmpty(userInfo.userId, folderPath, roomKey);
-                        if (!isEmpty) {
-                            respond(exchange, 400, "{\"error\":\"文件夹不为空，请先删除其中的文件和子文件夹，或使用递归删除\"}");
-                            return;
-                        }
+                // 先检查文件夹是否为空
+                if (!folderPath.isEmpty()) {
+                    boolean isEmpty = FileManager.isFolderEmpty(ctx.user.userId, folderPath, roomKey);
+                    if (!isEmpty) {
+                        respond(exchange, 400, "{\"error\":\"文件夹不为空，请先删除其中的文件和子文件夹，或使用递归删除\"}");
+                        return;
                     }
-                    
-                    deleted = FileManager.deleteFolder(folderId, userInfo.userId, roomKey);
-                } else {
-                    respond(exchange, 400, "{\"error\":\"缺少文件夹ID或路径\"}");
-                    return;
-                }
-                
-                if (deleted) {
-                    respond(exchange, 200, "{\"success\":true}");
-                } else {
-                    respond(exchange, 404, "{\"error\":\"文件夹不存在或无权限\"}");
                 }
                 
-            } catch (Exception e) {
-                e.printStackTrace();
-                respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
+                deleted = FileManager.deleteFolder(folderId, ctx.user.userId, roomKey);
+            } else {
+                respond(exchange, 400, "{\"error\":\"缺少文件夹ID或路径\"}");
+                return;
+            }
+            
+            if (deleted) {
+                respond(exchange, 200, "{\"success\":true}");
+            } else {
+                respond(exchange, 404, "{\"error\":\"文件夹不存在或无权限\"}");
             }
         }
     }
@@ -2349,42 +2911,19 @@ public class WebChatServer {
      * POST /api/folders/rename
      * Body: {"roomKey":"xxx","folderId":123,"newName":"新名称"}
      */
-    static class FolderRenameHandler implements HttpHandler {
+    static class FolderRenameHandler extends ApiHandler {
+        FolderRenameHandler() {
+            super("POST", Auth.USER);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
             try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
                 // 解析请求体
-                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                String roomKey = normalizeRoomKey(extract(body, "roomKey"));
-                String folderIdStr = extractNumber(body, "folderId");
-                String newName = extract(body, "newName");
+                Json.Obj body = ctx.json();
+                String roomKey = normalizeRoomKey(body.getString("roomKey"));
+                String folderIdStr = body.getString("folderId");
+                String newName = body.getString("newName");
                 
                 if (folderIdStr.isEmpty()) {
                     respond(exchange, 400, "{\"error\":\"缺少文件夹ID\"}");
@@ -2398,7 +2937,7 @@ public class WebChatServer {
                 
                 long folderId = Long.parseLong(folderIdStr);
                 
-                boolean renamed = FileManager.renameFolder(folderId, userInfo.userId, newName, roomKey);
+                boolean renamed = FileManager.renameFolder(folderId, ctx.user.userId, newName, roomKey);
                 
                 if (renamed) {
                     respond(exchange, 200, "{\"success\":true}");
@@ -2407,7 +2946,7 @@ public class WebChatServer {
                 }
                 
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.error("Folders", "Rename folder failed", e);
                 String errorMsg = e.getMessage();
                 if (errorMsg != null && (errorMsg.contains("Duplicate entry") || 
                     errorMsg.contains("UNIQUE KEY constraint") || 
@@ -2424,91 +2963,63 @@ public class WebChatServer {
      * 获取文件夹内容（文件夹 + 文件）
      * GET /api/folders/contents?roomKey=xxx&path=/
      */
-    static class FolderContentsHandler implements HttpHandler {
+    static class FolderContentsHandler extends ApiHandler {
+        FolderContentsHandler() {
+            super("GET", Auth.USER);
+        }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                addCors(exchange.getResponseHeaders());
-                exchange.sendResponseHeaders(204, -1);
-                return;
-            }
-            
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-                respond(exchange, 405, "{\"error\":\"Method Not Allowed\"}");
-                return;
-            }
-            
-            addCors(exchange.getResponseHeaders());
-            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-            
-            try {
-                // 验证用户token
-                String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-                if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-                    respond(exchange, 401, "{\"error\":\"未授权\"}");
-                    return;
-                }
-                String token = authHeader.substring(7);
-                UserDao.UserInfo userInfo = UserDao.validateToken(token);
-                if (userInfo == null) {
-                    respond(exchange, 401, "{\"error\":\"无效的token\"}");
-                    return;
-                }
-                
-                String roomKey = normalizeRoomKey(getQueryParam(exchange, "roomKey"));
-                String path = getQueryParam(exchange, "path");
-                if (path.isEmpty()) {
-                    path = "/";
-                }
-                
-                // 获取子文件夹
-                List<FileDao.FolderInfo> folders = FileManager.getUserFolders(userInfo.userId, path, roomKey);
-                // 获取文件
-                List<FileDao.FileInfo> files = FileManager.getUserFiles(userInfo.userId, path, roomKey);
-                
-                // 构建JSON响应
-                StringBuilder sb = new StringBuilder();
-                sb.append("{\"success\":true,\"currentPath\":\"").append(escapeJson(path)).append("\",");
-                
-                // 文件夹列表
-                sb.append("\"folders\":[");
-                for (int i = 0; i < folders.size(); i++) {
-                    if (i > 0) sb.append(",");
-                    FileDao.FolderInfo f = folders.get(i);
-                    sb.append("{\"id\":").append(f.id);
-                    sb.append(",\"name\":\"").append(escapeJson(f.folderName)).append("\"");
-                    sb.append(",\"path\":\"").append(escapeJson(f.folderPath)).append("\"");
-                    sb.append(",\"type\":\"folder\"");
-                    sb.append(",\"createdAt\":\"").append(f.createdAt).append("\"");
-                    sb.append("}");
-                }
-                sb.append("],");
-                
-                // 文件列表
-                sb.append("\"files\":[");
-                for (int i = 0; i < files.size(); i++) {
-                    if (i > 0) sb.append(",");
-                    FileDao.FileInfo f = files.get(i);
-                    sb.append("{\"id\":").append(f.id);
-                    sb.append(",\"name\":\"").append(escapeJson(f.fileName)).append("\"");
-                    sb.append(",\"size\":").append(f.fileSize);
-                    sb.append(",\"sizeFormatted\":\"").append(FileManager.formatFileSize(f.fileSize)).append("\"");
-                    sb.append(",\"type\":\"file\"");
-                    sb.append(",\"mimeType\":\"").append(escapeJson(f.fileType != null ? f.fileType : "")).append("\"");
-                    sb.append(",\"extension\":\"").append(escapeJson(f.fileExtension != null ? f.fileExtension : "")).append("\"");
-                    sb.append(",\"folder\":\"").append(escapeJson(f.folderPath)).append("\"");
-                    sb.append(",\"downloads\":").append(f.downloadCount);
-                    sb.append(",\"createdAt\":\"").append(f.createdAt).append("\"");
-                    sb.append("}");
-                }
-                sb.append("]}");
-                
-                respond(exchange, 200, sb.toString());
-                
-            } catch (Exception e) {
-                e.printStackTrace();
-                respond(exchange, 500, "{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
-            }
+        protected void serve(HttpExchange exchange, RequestContext ctx) throws Exception {
+            String roomKey = ctx.roomKey();
+            String path = ctx.param("path");
+            if (path.isEmpty()) {
+                path = "/";
+            }
+            
+            // 获取子文件夹
+            List<FileDao.FolderInfo> folders = FileManager.getUserFolders(ctx.user.userId, path, roomKey);
+            // 获取文件
+            List<FileDao.FileInfo> files = FileManager.getUserFiles(ctx.user.userId, path, roomKey);
+            
+            // 构建JSON响应
+            Json.Writer w = Json.local().beginObject()
+                .field("success", true)
+                .field("currentPath", orEmpty(path));
+            
+            // 文件夹列表
+            w.name("folders").beginArray();
+            for (FileDao.FolderInfo f : folders) {
+                w.beginObject()
+                    .field("id", f.id)
+                    .field("name", orEmpty(f.folderName))
+                    .field("path", orEmpty(f.folderPath))
+                    .field("type", "folder")
+                    .field("fileCount", f.fileCount)
+                    .field("totalSize", FileTreeCache.stats(roomKey, f.folderPath).treeBytes)
+                    .field("createdAt", String.valueOf(f.createdAt))
+                    .endObject();
+            }
+            w.endArray();
+            
+            // 文件列表
+            w.name("files").beginArray();
+            for (FileDao.FileInfo f : files) {
+                w.beginObject()
+                    .field("id", f.id)
+                    .field("name", orEmpty(f.fileName))
+                    .field("size", f.fileSize)
+                    .field("sizeFormatted", FileManager.formatFileSize(f.fileSize))
+                    .field("type", "file")
+                    .field("mimeType", orEmpty(f.fileType))
+                    .field("extension", orEmpty(f.fileExtension))
+                    .field("folder", orEmpty(f.folderPath))
+                    .field("downloads", f.downloadCount)
+                    .field("createdAt", String.valueOf(f.createdAt))
+                    .endObject();
+            }
+            w.endArray().endObject();
+            
+            respond(exchange, 200, w);
         }
     }
 }
@@ -0,0 +1,92 @@
+package db;
+
+import util.Json;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * 一条聊天消息，广播、持久化和历史记录共用同一结构。
+ * body 保留原始内容（含 [IMAGE:...]、[FILE:...] 等标记），kind 和 attachment 在创建时从标记中解析一次，
+ * 客户端直接读取字段，不再用正则拆分 "[HH:mm:ss] 昵称: 内容" 字符串。
+ *
+ * @param id          数据库 ID，未持久化时为 -1
+ * @param roomSeq     该房间内的消息序号，发布时分配并随消息入库，重启后仍递增；该列出现前的旧消息为 0
+ * @param sender      发送者昵称
+ * @param epochMillis 发送时间（毫秒）
+ * @param kind        消息类型
+ * @param body        原始内容
+ * @param attachment  附件地址（图片原图、表情包或文件），没有时为 null
+ */
+public record ChatMessage(long id, long roomSeq, String sender, long epochMillis, Kind kind, String body, String attachment) {
+
+    private static final DateTimeFormatter TS = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    public enum Kind {
+        TEXT, IMAGE, STICKER, FILE, SYSTEM;
+
+        public String wireName() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * 根据内容标记确定类型和附件地址
+     */
+    public static ChatMessage of(long id, long roomSeq, String sender, long epochMillis, String body) {
+        Kind kind = Kind.TEXT;
+        String attachment = null;
+        if ("SERVER".equals(sender)) {
+            kind = Kind.SYSTEM;
+        } else if (body != null && body.endsWith("]")) {
+            if (body.startsWith("[IMAGE:")) {
+                kind = Kind.IMAGE;
+                // [IMAGE:缩略图|预览图|原图]，旧消息只有一个地址；附件取原图
+                String refs = body.substring(7, body.length() - 1);
+                attachment = refs.substring(refs.lastIndexOf('|') + 1);
+            } else if (body.startsWith("[STICKER:")) {
+                kind = Kind.STICKER;
+                attachment = body.substring(9, body.length() - 1);
+            } else if (body.startsWith("[FILE:")) {
+                // [FILE:文件名|地址]
+                int bar = body.lastIndexOf('|');
+                if (bar > 6) {
+                    kind = Kind.FILE;
+                    attachment = body.substring(bar + 1, body.length() - 1);
+                }
+            }
+        }
+        return new ChatMessage(id, roomSeq, sender, epochMillis, kind, body, attachment);
+    }
+
+    /**
+     * 写出为 JSON 对象，没有附件时省略 attachment 字段
+     */
+    public void writeJson(Json.Writer w) {
+        w.beginObject()
+            .field("id", id)
+            .field("roomSeq", roomSeq)
+            .field("sender", sender)
+            .field("time", epochMillis)
+            .field("kind", kind.wireName())
+            .field("body", body);
+        if (attachment != null) {
+            w.field("attachment", attachment);
+        }
+        w.endObject();
+    }
+
+    public String toJson() {
+        Json.Writer w = new Json.Writer(body == null ? 128 : body.length() + 128);
+        writeJson(w);
+        return w.toString();
+    }
+
+    /**
+     * 旧版文本格式 "[HH:mm:ss] 昵称: 内容"，仅用于兼容旧客户端和日志
+     */
+    public String legacyLine() {
+        return "[" + TS.format(Instant.ofEpochMilli(epochMillis)) + "] " + sender + ": " + body;
+    }
+}
@@ -10,6 +10,7 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import util.Env;
+import util.Metrics;
 
 
 /**
@@ -51,28 +52,45 @@ public class Db {
         private final String user;
         private final String password;
         private final int maxSize;
+        // 指标（标签为数据库名，不含连接串）
+        private final Metrics.Counter created;
+        private final Metrics.Counter reused;
+        private final Metrics.Histogram acquireTime;
         
-        ConnectionPool(String url, String user, String password, int maxSize) {
+        ConnectionPool(String url, String user, String password, int maxSize, String label) {
             this.url = url;
             this.user = user;
             this.password = password;
             this.maxSize = maxSize;
             this.pool = new ArrayBlockingQueue<>(maxSize);
+            this.created = Metrics.counter("db_pool_connections_created_total", "新建的数据库连接数", "db", label);
+            this.reused = Metrics.counter("db_pool_connections_reused_total", "从池中复用的数据库连接数", "db", label);
+            this.acquireTime = Metrics.histogram("db_pool_acquire_seconds", "获取数据库连接耗时", "db", label);
+            Metrics.gauge("db_pool_idle_connections", "池中空闲的数据库连接数", pool::size, "db", label);
+            Metrics.gauge("db_pool_max_connections", "连接池容量", () -> maxSize, "db", label);
         }
         
         Connection getConnection() throws SQLException {
-            // 先尝试从池中获取
-            PooledConnection pooled = pool.poll();
-            if (pooled != null) {
-                // 检查连接是否有效且未过期
-                if (!pooled.isExpired() && isConnectionValid(pooled.connection)) {
-                    return pooled.connection;
+            long start = System.nanoTime();
+            try {
+                // 先尝试从池中获取
+                PooledConnection pooled = pool.poll();
+                if (pooled != null) {
+                    // 检查连接是否有效且未过期
+                    if (!pooled.isExpired() && isConnectionValid(pooled.connection)) {
+                        reused.inc();
+                        return pooled.connection;
+                    }
+                    // 连接无效，关闭它
+                    closeQuietly(pooled.connection);
                 }
-                // 连接无效，关闭它
-                closeQuietly(pooled.connection);
+                // 创建新连接
+                Connection conn = DriverManager.getConnection(url, user, password);
+                created.inc();
+                return conn;
+            } finally {
+                acquireTime.record(System.nanoTime() - start);
             }
-            // 创建新连接
-            return DriverManager.getConnection(url, user, password);
         }
         
         void returnConnection(Connection conn) {
@@ -125,8 +143,8 @@ public class Db {
     /**
      * 获取指定URL的连接池
      */
-    private static ConnectionPool getPool(String url) {
-        return pools.computeIfAbsent(url, u -> new ConnectionPool(u, USER, PASSWORD, POOL_SIZE));
+    private static ConnectionPool getPool(String url, String label) {
+        return pools.computeIfAbsent(url, u -> new ConnectionPool(u, USER, PASSWORD, POOL_SIZE, label));
     }
 
     public static boolean enabled() {
@@ -158,7 +176,7 @@ public class Db {
      * 获取默认数据库连接（使用连接池）
      */
     public static Connection getConnection() throws SQLException {
-        return getPool(URL).getConnection();
+        return getPool(URL, "default").getConnection();
     }
     
     /**
@@ -209,7 +227,7 @@ public class Db {
             throw new SQLException("无效的房间秘钥: " + roomKey);
         }
         String roomUrl = buildRoomDbUrl(dbName);
-        return getPool(roomUrl).getConnection();
+        return getPool(roomUrl, dbName).getConnection();
     }
 
     /**
@@ -222,6 +240,14 @@ public class Db {
         return ROOM_DB_WHITELIST.get(roomKey.trim());
     }
 
+    /**
+     * 日志和指标中的房间标签：房间秘钥本身是凭据，不能写进日志或指标，改用对应的数据库名
+     */
+    public static String roomLabel(String roomKey) {
+        String dbName = getDbNameForRoom(roomKey);
+        return dbName != null ? dbName : "other";
+    }
+
     /**
      * 检查房间秘钥是否有效（在白名单中）
      */
@@ -2,8 +2,13 @@ package db;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import util.BlobStore;
+import util.Log;
 
 /**
  * 用户文件数据访问对象
@@ -16,6 +21,8 @@ public class FileDao {
     private static final long FILE_CACHE_TTL_MS = 2 * 60 * 1000;
     // 最大缓存数量
     private static final int MAX_FILE_CACHE_SIZE = 500;
+    // 已完成 blob 表结构检查的房间
+    private static final Set<String> blobSchemaReady = ConcurrentHashMap.newKeySet();
     
     /**
      * 缓存的文件信息
@@ -60,14 +67,14 @@ public class FileDao {
      */
     public static void init() throws SQLException, ClassNotFoundException {
         if (!Db.enabled()) {
-            System.out.println("[FileDao] Database not configured, skipping init.");
+            Log.info("FileDao", "Database not configured, skipping init.");
             return;
         }
         Db.ensureDriver();
         
         // 这里可以检查表是否存在，或者执行建表语句
         // 实际生产环境建议在外部执行SQL脚本
-        System.out.println("[FileDao] File tables initialized (run file-storage-schema.sql if needed)");
+        Log.info("FileDao", "File tables initialized (run file-storage-schema.sql if needed)");
     }
     
     /**
@@ -86,6 +93,7 @@ public class FileDao {
         public long downloadCount;
         public String folderPath;
         public String roomKey;
+        public String blobHash; // 内容哈希（旧文件为 null）
         public Timestamp createdAt;
         public Timestamp updatedAt;
         
@@ -106,6 +114,11 @@ public class FileDao {
             this.roomKey = rs.getString("room_key");
             this.createdAt = rs.getTimestamp("created_at");
             this.updatedAt = rs.getTimestamp("updated_at");
+            try {
+                this.blobHash = rs.getString("blob_hash");
+            } catch (SQLException ignored) {
+                // 尚未迁移的表没有 blob_hash 列
+            }
         }
     }
     
@@ -139,8 +152,8 @@ public class FileDao {
      */
     public static long insertFile(FileInfo file, String roomKey) throws SQLException {
         String sql = "INSERT INTO user_files (user_id, file_name, file_path, file_size, file_type, " +
-                     "file_extension, storage_path, is_public, folder_path, room_key) " +
-                     "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                     "file_extension, storage_path, is_public, folder_path, room_key, blob_hash) " +
+                     "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
         
         try (Connection conn = Db.getConnection(roomKey);
              PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
@@ -155,6 +168,7 @@ public class FileDao {
             ps.setBoolean(8, file.isPublic);
             ps.setString(9, file.folderPath);
             ps.setString(10, roomKey);
+            ps.setString(11, file.blobHash);
             
             ps.executeUpdate();
             
@@ -192,18 +206,16 @@ public class FileDao {
     }
     
     /**
-     * 搜索房间文件（所有成员共享）
+     * 获取房间的全部文件（用于构建内存文件树）
      */
-    public static List<FileInfo> searchUserFiles(long userId, String keyword, String roomKey) throws SQLException {
+    public static List<FileInfo> getAllFiles(String roomKey) throws SQLException {
         List<FileInfo> files = new ArrayList<>();
-        String sql = "SELECT TOP 100 * FROM user_files WHERE room_key = ? AND file_name LIKE ? " +
-                     "ORDER BY created_at DESC";
+        String sql = "SELECT * FROM user_files WHERE room_key = ?";
         
         try (Connection conn = Db.getConnection(roomKey);
              PreparedStatement ps = conn.prepareStatement(sql)) {
             
             ps.setString(1, roomKey);
-            ps.setString(2, "%" + keyword + "%");
             
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
@@ -334,48 +346,51 @@ public class FileDao {
     }
     
     /**
-     * 更新用户已使用空间
+     * 直接设置用户已使用空间（由 QuotaLedger 定期写回）
      */
-    public static void updateUserSpace(long userId, long sizeDelta, int fileCountDelta, String roomKey) throws SQLException {
-        String sql = "UPDATE user_storage_quota SET used_space = used_space + ?, file_count = file_count + ? " +
-                     "WHERE user_id = ?";
+    public static void setUserSpace(long userId, long usedSpace, int fileCount, String roomKey) throws SQLException {
+        String sql = "UPDATE user_storage_quota SET used_space = ?, file_count = ? WHERE user_id = ?";
         
         try (Connection conn = Db.getConnection(roomKey);
              PreparedStatement ps = conn.prepareStatement(sql)) {
             
-            ps.setLong(1, sizeDelta);
-            ps.setInt(2, fileCountDelta);
+            ps.setLong(1, usedSpace);
+            ps.setInt(2, fileCount);
             ps.setLong(3, userId);
             ps.executeUpdate();
         }
     }
     
     /**
-     * 获取用户总文件数
+     * 按用户统计房间文件数量和大小
+     * @return userId -> {文件数, 总大小}
      */
-    public static int getUserFileCount(long userId, String roomKey) throws SQLException {
-        String sql = "SELECT COUNT(*) FROM user_files WHERE user_id = ? AND room_key = ?";
+    public static Map<Long, long[]> getUsageByUser(String roomKey) throws SQLException {
+        Map<Long, long[]> usage = new HashMap<>();
+        String sql = "SELECT user_id, COUNT(*) AS file_count, COALESCE(SUM(file_size), 0) AS used_space " +
+                     "FROM user_files WHERE room_key = ? GROUP BY user_id";
         
         try (Connection conn = Db.getConnection(roomKey);
              PreparedStatement ps = conn.prepareStatement(sql)) {
             
-            ps.setLong(1, userId);
-            ps.setString(2, roomKey);
+            ps.setString(1, roomKey);
             
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
+                while (rs.next()) {
+                    usage.put(rs.getLong("user_id"), new long[] {
+                        rs.getLong("file_count"), rs.getLong("used_space")
+                    });
                 }
             }
         }
-        return 0;
+        return usage;
     }
     
     /**
-     * 获取用户总使用空间
+     * 获取用户总文件数
      */
-    public static long getUserTotalSize(long userId, String roomKey) throws SQLException {
-        String sql = "SELECT SUM(file_size) FROM user_files WHERE user_id = ? AND room_key = ?";
+    public static int getUserFileCount(long userId, String roomKey) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM user_files WHERE user_id = ? AND room_key = ?";
         
         try (Connection conn = Db.getConnection(roomKey);
              PreparedStatement ps = conn.prepareStatement(sql)) {
@@ -385,7 +400,7 @@ public class FileDao {
             
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    return rs.getLong(1);
+                    return rs.getInt(1);
                 }
             }
         }
@@ -393,33 +408,24 @@ public class FileDao {
     }
     
     /**
-     * 获取房间配额（整个群聊共享100GB）
+     * 获取用户总使用空间
      */
-    public static StorageQuota getRoomQuota(String roomKey) throws SQLException {
-        // 统计整个房间的文件总大小和数量
-        String sql = "SELECT COUNT(*) as file_count, COALESCE(SUM(file_size), 0) as used_space FROM user_files WHERE room_key = ?";
+    public static long getUserTotalSize(long userId, String roomKey) throws SQLException {
+        String sql = "SELECT SUM(file_size) FROM user_files WHERE user_id = ? AND room_key = ?";
         
         try (Connection conn = Db.getConnection(roomKey);
              PreparedStatement ps = conn.prepareStatement(sql)) {
             
-            ps.setString(1, roomKey);
+            ps.setLong(1, userId);
+            ps.setString(2, roomKey);
             
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    StorageQuota quota = new StorageQuota();
-                    quota.totalQuota = 107374182400L; // 100GB
-                    quota.usedSpace = rs.getLong("used_space");
-                    quota.fileCount = rs.getInt("file_count");
-                    return quota;
+                    return rs.getLong(1);
                 }
             }
         }
-        // 返回默认配额
-        StorageQuota quota = new StorageQuota();
-        quota.totalQuota = 107374182400L; // 100GB
-        quota.usedSpace = 0;
-        quota.fileCount = 0;
-        return quota;
+        return 0;
     }
     
     // ========== 文件夹相关操作 ==========
@@ -510,6 +516,27 @@ public class FileDao {
         return folders;
     }
     
+    /**
+     * 获取房间的全部文件夹（用于构建内存文件树）
+     */
+    public static List<FolderInfo> getAllFolders(String roomKey) throws SQLException {
+        List<FolderInfo> folders = new ArrayList<>();
+        String sql = "SELECT * FROM user_folders WHERE room_key = ?";
+        
+        try (Connection conn = Db.getConnection(roomKey);
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            
+            ps.setString(1, roomKey);
+            
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    folders.add(new FolderInfo(rs));
+                }
+            }
+        }
+        return folders;
+    }
+    
     /**
      * 根据路径获取文件夹信息（房间共享）
      */
@@ -639,6 +666,8 @@ public class FileDao {
      * 重命名文件
      */
     public static boolean renameFile(long fileId, long userId, String newName, String roomKey) throws SQLException {
+        invalidateFileCache(fileId, roomKey);
+        
         String sql = "UPDATE user_files SET file_name = ?, updated_at = CURRENT_TIMESTAMP " +
                      "WHERE id = ? AND user_id = ? AND room_key = ?";
         
@@ -658,6 +687,8 @@ public class FileDao {
      * 移动文件到新文件夹
      */
     public static boolean moveFile(long fileId, long userId, String newFolderPath, String roomKey) throws SQLException {
+        invalidateFileCache(fileId, roomKey);
+        
         String sql = "UPDATE user_files SET folder_path = ?, updated_at = CURRENT_TIMESTAMP " +
                      "WHERE id = ? AND user_id = ? AND room_key = ?";
         
@@ -674,10 +705,10 @@ public class FileDao {
     }
     
     /**
-     * 获取文件夹内的文件数量（房间共享）
+     * 获取文件夹内的子文件夹数量（房间共享）
      */
-    public static int getFileCountInFolder(long userId, String folderPath, String roomKey) throws SQLException {
-        String sql = "SELECT COUNT(*) FROM user_files WHERE folder_path = ? AND room_key = ?";
+    public static int getSubFolderCount(long userId, String folderPath, String roomKey) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM user_folders WHERE parent_path = ? AND room_key = ?";
         
         try (Connection conn = Db.getConnection(roomKey);
              PreparedStatement ps = conn.prepareStatement(sql)) {
@@ -694,24 +725,475 @@ public class FileDao {
         return 0;
     }
     
+    // ========== 内容寻址存储（去重）==========
+    
     /**
-     * 获取文件夹内的子文件夹数量（房间共享）
+     * 去重统计
      */
-    public static int getSubFolderCount(long userId, String folderPath, String roomKey) throws SQLException {
-        String sql = "SELECT COUNT(*) FROM user_folders WHERE parent_path = ? AND room_key = ?";
+    public static class DedupStats {
+        public long blobCount;      // 实际存储的 blob 数量
+        public long physicalBytes;  // 磁盘实际占用
+        public long logicalBytes;   // 所有引用的逻辑总大小
+        
+        public long savedBytes() {
+            return logicalBytes - physicalBytes;
+        }
+    }
+    
+    /**
+     * 确保 file_blobs 表和 user_files.blob_hash 列存在（每个房间只检查一次）
+     */
+    public static void ensureBlobSchema(String roomKey) throws SQLException {
+        if (blobSchemaReady.contains(roomKey)) return;
+        
+        String tableDdl;
+        String columnCheck;
+        String columnDdl;
+        if (Db.type() == Db.DbType.SQLSERVER) {
+            tableDdl = """
+                IF NOT EXISTS (SELECT * FROM sys.tables WHERE name = 'file_blobs')
+                CREATE TABLE dbo.file_blobs (
+                    blob_hash CHAR(64) NOT NULL PRIMARY KEY,
+                    blob_size BIGINT NOT NULL,
+                    ref_count INT NOT NULL DEFAULT 0,
+                    created_at DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME()
+                )
+                """;
+            columnCheck = "SELECT 1 FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'user_files' AND COLUMN_NAME = 'blob_hash'";
+            columnDdl = "ALTER TABLE user_files ADD blob_hash CHAR(64) NULL";
+        } else {
+            tableDdl = """
+                CREATE TABLE IF NOT EXISTS file_blobs (
+                    blob_hash CHAR(64) NOT NULL PRIMARY KEY,
+                    blob_size BIGINT NOT NULL,
+                    ref_count INT NOT NULL DEFAULT 0,
+                    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+                ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4
+                """;
+            columnCheck = "SELECT 1 FROM information_schema.columns WHERE table_schema = DATABASE() AND table_name = 'user_files' AND column_name = 'blob_hash'";
+            columnDdl = "ALTER TABLE user_files ADD COLUMN blob_hash CHAR(64) NULL";
+        }
+        
+        try (Connection conn = Db.getConnection(roomKey);
+             Statement st = conn.createStatement()) {
+            st.execute(tableDdl);
+            boolean hasColumn;
+            try (ResultSet rs = st.executeQuery(columnCheck)) {
+                hasColumn = rs.next();
+            }
+            if (!hasColumn) {
+                st.execute(columnDdl);
+            }
+        }
+        blobSchemaReady.add(roomKey);
+    }
+    
+    /**
+     * 增加 blob 引用计数，不存在则插入
+     * @return true 表示这是新内容（需要保留物理文件）
+     */
+    public static boolean acquireBlob(String hash, long size, String roomKey) throws SQLException {
+        String updateSql = "UPDATE file_blobs SET ref_count = ref_count + 1 WHERE blob_hash = ?";
+        String insertSql = "INSERT INTO file_blobs (blob_hash, blob_size, ref_count) VALUES (?, ?, 1)";
+        
+        try (Connection conn = Db.getConnection(roomKey)) {
+            try (PreparedStatement ps = conn.prepareStatement(updateSql)) {
+                ps.setString(1, hash);
+                if (ps.executeUpdate() > 0) {
+                    return false;
+                }
+            }
+            try (PreparedStatement ps = conn.prepareStatement(insertSql)) {
+                ps.setString(1, hash);
+                ps.setLong(2, size);
+                ps.executeUpdate();
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * 减少 blob 引用计数，归零时删除记录
+     * @return 剩余引用数（0 表示物理文件可以删除）
+     */
+    public static int releaseBlob(String hash, String roomKey) throws SQLException {
+        String updateSql = "UPDATE file_blobs SET ref_count = ref_count - 1 WHERE blob_hash = ?";
+        String selectSql = "SELECT ref_count FROM file_blobs WHERE blob_hash = ?";
+        String deleteSql = "DELETE FROM file_blobs WHERE blob_hash = ? AND ref_count <= 0";
+        
+        try (Connection conn = Db.getConnection(roomKey)) {
+            try (PreparedStatement ps = conn.prepareStatement(updateSql)) {
+                ps.setString(1, hash);
+                ps.executeUpdate();
+            }
+            int remaining = 0;
+            try (PreparedStatement ps = conn.prepareStatement(selectSql)) {
+                ps.setString(1, hash);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        remaining = rs.getInt(1);
+                    }
+                }
+            }
+            if (remaining <= 0) {
+                try (PreparedStatement ps = conn.prepareStatement(deleteSql)) {
+                    ps.setString(1, hash);
+                    ps.executeUpdate();
+                }
+                return 0;
+            }
+            return remaining;
+        }
+    }
+    
+    /**
+     * blob 记录是否存在（后台删除物理文件前复查）
+     */
+    public static boolean blobExists(String hash, String roomKey) throws SQLException {
+        String sql = "SELECT 1 FROM file_blobs WHERE blob_hash = ?";
         
         try (Connection conn = Db.getConnection(roomKey);
              PreparedStatement ps = conn.prepareStatement(sql)) {
-            
-            ps.setString(1, folderPath);
-            ps.setString(2, roomKey);
-            
+            ps.setString(1, hash);
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
+                return rs.next();
+            }
+        }
+    }
+    
+    // ========== 批量删除 ==========
+    
+    private static final int BATCH_SIZE = 500;
+    
+    /**
+     * 批量删除结果
+     */
+    public static class BulkDeletion {
+        public final List<FileInfo> files = new ArrayList<>();     // 已删除的文件记录
+        public final List<Long> folderIds = new ArrayList<>();     // 已删除的文件夹
+        public final List<String> orphanBlobs = new ArrayList<>(); // 引用计数归零的 blob
+        public final List<Long> denied = new ArrayList<>();        // 无权限删除的文件
+        public boolean rejected;                                   // 包含他人的文件，未执行删除
+    }
+    
+    /**
+     * 按 ID 批量获取文件（分批 IN 查询）
+     */
+    public static List<FileInfo> getFilesByIds(List<Long> ids, String roomKey) throws SQLException {
+        try (Connection conn = Db.getConnection(roomKey)) {
+            return selectByIds(conn, ids, roomKey);
+        }
+    }
+    
+    /**
+     * 在一个事务中批量删除文件，只删除属于 userId 的文件，其余记入 denied
+     */
+    public static BulkDeletion deleteFiles(List<Long> ids, long userId, String roomKey) throws SQLException {
+        BulkDeletion result = new BulkDeletion();
+        try (Connection conn = Db.getConnection(roomKey)) {
+            conn.setAutoCommit(false);
+            try {
+                List<FileInfo> owned = new ArrayList<>();
+                for (FileInfo f : selectByIds(conn, ids, roomKey)) {
+                    if (f.userId == userId) {
+                        owned.add(f);
+                    } else {
+                        result.denied.add(f.id);
+                    }
                 }
+                result.files.addAll(deleteFileRows(conn, owned, roomKey));
+                releaseBlobRefsAndCommit(conn, result);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
         }
-        return 0;
+        for (FileInfo f : result.files) {
+            invalidateFileCache(f.id, roomKey);
+        }
+        return result;
+    }
+    
+    /**
+     * 在一个事务中批量移动文件（只更新数据库记录）
+     * @return 实际移动成功的文件 ID
+     */
+    public static List<Long> moveFiles(List<Long> ids, long userId, String newFolderPath, String roomKey) throws SQLException {
+        List<Long> moved = new ArrayList<>();
+        String sql = "UPDATE user_files SET folder_path = ?, updated_at = CURRENT_TIMESTAMP " +
+                     "WHERE id = ? AND user_id = ? AND room_key = ?";
+        
+        try (Connection conn = Db.getConnection(roomKey)) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+                    List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + BATCH_SIZE));
+                    for (long id : chunk) {
+                        ps.setString(1, newFolderPath);
+                        ps.setLong(2, id);
+                        ps.setLong(3, userId);
+                        ps.setString(4, roomKey);
+                        ps.addBatch();
+                    }
+                    int[] counts = ps.executeBatch();
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                            moved.add(chunk.get(i));
+                        }
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        for (long id : moved) {
+            invalidateFileCache(id, roomKey);
+        }
+        return moved;
+    }
+    
+    private static List<FileInfo> selectByIds(Connection conn, List<Long> ids, String roomKey) throws SQLException {
+        List<FileInfo> files = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + BATCH_SIZE));
+            StringBuilder sql = new StringBuilder("SELECT * FROM user_files WHERE room_key = ? AND id IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(")");
+            try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                ps.setString(1, roomKey);
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setLong(i + 2, chunk.get(i));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        files.add(new FileInfo(rs));
+                    }
+                }
+            }
+        }
+        return files;
+    }
+    
+    /**
+     * 在一个事务中删除文件夹及其全部子孙文件夹和文件
+     * 按路径前缀一次查出整棵子树，分批删除记录并扣减 blob 引用计数
+     * @param userId 子树中有不属于该用户的文件时整体放弃（rejected = true）
+     */
+    public static BulkDeletion deleteSubtree(String folderPath, long userId, String roomKey) throws SQLException {
+        BulkDeletion result = new BulkDeletion();
+        String prefix = escapeLike(folderPath) + "/%";
+        String fileSql = "SELECT * FROM user_files WHERE room_key = ? AND (folder_path = ? OR folder_path LIKE ? ESCAPE '!')";
+        String folderSql = "SELECT id FROM user_folders WHERE room_key = ? AND (folder_path = ? OR folder_path LIKE ? ESCAPE '!')";
+        String deleteFolderSql = "DELETE FROM user_folders WHERE id = ? AND room_key = ?";
+        
+        try (Connection conn = Db.getConnection(roomKey)) {
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = conn.prepareStatement(fileSql)) {
+                    ps.setString(1, roomKey);
+                    ps.setString(2, folderPath);
+                    ps.setString(3, prefix);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            result.files.add(new FileInfo(rs));
+                        }
+                    }
+                }
+                for (FileInfo f : result.files) {
+                    if (f.userId != userId) {
+                        conn.rollback();
+                        result.rejected = true;
+                        result.files.clear();
+                        return result;
+                    }
+                }
+                try (PreparedStatement ps = conn.prepareStatement(folderSql)) {
+                    ps.setString(1, roomKey);
+                    ps.setString(2, folderPath);
+                    ps.setString(3, prefix);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            result.folderIds.add(rs.getLong(1));
+                        }
+                    }
+                }
+                
+                List<FileInfo> deleted = deleteFileRows(conn, result.files, roomKey);
+                result.files.retainAll(deleted);
+                try (PreparedStatement ps = conn.prepareStatement(deleteFolderSql)) {
+                    int pending = 0;
+                    for (long id : result.folderIds) {
+                        ps.setLong(1, id);
+                        ps.setString(2, roomKey);
+                        ps.addBatch();
+                        if (++pending == BATCH_SIZE) {
+                            ps.executeBatch();
+                            pending = 0;
+                        }
+                    }
+                    if (pending > 0) {
+                        ps.executeBatch();
+                    }
+                }
+                releaseBlobRefsAndCommit(conn, result);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        for (FileInfo f : result.files) {
+            invalidateFileCache(f.id, roomKey);
+        }
+        return result;
+    }
+    
+    /**
+     * 分批删除文件记录（调用方负责事务）
+     * @return 实际删除的记录
+     */
+    private static List<FileInfo> deleteFileRows(Connection conn, List<FileInfo> files, String roomKey) throws SQLException {
+        List<FileInfo> deleted = new ArrayList<>();
+        String sql = "DELETE FROM user_files WHERE id = ? AND room_key = ?";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int from = 0; from < files.size(); from += BATCH_SIZE) {
+                List<FileInfo> chunk = files.subList(from, Math.min(files.size(), from + BATCH_SIZE));
+                for (FileInfo f : chunk) {
+                    ps.setLong(1, f.id);
+                    ps.setString(2, roomKey);
+                    ps.addBatch();
+                }
+                int[] counts = ps.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                        deleted.add(chunk.get(i));
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+    
+    private interface SqlAction {
+        void run() throws SQLException;
+    }
+    
+    /**
+     * 扣减已删除文件的 blob 引用并提交事务
+     * 从扣减到提交一直持有这些哈希的锁（与 acquireBlob 的调用方和后台清理相同），
+     * 期间相同内容的上传和物理文件清理都要等待
+     */
+    private static void releaseBlobRefsAndCommit(Connection conn, BulkDeletion result) throws SQLException {
+        Map<String, Integer> refs = new HashMap<>();
+        for (FileInfo f : result.files) {
+            if (f.blobHash != null) {
+                refs.merge(f.blobHash, 1, Integer::sum);
+            }
+        }
+        withLocks(BlobStore.locksFor(refs.keySet()), 0, () -> {
+            result.orphanBlobs.addAll(releaseBlobRefs(conn, refs));
+            conn.commit();
+        });
+    }
+    
+    private static void withLocks(List<Object> locks, int index, SqlAction action) throws SQLException {
+        if (index == locks.size()) {
+            action.run();
+            return;
+        }
+        synchronized (locks.get(index)) {
+            withLocks(locks, index + 1, action);
+        }
+    }
+    
+    /**
+     * 按哈希汇总扣减 blob 引用计数，删除其中归零的记录（调用方负责事务和加锁）
+     * 只检查本次涉及的哈希，不影响其他正在增减引用的 blob
+     * @return 引用计数归零的哈希
+     */
+    private static List<String> releaseBlobRefs(Connection conn, Map<String, Integer> refs) throws SQLException {
+        List<String> orphans = new ArrayList<>();
+        if (refs.isEmpty()) {
+            return orphans;
+        }
+        String updateSql = "UPDATE file_blobs SET ref_count = ref_count - ? WHERE blob_hash = ?";
+        try (PreparedStatement ps = conn.prepareStatement(updateSql)) {
+            int pending = 0;
+            for (Map.Entry<String, Integer> entry : refs.entrySet()) {
+                ps.setInt(1, entry.getValue());
+                ps.setString(2, entry.getKey());
+                ps.addBatch();
+                if (++pending == BATCH_SIZE) {
+                    ps.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                ps.executeBatch();
+            }
+        }
+        List<String> hashes = new ArrayList<>(refs.keySet());
+        for (int from = 0; from < hashes.size(); from += BATCH_SIZE) {
+            List<String> chunk = hashes.subList(from, Math.min(hashes.size(), from + BATCH_SIZE));
+            StringBuilder in = new StringBuilder(" WHERE ref_count <= 0 AND blob_hash IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                in.append(i == 0 ? "?" : ",?");
+            }
+            in.append(")");
+            try (PreparedStatement ps = conn.prepareStatement("SELECT blob_hash FROM file_blobs" + in)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setString(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        orphans.add(rs.getString(1));
+                    }
+                }
+            }
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM file_blobs" + in)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setString(i + 1, chunk.get(i));
+                }
+                ps.executeUpdate();
+            }
+        }
+        return orphans;
+    }
+    
+    /**
+     * 转义 LIKE 通配符（配合 ESCAPE '!'）
+     */
+    private static String escapeLike(String value) {
+        return value.replace("!", "!!").replace("%", "!%").replace("_", "!_").replace("[", "![");
+    }
+    
+    /**
+     * 获取房间的去重统计
+     */
+    public static DedupStats getDedupStats(String roomKey) throws SQLException {
+        ensureBlobSchema(roomKey);
+        String sql = "SELECT COUNT(*), COALESCE(SUM(blob_size), 0), COALESCE(SUM(blob_size * ref_count), 0) " +
+                     "FROM file_blobs WHERE ref_count > 0";
+        
+        DedupStats stats = new DedupStats();
+        try (Connection conn = Db.getConnection(roomKey);
+             PreparedStatement ps = conn.prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+            if (rs.next()) {
+                stats.blobCount = rs.getLong(1);
+                stats.physicalBytes = rs.getLong(2);
+                stats.logicalBytes = rs.getLong(3);
+            }
+        }
+        return stats;
     }
 }
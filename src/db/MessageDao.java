@@ -2,17 +2,29 @@ package db;
 
 import java.sql.*;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import util.Log;
 
 /**
  * 聊天消息 DAO：创建表、写入、读取最近记录。
  */
 public class MessageDao {
-    private static final DateTimeFormatter TS = DateTimeFormatter.ofPattern("HH:mm:ss");
+    // 已建表并执行过迁移的房间，每个进程只做一次
+    private static final Set<String> readyRooms = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 一条原始消息记录（用于建立搜索索引）
+     */
+    public static class StoredMessage {
+        public long id;
+        public String nickname;
+        public String content;
+        public long createdAt;  // 毫秒
+    }
 
     public static void init() throws SQLException, ClassNotFoundException {
         if (!Db.enabled()) return;
@@ -48,41 +60,96 @@ public class MessageDao {
             ensureRoomKeyColumn(c);
             // 迁移旧数据：将 room_key='public' 的消息更新为对应数据库的正确秘钥
             migratePublicRoomKey(c);
+            // 热点查询的组合索引等版本化迁移
+            Migrations.apply(c);
         }
     }
 
-    public static void save(String nickname, String content, LocalDateTime createdAt, String roomKey) {
-        if (!Db.enabled()) return; // 未配置数据库则跳过
+    /**
+     * 保存消息
+     * @param roomSeq 发布时分配的房间序号，与广播给客户端的一致
+     * @return 消息 ID，未启用数据库或保存失败时返回 -1
+     */
+    public static long save(String nickname, String content, LocalDateTime createdAt, long roomSeq, String roomKey) {
+        if (!Db.enabled()) return -1; // 未配置数据库则跳过
         if (roomKey == null || roomKey.isBlank()) {
-            System.err.println("[DB] save failed: roomKey is required");
-            return;
+            Log.warn("DB", "save failed: roomKey is required");
+            return -1;
         }
         ensureTable(roomKey);
-        String sql = "INSERT INTO messages(nickname, content, created_at, room_key) VALUES(?,?,?,?)";
+        String sql = "INSERT INTO messages(nickname, content, created_at, room_key, room_seq) VALUES(?,?,?,?,?)";
         try (Connection c = Db.getConnection(roomKey);
-             PreparedStatement ps = c.prepareStatement(sql)) {
+             PreparedStatement ps = c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             ps.setString(1, nickname);
             ps.setString(2, content);
             ps.setTimestamp(3, Timestamp.valueOf(createdAt));
             ps.setString(4, normalizeRoomKey(roomKey));
+            ps.setLong(5, roomSeq);
             ps.executeUpdate();
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
         } catch (SQLException e) {
-            System.err.println("[DB] save failed: " + e.getMessage());
+            Log.error("DB", "save failed: " + e.getMessage());
         }
+        return -1;
     }
 
-    public static List<String> latest(int limit, int offset, String roomKey) {
+    /**
+     * 按 ID 顺序读取 afterId 之后的一批消息（用于补建搜索索引）
+     */
+    public static List<StoredMessage> scanAfter(long afterId, int limit, String roomKey) throws SQLException {
+        List<StoredMessage> list = new ArrayList<>();
+        if (!Db.enabled()) return list;
+        ensureTable(roomKey);
+        String sql;
+        if (Db.type() == Db.DbType.SQLSERVER) {
+            sql = "SELECT TOP (?) id, nickname, content, created_at FROM messages WHERE room_key = ? AND id > ? ORDER BY id ASC";
+        } else {
+            sql = "SELECT id, nickname, content, created_at FROM messages WHERE room_key = ? AND id > ? ORDER BY id ASC LIMIT ?";
+        }
+        try (Connection c = Db.getConnection(roomKey);
+             PreparedStatement ps = c.prepareStatement(sql)) {
+            if (Db.type() == Db.DbType.SQLSERVER) {
+                ps.setInt(1, limit);
+                ps.setString(2, normalizeRoomKey(roomKey));
+                ps.setLong(3, afterId);
+            } else {
+                ps.setString(1, normalizeRoomKey(roomKey));
+                ps.setLong(2, afterId);
+                ps.setInt(3, limit);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    StoredMessage m = new StoredMessage();
+                    m.id = rs.getLong(1);
+                    m.nickname = rs.getString(2);
+                    m.content = rs.getString(3);
+                    m.createdAt = rs.getTimestamp(4).getTime();
+                    list.add(m);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 最近的消息（按时间正序）
+     */
+    public static List<ChatMessage> latest(int limit, int offset, String roomKey) {
         if (!Db.enabled()) return Collections.emptyList();
         ensureTable(roomKey);
         if (limit <= 0) limit = 50;
         if (offset < 0) offset = 0;
         String sql;
         if (Db.type() == Db.DbType.SQLSERVER) {
-            sql = "SELECT nickname, content, created_at FROM messages WHERE room_key = ? ORDER BY id DESC OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
+            sql = "SELECT id, nickname, content, created_at, room_seq FROM messages WHERE room_key = ? ORDER BY id DESC OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
         } else {
-            sql = "SELECT nickname, content, created_at FROM messages WHERE room_key = ? ORDER BY id DESC LIMIT ? OFFSET ?";
+            sql = "SELECT id, nickname, content, created_at, room_seq FROM messages WHERE room_key = ? ORDER BY id DESC LIMIT ? OFFSET ?";
         }
-        List<String> list = new ArrayList<>();
+        List<ChatMessage> list = new ArrayList<>();
         try (Connection c = Db.getConnection(roomKey);
              PreparedStatement ps = c.prepareStatement(sql)) {
             if (Db.type() == Db.DbType.SQLSERVER) {
@@ -96,16 +163,11 @@ public class MessageDao {
             }
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    String nick = rs.getString(1);
-                    String content = rs.getString(2);
-                    Timestamp ts = rs.getTimestamp(3);
-                    LocalDateTime time = ts.toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime();
-                    String line = "[" + time.format(TS) + "] " + nick + ": " + content;
-                    list.add(line);
+                    list.add(readMessage(rs));
                 }
             }
         } catch (SQLException e) {
-            System.err.println("[DB] latest failed: " + e.getMessage());
+            Log.error("DB", "latest failed: " + e.getMessage());
         }
         // 查询按 id DESC，需反转为时间正序
         Collections.reverse(list);
@@ -129,7 +191,7 @@ public class MessageDao {
                 }
             }
         } catch (SQLException e) {
-            System.err.println("[DB] getTotalCount failed: " + e.getMessage());
+            Log.error("DB", "getTotalCount failed: " + e.getMessage());
         }
         return 0;
     }
@@ -138,36 +200,58 @@ public class MessageDao {
      * 获取指定时间之后的消息（用于增量加载）
      * @param since 时间戳（毫秒）
      */
-    public static List<String> latestSince(long since, String roomKey) {
+    public static List<ChatMessage> latestSince(long since, String roomKey) {
         if (!Db.enabled()) return Collections.emptyList();
         ensureTable(roomKey);
         String sql;
         if (Db.type() == Db.DbType.SQLSERVER) {
-            sql = "SELECT nickname, content, created_at FROM messages WHERE room_key = ? AND created_at > ? ORDER BY id ASC";
+            sql = "SELECT id, nickname, content, created_at, room_seq FROM messages WHERE room_key = ? AND created_at > ? ORDER BY id ASC";
         } else {
-            sql = "SELECT nickname, content, created_at FROM messages WHERE room_key = ? AND created_at > ? ORDER BY id ASC";
+            sql = "SELECT id, nickname, content, created_at, room_seq FROM messages WHERE room_key = ? AND created_at > ? ORDER BY id ASC";
         }
-        List<String> list = new ArrayList<>();
+        List<ChatMessage> list = new ArrayList<>();
         try (Connection c = Db.getConnection(roomKey);
              PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setString(1, normalizeRoomKey(roomKey));
             ps.setTimestamp(2, new Timestamp(since));
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    String nick = rs.getString(1);
-                    String content = rs.getString(2);
-                    Timestamp ts = rs.getTimestamp(3);
-                    LocalDateTime time = ts.toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime();
-                    String line = "[" + time.format(TS) + "] " + nick + ": " + content;
-                    list.add(line);
+                    list.add(readMessage(rs));
                 }
             }
         } catch (SQLException e) {
-            System.err.println("[DB] latestSince failed: " + e.getMessage());
+            Log.error("DB", "latestSince failed: " + e.getMessage());
         }
         return list;
     }
 
+    /**
+     * 房间内已入库的最大序号，未启用数据库或查询失败时返回 0
+     */
+    public static long maxRoomSeq(String roomKey) {
+        if (!Db.enabled()) return 0;
+        if (roomKey == null || roomKey.isBlank()) return 0;
+        ensureTable(roomKey);
+        String sql = "SELECT MAX(room_seq) FROM messages WHERE room_key = ?";
+        try (Connection c = Db.getConnection(roomKey);
+             PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, normalizeRoomKey(roomKey));
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
+        } catch (SQLException e) {
+            Log.error("DB", "maxRoomSeq failed: " + e.getMessage());
+        }
+        return 0;
+    }
+
+    // 列顺序：id, nickname, content, created_at, room_seq（旧数据为 0）
+    private static ChatMessage readMessage(ResultSet rs) throws SQLException {
+        return ChatMessage.of(rs.getLong(1), rs.getLong(5), rs.getString(2), rs.getTimestamp(4).getTime(), rs.getString(3));
+    }
+
     private static String normalizeRoomKey(String roomKey) {
         if (roomKey == null) return "";
         String trimmed = roomKey.trim();
@@ -192,10 +276,10 @@ public class MessageDao {
             ps.setString(1, correctRoomKey);
             int updated = ps.executeUpdate();
             if (updated > 0) {
-                System.out.println("[DB] Migrated " + updated + " messages from 'public' to '" + correctRoomKey + "'");
+                Log.info("DB", "Migrated " + updated + " messages from 'public' to '" + correctRoomKey + "'");
             }
         } catch (SQLException e) {
-            System.err.println("[DB] migratePublicRoomKey failed: " + e.getMessage());
+            Log.error("DB", "migratePublicRoomKey failed: " + e.getMessage());
         }
     }
     
@@ -243,6 +327,7 @@ public class MessageDao {
     }
 
     private static void ensureTable(String roomKey) {
+        if (roomKey == null || readyRooms.contains(roomKey)) return;
         try {
             Db.ensureDriver();
             String ddl;
@@ -273,9 +358,12 @@ public class MessageDao {
             try (Connection c = Db.getConnection(roomKey);
                  Statement st = c.createStatement()) {
                 st.execute(ddl);
+                ensureRoomKeyColumn(c);
+                Migrations.apply(c);
             }
+            readyRooms.add(roomKey);
         } catch (Exception e) {
-            System.err.println("[DB] ensureTable failed: " + e.getMessage());
+            Log.error("DB", "ensureTable failed: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,139 @@
+package db;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import util.Log;
+
+/**
+ * 版本化的数据库迁移。
+ * 每个数据库中 schema_migrations 表记录已执行的版本号，启动和首次访问房间时只执行未记录的版本。
+ * 新增迁移只需在 MIGRATIONS 末尾追加，已发布的版本号和语句不要修改。
+ */
+public class Migrations {
+
+    /**
+     * 一个迁移版本，分别给出 SQL Server 和 MySQL 的语句
+     */
+    private static class Migration {
+        final int version;
+        final String description;
+        final String sqlServer;
+        final String mysql;
+
+        Migration(int version, String description, String sqlServer, String mysql) {
+            this.version = version;
+            this.description = description;
+            this.sqlServer = sqlServer;
+            this.mysql = mysql;
+        }
+    }
+
+    private static final List<Migration> MIGRATIONS = List.of(
+        // 最新消息分页：WHERE room_key = ? ORDER BY id DESC，SQL Server 上包含列覆盖查询，不回表
+        new Migration(1, "messages (room_key, id DESC) covering index",
+            """
+                IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'idx_messages_room_id' AND object_id = OBJECT_ID('dbo.messages'))
+                    CREATE NONCLUSTERED INDEX idx_messages_room_id ON dbo.messages (room_key, id DESC)
+                    INCLUDE (nickname, content, created_at)
+            """,
+            // TEXT 列无法进入二级索引；InnoDB 二级索引自带主键，按 id 倒序即反向扫描
+            "CREATE INDEX idx_messages_room_id ON messages (room_key, id)"),
+        // 增量加载：WHERE room_key = ? AND created_at > ?
+        new Migration(2, "messages (room_key, created_at) index",
+            """
+                IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'idx_messages_room_created' AND object_id = OBJECT_ID('dbo.messages'))
+                    CREATE NONCLUSTERED INDEX idx_messages_room_created ON dbo.messages (room_key, created_at)
+            """,
+            "CREATE INDEX idx_messages_room_created ON messages (room_key, created_at)"),
+        // 实时消息的房间序号随消息入库，客户端按它去重；旧数据为 0
+        new Migration(3, "messages.room_seq column",
+            """
+                IF COL_LENGTH('dbo.messages', 'room_seq') IS NULL
+                    ALTER TABLE dbo.messages ADD room_seq BIGINT NOT NULL CONSTRAINT DF_messages_room_seq DEFAULT (0)
+            """,
+            "ALTER TABLE messages ADD COLUMN room_seq BIGINT NOT NULL DEFAULT 0")
+    );
+
+    // MySQL 列名重复、索引名重复
+    private static final int MYSQL_DUP_FIELDNAME = 1060;
+    private static final int MYSQL_DUP_KEYNAME = 1061;
+
+    /**
+     * 执行当前连接所在数据库中尚未执行的迁移
+     * @return 本次执行的版本数
+     */
+    public static synchronized int apply(Connection c) throws SQLException {
+        boolean sqlServer = Db.type() == Db.DbType.SQLSERVER;
+        ensureVersionTable(c, sqlServer);
+        Set<Integer> applied = new HashSet<>(appliedVersions(c));
+        int count = 0;
+        for (Migration m : MIGRATIONS) {
+            if (applied.contains(m.version)) {
+                continue;
+            }
+            long start = System.currentTimeMillis();
+            try (Statement st = c.createStatement()) {
+                st.execute(sqlServer ? m.sqlServer : m.mysql);
+            } catch (SQLException e) {
+                // 列或索引已被手工创建过，视为已执行
+                if (sqlServer || (e.getErrorCode() != MYSQL_DUP_KEYNAME && e.getErrorCode() != MYSQL_DUP_FIELDNAME)) {
+                    throw e;
+                }
+            }
+            try (PreparedStatement ps = c.prepareStatement(
+                    "INSERT INTO schema_migrations(version, description) VALUES(?, ?)")) {
+                ps.setInt(1, m.version);
+                ps.setString(2, m.description);
+                ps.executeUpdate();
+            }
+            count++;
+            Log.info("DB", "Migration " + m.version + " applied (" + m.description + ") in "
+                + (System.currentTimeMillis() - start) + "ms");
+        }
+        return count;
+    }
+
+    /**
+     * 已执行的版本号（升序）
+     */
+    public static List<Integer> appliedVersions(Connection c) throws SQLException {
+        List<Integer> versions = new ArrayList<>();
+        try (Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT version FROM schema_migrations ORDER BY version")) {
+            while (rs.next()) {
+                versions.add(rs.getInt(1));
+            }
+        }
+        return versions;
+    }
+
+    private static void ensureVersionTable(Connection c, boolean sqlServer) throws SQLException {
+        String ddl;
+        if (sqlServer) {
+            ddl = """
+                IF NOT EXISTS (SELECT * FROM sys.tables WHERE name = 'schema_migrations')
+                BEGIN
+                    CREATE TABLE dbo.schema_migrations (
+                        version INT PRIMARY KEY,
+                        description NVARCHAR(200) NOT NULL,
+                        applied_at DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME()
+                    );
+                END
+            """;
+        } else {
+            ddl = """
+                CREATE TABLE IF NOT EXISTS schema_migrations (
+                  version INT PRIMARY KEY,
+                  description VARCHAR(200) NOT NULL,
+                  applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+                ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+            """;
+        }
+        try (Statement st = c.createStatement()) {
+            st.execute(ddl);
+        }
+    }
+}
@@ -1,13 +1,27 @@
 package db;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import util.Env;
+import util.Log;
+import util.LruCache;
+import util.PasswordHasher;
 
 /**
  * 用户 DAO：注册、登录、Token 验证
@@ -16,30 +30,58 @@ import java.util.concurrent.ConcurrentHashMap;
 public class UserDao {
     
     private static final String SECRET_KEY = "24336064";
+    // 用户不存在时用于校验的占位哈希（格式有效、不对应任何密码）
+    private static final String DUMMY_HASH = "pbkdf2$" + PasswordHasher.ITERATIONS
+        + "$AAAAAAAAAAAAAAAAAAAAAA$AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
     // 管理员用户名列表
     private static final java.util.Set<String> ADMIN_USERNAMES = java.util.Set.of("liangch97");
     
-    // Token 缓存：token -> CachedUserInfo
-    private static final ConcurrentHashMap<String, CachedUserInfo> tokenCache = new ConcurrentHashMap<>();
+    // Token 有效期：24小时
+    private static final long TOKEN_TTL_MS = 24 * 60 * 60 * 1000L;
+    // 签名 Token 前缀：v2.userId.签发时间.过期时间.管理员.用户名.昵称.房间秘钥.HMAC（文本字段为 Base64URL）
+    private static final String TOKEN_V2_PREFIX = "v2.";
+    private static final byte[] TOKEN_KEY = loadTokenKey();
+    private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(TOKEN_KEY, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    });
+    private static final Base64.Encoder B64URL = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64URL_DECODER = Base64.getUrlDecoder();
+    
     // 缓存过期时间：5分钟
     private static final long TOKEN_CACHE_TTL_MS = 5 * 60 * 1000;
-    // 最大缓存数量
-    private static final int MAX_CACHE_SIZE = 1000;
+    // 最大缓存数量，超出时淘汰最久未使用的
+    private static final int MAX_CACHE_SIZE = 10000;
+    // Token 缓存：token -> 校验结果
+    private static final LruCache<String, VerifiedToken> tokenCache = new LruCache<>(MAX_CACHE_SIZE, TOKEN_CACHE_TTL_MS);
+    // 无效 Token 短期缓存：重复的错误 Token 直接拒绝，不再校验和查库
+    private static final LruCache<String, Boolean> invalidTokens = new LruCache<>(MAX_CACHE_SIZE, 60 * 1000);
+    // 超过该长度的 Token 直接拒绝，也不进入缓存
+    private static final int MAX_TOKEN_LENGTH = 1024;
+    // 用户资料缓存：userId -> 用户信息，资料变更时失效
+    private static final LruCache<Long, UserInfo> profileCache = new LruCache<>(MAX_CACHE_SIZE, 10 * 60 * 1000);
+    // 已占用的用户名（只缓存存在的结果，注册前的检查不会因缓存误判为可用）
+    private static final LruCache<String, Boolean> takenUsernames = new LruCache<>(MAX_CACHE_SIZE, 10 * 60 * 1000);
+    // 吊销列表：userId -> 该时间（含）之前签发的 Token 全部失效
+    private static final ConcurrentHashMap<Long, Long> revokedBefore = new ConcurrentHashMap<>();
     
     /**
-     * 缓存的用户信息
+     * 校验通过的 Token
      */
-    private static class CachedUserInfo {
+    private static class VerifiedToken {
         final UserInfo userInfo;
-        final long cachedAt;
+        final long issuedAt;
+        final long expiresAt;
         
-        CachedUserInfo(UserInfo userInfo) {
+        VerifiedToken(UserInfo userInfo, long issuedAt, long expiresAt) {
             this.userInfo = userInfo;
-            this.cachedAt = System.currentTimeMillis();
-        }
-        
-        boolean isExpired() {
-            return System.currentTimeMillis() - cachedAt > TOKEN_CACHE_TTL_MS;
+            this.issuedAt = issuedAt;
+            this.expiresAt = expiresAt;
         }
     }
     
@@ -96,6 +138,32 @@ public class UserDao {
             
             // 迁移旧用户：将空 room_key 的用户更新为当前数据库对应的正确秘钥
             migrateEmptyRoomKey(c);
+            
+            // Token 吊销记录
+            if (Db.type() == Db.DbType.SQLSERVER) {
+                st.execute("IF NOT EXISTS (SELECT * FROM sys.tables WHERE name = 'token_revocations') "
+                    + "CREATE TABLE token_revocations (user_id BIGINT PRIMARY KEY, revoked_before BIGINT NOT NULL)");
+            } else {
+                st.execute("CREATE TABLE IF NOT EXISTS token_revocations (user_id BIGINT PRIMARY KEY, revoked_before BIGINT NOT NULL)");
+            }
+            loadRevocations(c);
+        }
+    }
+    
+    /**
+     * 加载吊销列表；早于 Token 有效期的记录已无意义，顺便清除
+     */
+    private static void loadRevocations(Connection c) throws SQLException {
+        long cutoff = System.currentTimeMillis() - TOKEN_TTL_MS;
+        try (PreparedStatement ps = c.prepareStatement("DELETE FROM token_revocations WHERE revoked_before < ?")) {
+            ps.setLong(1, cutoff);
+            ps.executeUpdate();
+        }
+        try (Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT user_id, revoked_before FROM token_revocations")) {
+            while (rs.next()) {
+                revokedBefore.merge(rs.getLong(1), rs.getLong(2), Math::max);
+            }
         }
     }
     
@@ -113,10 +181,10 @@ public class UserDao {
             ps.setString(1, correctRoomKey);
             int updated = ps.executeUpdate();
             if (updated > 0) {
-                System.out.println("[DB] Migrated " + updated + " users with empty room_key to '" + correctRoomKey + "'");
+                Log.info("DB", "Migrated " + updated + " users with empty room_key to '" + correctRoomKey + "'");
             }
         } catch (SQLException e) {
-            System.err.println("[DB] migrateEmptyRoomKey failed: " + e.getMessage());
+            Log.error("DB", "migrateEmptyRoomKey failed: " + e.getMessage());
         }
     }
     
@@ -139,6 +207,7 @@ public class UserDao {
      * 注册用户
      * @param roomKey 注册秘钥，同时作为用户的房间秘钥
      * @return null 表示成功，否则返回错误信息
+     * @throws PasswordHasher.BusyException 密码哈希线程池已满
      */
     public static String register(String username, String password, String nickname, String roomKey) {
         if (!Db.enabled()) return "数据库未配置";
@@ -166,7 +235,7 @@ public class UserDao {
             return "用户名已存在";
         }
         
-        String passwordHash = hashPassword(password);
+        String passwordHash = PasswordHasher.hash(password);
         
         try (Connection c = Db.getConnection();
              PreparedStatement ps = c.prepareStatement(
@@ -176,16 +245,19 @@ public class UserDao {
             ps.setString(3, nickname);
             ps.setString(4, roomKey);
             ps.executeUpdate();
+            takenUsernames.put(username, Boolean.TRUE);
             return null; // 成功
         } catch (SQLException e) {
-            e.printStackTrace();
+            Log.error("DB", "register failed", e);
             return "注册失败: " + e.getMessage();
         }
     }
     
     /**
      * 登录验证
+     * 旧版 SHA-256 哈希校验通过后自动改存为 PBKDF2，迭代次数低于当前配置的记录同样升级
      * @return Token 字符串，失败返回 null
+     * @throws PasswordHasher.BusyException 密码哈希线程池已满
      */
     public static LoginResult login(String username, String password) {
         if (!Db.enabled()) return new LoginResult(null, null, null, false, "数据库未配置");
@@ -194,96 +266,160 @@ public class UserDao {
             return new LoginResult(null, null, null, false, "用户名或密码不能为空");
         }
         
-        String passwordHash = hashPassword(password);
-        
         try (Connection c = Db.getConnection();
              PreparedStatement ps = c.prepareStatement(
-                 "SELECT id, nickname, room_key FROM users WHERE username = ? AND password_hash = ?")) {
+                 "SELECT id, nickname, room_key, password_hash FROM users WHERE username = ?")) {
             ps.setString(1, username);
-            ps.setString(2, passwordHash);
             
             ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                long userId = rs.getLong("id");
-                String nickname = rs.getString("nickname");
-                String roomKey = rs.getString("room_key");
-                
-                // 更新最后登录时间
-                updateLastLogin(userId);
-                
-                // 生成 Token
-                String token = generateToken(userId, username);
-                boolean admin = isAdmin(username);
-                return new LoginResult(token, nickname, roomKey, admin, null);
-            } else {
+            if (!rs.next()) {
+                // 用户不存在时也计算一次哈希，响应时间不暴露用户名是否存在
+                PasswordHasher.verify(password, DUMMY_HASH);
+                return new LoginResult(null, null, null, false, "用户名或密码错误");
+            }
+            long userId = rs.getLong("id");
+            String nickname = rs.getString("nickname");
+            String roomKey = rs.getString("room_key");
+            String stored = rs.getString("password_hash");
+            
+            boolean matched = PasswordHasher.isHashed(stored)
+                ? PasswordHasher.verify(password, stored)
+                : MessageDigest.isEqual(legacyHash(password).getBytes(StandardCharsets.UTF_8),
+                                        stored.getBytes(StandardCharsets.UTF_8));
+            if (!matched) {
                 return new LoginResult(null, null, null, false, "用户名或密码错误");
             }
+            if (PasswordHasher.needsRehash(stored)) {
+                rehash(c, userId, password);
+            }
+            
+            // 更新最后登录时间
+            updateLastLogin(userId);
+            
+            // 生成 Token
+            boolean admin = isAdmin(username);
+            String token = generateToken(userId, username, nickname, roomKey, admin);
+            return new LoginResult(token, nickname, roomKey, admin, null);
         } catch (SQLException e) {
-            e.printStackTrace();
+            Log.error("DB", "login failed", e);
             return new LoginResult(null, null, null, false, "登录失败: " + e.getMessage());
         }
     }
     
+    /**
+     * 登录成功后把密码改存为当前参数的 PBKDF2 哈希；失败不影响本次登录，下次登录再试
+     */
+    private static void rehash(Connection c, long userId, String password) {
+        try (PreparedStatement ps = c.prepareStatement("UPDATE users SET password_hash = ? WHERE id = ?")) {
+            ps.setString(1, PasswordHasher.hash(password));
+            ps.setLong(2, userId);
+            ps.executeUpdate();
+        } catch (SQLException | PasswordHasher.BusyException e) {
+            Log.error("DB", "rehash failed for user " + userId + ": " + e.getMessage());
+        }
+    }
+    
     /**
      * 验证 Token（带缓存）
+     * 签名 Token 只做 HMAC 校验和吊销检查，不访问数据库；
+     * 旧格式 Token（固定密钥签名、时间戳由客户端提供，可被任意伪造）一律拒绝，客户端校验失败后回到登录界面
      * @return 用户信息，无效返回 null
      */
     public static UserInfo validateToken(String token) {
-        if (token == null || token.isEmpty()) return null;
+        if (token == null || token.isEmpty() || token.length() > MAX_TOKEN_LENGTH) return null;
         
         // 先检查缓存
-        CachedUserInfo cached = tokenCache.get(token);
-        if (cached != null && !cached.isExpired()) {
-            return cached.userInfo;
+        VerifiedToken verified = tokenCache.get(token);
+        if (verified == null) {
+            if (invalidTokens.get(token) != null) return null;
+            verified = token.startsWith(TOKEN_V2_PREFIX) ? verifySignedToken(token) : null;
+            if (verified == null) {
+                invalidTokens.put(token, Boolean.TRUE);
+                return null;
+            }
+            // 缓存时间不超过 Token 剩余有效期
+            tokenCache.put(token, verified, Math.min(TOKEN_CACHE_TTL_MS, verified.expiresAt - System.currentTimeMillis()));
         }
-        
-        // 缓存未命中或已过期，进行验证
+        if (isRevoked(verified.userInfo.userId, verified.issuedAt)) {
+            tokenCache.remove(token);
+            invalidTokens.put(token, Boolean.TRUE);
+            return null;
+        }
+        return verified.userInfo;
+    }
+    
+    /**
+     * 校验签名 Token
+     */
+    private static VerifiedToken verifySignedToken(String token) {
+        // 共 9 段，以 '.' 分隔
+        String[] parts = new String[9];
+        int from = 0;
+        for (int i = 0; i < 8; i++) {
+            int dot = token.indexOf('.', from);
+            if (dot < 0) return null;
+            parts[i] = token.substring(from, dot);
+            from = dot + 1;
+        }
+        if (token.indexOf('.', from) >= 0) return null;
+        parts[8] = token.substring(from);
         try {
-            // Token 格式: base64(userId:username:timestamp:signature)
-            String decoded = new String(Base64.getDecoder().decode(token));
-            String[] parts = decoded.split(":");
-            if (parts.length != 4) return null;
-            
-            long userId = Long.parseLong(parts[0]);
-            String username = parts[1];
-            long timestamp = Long.parseLong(parts[2]);
-            String signature = parts[3];
+            byte[] expected = sign(token.substring(0, from - 1));
+            if (!MessageDigest.isEqual(expected, B64URL_DECODER.decode(parts[8]))) return null;
             
-            // 检查签名
-            String expectedSig = generateSignature(userId, username, timestamp);
-            if (!signature.equals(expectedSig)) return null;
-            
-            // 检查是否过期 (24小时)
-            long now = System.currentTimeMillis();
-            if (now - timestamp > 24 * 60 * 60 * 1000) {
-                // Token 过期，移除缓存
-                tokenCache.remove(token);
-                return null;
+            long userId = Long.parseLong(parts[1]);
+            long issuedAt = Long.parseLong(parts[2]);
+            long expiresAt = Long.parseLong(parts[3]);
+            if (System.currentTimeMillis() >= expiresAt) return null;
+            boolean admin = "1".equals(parts[4]);
+            UserInfo info = new UserInfo(userId, decodeField(parts[5]), decodeField(parts[6]), decodeField(parts[7]), admin);
+            return new VerifiedToken(info, issuedAt, expiresAt);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    private static boolean isRevoked(long userId, long issuedAt) {
+        Long before = revokedBefore.get(userId);
+        return before != null && issuedAt <= before;
+    }
+    
+    /**
+     * 吊销用户此前签发的全部 Token（删除用户、修改资料、重置密码后调用）
+     */
+    public static void revokeUserTokens(long userId) {
+        long now = System.currentTimeMillis();
+        revokedBefore.merge(userId, now, Math::max);
+        if (!Db.enabled()) return;
+        try (Connection c = Db.getConnection()) {
+            int updated;
+            try (PreparedStatement ps = c.prepareStatement("UPDATE token_revocations SET revoked_before = ? WHERE user_id = ?")) {
+                ps.setLong(1, now);
+                ps.setLong(2, userId);
+                updated = ps.executeUpdate();
             }
-            
-            // 从数据库获取用户信息
-            UserInfo userInfo = getUserInfo(userId);
-            
-            // 缓存结果
-            if (userInfo != null) {
-                // 清理过期缓存（简单策略：超过上限时清理）
-                if (tokenCache.size() > MAX_CACHE_SIZE) {
-                    cleanExpiredCache();
+            if (updated == 0) {
+                try (PreparedStatement ps = c.prepareStatement("INSERT INTO token_revocations (user_id, revoked_before) VALUES (?, ?)")) {
+                    ps.setLong(1, userId);
+                    ps.setLong(2, now);
+                    ps.executeUpdate();
                 }
-                tokenCache.put(token, new CachedUserInfo(userInfo));
             }
-            
-            return userInfo;
-        } catch (Exception e) {
-            return null;
+        } catch (SQLException e) {
+            // 内存中的吊销仍然生效，只是重启后丢失
+            Log.error("DB", "revokeUserTokens failed: " + e.getMessage());
         }
     }
     
     /**
-     * 清理过期的 Token 缓存
+     * 用户资料或权限变更后：吊销已签发的 Token 并清除资料缓存
      */
-    private static void cleanExpiredCache() {
-        tokenCache.entrySet().removeIf(entry -> entry.getValue().isExpired());
+    private static void invalidateUser(long userId, String username) {
+        revokeUserTokens(userId);
+        profileCache.remove(userId);
+        if (username != null) {
+            takenUsernames.remove(username);
+        }
     }
     
     /**
@@ -306,11 +442,15 @@ public class UserDao {
         public final boolean isAdmin;
         
         public UserInfo(long userId, String username, String nickname, String roomKey) {
+            this(userId, username, nickname, roomKey, ADMIN_USERNAMES.contains(username));
+        }
+        
+        public UserInfo(long userId, String username, String nickname, String roomKey, boolean isAdmin) {
             this.userId = userId;
             this.username = username;
             this.nickname = nickname;
             this.roomKey = roomKey;
-            this.isAdmin = ADMIN_USERNAMES.contains(username);
+            this.isAdmin = isAdmin;
         }
     }
     
@@ -318,12 +458,17 @@ public class UserDao {
      * 检查用户名是否存在
      */
     private static boolean userExists(String username) {
+        if (takenUsernames.get(username) != null) return true;
         try (Connection c = Db.getConnection();
              PreparedStatement ps = c.prepareStatement(
                  "SELECT 1 FROM users WHERE username = ?")) {
             ps.setString(1, username);
             ResultSet rs = ps.executeQuery();
-            return rs.next();
+            if (rs.next()) {
+                takenUsernames.put(username, Boolean.TRUE);
+                return true;
+            }
+            return false;
         } catch (SQLException e) {
             return false;
         }
@@ -333,34 +478,32 @@ public class UserDao {
      * 获取用户昵称
      */
     private static String getNickname(long userId) {
-        try (Connection c = Db.getConnection();
-             PreparedStatement ps = c.prepareStatement(
-                 "SELECT nickname FROM users WHERE id = ?")) {
-            ps.setLong(1, userId);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                return rs.getString("nickname");
-            }
+        try {
+            UserInfo info = getUserInfo(userId);
+            return info == null ? null : info.nickname;
         } catch (SQLException e) {
-            e.printStackTrace();
+            Log.error("DB", "getNickname failed", e);
+            return null;
         }
-        return null;
     }
     
     /**
-     * 获取用户完整信息（昵称和房间秘钥）
+     * 获取用户完整信息（昵称和房间秘钥），优先读资料缓存
+     * @return 用户不存在返回 null
      */
-    private static UserInfo getUserInfo(long userId) {
+    private static UserInfo getUserInfo(long userId) throws SQLException {
+        UserInfo cached = profileCache.get(userId);
+        if (cached != null) return cached;
         try (Connection c = Db.getConnection();
              PreparedStatement ps = c.prepareStatement(
                  "SELECT username, nickname, room_key FROM users WHERE id = ?")) {
             ps.setLong(1, userId);
             ResultSet rs = ps.executeQuery();
             if (rs.next()) {
-                return new UserInfo(userId, rs.getString("username"), rs.getString("nickname"), rs.getString("room_key"));
+                UserInfo info = new UserInfo(userId, rs.getString("username"), rs.getString("nickname"), rs.getString("room_key"));
+                profileCache.put(userId, info);
+                return info;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
         return null;
     }
@@ -377,14 +520,14 @@ public class UserDao {
             ps.setLong(1, userId);
             ps.executeUpdate();
         } catch (SQLException e) {
-            e.printStackTrace();
+            Log.error("DB", "updateLastLogin failed", e);
         }
     }
     
     /**
-     * 使用 SHA-256 + 密钥哈希密码
+     * 旧版密码哈希：SHA-256 + 固定密钥（仅用于校验尚未升级的记录）
      */
-    private static String hashPassword(String password) {
+    private static String legacyHash(String password) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             String salted = password + SECRET_KEY;
@@ -396,32 +539,71 @@ public class UserDao {
     }
     
     /**
-     * 生成 Token
+     * 生成签名 Token，声明中带齐校验所需的用户信息
      */
-    private static String generateToken(long userId, String username) {
-        long timestamp = System.currentTimeMillis();
-        String signature = generateSignature(userId, username, timestamp);
-        String tokenData = userId + ":" + username + ":" + timestamp + ":" + signature;
-        return Base64.getEncoder().encodeToString(tokenData.getBytes());
+    static String generateToken(long userId, String username, String nickname, String roomKey, boolean admin) {
+        long issuedAt = System.currentTimeMillis();
+        String payload = TOKEN_V2_PREFIX + userId + "." + issuedAt + "." + (issuedAt + TOKEN_TTL_MS) + "."
+            + (admin ? "1" : "0") + "." + encodeField(username) + "." + encodeField(nickname) + "." + encodeField(roomKey);
+        return payload + "." + B64URL.encodeToString(sign(payload));
+    }
+    
+    private static byte[] sign(String payload) {
+        return HMAC.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static String encodeField(String value) {
+        return B64URL.encodeToString((value == null ? "" : value).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static String decodeField(String value) {
+        return new String(B64URL_DECODER.decode(value), StandardCharsets.UTF_8);
     }
     
     /**
-     * 生成签名
+     * HMAC 密钥：优先使用 TOKEN_SECRET；未配置时使用 TOKEN_SECRET_FILE（默认 .token_secret）中的随机密钥，
+     * 文件不存在则生成并保存，重启后 Token 仍有效。多实例部署必须配置相同的 TOKEN_SECRET。
+     * 不能从源码中的常量或默认配置派生，否则任何人都能签发（含管理员的）Token。
      */
-    private static String generateSignature(long userId, String username, long timestamp) {
+    private static byte[] loadTokenKey() {
+        String secret = Env.get("TOKEN_SECRET", "");
+        if (secret.isBlank()) {
+            secret = loadOrCreateSecretFile(Paths.get(Env.get("TOKEN_SECRET_FILE", ".token_secret")));
+        }
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            String data = userId + ":" + username + ":" + timestamp + ":" + SECRET_KEY;
-            byte[] hash = md.digest(data.getBytes());
-            // 只取前8字节作为签名
-            byte[] shortHash = new byte[8];
-            System.arraycopy(hash, 0, shortHash, 0, 8);
-            return Base64.getEncoder().encodeToString(shortHash);
+            return MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
     
+    private static String loadOrCreateSecretFile(Path file) {
+        try {
+            if (Files.exists(file)) {
+                String saved = Files.readString(file, StandardCharsets.UTF_8).trim();
+                if (!saved.isEmpty()) {
+                    return saved;
+                }
+            }
+            byte[] random = new byte[32];
+            new SecureRandom().nextBytes(random);
+            String secret = Base64.getEncoder().encodeToString(random);
+            Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), ".token_secret", ".tmp");
+            try {
+                // 仅所有者可读写（非 POSIX 文件系统忽略）
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+            }
+            Files.writeString(tmp, secret, StandardCharsets.UTF_8);
+            Files.move(tmp, file, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            Log.warn("Auth", "TOKEN_SECRET 未配置，已生成随机密钥并保存到 " + file.toAbsolutePath());
+            return secret;
+        } catch (IOException e) {
+            // 无法持久化时拒绝启动，不退回可猜测的密钥
+            throw new IllegalStateException("TOKEN_SECRET 未配置且无法读写 " + file.toAbsolutePath(), e);
+        }
+    }
+    
     /**
      * 登录结果
      */
@@ -515,7 +697,7 @@ public class UserDao {
                 ));
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            Log.error("DB", "listUsers failed", e);
         }
         return users;
     }
@@ -530,6 +712,7 @@ public class UserDao {
         if (!Db.enabled()) return "数据库未配置";
         
         // 检查要删除的用户是否存在
+        String targetUsername;
         try (Connection c = Db.getConnection();
              PreparedStatement ps = c.prepareStatement("SELECT username FROM users WHERE id = ?")) {
             ps.setLong(1, userId);
@@ -537,7 +720,7 @@ public class UserDao {
             if (!rs.next()) {
                 return "用户不存在";
             }
-            String targetUsername = rs.getString("username");
+            targetUsername = rs.getString("username");
             // 不能删除管理员
             if (isAdmin(targetUsername)) {
                 return "不能删除管理员账户";
@@ -551,6 +734,7 @@ public class UserDao {
             ps.setLong(1, userId);
             int deleted = ps.executeUpdate();
             if (deleted > 0) {
+                invalidateUser(userId, targetUsername);
                 return null; // 成功
             } else {
                 return "删除失败";
@@ -609,6 +793,8 @@ public class UserDao {
             }
             int updated = ps.executeUpdate();
             if (updated > 0) {
+                // Token 中带有昵称和房间秘钥，需重新登录
+                invalidateUser(userId, null);
                 return null; // 成功
             } else {
                 return "用户不存在";
@@ -620,6 +806,7 @@ public class UserDao {
     
     /**
      * 重置用户密码（管理员功能）
+     * @throws PasswordHasher.BusyException 密码哈希线程池已满
      */
     public static String resetPassword(long userId, String newPassword, String adminUsername) {
         if (!isAdmin(adminUsername)) {
@@ -631,7 +818,7 @@ public class UserDao {
             return "密码长度至少6个字符";
         }
         
-        String passwordHash = hashPassword(newPassword);
+        String passwordHash = PasswordHasher.hash(newPassword);
         
         try (Connection c = Db.getConnection();
              PreparedStatement ps = c.prepareStatement("UPDATE users SET password_hash = ? WHERE id = ?")) {
@@ -639,6 +826,7 @@ public class UserDao {
             ps.setLong(2, userId);
             int updated = ps.executeUpdate();
             if (updated > 0) {
+                invalidateUser(userId, null);
                 return null; // 成功
             } else {
                 return "用户不存在";
@@ -0,0 +1,179 @@
+package util;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * 内容寻址存储 - 按 SHA-256 去重保存文件内容
+ * 目录结构: storage/room_<key>/blobs/ab/cd/abcd...（前两级按哈希分片）
+ * 引用计数保存在数据库 file_blobs 表中，由 FileManager 维护
+ */
+public class BlobStore {
+
+    private static final String BASE_STORAGE_PATH = "storage";
+    private static final String BLOB_DIR = "blobs";
+    private static final String TMP_DIR = "tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // 按哈希分段的锁，保证同一内容的引用计数与物理文件操作串行
+    private static final Object[] LOCKS = new Object[64];
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+
+    /**
+     * 写入结果
+     */
+    public static class StoredBlob {
+        public final String hash;
+        public final String path;
+        public final long size;
+
+        StoredBlob(String hash, String path, long size) {
+            this.hash = hash;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 获取房间的 blob 根目录
+     */
+    public static String getBlobRoot(String roomKey) {
+        return BASE_STORAGE_PATH + File.separator + "room_" + roomKey + File.separator + BLOB_DIR;
+    }
+
+    /**
+     * 根据哈希获取 blob 路径
+     */
+    public static String getBlobPath(String roomKey, String hash) {
+        return getBlobRoot(roomKey) + File.separator + hash.substring(0, 2)
+            + File.separator + hash.substring(2, 4) + File.separator + hash;
+    }
+
+    /**
+     * 获取某个哈希对应的锁
+     */
+    public static Object lockFor(String hash) {
+        return LOCKS[stripe(hash)];
+    }
+
+    /**
+     * 获取一组哈希对应的锁，去重并按固定顺序排列；调用方按此顺序嵌套加锁，避免死锁
+     */
+    public static List<Object> locksFor(Collection<String> hashes) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (String hash : hashes) {
+            stripes.add(stripe(hash));
+        }
+        List<Object> locks = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            locks.add(LOCKS[stripe]);
+        }
+        return locks;
+    }
+
+    private static int stripe(String hash) {
+        return (hash.hashCode() & 0x7fffffff) % LOCKS.length;
+    }
+
+    /**
+     * 流式写入临时文件，同时计算 SHA-256
+     * 返回的 StoredBlob.path 仍是临时文件，需要调用 commit() 放入正式位置
+     * @param maxBytes 超过该大小则中止写入（不限制时传 Long.MAX_VALUE）
+     */
+    public static StoredBlob writeTemp(InputStream in, String roomKey, long maxBytes) throws IOException {
+        Path tmpDir = Paths.get(getBlobRoot(roomKey), TMP_DIR);
+        Files.createDirectories(tmpDir);
+        Path tmp = Files.createTempFile(tmpDir, "upload_", ".part");
+
+        MessageDigest md = newSha256();
+        long size = 0;
+        try (OutputStream fos = new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE);
+             DigestOutputStream out = new DigestOutputStream(fos, md)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                size += n;
+                if (size > maxBytes) {
+                    throw new IOException("存储空间不足");
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        return new StoredBlob(toHex(md.digest()), tmp.toString(), size);
+    }
+
+    /**
+     * 将临时文件放入内容寻址位置
+     * 若相同内容已存在则丢弃临时文件
+     * @return blob 的正式路径
+     */
+    public static String commit(StoredBlob temp, String roomKey) throws IOException {
+        Path tmp = Paths.get(temp.path);
+        Path target = Paths.get(getBlobPath(roomKey, temp.hash));
+        if (Files.exists(target)) {
+            Files.deleteIfExists(tmp);
+            return target.toString();
+        }
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(tmp);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return target.toString();
+    }
+
+    /**
+     * 丢弃临时文件
+     */
+    public static void discard(StoredBlob temp) {
+        try {
+            Files.deleteIfExists(Paths.get(temp.path));
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * 删除 blob 物理文件（引用计数归零时调用）
+     */
+    public static void deleteBlob(String roomKey, String hash) throws IOException {
+        Files.deleteIfExists(Paths.get(getBlobPath(roomKey, hash)));
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 字节数组转十六进制字符串
+     */
+    public static String toHex(byte[] hash) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] out = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            out[i * 2] = hex[(hash[i] >> 4) & 0xf];
+            out[i * 2 + 1] = hex[hash[i] & 0xf];
+        }
+        return new String(out);
+    }
+}
@@ -1,12 +1,19 @@
 package util;
 
+import db.Db;
 import db.FileDao;
 
 import java.io.*;
 import java.nio.file.*;
 import java.security.MessageDigest;
 import java.sql.SQLException;
-import java.util.List;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * 文件管理器 - 负责文件的物理存储和管理
@@ -16,6 +23,19 @@ public class FileManager {
     
     private static final String BASE_STORAGE_PATH = "storage";  // 基础存储路径
     private static final long DEFAULT_QUOTA = 1073741824L;  // 默认1GB配额
+    private static final int SEARCH_LIMIT = 100;  // 搜索结果上限
+    
+    // 已压缩格式打包时不再压缩，省 CPU
+    private static final Set<String> STORED_EXTENSIONS = Set.of(
+        "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "mkv", "avi", "mov",
+        "zip", "rar", "7z", "gz", "bz2", "xz", "apk", "jar", "docx", "xlsx", "pptx", "pdf");
+    
+    // 后台物理删除线程池（数据库记录删除后异步清理磁盘）
+    private static final ExecutorService FILE_IO = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "file-io");
+        t.setDaemon(true);
+        return t;
+    });
     
     /**
      * 获取用户存储根目录
@@ -66,33 +86,72 @@ public class FileManager {
     public static FileDao.FileInfo saveFile(long userId, String roomKey, String fileName, 
                                            String folderPath, byte[] fileData, String contentType) 
             throws IOException, SQLException {
+        return saveFile(userId, roomKey, fileName, folderPath, 
+                        new ByteArrayInputStream(fileData), fileData.length, contentType);
+    }
+    
+    /**
+     * 流式保存文件（写入时计算 SHA-256，相同内容只存一份）
+     * @param declaredSize 请求声明的大小（未知时传 -1）
+     * @return 保存后的文件信息
+     */
+    public static FileDao.FileInfo saveFile(long userId, String roomKey, String fileName, 
+                                           String folderPath, InputStream in, long declaredSize,
+                                           String contentType) 
+            throws IOException, SQLException {
         
-        // 检查配额
-        FileDao.StorageQuota quota = FileDao.getUserQuota(userId, roomKey);
-        if (quota == null) {
-            FileDao.initUserQuota(userId, roomKey);
-            quota = FileDao.getUserQuota(userId, roomKey);
-        }
+        FileDao.ensureBlobSchema(roomKey);
         
-        long fileSize = fileData.length;
-        if (quota != null && quota.usedSpace + fileSize > quota.totalQuota) {
-            throw new IOException("存储空间不足");
+        // 已知大小时先原子预留配额，并发上传不会超额
+        QuotaLedger.Reservation reservation = declaredSize >= 0
+            ? QuotaLedger.reserve(roomKey, userId, declaredSize) : null;
+        try {
+            // 边写边算哈希，超出配额立即中止
+            long maxBytes = reservation != null ? declaredSize : QuotaLedger.available(roomKey, userId);
+            BlobStore.StoredBlob temp = BlobStore.writeTemp(in, roomKey, maxBytes);
+            if (reservation == null) {
+                // 未声明大小：写完后按实际大小预留
+                try {
+                    reservation = QuotaLedger.reserve(roomKey, userId, temp.size);
+                } catch (IOException e) {
+                    BlobStore.discard(temp);
+                    throw e;
+                }
+            }
+            FileDao.FileInfo fileInfo = storeBlob(temp, userId, roomKey, fileName, folderPath, contentType);
+            reservation.commit(fileInfo.fileSize);
+            FileTreeCache.onFileAdded(roomKey, fileInfo);
+            return fileInfo;
+        } finally {
+            if (reservation != null) {
+                reservation.release();
+            }
         }
+    }
+    
+    /**
+     * 将临时文件放入内容寻址存储并写入文件记录
+     */
+    private static FileDao.FileInfo storeBlob(BlobStore.StoredBlob temp, long userId, String roomKey,
+                                              String fileName, String folderPath, String contentType)
+            throws IOException, SQLException {
+        long fileSize = temp.size;
         
-        // 创建用户目录
-        ensureUserDirectory(userId, roomKey);
-        if (folderPath != null && !folderPath.equals("/")) {
-            ensureUserSubDirectory(userId, roomKey, folderPath);
+        String filePath;
+        synchronized (BlobStore.lockFor(temp.hash)) {
+            boolean isNew = FileDao.acquireBlob(temp.hash, fileSize, roomKey);
+            try {
+                filePath = BlobStore.commit(temp, roomKey);
+            } catch (IOException e) {
+                FileDao.releaseBlob(temp.hash, roomKey);
+                BlobStore.discard(temp);
+                throw e;
+            }
+            if (!isNew) {
+                Log.info("Blob", "Dedup hit: " + temp.hash + " (" + formatFileSize(fileSize) + " saved)");
+            }
         }
         
-        // 生成唯一文件名（防止重复）
-        String uniqueFileName = generateUniqueFileName(fileName);
-        String filePath = getUserFilePath(userId, roomKey, folderPath, uniqueFileName);
-        
-        // 保存文件
-        Path path = Paths.get(filePath);
-        Files.write(path, fileData);
-        
         // 创建文件信息对象
         FileDao.FileInfo fileInfo = new FileDao.FileInfo();
         fileInfo.userId = userId;
@@ -104,13 +163,18 @@ public class FileManager {
         fileInfo.storagePath = getUserStorageRoot(userId, roomKey);
         fileInfo.folderPath = folderPath == null ? "/" : folderPath;
         fileInfo.isPublic = false;
+        fileInfo.blobHash = temp.hash;
         
         // 保存到数据库
-        long fileId = FileDao.insertFile(fileInfo, roomKey);
+        long fileId;
+        try {
+            fileId = FileDao.insertFile(fileInfo, roomKey);
+        } catch (SQLException e) {
+            releaseBlob(temp.hash, roomKey);
+            throw e;
+        }
         fileInfo.id = fileId;
-        
-        // 更新用户配额
-        FileDao.updateUserSpace(userId, fileSize, 1, roomKey);
+        fileInfo.roomKey = roomKey;
         
         return fileInfo;
     }
@@ -157,37 +221,69 @@ public class FileManager {
             throw new SecurityException("无权限删除该文件");
         }
         
-        // 删除物理文件
-        Path path = Paths.get(fileInfo.filePath);
-        if (Files.exists(path)) {
-            Files.delete(path);
+        // 删除数据库记录；到记账完成为止计为进行中的操作，对账不会重复扣除
+        QuotaLedger.Operation operation = QuotaLedger.beginDelete(roomKey);
+        boolean deleted;
+        try {
+            deleted = FileDao.deleteFile(fileId, userId, roomKey);
+            if (deleted) {
+                // 更新用量账本（定期写回 user_storage_quota）
+                QuotaLedger.onFileDeleted(roomKey, fileInfo.userId, fileInfo.fileSize);
+            }
+        } finally {
+            operation.end();
         }
         
-        // 删除数据库记录
-        boolean deleted = FileDao.deleteFile(fileId, userId, roomKey);
-        
         if (deleted) {
-            // 更新用户配额
-            FileDao.updateUserSpace(userId, -fileInfo.fileSize, -1, roomKey);
+            FileTreeCache.onFileRemoved(roomKey, fileId);
+            if (fileInfo.blobHash != null) {
+                // 内容寻址文件：减少引用计数，归零才删除物理文件
+                releaseBlob(fileInfo.blobHash, roomKey);
+            } else {
+                // 旧文件：直接删除物理文件
+                Path path = Paths.get(fileInfo.filePath);
+                if (Files.exists(path)) {
+                    Files.delete(path);
+                }
+            }
         }
         
         return deleted;
     }
     
     /**
-     * 获取用户文件列表
+     * 释放一个 blob 引用，引用计数归零时删除物理文件
+     */
+    private static void releaseBlob(String hash, String roomKey) throws SQLException, IOException {
+        synchronized (BlobStore.lockFor(hash)) {
+            if (FileDao.releaseBlob(hash, roomKey) == 0) {
+                BlobStore.deleteBlob(roomKey, hash);
+            }
+        }
+    }
+    
+    /**
+     * 获取用户文件列表（从房间文件树缓存读取）
      */
     public static List<FileDao.FileInfo> getUserFiles(long userId, String folderPath, String roomKey) 
             throws SQLException {
-        return FileDao.getUserFiles(userId, folderPath, roomKey);
+        return FileTreeCache.list(roomKey, folderPath).files;
     }
     
     /**
-     * 搜索用户文件
+     * 记录一次下载
+     */
+    public static void recordDownload(long fileId, String roomKey) throws SQLException {
+        FileDao.incrementDownloadCount(fileId, roomKey);
+        FileTreeCache.onDownload(roomKey, fileId);
+    }
+    
+    /**
+     * 搜索房间文件（内存文件名索引，所有成员共享）
      */
     public static List<FileDao.FileInfo> searchFiles(long userId, String keyword, String roomKey) 
             throws SQLException {
-        return FileDao.searchUserFiles(userId, keyword, roomKey);
+        return FileTreeCache.search(roomKey, keyword, SEARCH_LIMIT);
     }
     
     /**
@@ -195,21 +291,15 @@ public class FileManager {
      */
     public static FileDao.StorageQuota getUserStorageInfo(long userId, String roomKey) 
             throws SQLException {
-        // 获取整个房间的存储使用情况
-        return FileDao.getRoomQuota(roomKey);
+        // 获取整个房间的存储使用情况（内存账本，不再每次 SUM）
+        return QuotaLedger.roomUsage(roomKey);
     }
     
     /**
-     * 生成唯一文件名
+     * 获取房间去重报告（节省了多少空间）
      */
-    private static String generateUniqueFileName(String originalName) {
-        String timestamp = String.valueOf(System.currentTimeMillis());
-        String extension = getFileExtension(originalName);
-        String baseName = originalName.substring(0, originalName.lastIndexOf('.') >= 0 ? 
-                                                  originalName.lastIndexOf('.') : originalName.length());
-        // 清理文件名中的特殊字符
-        baseName = baseName.replaceAll("[^a-zA-Z0-9_\\-\\u4e00-\\u9fa5]", "_");
-        return timestamp + "_" + baseName + (extension.isEmpty() ? "" : "." + extension);
+    public static FileDao.DedupStats getDedupReport(String roomKey) throws SQLException {
+        return FileDao.getDedupStats(roomKey);
     }
     
     /**
@@ -289,18 +379,22 @@ public class FileManager {
             ensureUserSubDirectory(userId, roomKey, folderPath);
             
             // 返回文件夹信息
-            return FileDao.getFolderByPath(userId, folderPath, roomKey);
+            FileDao.FolderInfo folder = FileDao.getFolderByPath(userId, folderPath, roomKey);
+            if (folder != null) {
+                FileTreeCache.onFolderAdded(roomKey, folder);
+            }
+            return folder;
         }
         
         throw new SQLException("创建文件夹失败");
     }
     
     /**
-     * 获取文件夹列表
+     * 获取文件夹列表（从房间文件树缓存读取，fileCount 已填充）
      */
     public static List<FileDao.FolderInfo> getUserFolders(long userId, String parentPath, String roomKey) 
             throws SQLException {
-        return FileDao.getUserFolders(userId, parentPath, roomKey);
+        return FileTreeCache.list(roomKey, parentPath).folders;
     }
     
     /**
@@ -312,7 +406,11 @@ public class FileManager {
         // 获取文件夹信息
         // 需要先通过id查询folderPath
         // 这里简化处理，直接删除
-        return FileDao.deleteFolder(folderId, userId, roomKey);
+        boolean deleted = FileDao.deleteFolder(folderId, userId, roomKey);
+        if (deleted) {
+            FileTreeCache.onFolderRemoved(roomKey, folderId);
+        }
+        return deleted;
     }
     
     /**
@@ -333,46 +431,327 @@ public class FileManager {
         }
         
         // 重命名数据库记录
-        return FileDao.renameFolder(folderId, userId, safeFolderName, roomKey);
+        boolean renamed = FileDao.renameFolder(folderId, userId, safeFolderName, roomKey);
+        if (renamed) {
+            FileTreeCache.onFolderRenamed(roomKey, folderId, safeFolderName);
+        }
+        return renamed;
     }
     
     /**
-     * 删除文件夹及其所有内容（递归）
+     * 删除文件夹及其所有内容
+     * 一次前缀查询取出整棵子树，在一个事务中批量删除记录，用量一次性释放，物理文件交给后台线程清理
      */
     public static boolean deleteFolderRecursive(long userId, String folderPath, String roomKey) 
             throws SQLException, IOException {
         
-        // 先删除所有子文件夹
-        List<FileDao.FolderInfo> subFolders = FileDao.getUserFolders(userId, folderPath, roomKey);
-        for (FileDao.FolderInfo folder : subFolders) {
-            deleteFolderRecursive(userId, folder.folderPath, roomKey);
+        if (folderPath == null || folderPath.isEmpty() || folderPath.equals("/")) {
+            throw new IllegalArgumentException("不能删除根目录");
         }
         
-        // 删除文件夹中的所有文件
-        List<FileDao.FileInfo> files = FileDao.getUserFiles(userId, folderPath, roomKey);
-        for (FileDao.FileInfo file : files) {
-            deleteFile(file.id, userId, roomKey);
+        FileDao.ensureBlobSchema(roomKey);
+        long start = System.currentTimeMillis();
+        QuotaLedger.Operation operation = QuotaLedger.beginDelete(roomKey);
+        FileDao.BulkDeletion deletion;
+        try {
+            deletion = FileDao.deleteSubtree(folderPath, userId, roomKey);
+            if (deletion.rejected) {
+                throw new SecurityException("无权限删除该文件");
+            }
+            QuotaLedger.onFilesDeleted(roomKey, deletion.files);
+        } finally {
+            operation.end();
+        }
+        
+        FileTreeCache.onBulkRemoved(roomKey, deletion.files, deletion.folderIds);
+        Log.info("Files", "Deleted " + folderPath + " @" + Db.roomLabel(roomKey) + ": " + deletion.folderIds.size()
+            + " folders, " + deletion.files.size() + " files in " + (System.currentTimeMillis() - start) + "ms");
+        
+        FILE_IO.execute(() -> deletePhysical(roomKey, folderPath, deletion));
+        return true;
+    }
+    
+    /**
+     * 批量操作结果
+     */
+    public static class BatchResult {
+        public final List<Long> succeeded = new ArrayList<>();
+        public final Map<Long, String> errors = new LinkedHashMap<>();
+    }
+    
+    /**
+     * 批量删除文件
+     * 一个事务内批量删除记录，用量和文件树一次性更新，物理文件交给后台线程清理
+     */
+    public static BatchResult deleteFiles(List<Long> fileIds, long userId, String roomKey) 
+            throws SQLException {
+        BatchResult result = new BatchResult();
+        if (fileIds.isEmpty()) {
+            return result;
         }
         
-        // 删除文件夹记录
-        FileDao.FolderInfo folder = FileDao.getFolderByPath(userId, folderPath, roomKey);
-        if (folder != null) {
-            FileDao.deleteFolder(folder.id, userId, roomKey);
+        FileDao.ensureBlobSchema(roomKey);
+        QuotaLedger.Operation operation = QuotaLedger.beginDelete(roomKey);
+        FileDao.BulkDeletion deletion;
+        try {
+            deletion = FileDao.deleteFiles(fileIds, userId, roomKey);
+            QuotaLedger.onFilesDeleted(roomKey, deletion.files);
+        } finally {
+            operation.end();
         }
         
-        // 删除物理目录
-        String root = getUserStorageRoot(userId, roomKey);
-        String safeFolderPath = folderPath.replaceAll("^\\/+", "").replaceAll("\\.\\.", "");
-        Path dirPath = Paths.get(root, safeFolderPath);
-        if (Files.exists(dirPath)) {
+        Set<Long> deleted = new HashSet<>();
+        for (FileDao.FileInfo f : deletion.files) {
+            deleted.add(f.id);
+        }
+        Set<Long> denied = new HashSet<>(deletion.denied);
+        for (long id : new LinkedHashSet<>(fileIds)) {
+            if (deleted.contains(id)) {
+                result.succeeded.add(id);
+            } else {
+                result.errors.put(id, denied.contains(id) ? "无权限删除该文件" : "文件不存在");
+            }
+        }
+        
+        FileTreeCache.onBulkRemoved(roomKey, deletion.files, Collections.emptyList());
+        if (!deletion.files.isEmpty()) {
+            FILE_IO.execute(() -> deletePhysical(roomKey, null, deletion));
+        }
+        return result;
+    }
+    
+    /**
+     * 批量移动文件
+     * 内容寻址文件在一个事务内批量更新记录；旧文件需要移动物理文件，逐个处理
+     */
+    public static BatchResult moveFiles(List<Long> fileIds, long userId, String newFolderPath, String roomKey) 
+            throws SQLException {
+        BatchResult result = new BatchResult();
+        if (fileIds.isEmpty()) {
+            return result;
+        }
+        
+        Map<Long, FileDao.FileInfo> found = new HashMap<>();
+        for (FileDao.FileInfo f : FileDao.getFilesByIds(fileIds, roomKey)) {
+            found.put(f.id, f);
+        }
+        
+        List<Long> blobIds = new ArrayList<>();
+        List<Long> legacyIds = new ArrayList<>();
+        for (long id : new LinkedHashSet<>(fileIds)) {
+            FileDao.FileInfo f = found.get(id);
+            if (f == null) {
+                result.errors.put(id, "文件不存在");
+            } else if (f.userId != userId) {
+                result.errors.put(id, "无权限移动该文件");
+            } else if (f.blobHash != null) {
+                blobIds.add(id);
+            } else {
+                legacyIds.add(id);
+            }
+        }
+        
+        if (!blobIds.isEmpty()) {
+            Set<Long> moved = new LinkedHashSet<>(FileDao.moveFiles(blobIds, userId, newFolderPath, roomKey));
+            for (long id : moved) {
+                FileTreeCache.onFileMoved(roomKey, id, newFolderPath);
+            }
+            result.succeeded.addAll(moved);
+            for (long id : blobIds) {
+                if (!moved.contains(id)) {
+                    result.errors.put(id, "文件不存在");
+                }
+            }
+        }
+        
+        for (long id : legacyIds) {
             try {
-                Files.delete(dirPath);
-            } catch (Exception e) {
-                // 目录不为空则忽略
+                if (moveFile(id, userId, newFolderPath, roomKey)) {
+                    result.succeeded.add(id);
+                } else {
+                    result.errors.put(id, "文件不存在");
+                }
+            } catch (IOException | SQLException e) {
+                result.errors.put(id, e.getMessage());
             }
         }
+        return result;
+    }
+    
+    /**
+     * 按 ID 获取要打包的文件
+     */
+    public static List<FileDao.FileInfo> getFilesForZip(List<Long> fileIds, String roomKey) 
+            throws SQLException {
+        return FileDao.getFilesByIds(fileIds, roomKey);
+    }
+    
+    /**
+     * 获取文件夹（含子孙文件夹）下要打包的文件
+     */
+    public static List<FileDao.FileInfo> getFolderFilesForZip(String folderPath, String roomKey) 
+            throws SQLException {
+        return FileTreeCache.subtreeFiles(roomKey, folderPath);
+    }
+    
+    /**
+     * 把文件流式写成 ZIP，不在磁盘上生成临时文件
+     * @param baseFolder 非空时按相对该文件夹的路径组织目录结构，否则所有文件放在根下
+     * @return 写入的文件数（物理文件缺失的跳过）
+     */
+    public static int writeZip(List<FileDao.FileInfo> files, String baseFolder, OutputStream out) 
+            throws IOException {
+        String prefix = "";
+        if (baseFolder != null && !baseFolder.equals("/")) {
+            prefix = baseFolder.endsWith("/") ? baseFolder : baseFolder + "/";
+        }
+        String rootName = prefix.isEmpty() ? "" : sanitizeEntryPath(prefix);
+        if (!rootName.isEmpty()) {
+            rootName = rootName.substring(rootName.lastIndexOf('/') + 1) + "/";
+        }
         
-        return true;
+        Set<String> usedNames = new HashSet<>();
+        int written = 0;
+        ZipOutputStream zip = new ZipOutputStream(out, java.nio.charset.StandardCharsets.UTF_8);
+        byte[] buffer = new byte[64 * 1024];
+        for (FileDao.FileInfo file : files) {
+            Path path = Paths.get(file.filePath);
+            if (!Files.isRegularFile(path)) {
+                continue;
+            }
+            
+            String dir = "";
+            if (baseFolder != null) {
+                String folder = file.folderPath == null ? "/" : file.folderPath;
+                if (!prefix.isEmpty() && folder.startsWith(prefix)) {
+                    dir = folder.substring(prefix.length());
+                } else if (prefix.isEmpty()) {
+                    dir = folder;
+                }
+                dir = sanitizeEntryPath(dir);
+                if (!dir.isEmpty()) {
+                    dir += "/";
+                }
+            }
+            String fileName = sanitizeEntryPath(file.fileName == null ? "" : file.fileName);
+            String name = uniqueEntryName(rootName + dir, fileName.isEmpty() ? "unnamed" : fileName, usedNames);
+            
+            ZipEntry entry = new ZipEntry(name);
+            if (file.createdAt != null) {
+                entry.setTime(file.createdAt.getTime());
+            }
+            zip.setLevel(STORED_EXTENSIONS.contains(getFileExtension(file.fileName)) 
+                ? Deflater.NO_COMPRESSION : Deflater.BEST_SPEED);
+            zip.putNextEntry(entry);
+            try (InputStream in = Files.newInputStream(path)) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    zip.write(buffer, 0, n);
+                }
+            }
+            zip.closeEntry();
+            written++;
+        }
+        zip.finish();
+        zip.flush();
+        return written;
+    }
+    
+    /**
+     * 去掉路径中的 ..、反斜杠和首尾斜杠，防止解压时越出目标目录
+     */
+    private static String sanitizeEntryPath(String path) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : path.replace('\\', '/').split("/")) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+    
+    private static String uniqueEntryName(String dir, String fileName, Set<String> usedNames) {
+        String name = dir + fileName;
+        if (usedNames.add(name)) {
+            return name;
+        }
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String ext = dot > 0 ? fileName.substring(dot) : "";
+        for (int i = 1; ; i++) {
+            name = dir + base + " (" + i + ")" + ext;
+            if (usedNames.add(name)) {
+                return name;
+            }
+        }
+    }
+    
+    /**
+     * 清理已删除记录对应的物理文件和目录（后台执行）
+     * folderPath 为 null 时只清理文件，不删除目录
+     */
+    private static void deletePhysical(String roomKey, String folderPath, FileDao.BulkDeletion deletion) {
+        // 引用归零的 blob：加锁复查，期间可能有相同内容重新上传
+        for (String hash : deletion.orphanBlobs) {
+            synchronized (BlobStore.lockFor(hash)) {
+                try {
+                    if (!FileDao.blobExists(hash, roomKey)) {
+                        BlobStore.deleteBlob(roomKey, hash);
+                    }
+                } catch (Exception e) {
+                    Log.error("Files", "Blob cleanup failed " + hash + ": " + e.getMessage());
+                }
+            }
+        }
+        // 旧文件直接按路径删除
+        for (FileDao.FileInfo file : deletion.files) {
+            if (file.blobHash == null) {
+                try {
+                    Files.deleteIfExists(Paths.get(file.filePath));
+                } catch (IOException e) {
+                    Log.error("Files", "Delete failed " + file.filePath + ": " + e.getMessage());
+                }
+            }
+        }
+        // 各用户分区下对应的目录
+        if (folderPath == null) {
+            return;
+        }
+        Path roomDir = Paths.get(BASE_STORAGE_PATH, "room_" + roomKey);
+        String safeFolderPath = folderPath.replaceAll("^\\/+", "").replaceAll("\\.\\.", "");
+        if (safeFolderPath.isEmpty() || !Files.isDirectory(roomDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> userDirs = Files.newDirectoryStream(roomDir, "user_*")) {
+            for (Path userDir : userDirs) {
+                Path dir = userDir.resolve(safeFolderPath).normalize();
+                if (dir.startsWith(userDir) && !dir.equals(userDir) && Files.isDirectory(dir)) {
+                    deleteTree(dir);
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Files", "Directory cleanup failed " + folderPath + ": " + e.getMessage());
+        }
+    }
+    
+    private static void deleteTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                Files.deleteIfExists(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
     }
     
     /**
@@ -380,7 +759,11 @@ public class FileManager {
      */
     public static boolean renameFile(long fileId, long userId, String newName, String roomKey) 
             throws SQLException {
-        return FileDao.renameFile(fileId, userId, newName, roomKey);
+        boolean renamed = FileDao.renameFile(fileId, userId, newName, roomKey);
+        if (renamed) {
+            FileTreeCache.onFileRenamed(roomKey, fileId, newName);
+        }
+        return renamed;
     }
     
     /**
@@ -395,6 +778,11 @@ public class FileManager {
             return false;
         }
         
+        // 内容寻址文件不随文件夹移动，只更新数据库
+        if (fileInfo.blobHash != null) {
+            return moveFileRecord(fileId, userId, newFolderPath, roomKey);
+        }
+        
         // 确保目标文件夹存在
         if (newFolderPath != null && !newFolderPath.equals("/")) {
             ensureUserSubDirectory(userId, roomKey, newFolderPath);
@@ -411,7 +799,16 @@ public class FileManager {
         }
         
         // 更新数据库
-        return FileDao.moveFile(fileId, userId, newFolderPath, roomKey);
+        return moveFileRecord(fileId, userId, newFolderPath, roomKey);
+    }
+    
+    private static boolean moveFileRecord(long fileId, long userId, String newFolderPath, String roomKey) 
+            throws SQLException {
+        boolean moved = FileDao.moveFile(fileId, userId, newFolderPath, roomKey);
+        if (moved) {
+            FileTreeCache.onFileMoved(roomKey, fileId, newFolderPath);
+        }
+        return moved;
     }
     
     /**
@@ -419,6 +816,6 @@ public class FileManager {
      */
     public static boolean isFolderEmpty(long userId, String folderPath, String roomKey) 
             throws SQLException {
-        return FileDao.isFolderEmpty(userId, folderPath, roomKey);
+        return FileTreeCache.isFolderEmpty(roomKey, folderPath);
     }
 }
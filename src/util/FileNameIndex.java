@@ -0,0 +1,361 @@
+package util;
+
+import db.FileDao;
+
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * 文件名倒排索引（二元组）
+ * 文件名规范化（NFKC + 小写）后按相邻两个字符切分建索引，中文文件名无需分词；
+ * 另以"开头标记 + 首字符"作为一个二元组，用于前缀匹配。
+ * 查询时从新到旧同步遍历关键字各二元组的倒排表（惰性求交集），对交集中的文件名校验子串，
+ * 凑够结果数即停止，常见关键字不需要遍历整张表。精确结果不足时按二元组重合度做模糊匹配，容忍少量错字。
+ * 非线程安全，由 FileTreeCache 的房间锁保护。
+ */
+class FileNameIndex {
+
+    // 模糊匹配要求的最低二元组重合比例
+    private static final double FUZZY_MIN_OVERLAP = 0.6;
+    // 模糊匹配最多校验的候选数，超出后放弃剩余候选
+    private static final int FUZZY_MAX_CANDIDATES = 5000;
+    // 名称开头标记
+    private static final int START = -1;
+
+    private FileDao.FileInfo[] docs = new FileDao.FileInfo[1024];
+    private String[] names = new String[1024];
+    private int docCount;
+    private int deadCount;
+    private final Map<Long, Integer> docByFileId = new HashMap<>();
+    private final Map<Long, Postings> postings = new HashMap<>();
+
+    /**
+     * 递增的文档号列表，已删除的文档在查询时跳过，压缩时清理
+     */
+    private static class Postings {
+        int[] ids = new int[2];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    /**
+     * 单条候选的校验与打分，返回 0 表示不命中
+     */
+    private interface Scorer {
+        int score(String name);
+    }
+
+    void add(FileDao.FileInfo file) {
+        remove(file.id);
+        if (docCount == docs.length) {
+            docs = Arrays.copyOf(docs, docCount * 2);
+            names = Arrays.copyOf(names, docCount * 2);
+        }
+        int doc = docCount++;
+        String name = normalize(file.fileName);
+        docs[doc] = file;
+        names[doc] = name;
+        docByFileId.put(file.id, doc);
+
+        for (long gram : grams(name, true)) {
+            postings.computeIfAbsent(gram, k -> new Postings()).add(doc);
+        }
+    }
+
+    void remove(long fileId) {
+        Integer doc = docByFileId.remove(fileId);
+        if (doc == null) {
+            return;
+        }
+        docs[doc] = null;
+        names[doc] = null;
+        deadCount++;
+        if (deadCount > 1024 && deadCount > docCount - deadCount) {
+            compact();
+        }
+    }
+
+    int size() {
+        return docCount - deadCount;
+    }
+
+    /**
+     * 搜索文件名，空格分隔的多个关键字须全部命中
+     * 排序：完全相同 > 前缀 > 词首 > 其他子串 > 模糊；同分时名称短、文件新的在前
+     */
+    List<FileDao.FileInfo> search(String keyword, int limit) {
+        List<String> terms = new ArrayList<>();
+        for (String t : normalize(keyword).split("\\s+")) {
+            if (!t.isEmpty()) {
+                terms.add(t);
+            }
+        }
+        if (terms.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        Map<Integer, Integer> hits = new HashMap<>();
+        Scorer exact = name -> {
+            int total = 0;
+            for (String term : terms) {
+                int s = matchScore(name, term);
+                if (s == 0) {
+                    return 0;
+                }
+                total += s;
+            }
+            return total;
+        };
+
+        // 1. 以第一个关键字开头的文件名（前缀表通常比子串表短得多）
+        String first = terms.get(0);
+        List<Postings> prefixed = lists(grams(first, true));
+        if (prefixed != null) {
+            walk(prefixed, name -> name.startsWith(first) ? exact.score(name) : 0, hits, limit, Integer.MAX_VALUE);
+        }
+
+        // 2. 包含全部关键字的文件名
+        if (hits.size() < limit) {
+            Set<Long> grams = new HashSet<>();
+            for (String term : terms) {
+                grams.addAll(grams(term, false));
+            }
+            if (grams.isEmpty()) {
+                // 只有单字符关键字，没有可用的二元组
+                scanAll(exact, hits, limit);
+            } else {
+                List<Postings> lists = lists(grams);
+                if (lists != null) {
+                    walk(lists, exact, hits, limit, Integer.MAX_VALUE);
+                }
+            }
+        }
+
+        // 3. 模糊匹配
+        if (hits.size() < limit) {
+            fuzzy(terms, hits, limit);
+        }
+
+        List<Integer> ranked = new ArrayList<>(hits.keySet());
+        ranked.sort((a, b) -> {
+            int c = Integer.compare(hits.get(b), hits.get(a));
+            if (c != 0) {
+                return c;
+            }
+            c = Integer.compare(names[a].length(), names[b].length());
+            if (c != 0) {
+                return c;
+            }
+            return Long.compare(docs[b].id, docs[a].id);
+        });
+        List<FileDao.FileInfo> result = new ArrayList<>(ranked.size());
+        for (int doc : ranked) {
+            result.add(docs[doc]);
+        }
+        return result;
+    }
+
+    // ========== 内部 ==========
+
+    /**
+     * 从新到旧遍历最短的倒排表，其余倒排表用游标同步后移，只有所有表都包含的文档才校验打分；
+     * 凑够 limit 条或校验次数用完即停止
+     * @param lists 按长度升序排列
+     * @return 剩余可校验次数
+     */
+    private int walk(List<Postings> lists, Scorer scorer, Map<Integer, Integer> hits, int limit, int budget) {
+        Postings lead = lists.get(0);
+        int[] cursor = new int[lists.size()];
+        for (int k = 1; k < lists.size(); k++) {
+            cursor[k] = lists.get(k).size - 1;
+        }
+        outer:
+        for (int i = lead.size - 1; i >= 0 && hits.size() < limit && budget > 0; i--) {
+            int doc = lead.ids[i];
+            for (int k = 1; k < lists.size(); k++) {
+                int[] ids = lists.get(k).ids;
+                int c = cursor[k];
+                while (c >= 0 && ids[c] > doc) {
+                    c--;
+                }
+                cursor[k] = c;
+                if (c < 0) {
+                    break outer;
+                }
+                if (ids[c] != doc) {
+                    continue outer;
+                }
+            }
+            if (names[doc] == null || hits.containsKey(doc)) {
+                continue;
+            }
+            budget--;
+            int score = scorer.score(names[doc]);
+            if (score > 0) {
+                hits.put(doc, score);
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * 从新到旧扫描全部文件名
+     */
+    private void scanAll(Scorer scorer, Map<Integer, Integer> hits, int limit) {
+        for (int doc = docCount - 1; doc >= 0 && hits.size() < limit; doc--) {
+            if (names[doc] == null || hits.containsKey(doc)) {
+                continue;
+            }
+            int score = scorer.score(names[doc]);
+            if (score > 0) {
+                hits.put(doc, score);
+            }
+        }
+    }
+
+    /**
+     * 二元组对应的倒排表，按长度升序；任一二元组不存在时返回 null
+     */
+    private List<Postings> lists(Collection<Long> grams) {
+        List<Postings> lists = new ArrayList<>();
+        for (long gram : grams) {
+            Postings p = postings.get(gram);
+            if (p == null) {
+                return null;
+            }
+            lists.add(p);
+        }
+        if (lists.isEmpty()) {
+            return null;
+        }
+        lists.sort(Comparator.comparingInt(p -> p.size));
+        return lists;
+    }
+
+    /**
+     * 模糊匹配：只对长度 >= 3 的关键字启用
+     * 与关键字共有至少 required 个二元组的文件名，必然包含其中最少见的 (n - required + 1) 个之一，
+     * 因此只需遍历这几条最短的倒排表，再逐个计算重合度
+     */
+    private void fuzzy(List<String> terms, Map<Integer, Integer> hits, int limit) {
+        Set<Long> queryGrams = new HashSet<>();
+        for (String term : terms) {
+            if (term.codePointCount(0, term.length()) < 3) {
+                return;
+            }
+            queryGrams.addAll(grams(term, false));
+        }
+        int required = (int) Math.ceil(queryGrams.size() * FUZZY_MIN_OVERLAP);
+
+        List<Postings> lists = new ArrayList<>();
+        for (long gram : queryGrams) {
+            Postings p = postings.get(gram);
+            lists.add(p != null ? p : new Postings());
+        }
+        lists.sort(Comparator.comparingInt(p -> p.size));
+        int needed = queryGrams.size() - required + 1;
+
+        long[] sorted = new long[queryGrams.size()];
+        int n = 0;
+        for (long gram : queryGrams) {
+            sorted[n++] = gram;
+        }
+        Arrays.sort(sorted);
+        Scorer overlap = name -> {
+            boolean[] found = new boolean[sorted.length];
+            int shared = 0;
+            for (int i = 0; i < name.length(); ) {
+                int cp = name.codePointAt(i);
+                i += Character.charCount(cp);
+                if (i >= name.length()) {
+                    break;
+                }
+                int idx = Arrays.binarySearch(sorted, gram(cp, name.codePointAt(i)));
+                if (idx >= 0 && !found[idx]) {
+                    found[idx] = true;
+                    shared++;
+                }
+            }
+            // 1~100，排在所有精确结果之后
+            return shared >= required ? Math.max(1, shared * 100 / queryGrams.size()) : 0;
+        };
+        int budget = FUZZY_MAX_CANDIDATES;
+        for (int i = 0; i < needed && i < lists.size() && hits.size() < limit && budget > 0; i++) {
+            budget = walk(Collections.singletonList(lists.get(i)), overlap, hits, limit, budget);
+        }
+    }
+
+    /**
+     * 匹配质量：完全相同 > 前缀 > 词首 > 其他子串，未命中为 0
+     */
+    private static int matchScore(String name, String term) {
+        int idx = name.indexOf(term);
+        if (idx < 0) {
+            return 0;
+        }
+        if (name.length() == term.length()) {
+            return 1000;
+        }
+        if (idx == 0) {
+            return 500;
+        }
+        if (!Character.isLetterOrDigit(name.charAt(idx - 1))) {
+            return 300;
+        }
+        return 200;
+    }
+
+    /**
+     * 切分二元组；withStart 时第一个为"开头标记 + 首字符"
+     */
+    private static Set<Long> grams(String s, boolean withStart) {
+        int[] cps = s.codePoints().toArray();
+        Set<Long> grams = new LinkedHashSet<>();
+        if (withStart && cps.length > 0) {
+            grams.add(gram(START, cps[0]));
+        }
+        for (int i = 0; i + 1 < cps.length; i++) {
+            grams.add(gram(cps[i], cps[i + 1]));
+        }
+        return grams;
+    }
+
+    private static long gram(int first, int second) {
+        return ((long) first << 32) | (second & 0xffffffffL);
+    }
+
+    /**
+     * 删除过多时重建，回收文档号和倒排表空间
+     */
+    private void compact() {
+        FileDao.FileInfo[] live = new FileDao.FileInfo[docCount - deadCount];
+        int n = 0;
+        for (int i = 0; i < docCount; i++) {
+            if (docs[i] != null) {
+                live[n++] = docs[i];
+            }
+        }
+        docs = new FileDao.FileInfo[Math.max(1024, n * 2)];
+        names = new String[docs.length];
+        docCount = 0;
+        deadCount = 0;
+        docByFileId.clear();
+        postings.clear();
+        for (FileDao.FileInfo file : live) {
+            add(file);
+        }
+    }
+
+    static String normalize(String s) {
+        if (s == null) {
+            return "";
+        }
+        return Normalizer.normalize(s, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT).trim();
+    }
+}
@@ -0,0 +1,476 @@
+package util;
+
+import db.Db;
+import db.FileDao;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 房间文件树缓存
+ * 首次访问时一次性加载房间的全部文件夹和文件元数据，之后的目录列表、文件数量和大小统计
+ * 都直接从内存返回。FileManager 的上传/删除/重命名/移动/文件夹操作在写库成功后原地更新缓存。
+ * 每棵树同时维护一份文件名倒排索引（FileNameIndex），文件搜索不再访问数据库。
+ *
+ * 查询返回的是缓存对象的副本，调用方可以随意读写，缓存只由变更通知修改。
+ */
+public class FileTreeCache {
+
+    // 兜底过期时间：防止数据库被外部修改后缓存长期不一致
+    private static final long MAX_AGE_MS =
+        Long.parseLong(Env.get("FILE_TREE_TTL_MIN", "30")) * 60 * 1000;
+    private static final int MAX_LOAD_ATTEMPTS = 3;
+
+    private static final ConcurrentHashMap<String, RoomTree> trees = new ConcurrentHashMap<>();
+    // 每个房间的变更版本号，加载期间发生变更则重新加载；
+    // 版本号对象同时用作“递增版本并取树”与“核对版本并安装树”之间的锁，保证变更不会落在两者之间丢失
+    private static final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    /**
+     * 目录统计
+     */
+    public static class FolderStats {
+        public int fileCount;       // 直接包含的文件数
+        public int folderCount;     // 直接包含的子文件夹数
+        public long totalBytes;     // 直接包含的文件总大小
+        public int treeFileCount;   // 含所有子孙文件夹的文件数
+        public long treeBytes;      // 含所有子孙文件夹的总大小
+    }
+
+    /**
+     * 某个文件夹下的内容
+     */
+    public static class Listing {
+        public final List<FileDao.FolderInfo> folders;
+        public final List<FileDao.FileInfo> files;
+
+        Listing(List<FileDao.FolderInfo> folders, List<FileDao.FileInfo> files) {
+            this.folders = folders;
+            this.files = files;
+        }
+    }
+
+    /**
+     * 单个房间的文件树，所有方法在对象锁内执行
+     */
+    private static class RoomTree {
+        final long loadedAt = System.currentTimeMillis();
+        final Map<Long, FileDao.FolderInfo> foldersById = new HashMap<>();
+        final Map<String, Map<Long, FileDao.FolderInfo>> foldersByParent = new HashMap<>();
+        final Map<Long, FileDao.FileInfo> filesById = new HashMap<>();
+        final Map<String, Map<Long, FileDao.FileInfo>> filesByFolder = new HashMap<>();
+        final Map<String, Long> bytesByFolder = new HashMap<>();
+        final FileNameIndex nameIndex = new FileNameIndex();
+
+        synchronized void addFolder(FileDao.FolderInfo folder) {
+            removeFolder(folder.id);
+            foldersById.put(folder.id, folder);
+            foldersByParent.computeIfAbsent(parentOf(folder), k -> new HashMap<>()).put(folder.id, folder);
+        }
+
+        synchronized FileDao.FolderInfo removeFolder(long folderId) {
+            FileDao.FolderInfo folder = foldersById.remove(folderId);
+            if (folder != null) {
+                Map<Long, FileDao.FolderInfo> siblings = foldersByParent.get(parentOf(folder));
+                if (siblings != null) {
+                    siblings.remove(folderId);
+                    if (siblings.isEmpty()) {
+                        foldersByParent.remove(parentOf(folder));
+                    }
+                }
+            }
+            return folder;
+        }
+
+        synchronized void addFile(FileDao.FileInfo file) {
+            removeFile(file.id);
+            filesById.put(file.id, file);
+            filesByFolder.computeIfAbsent(folderOf(file), k -> new HashMap<>()).put(file.id, file);
+            bytesByFolder.merge(folderOf(file), file.fileSize, Long::sum);
+            nameIndex.add(file);
+        }
+
+        synchronized FileDao.FileInfo removeFile(long fileId) {
+            FileDao.FileInfo file = filesById.remove(fileId);
+            nameIndex.remove(fileId);
+            if (file != null) {
+                String folder = folderOf(file);
+                Map<Long, FileDao.FileInfo> siblings = filesByFolder.get(folder);
+                if (siblings != null) {
+                    siblings.remove(fileId);
+                }
+                if (siblings == null || siblings.isEmpty()) {
+                    filesByFolder.remove(folder);
+                    bytesByFolder.remove(folder);
+                } else {
+                    bytesByFolder.merge(folder, -file.fileSize, Long::sum);
+                }
+            }
+            return file;
+        }
+
+        synchronized Listing list(String path) {
+            List<FileDao.FolderInfo> folders = new ArrayList<>(
+                foldersByParent.getOrDefault(path, Collections.emptyMap()).values());
+            folders.sort(Comparator.comparing(f -> f.folderName, Comparator.nullsFirst(Comparator.naturalOrder())));
+            for (ListIterator<FileDao.FolderInfo> it = folders.listIterator(); it.hasNext(); ) {
+                FileDao.FolderInfo f = copyOf(it.next());
+                f.fileCount = filesByFolder.getOrDefault(f.folderPath, Collections.emptyMap()).size();
+                it.set(f);
+            }
+            List<FileDao.FileInfo> files = copiesOf(filesByFolder.getOrDefault(path, Collections.emptyMap()).values());
+            // 与原 SQL 一致：按创建时间倒序
+            files.sort(Comparator.comparing((FileDao.FileInfo f) -> f.createdAt,
+                Comparator.nullsLast(Comparator.naturalOrder())).reversed()
+                .thenComparing(Comparator.comparingLong((FileDao.FileInfo f) -> f.id).reversed()));
+            return new Listing(folders, files);
+        }
+
+        synchronized FolderStats stats(String path) {
+            FolderStats stats = new FolderStats();
+            stats.fileCount = filesByFolder.getOrDefault(path, Collections.emptyMap()).size();
+            stats.folderCount = foldersByParent.getOrDefault(path, Collections.emptyMap()).size();
+            stats.totalBytes = bytesByFolder.getOrDefault(path, 0L);
+            // 遍历子树累加（按路径层级，不访问数据库）
+            Deque<String> pending = new ArrayDeque<>();
+            Set<String> visited = new HashSet<>();
+            pending.push(path);
+            while (!pending.isEmpty()) {
+                String current = pending.pop();
+                if (!visited.add(current)) {
+                    continue;
+                }
+                stats.treeFileCount += filesByFolder.getOrDefault(current, Collections.emptyMap()).size();
+                stats.treeBytes += bytesByFolder.getOrDefault(current, 0L);
+                for (FileDao.FolderInfo child : foldersByParent.getOrDefault(current, Collections.emptyMap()).values()) {
+                    pending.push(child.folderPath);
+                }
+            }
+            return stats;
+        }
+
+        synchronized List<FileDao.FileInfo> subtreeFiles(String path) {
+            List<FileDao.FileInfo> files = new ArrayList<>();
+            Deque<String> pending = new ArrayDeque<>();
+            Set<String> visited = new HashSet<>();
+            pending.push(path);
+            while (!pending.isEmpty()) {
+                String current = pending.pop();
+                if (!visited.add(current)) {
+                    continue;
+                }
+                files.addAll(copiesOf(filesByFolder.getOrDefault(current, Collections.emptyMap()).values()));
+                for (FileDao.FolderInfo child : foldersByParent.getOrDefault(current, Collections.emptyMap()).values()) {
+                    pending.push(child.folderPath);
+                }
+            }
+            return files;
+        }
+
+        synchronized List<FileDao.FileInfo> search(String keyword, int limit) {
+            return copiesOf(nameIndex.search(keyword, limit));
+        }
+
+        synchronized FileDao.FolderInfo folderByPath(String path) {
+            for (FileDao.FolderInfo f : foldersById.values()) {
+                if (path.equals(f.folderPath)) {
+                    return copyOf(f);
+                }
+            }
+            return null;
+        }
+
+        synchronized boolean isEmpty(String path) {
+            return !foldersByParent.containsKey(path) && !filesByFolder.containsKey(path);
+        }
+
+        private static String parentOf(FileDao.FolderInfo folder) {
+            return folder.parentPath == null ? "/" : folder.parentPath;
+        }
+
+        private static String folderOf(FileDao.FileInfo file) {
+            return file.folderPath == null ? "/" : file.folderPath;
+        }
+
+        private static FileDao.FolderInfo copyOf(FileDao.FolderInfo f) {
+            FileDao.FolderInfo c = new FileDao.FolderInfo();
+            c.id = f.id;
+            c.userId = f.userId;
+            c.folderName = f.folderName;
+            c.folderPath = f.folderPath;
+            c.parentPath = f.parentPath;
+            c.roomKey = f.roomKey;
+            c.createdAt = f.createdAt;
+            c.updatedAt = f.updatedAt;
+            c.fileCount = f.fileCount;
+            return c;
+        }
+
+        private static List<FileDao.FileInfo> copiesOf(Collection<FileDao.FileInfo> files) {
+            List<FileDao.FileInfo> copies = new ArrayList<>(files.size());
+            for (FileDao.FileInfo f : files) {
+                FileDao.FileInfo c = new FileDao.FileInfo();
+                c.id = f.id;
+                c.userId = f.userId;
+                c.fileName = f.fileName;
+                c.filePath = f.filePath;
+                c.fileSize = f.fileSize;
+                c.fileType = f.fileType;
+                c.fileExtension = f.fileExtension;
+                c.storagePath = f.storagePath;
+                c.isPublic = f.isPublic;
+                c.downloadCount = f.downloadCount;
+                c.folderPath = f.folderPath;
+                c.roomKey = f.roomKey;
+                c.blobHash = f.blobHash;
+                c.createdAt = f.createdAt;
+                c.updatedAt = f.updatedAt;
+                copies.add(c);
+            }
+            return copies;
+        }
+    }
+
+    // ========== 查询 ==========
+
+    /**
+     * 获取文件夹下的子文件夹（fileCount 已填充）和文件
+     */
+    public static Listing list(String roomKey, String path) throws SQLException {
+        return tree(roomKey).list(path);
+    }
+
+    /**
+     * 获取文件夹统计
+     */
+    public static FolderStats stats(String roomKey, String path) throws SQLException {
+        return tree(roomKey).stats(path);
+    }
+
+    /**
+     * 获取文件夹及其所有子孙文件夹下的文件
+     */
+    public static List<FileDao.FileInfo> subtreeFiles(String roomKey, String path) throws SQLException {
+        return tree(roomKey).subtreeFiles(path);
+    }
+
+    /**
+     * 按文件名搜索整个房间的文件，结果按匹配质量排序
+     */
+    public static List<FileDao.FileInfo> search(String roomKey, String keyword, int limit) throws SQLException {
+        return tree(roomKey).search(keyword, limit);
+    }
+
+    /**
+     * 根据路径查找文件夹
+     */
+    public static FileDao.FolderInfo getFolderByPath(String roomKey, String path) throws SQLException {
+        return tree(roomKey).folderByPath(path);
+    }
+
+    /**
+     * 文件夹是否为空（没有子文件夹和文件）
+     */
+    public static boolean isFolderEmpty(String roomKey, String path) throws SQLException {
+        return tree(roomKey).isEmpty(path);
+    }
+
+    /**
+     * 丢弃某个房间的缓存，下次访问时重新加载
+     */
+    public static void invalidate(String roomKey) {
+        AtomicLong version = versionOf(roomKey);
+        synchronized (version) {
+            version.incrementAndGet();
+            trees.remove(roomKey);
+        }
+    }
+
+    // ========== 变更通知（写库成功后调用）==========
+
+    public static void onFileAdded(String roomKey, FileDao.FileInfo file) {
+        RoomTree tree = loaded(roomKey);
+        if (tree != null) {
+            if (file.createdAt == null) {
+                file.createdAt = new Timestamp(System.currentTimeMillis());
+            }
+            tree.addFile(file);
+        }
+    }
+
+    public static void onFileRemoved(String roomKey, long fileId) {
+        RoomTree tree = loaded(roomKey);
+        if (tree != null) {
+            tree.removeFile(fileId);
+        }
+    }
+
+    public static void onFileRenamed(String roomKey, long fileId, String newName) {
+        RoomTree tree = loaded(roomKey);
+        if (tree != null) {
+            synchronized (tree) {
+                FileDao.FileInfo file = tree.filesById.get(fileId);
+                if (file != null) {
+                    file.fileName = newName;
+                    tree.nameIndex.add(file);
+                }
+            }
+        }
+    }
+
+    public static void onFileMoved(String roomKey, long fileId, String newFolderPath) {
+        RoomTree tree = loaded(roomKey);
+        if (tree != null) {
+            synchronized (tree) {
+                FileDao.FileInfo file = tree.removeFile(fileId);
+                if (file != null) {
+                    file.folderPath = newFolderPath;
+                    tree.addFile(file);
+                }
+            }
+        }
+    }
+
+    public static void onDownload(String roomKey, long fileId) {
+        RoomTree tree = loaded(roomKey);
+        if (tree != null) {
+            synchronized (tree) {
+                FileDao.FileInfo file = tree.filesById.get(fileId);
+                if (file != null) {
+                    file.downloadCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * 批量删除后一次性移除文件和文件夹
+     */
+    public static void onBulkRemoved(String roomKey, Collection<FileDao.FileInfo> files, Collection<Long> folderIds) {
+        RoomTree tree = loaded(roomKey);
+        if (tree != null) {
+            synchronized (tree) {
+                for (FileDao.FileInfo file : files) {
+                    tree.removeFile(file.id);
+                }
+                for (long folderId : folderIds) {
+                    tree.removeFolder(folderId);
+                }
+            }
+        }
+    }
+
+    public static void onFolderAdded(String roomKey, FileDao.FolderInfo folder) {
+        RoomTree tree = loaded(roomKey);
+        if (tree != null) {
+            tree.addFolder(folder);
+        }
+    }
+
+    public static void onFolderRemoved(String roomKey, long folderId) {
+        RoomTree tree = loaded(roomKey);
+        if (tree != null) {
+            tree.removeFolder(folderId);
+        }
+    }
+
+    /**
+     * 文件夹重命名：与 FileDao.renameFolder 一致，只更新该文件夹自身的名称和路径
+     */
+    public static void onFolderRenamed(String roomKey, long folderId, String newName) {
+        RoomTree tree = loaded(roomKey);
+        if (tree != null) {
+            synchronized (tree) {
+                FileDao.FolderInfo folder = tree.removeFolder(folderId);
+                if (folder != null) {
+                    String parent = folder.parentPath == null || folder.parentPath.equals("/") ? "" : folder.parentPath;
+                    folder.folderName = newName;
+                    folder.folderPath = parent + "/" + newName;
+                    tree.addFolder(folder);
+                }
+            }
+        }
+    }
+
+    // ========== 内部 ==========
+
+    /**
+     * 获取已加载的树；未加载时只记录版本变化，由下次加载读取最新数据。
+     * 与 {@link #install} 在同一把锁内，变更要么落在已安装的树上，要么让正在进行的加载作废重来
+     */
+    private static RoomTree loaded(String roomKey) {
+        AtomicLong version = versionOf(roomKey);
+        synchronized (version) {
+            version.incrementAndGet();
+            return trees.get(roomKey);
+        }
+    }
+
+    private static AtomicLong versionOf(String roomKey) {
+        return versions.computeIfAbsent(roomKey, k -> new AtomicLong());
+    }
+
+    /**
+     * 加载期间版本未变化时才安装新树
+     */
+    private static boolean install(String roomKey, RoomTree tree, AtomicLong version, long loadedVersion) {
+        synchronized (version) {
+            if (version.get() != loadedVersion) {
+                return false;
+            }
+            trees.put(roomKey, tree);
+            return true;
+        }
+    }
+
+    private static RoomTree tree(String roomKey) throws SQLException {
+        RoomTree tree = trees.get(roomKey);
+        if (tree != null && System.currentTimeMillis() - tree.loadedAt < MAX_AGE_MS) {
+            return tree;
+        }
+        synchronized (lockFor(roomKey)) {
+            tree = trees.get(roomKey);
+            if (tree != null && System.currentTimeMillis() - tree.loadedAt < MAX_AGE_MS) {
+                return tree;
+            }
+            AtomicLong version = versionOf(roomKey);
+            for (int attempt = 1; ; attempt++) {
+                long before = version.get();
+                tree = load(roomKey);
+                if (install(roomKey, tree, version, before)) {
+                    return tree;
+                }
+                // 加载期间有写入则数据可能缺失，重新加载；多次失败时本次请求使用该快照，但不缓存
+                if (attempt >= MAX_LOAD_ATTEMPTS) {
+                    Log.warn("FileTree", "Room " + Db.roomLabel(roomKey) + " kept changing during load, serving uncached snapshot");
+                    return tree;
+                }
+            }
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Object> loadLocks = new ConcurrentHashMap<>();
+
+    private static Object lockFor(String roomKey) {
+        return loadLocks.computeIfAbsent(roomKey, k -> new Object());
+    }
+
+    private static RoomTree load(String roomKey) throws SQLException {
+        long start = System.currentTimeMillis();
+        RoomTree tree = new RoomTree();
+        List<FileDao.FolderInfo> folders = FileDao.getAllFolders(roomKey);
+        List<FileDao.FileInfo> files = FileDao.getAllFiles(roomKey);
+        for (FileDao.FolderInfo folder : folders) {
+            tree.addFolder(folder);
+        }
+        for (FileDao.FileInfo file : files) {
+            tree.addFile(file);
+        }
+        Log.info("FileTree", "Loaded room " + Db.roomLabel(roomKey) + ": " + folders.size() + " folders, "
+            + files.size() + " files in " + (System.currentTimeMillis() - start) + "ms");
+        return tree;
+    }
+}
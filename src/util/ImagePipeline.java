@@ -0,0 +1,396 @@
+package util;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 图片变体生成流水线
+ * 上传的图片在有界线程池中解码一次，生成缩略图（聊天列表显示）和预览图（高分屏/大图查看），
+ * 按原图内容哈希缓存在 uploads/variants 下，相同图片只处理一次。只使用 JDK 自带的 javax.imageio。
+ */
+public class ImagePipeline {
+
+    // 缩略图最长边，对应 .chat-image 的 300px 显示尺寸
+    public static final int THUMB_SIZE = 320;
+    // 预览图最长边
+    public static final int PREVIEW_SIZE = 1280;
+    private static final float JPEG_QUALITY = 0.82f;
+    // 超过该像素数的图片不处理（防止解码耗尽内存）
+    private static final long MAX_PIXELS = 100_000_000L;
+    private static final String VARIANT_DIR = "variants";
+
+    static {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    private final Path variantDir;
+    private final String urlPrefix;
+    private final ThreadPoolExecutor executor;
+    // 正在处理的任务，同一图片并发上传时共用一个结果
+    private final ConcurrentHashMap<String, CompletableFuture<Variants>> inflight = new ConcurrentHashMap<>();
+
+    /**
+     * 生成结果，URL 为空表示原图已足够小，直接使用原图
+     */
+    public static class Variants {
+        public final String hash;
+        public final String thumbUrl;
+        public final String previewUrl;
+
+        Variants(String hash, String thumbUrl, String previewUrl) {
+            this.hash = hash;
+            this.thumbUrl = thumbUrl;
+            this.previewUrl = previewUrl;
+        }
+    }
+
+    /**
+     * @param uploadDir 上传目录，如 web/uploads
+     * @param urlPrefix 访问前缀，如 /uploads/
+     */
+    public ImagePipeline(String uploadDir, String urlPrefix) {
+        this(uploadDir, urlPrefix, Integer.parseInt(Env.get("IMAGE_WORKERS",
+            String.valueOf(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2))))));
+    }
+
+    public ImagePipeline(String uploadDir, String urlPrefix, int workers) {
+        this.variantDir = Paths.get(uploadDir, VARIANT_DIR);
+        this.urlPrefix = urlPrefix + VARIANT_DIR + "/";
+        AtomicInteger seq = new AtomicInteger();
+        // 队列有界：积压过多时直接拒绝，调用方退回原图
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Integer.parseInt(Env.get("IMAGE_QUEUE", "256"))),
+            r -> {
+                Thread t = new Thread(r, "image-pipeline-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 异步生成变体，调用线程只负责入队；哈希、解码和缩放都在工作线程中进行
+     * @return 队列已满时返回 null
+     */
+    public CompletableFuture<Variants> submit(byte[] data) {
+        CompletableFuture<Variants> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> run(data, result));
+        } catch (RejectedExecutionException e) {
+            Log.warn("Image", "Pipeline busy, skipping variants");
+            return null;
+        }
+        return result;
+    }
+
+    private void run(byte[] data, CompletableFuture<Variants> result) {
+        String hash = sha256Hex(data);
+        CompletableFuture<Variants> existing = inflight.putIfAbsent(hash, result);
+        if (existing != null) {
+            // 同一图片正在另一个工作线程处理，直接复用其结果
+            existing.whenComplete((v, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(v);
+                }
+            });
+            return;
+        }
+        try {
+            result.complete(process(data, hash));
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        } finally {
+            inflight.remove(hash, result);
+        }
+    }
+
+    /**
+     * 同步生成变体（在工作线程中执行）
+     */
+    Variants process(byte[] data, String hash) throws IOException {
+        Path thumbFile = variantDir.resolve(hash + "_" + THUMB_SIZE + ".jpg");
+        Path previewFile = variantDir.resolve(hash + "_" + PREVIEW_SIZE + ".jpg");
+        Path skipMarker = variantDir.resolve(hash + ".orig");
+
+        // 磁盘缓存命中
+        if (Files.exists(skipMarker)) {
+            return new Variants(hash, null, null);
+        }
+        if (Files.exists(thumbFile)) {
+            return new Variants(hash, urlFor(thumbFile),
+                Files.exists(previewFile) ? urlFor(previewFile) : null);
+        }
+
+        // GIF 可能是动图，缩略后会丢失动画，直接使用原图
+        if (isGif(data)) {
+            Files.createDirectories(variantDir);
+            writeAtomically(skipMarker, new byte[0]);
+            return new Variants(hash, null, null);
+        }
+
+        BufferedImage source = decode(data, PREVIEW_SIZE);
+        if (source == null) {
+            throw new IOException("不支持的图片格式");
+        }
+        int orientation = readExifOrientation(data);
+        Files.createDirectories(variantDir);
+
+        int longest = Math.max(source.getWidth(), source.getHeight());
+        if (longest <= THUMB_SIZE && orientation <= 1) {
+            // 原图已经很小，记录下来避免重复解码
+            writeAtomically(skipMarker, new byte[0]);
+            return new Variants(hash, null, null);
+        }
+
+        // 先缩到预览尺寸，再由预览图缩出缩略图，避免两次从原图缩放
+        BufferedImage preview = orient(scaleDown(source, PREVIEW_SIZE), orientation);
+        String previewUrl = null;
+        if (longest > PREVIEW_SIZE || orientation > 1) {
+            writeJpeg(preview, previewFile);
+            previewUrl = urlFor(previewFile);
+        }
+        BufferedImage thumb = scaleDown(preview, THUMB_SIZE);
+        writeJpeg(thumb, thumbFile);
+        return new Variants(hash, urlFor(thumbFile), previewUrl);
+    }
+
+    /**
+     * 关闭线程池
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 当前排队的任务数
+     */
+    public int queued() {
+        return executor.getQueue().size();
+    }
+
+    private String urlFor(Path file) {
+        return urlPrefix + file.getFileName();
+    }
+
+    /**
+     * 解码图片；原图远大于目标尺寸时利用读取端下采样，只解码需要的像素
+     */
+    private static BufferedImage decode(byte[] data, int targetSize) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > MAX_PIXELS) {
+                    throw new IOException("图片尺寸过大: " + width + "x" + height);
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                int factor = Math.max(width, height) / targetSize;
+                if (factor >= 2) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 按最长边等比缩小，并统一转为不透明 RGB（透明区域填白色）
+     */
+    private static BufferedImage scaleDown(BufferedImage src, int maxSize) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        double scale = Math.min(1.0, (double) maxSize / Math.max(w, h));
+        BufferedImage current = src;
+        // 逐级减半，单步双线性插值在大比例缩小时会产生锯齿
+        while (scale < 0.5) {
+            w = Math.max(1, w / 2);
+            h = Math.max(1, h / 2);
+            current = draw(current, w, h);
+            scale *= 2;
+        }
+        int tw = Math.max(1, (int) Math.round(w * scale));
+        int th = Math.max(1, (int) Math.round(h * scale));
+        if (current == src || tw != current.getWidth() || th != current.getHeight()
+                || current.getType() != BufferedImage.TYPE_INT_RGB) {
+            current = draw(current, tw, th);
+        }
+        return current;
+    }
+
+    private static BufferedImage draw(BufferedImage src, int w, int h) {
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, w, h);
+            g.drawImage(src, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    /**
+     * 按 EXIF 方向旋转/翻转（手机竖拍照片的像素通常是横向存储的）
+     */
+    private static BufferedImage orient(BufferedImage src, int orientation) {
+        if (orientation <= 1 || orientation > 8) {
+            return src;
+        }
+        int w = src.getWidth();
+        int h = src.getHeight();
+        boolean swap = orientation >= 5;
+        AffineTransform t = new AffineTransform();
+        switch (orientation) {
+            case 2: t.translate(w, 0); t.scale(-1, 1); break;
+            case 3: t.translate(w, h); t.rotate(Math.PI); break;
+            case 4: t.translate(0, h); t.scale(1, -1); break;
+            case 5: t.rotate(Math.PI / 2); t.scale(1, -1); break;
+            case 6: t.translate(h, 0); t.rotate(Math.PI / 2); break;
+            case 7: t.scale(-1, 1); t.translate(-h, w); t.rotate(-Math.PI / 2); break;
+            case 8: t.translate(0, w); t.rotate(-Math.PI / 2); break;
+        }
+        BufferedImage out = new BufferedImage(swap ? h : w, swap ? w : h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.drawImage(src, t, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    /**
+     * 从 JPEG 的 APP1 段读取 EXIF Orientation（0x0112），没有时返回 1
+     */
+    static int readExifOrientation(byte[] d) {
+        if (d.length < 4 || (d[0] & 0xff) != 0xFF || (d[1] & 0xff) != 0xD8) {
+            return 1;
+        }
+        int pos = 2;
+        while (pos + 4 <= d.length && (d[pos] & 0xff) == 0xFF) {
+            int marker = d[pos + 1] & 0xff;
+            int len = ((d[pos + 2] & 0xff) << 8) | (d[pos + 3] & 0xff);
+            if (marker == 0xDA || len < 2) {
+                break;
+            }
+            int seg = pos + 4;
+            if (marker == 0xE1 && seg + 14 <= d.length && d[seg] == 'E' && d[seg + 1] == 'x'
+                    && d[seg + 2] == 'i' && d[seg + 3] == 'f') {
+                int tiff = seg + 6;
+                boolean le = d[tiff] == 'I';
+                int ifd = tiff + readInt(d, tiff + 4, le);
+                if (ifd + 2 > d.length || ifd < tiff) {
+                    return 1;
+                }
+                int count = readShort(d, ifd, le);
+                for (int i = 0; i < count; i++) {
+                    int entry = ifd + 2 + i * 12;
+                    if (entry + 12 > d.length) {
+                        break;
+                    }
+                    if (readShort(d, entry, le) == 0x0112) {
+                        return readShort(d, entry + 8, le);
+                    }
+                }
+                return 1;
+            }
+            pos += 2 + len;
+        }
+        return 1;
+    }
+
+    private static boolean isGif(byte[] d) {
+        return d.length >= 4 && d[0] == 'G' && d[1] == 'I' && d[2] == 'F' && d[3] == '8';
+    }
+
+    private static int readShort(byte[] d, int p, boolean le) {
+        return le ? (d[p] & 0xff) | ((d[p + 1] & 0xff) << 8)
+                  : ((d[p] & 0xff) << 8) | (d[p + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] d, int p, boolean le) {
+        return le ? readShort(d, p, true) | (readShort(d, p + 2, true) << 16)
+                  : (readShort(d, p, false) << 16) | readShort(d, p + 2, false);
+    }
+
+    private static void writeJpeg(BufferedImage image, Path target) throws IOException {
+        Path tmp = Files.createTempFile(target.getParent(), ".variant_", ".part");
+        try {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(tmp.toFile())) {
+                writer.setOutput(out);
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+            moveInto(tmp, target);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void writeAtomically(Path target, byte[] data) throws IOException {
+        Path tmp = Files.createTempFile(target.getParent(), ".variant_", ".part");
+        try {
+            Files.write(tmp, data);
+            moveInto(tmp, target);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void moveInto(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // 并发生成了相同内容
+        }
+    }
+
+    private static String sha256Hex(byte[] data) {
+        try {
+            return BlobStore.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
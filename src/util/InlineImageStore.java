@@ -0,0 +1,158 @@
+package util;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * 内联图片转存
+ * 把消息中的 [IMAGE:data:image/png;base64,...] / [STICKER:data:...] 解码一次并按内容哈希
+ * 保存到上传目录，消息改写为 [IMAGE:/uploads/<hash>.png]，避免 base64 反复入库和下发。
+ */
+public class InlineImageStore {
+
+    // 解码后单张图片上限
+    private static final int MAX_IMAGE_BYTES = 5 * 1024 * 1024;
+    private static final String BASE64_MARKER = ";base64,";
+
+    // 只接受位图格式（SVG 可能包含脚本，不落地为同源文件）
+    private static final Map<String, String> EXTENSIONS = Map.of(
+        "image/png", "png",
+        "image/jpeg", "jpg",
+        "image/jpg", "jpg",
+        "image/gif", "gif",
+        "image/webp", "webp"
+    );
+
+    private final Path uploadDir;
+    private final String urlPrefix;
+
+    /**
+     * @param uploadDir 保存目录，如 web/uploads
+     * @param urlPrefix 访问前缀，如 /uploads/
+     */
+    public InlineImageStore(String uploadDir, String urlPrefix) {
+        this.uploadDir = Paths.get(uploadDir);
+        this.urlPrefix = urlPrefix;
+    }
+
+    /**
+     * 判断消息是否为内联 data URI 图片
+     */
+    public static boolean isInline(String message) {
+        return message.startsWith("[IMAGE:data:") || message.startsWith("[STICKER:data:");
+    }
+
+    /**
+     * 如果消息是内联图片，则转存并返回改写后的消息；否则原样返回
+     * 解码失败、格式不支持或内容与声明的类型不符时也原样返回，调用方可用 {@link #isInline} 判断后拒绝
+     */
+    public String externalize(String message) {
+        if (!isInline(message) || !message.endsWith("]")) {
+            return message;
+        }
+        int colon = message.indexOf(':');
+        String tag = message.substring(1, colon);
+        int dataStart = colon + 1 + "data:".length();
+        int marker = message.indexOf(BASE64_MARKER, dataStart);
+        if (marker < 0) {
+            return message;
+        }
+        String mime = message.substring(dataStart, marker).toLowerCase();
+        String ext = EXTENSIONS.get(mime);
+        if (ext == null) {
+            return message;
+        }
+
+        int payloadStart = marker + BASE64_MARKER.length();
+        int payloadEnd = message.length() - 1;
+        // base64 长度约为原始数据的 4/3
+        if ((long) (payloadEnd - payloadStart) * 3 / 4 > MAX_IMAGE_BYTES) {
+            return message;
+        }
+
+        byte[] data;
+        try {
+            data = Base64.getMimeDecoder().decode(message.substring(payloadStart, payloadEnd));
+        } catch (IllegalArgumentException e) {
+            return message;
+        }
+        if (!matchesSignature(ext, data)) {
+            Log.warn("InlineImage", "Rejected " + mime + " payload with mismatched signature");
+            return message;
+        }
+
+        try {
+            String fileName = store(data, ext);
+            return "[" + tag + ":" + urlPrefix + fileName + "]";
+        } catch (IOException e) {
+            Log.error("InlineImage", "Store failed: " + e.getMessage());
+            return message;
+        }
+    }
+
+    /**
+     * 按内容哈希保存，相同图片（如重复发送的表情包）只写一次
+     * @return 文件名
+     */
+    private String store(byte[] data, String ext) throws IOException {
+        String fileName = sha256Hex(data) + "." + ext;
+        Path target = uploadDir.resolve(fileName);
+        if (Files.exists(target)) {
+            return fileName;
+        }
+        Files.createDirectories(uploadDir);
+        Path tmp = Files.createTempFile(uploadDir, ".inline_", ".part");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // 并发写入了相同内容
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return fileName;
+    }
+
+    /**
+     * 按文件头校验内容确实是声明的格式，不信任 data URI 里的 MIME 类型
+     */
+    static boolean matchesSignature(String ext, byte[] data) {
+        switch (ext) {
+            case "png":
+                return startsWith(data, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A);
+            case "jpg":
+                return startsWith(data, 0, 0xFF, 0xD8, 0xFF);
+            case "gif":
+                return startsWith(data, 0, 'G', 'I', 'F', '8', '7', 'a')
+                    || startsWith(data, 0, 'G', 'I', 'F', '8', '9', 'a');
+            case "webp":
+                return startsWith(data, 0, 'R', 'I', 'F', 'F') && startsWith(data, 8, 'W', 'E', 'B', 'P');
+            default:
+                return false;
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int... signature) {
+        if (data.length < offset + signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((data[offset + i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String sha256Hex(byte[] data) {
+        try {
+            return BlobStore.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
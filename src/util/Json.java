@@ -0,0 +1,693 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 轻量 JSON 读写（无第三方依赖）
+ * 读取：对 UTF-8 字节单次扫描的递归下降解析，每个字节只访问一次，字段名不会和字符串值混淆；
+ * 写出：转义结果直接编码进可复用的 UTF-8 字节缓冲，不产生中间字符串，缓冲区按线程复用。
+ */
+public final class Json {
+
+    // 嵌套层数上限，防止恶意请求体把解析栈打满
+    private static final int MAX_DEPTH = 64;
+    // 线程复用的写出缓冲超过该大小时用完即丢弃，避免一次大响应长期占用内存
+    private static final int MAX_RETAINED = 1 << 20;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<Writer> LOCAL = ThreadLocal.withInitial(Writer::new);
+
+    private Json() {}
+
+    /**
+     * 请求体不是合法 JSON
+     */
+    public static class ParseException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        public ParseException(String message, int position) {
+            super(message + " (位置 " + position + ")");
+        }
+    }
+
+    // ========== 读取 ==========
+
+    /**
+     * 解析顶层为对象的 JSON；空内容视为空对象
+     * @throws ParseException 格式错误或顶层不是对象
+     */
+    public static Obj parseObject(byte[] data) {
+        Reader r = new Reader(data);
+        r.skipWhitespace();
+        if (r.pos == data.length) {
+            return Obj.EMPTY;
+        }
+        if (data[r.pos] != '{') {
+            throw new ParseException("顶层必须是对象", r.pos);
+        }
+        Object value = r.readValue(0);
+        r.skipWhitespace();
+        if (r.pos != data.length) {
+            throw new ParseException("对象后有多余内容", r.pos);
+        }
+        return (Obj) value;
+    }
+
+    public static Obj parseObject(String json) {
+        return parseObject(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 解析后的对象。取值方法对缺失字段返回默认值，与旧的逐字段提取行为一致
+     */
+    public static final class Obj {
+        static final Obj EMPTY = new Obj(Collections.emptyMap());
+
+        private final Map<String, Object> fields;
+
+        Obj(Map<String, Object> fields) {
+            this.fields = fields;
+        }
+
+        public boolean has(String key) {
+            return fields.containsKey(key);
+        }
+
+        /**
+         * 原始值：String、Long、Double、Boolean、Obj、List 或 null
+         */
+        public Object get(String key) {
+            return fields.get(key);
+        }
+
+        /**
+         * 字符串值；数字和布尔值返回其文本形式，缺失或 null 返回空字符串
+         */
+        public String getString(String key) {
+            Object v = fields.get(key);
+            if (v == null || v instanceof Obj || v instanceof List) {
+                return "";
+            }
+            return v.toString();
+        }
+
+        /**
+         * 整数值，也接受数字字符串；缺失或不是整数时返回 null
+         */
+        public Long getLong(String key) {
+            Object v = fields.get(key);
+            if (v instanceof Long) {
+                return (Long) v;
+            }
+            if (v instanceof String) {
+                try {
+                    return Long.parseLong(((String) v).trim());
+                } catch (NumberFormatException ignored) {}
+            }
+            return null;
+        }
+
+        /**
+         * true 或字符串 "true" 为真
+         */
+        public boolean getBoolean(String key) {
+            Object v = fields.get(key);
+            return Boolean.TRUE.equals(v) || "true".equals(v);
+        }
+
+        public Obj getObject(String key) {
+            Object v = fields.get(key);
+            return v instanceof Obj ? (Obj) v : null;
+        }
+
+        /**
+         * 整数数组，元素可以是数字或数字字符串；字段缺失返回空列表
+         * @throws NumberFormatException 存在非整数元素
+         */
+        public List<Long> getLongList(String key) {
+            Object v = fields.get(key);
+            if (!(v instanceof List)) {
+                return new ArrayList<>();
+            }
+            List<?> items = (List<?>) v;
+            List<Long> values = new ArrayList<>(items.size());
+            for (Object item : items) {
+                if (item instanceof Long) {
+                    values.add((Long) item);
+                } else if (item instanceof String) {
+                    values.add(Long.parseLong(((String) item).trim()));
+                } else {
+                    throw new NumberFormatException("非整数元素: " + item);
+                }
+            }
+            return values;
+        }
+
+        public Map<String, Object> asMap() {
+            return Collections.unmodifiableMap(fields);
+        }
+
+        @Override
+        public String toString() {
+            return fields.toString();
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] b;
+        private int pos;
+
+        Reader(byte[] b) {
+            this.b = b;
+        }
+
+        Object readValue(int depth) {
+            skipWhitespace();
+            if (pos >= b.length) {
+                throw new ParseException("意外的结尾", pos);
+            }
+            byte c = b[pos];
+            switch (c) {
+                case '{': return readObject(depth + 1);
+                case '[': return readArray(depth + 1);
+                case '"': return readString();
+                case 't': expectLiteral("true"); return Boolean.TRUE;
+                case 'f': expectLiteral("false"); return Boolean.FALSE;
+                case 'n': expectLiteral("null"); return null;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        return readNumber();
+                    }
+                    throw new ParseException("意外的字符 '" + (char) c + "'", pos);
+            }
+        }
+
+        private Obj readObject(int depth) {
+            checkDepth(depth);
+            pos++;
+            Map<String, Object> fields = new LinkedHashMap<>();
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return new Obj(fields);
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw new ParseException("字段名必须是字符串", pos);
+                }
+                String key = readString();
+                skipWhitespace();
+                if (peek() != ':') {
+                    throw new ParseException("缺少冒号", pos);
+                }
+                pos++;
+                Object value = readValue(depth);
+                // 重复字段以第一次出现为准
+                fields.putIfAbsent(key, value);
+                skipWhitespace();
+                byte c = peek();
+                pos++;
+                if (c == '}') {
+                    return new Obj(fields);
+                }
+                if (c != ',') {
+                    throw new ParseException("缺少逗号或右花括号", pos - 1);
+                }
+            }
+        }
+
+        private List<Object> readArray(int depth) {
+            checkDepth(depth);
+            pos++;
+            List<Object> items = new ArrayList<>();
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return items;
+            }
+            while (true) {
+                items.add(readValue(depth));
+                skipWhitespace();
+                byte c = peek();
+                pos++;
+                if (c == ']') {
+                    return items;
+                }
+                if (c != ',') {
+                    throw new ParseException("缺少逗号或右方括号", pos - 1);
+                }
+            }
+        }
+
+        private String readString() {
+            int start = ++pos;
+            // 快速路径：没有转义时直接按 UTF-8 解码原始字节
+            while (pos < b.length) {
+                byte c = b[pos];
+                if (c == '"') {
+                    return new String(b, start, pos++ - start, StandardCharsets.UTF_8);
+                }
+                if (c == '\\') {
+                    break;
+                }
+                if (c >= 0 && c < 0x20) {
+                    throw new ParseException("字符串中有未转义的控制字符", pos);
+                }
+                pos++;
+            }
+            StringBuilder sb = new StringBuilder(pos - start + 16);
+            sb.append(new String(b, start, pos - start, StandardCharsets.UTF_8));
+            while (true) {
+                int runStart = pos;
+                while (pos < b.length && b[pos] != '"' && b[pos] != '\\') {
+                    if (b[pos] >= 0 && b[pos] < 0x20) {
+                        throw new ParseException("字符串中有未转义的控制字符", pos);
+                    }
+                    pos++;
+                }
+                if (pos > runStart) {
+                    sb.append(new String(b, runStart, pos - runStart, StandardCharsets.UTF_8));
+                }
+                if (pos >= b.length) {
+                    throw new ParseException("字符串未结束", pos);
+                }
+                if (b[pos] == '"') {
+                    pos++;
+                    return sb.toString();
+                }
+                pos++;
+                if (pos >= b.length) {
+                    throw new ParseException("字符串未结束", pos);
+                }
+                byte e = b[pos++];
+                switch (e) {
+                    case '"': sb.append('"'); break;
+                    case '\\': sb.append('\\'); break;
+                    case '/': sb.append('/'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    // 代理对的两半分别追加，StringBuilder 中自然拼成一个码点
+                    case 'u': sb.append(readHex4()); break;
+                    default: throw new ParseException("无效的转义字符", pos - 1);
+                }
+            }
+        }
+
+        private char readHex4() {
+            if (pos + 4 > b.length) {
+                throw new ParseException("\\u 转义不完整", pos);
+            }
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                int d = Character.digit(b[pos++], 16);
+                if (d < 0) {
+                    throw new ParseException("\\u 转义中有非十六进制字符", pos - 1);
+                }
+                v = (v << 4) | d;
+            }
+            return (char) v;
+        }
+
+        private Object readNumber() {
+            int start = pos;
+            boolean negative = b[pos] == '-';
+            if (negative) {
+                pos++;
+            }
+            int digitsStart = pos;
+            long value = 0;
+            while (pos < b.length && b[pos] >= '0' && b[pos] <= '9') {
+                value = value * 10 + (b[pos] - '0');
+                pos++;
+            }
+            int digits = pos - digitsStart;
+            if (digits == 0) {
+                throw new ParseException("无效的数字", start);
+            }
+            boolean fraction = false;
+            if (pos < b.length && b[pos] == '.') {
+                fraction = true;
+                pos++;
+                while (pos < b.length && b[pos] >= '0' && b[pos] <= '9') pos++;
+            }
+            if (pos < b.length && (b[pos] == 'e' || b[pos] == 'E')) {
+                fraction = true;
+                pos++;
+                if (pos < b.length && (b[pos] == '+' || b[pos] == '-')) pos++;
+                while (pos < b.length && b[pos] >= '0' && b[pos] <= '9') pos++;
+            }
+            // 18 位以内的整数不会溢出，直接用累加结果
+            if (!fraction && digits <= 18) {
+                return negative ? -value : value;
+            }
+            String text = new String(b, start, pos - start, StandardCharsets.US_ASCII);
+            if (!fraction) {
+                try {
+                    return Long.parseLong(text);
+                } catch (NumberFormatException ignored) {}
+            }
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                throw new ParseException("无效的数字", start);
+            }
+        }
+
+        private void expectLiteral(String literal) {
+            int n = literal.length();
+            if (pos + n > b.length) {
+                throw new ParseException("无效的字面量", pos);
+            }
+            for (int i = 0; i < n; i++) {
+                if (b[pos + i] != literal.charAt(i)) {
+                    throw new ParseException("无效的字面量", pos);
+                }
+            }
+            pos += n;
+        }
+
+        private void checkDepth(int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new ParseException("嵌套层数过多", pos);
+            }
+        }
+
+        private byte peek() {
+            if (pos >= b.length) {
+                throw new ParseException("意外的结尾", pos);
+            }
+            return b[pos];
+        }
+
+        void skipWhitespace() {
+            while (pos < b.length) {
+                byte c = b[pos];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    return;
+                }
+                pos++;
+            }
+        }
+    }
+
+    // ========== 写出 ==========
+
+    /**
+     * 当前线程复用的写出器（已清空）。返回的对象只能在本次请求内使用，不要跨线程保存
+     */
+    public static Writer local() {
+        Writer w = LOCAL.get();
+        if (w.buf.length > MAX_RETAINED) {
+            w = new Writer();
+            LOCAL.set(w);
+        }
+        return w.reset();
+    }
+
+    /**
+     * 转义为 JSON 字符串内容（不含两端引号），用于拼接少量固定格式的文本
+     */
+    public static String escape(String s) {
+        if (s == null) {
+            return "";
+        }
+        Writer w = new Writer(s.length() + 16);
+        w.writeEscaped(s);
+        return w.toString();
+    }
+
+    /**
+     * 流式 JSON 写出器，自动处理逗号。
+     * 字符串逐字符转义并直接编码为 UTF-8 写入缓冲：控制字符、引号、反斜杠以及 U+2028/U+2029 均被转义。
+     */
+    public static final class Writer {
+        private byte[] buf;
+        private int len;
+        // 每层是否已写过元素（按位记录，第 0 位为顶层）
+        private long hasElement;
+        private int depth;
+        private boolean afterName;
+
+        public Writer() {
+            this(256);
+        }
+
+        public Writer(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        public Writer reset() {
+            len = 0;
+            hasElement = 0;
+            depth = 0;
+            afterName = false;
+            return this;
+        }
+
+        public Writer beginObject() {
+            beforeValue();
+            push();
+            writeByte('{');
+            return this;
+        }
+
+        public Writer endObject() {
+            depth--;
+            writeByte('}');
+            return this;
+        }
+
+        public Writer beginArray() {
+            beforeValue();
+            push();
+            writeByte('[');
+            return this;
+        }
+
+        public Writer endArray() {
+            depth--;
+            writeByte(']');
+            return this;
+        }
+
+        public Writer name(String name) {
+            beforeValue();
+            writeByte('"');
+            writeEscaped(name);
+            writeByte('"');
+            writeByte(':');
+            afterName = true;
+            return this;
+        }
+
+        public Writer value(String value) {
+            if (value == null) {
+                return nullValue();
+            }
+            beforeValue();
+            writeByte('"');
+            writeEscaped(value);
+            writeByte('"');
+            return this;
+        }
+
+        public Writer value(long value) {
+            beforeValue();
+            writeLong(value);
+            return this;
+        }
+
+        public Writer value(double value) {
+            beforeValue();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                writeAscii("null");
+            } else if (value == (long) value && Math.abs(value) < 1e15) {
+                writeLong((long) value);
+            } else {
+                writeAscii(Double.toString(value));
+            }
+            return this;
+        }
+
+        public Writer value(boolean value) {
+            beforeValue();
+            writeAscii(value ? "true" : "false");
+            return this;
+        }
+
+        public Writer nullValue() {
+            beforeValue();
+            writeAscii("null");
+            return this;
+        }
+
+        public Writer field(String name, String value) {
+            return name(name).value(value);
+        }
+
+        public Writer field(String name, long value) {
+            return name(name).value(value);
+        }
+
+        public Writer field(String name, double value) {
+            return name(name).value(value);
+        }
+
+        public Writer field(String name, boolean value) {
+            return name(name).value(value);
+        }
+
+        public int size() {
+            return len;
+        }
+
+        public byte[] toBytes() {
+            return Arrays.copyOf(buf, len);
+        }
+
+        public void writeTo(OutputStream os) throws IOException {
+            os.write(buf, 0, len);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buf, 0, len, StandardCharsets.UTF_8);
+        }
+
+        // ========== 内部 ==========
+
+        private void beforeValue() {
+            if (afterName) {
+                afterName = false;
+                return;
+            }
+            long bit = 1L << Math.min(depth, 63);
+            if ((hasElement & bit) != 0) {
+                writeByte(',');
+            }
+            hasElement |= bit;
+        }
+
+        private void push() {
+            depth++;
+            if (depth > 63) {
+                throw new IllegalStateException("嵌套层数过多");
+            }
+            hasElement &= ~(1L << depth);
+        }
+
+        private void writeEscaped(String s) {
+            int n = s.length();
+            ensure(n);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (len + 12 > buf.length) {
+                    grow(len + 12 + (n - i));
+                }
+                if (c < 0x80) {
+                    if (c >= 0x20 && c != '"' && c != '\\') {
+                        buf[len++] = (byte) c;
+                        continue;
+                    }
+                    buf[len++] = '\\';
+                    switch (c) {
+                        case '"': buf[len++] = '"'; break;
+                        case '\\': buf[len++] = '\\'; break;
+                        case '\n': buf[len++] = 'n'; break;
+                        case '\r': buf[len++] = 'r'; break;
+                        case '\t': buf[len++] = 't'; break;
+                        case '\b': buf[len++] = 'b'; break;
+                        case '\f': buf[len++] = 'f'; break;
+                        default: writeUnicodeEscape(c); break;
+                    }
+                } else if (c < 0x800) {
+                    buf[len++] = (byte) (0xC0 | (c >> 6));
+                    buf[len++] = (byte) (0x80 | (c & 0x3F));
+                } else if (c == 0x2028 || c == 0x2029) {
+                    // 合法 JSON 但在部分 JS 环境中视为换行
+                    buf[len++] = '\\';
+                    writeUnicodeEscape(c);
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[len++] = (byte) (0xF0 | (cp >> 18));
+                    buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[len++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // 孤立的代理字符无法编码为 UTF-8，与 String.getBytes 一致替换为 '?'
+                    buf[len++] = '?';
+                } else {
+                    buf[len++] = (byte) (0xE0 | (c >> 12));
+                    buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[len++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private void writeUnicodeEscape(char c) {
+            buf[len++] = 'u';
+            buf[len++] = HEX[(c >> 12) & 0xF];
+            buf[len++] = HEX[(c >> 8) & 0xF];
+            buf[len++] = HEX[(c >> 4) & 0xF];
+            buf[len++] = HEX[c & 0xF];
+        }
+
+        private void writeLong(long v) {
+            if (v == Long.MIN_VALUE) {
+                writeAscii("-9223372036854775808");
+                return;
+            }
+            ensure(20);
+            if (v < 0) {
+                buf[len++] = '-';
+                v = -v;
+            }
+            int start = len;
+            do {
+                buf[len++] = (byte) ('0' + (v % 10));
+                v /= 10;
+            } while (v != 0);
+            // 反转刚写入的数字
+            for (int i = start, j = len - 1; i < j; i++, j--) {
+                byte t = buf[i];
+                buf[i] = buf[j];
+                buf[j] = t;
+            }
+        }
+
+        private void writeAscii(String s) {
+            int n = s.length();
+            ensure(n);
+            for (int i = 0; i < n; i++) {
+                buf[len++] = (byte) s.charAt(i);
+            }
+        }
+
+        private void writeByte(char c) {
+            ensure(1);
+            buf[len++] = (byte) c;
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length) {
+                grow(len + extra);
+            }
+        }
+
+        private void grow(int min) {
+            buf = Arrays.copyOf(buf, Math.max(min, buf.length * 2));
+        }
+    }
+}
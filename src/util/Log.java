@@ -0,0 +1,316 @@
+package util;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步日志
+ * 调用线程只做级别判断、截断和一次 CAS 入队（无锁环形缓冲区，多生产者单消费者），
+ * 由一个后台线程批量写出到 stdout（WARN/ERROR 写到 stderr），不再在 System.out 的锁上互相等待。
+ * 缓冲区满时丢弃并计数；同一标签连续重复的消息在 10 秒内只输出一次，之后补一行重复次数。
+ */
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final Level MIN_LEVEL = parseLevel(Env.get("LOG_LEVEL", "INFO"));
+    // 单条消息最长字符数（不含异常堆栈），超出部分截断
+    private static final int MAX_LENGTH = Integer.parseInt(Env.get("LOG_MAX_LENGTH", "1000"));
+    private static final int CAPACITY = 8192;
+    private static final long REPEAT_WINDOW_MS = 10_000;
+    private static final long IDLE_PARK_NANOS = 5_000_000L;
+
+    private static final DateTimeFormatter TS = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+        .withZone(ZoneId.systemDefault());
+
+    private static final AtomicReferenceArray<Record> RING = new AtomicReferenceArray<>(CAPACITY);
+    // 下一个写入位置（生产者 CAS 占位）和下一个读取位置（只有写出线程修改）
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static final AtomicLong HEAD = new AtomicLong();
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final Metrics.Counter DROPPED_TOTAL = Metrics.counter("log_dropped_total", "日志缓冲区满时丢弃的条数");
+
+    private static final Thread WRITER;
+    private static volatile boolean closing;
+
+    static {
+        WRITER = new Thread(Log::drainLoop, "log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            closing = true;
+            LockSupport.unpark(WRITER);
+            try {
+                WRITER.join(2000);
+            } catch (InterruptedException ignored) {
+            }
+        }, "log-shutdown"));
+    }
+
+    private Log() {}
+
+    private static final class Record {
+        final long time;
+        final Level level;
+        final String tag;
+        final String message;
+        final String stackTrace;
+
+        Record(Level level, String tag, String message, String stackTrace) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+            this.stackTrace = stackTrace;
+        }
+    }
+
+    // ========== 写日志 ==========
+
+    /**
+     * 是否输出该级别；拼接代价较高的调试日志先判断再构造
+     */
+    public static boolean enabled(Level level) {
+        return level.compareTo(MIN_LEVEL) >= 0;
+    }
+
+    public static void debug(String tag, String message) {
+        log(Level.DEBUG, tag, message, null);
+    }
+
+    public static void info(String tag, String message) {
+        log(Level.INFO, tag, message, null);
+    }
+
+    public static void warn(String tag, String message) {
+        log(Level.WARN, tag, message, null);
+    }
+
+    public static void error(String tag, String message) {
+        log(Level.ERROR, tag, message, null);
+    }
+
+    /**
+     * 带异常堆栈的错误日志
+     */
+    public static void error(String tag, String message, Throwable t) {
+        log(Level.ERROR, tag, message, t);
+    }
+
+    /**
+     * 原样输出多行文本（启动横幅等），不加时间和标签
+     */
+    public static void banner(String text) {
+        enqueue(new Record(Level.INFO, null, text, null));
+    }
+
+    public static void log(Level level, String tag, String message, Throwable t) {
+        if (!enabled(level)) {
+            return;
+        }
+        String msg = message == null ? "null" : message;
+        if (msg.length() > MAX_LENGTH) {
+            msg = msg.substring(0, MAX_LENGTH) + "…(共 " + msg.length() + " 字符)";
+        }
+        String stack = null;
+        if (t != null) {
+            StringWriter sw = new StringWriter();
+            t.printStackTrace(new PrintWriter(sw));
+            stack = sw.toString();
+        }
+        enqueue(new Record(level, tag, msg, stack));
+    }
+
+    /**
+     * 缓冲区中等待写出的条数
+     */
+    public static int pending() {
+        return (int) Math.max(0, TAIL.get() - HEAD.get());
+    }
+
+    private static void enqueue(Record r) {
+        while (true) {
+            long tail = TAIL.get();
+            if (tail - HEAD.get() >= CAPACITY) {
+                DROPPED.incrementAndGet();
+                DROPPED_TOTAL.inc();
+                return;
+            }
+            if (TAIL.compareAndSet(tail, tail + 1)) {
+                // 占位成功后再发布，写出线程看到 null 时会等待该槽位
+                RING.set((int) (tail & (CAPACITY - 1)), r);
+                return;
+            }
+        }
+    }
+
+    // ========== 写出线程 ==========
+
+    private static final class Repeat {
+        String message;
+        long firstTime;
+        int suppressed;
+    }
+
+    private static void drainLoop() {
+        OutputStream out = new FileOutputStream(FileDescriptor.out);
+        OutputStream err = new FileOutputStream(FileDescriptor.err);
+        Writer writer = new Writer(out, err);
+        Map<String, Repeat> repeats = new HashMap<>();
+        long lastSweep = System.currentTimeMillis();
+        while (true) {
+            long head = HEAD.get();
+            if (head == TAIL.get()) {
+                long dropped = DROPPED.getAndSet(0);
+                if (dropped > 0) {
+                    writer.write(new Record(Level.WARN, "Log", "缓冲区已满，丢弃了 " + dropped + " 条日志", null));
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= 1000) {
+                    sweepRepeats(repeats, writer, now);
+                    lastSweep = now;
+                }
+                writer.flush();
+                if (closing) {
+                    sweepRepeats(repeats, writer, Long.MAX_VALUE);
+                    writer.flush();
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            int slot = (int) (head & (CAPACITY - 1));
+            Record r = RING.get(slot);
+            if (r == null) {
+                // 生产者已占位但还没写入
+                Thread.onSpinWait();
+                continue;
+            }
+            RING.set(slot, null);
+            HEAD.lazySet(head + 1);
+            if (!suppressRepeat(repeats, writer, r)) {
+                writer.write(r);
+            }
+        }
+    }
+
+    /**
+     * 同一标签在窗口内重复上一条消息时只计数
+     */
+    private static boolean suppressRepeat(Map<String, Repeat> repeats, Writer writer, Record r) {
+        if (r.tag == null || r.stackTrace != null) {
+            return false;
+        }
+        Repeat rep = repeats.get(r.tag);
+        if (rep != null && rep.message.equals(r.message) && r.time - rep.firstTime < REPEAT_WINDOW_MS) {
+            rep.suppressed++;
+            return true;
+        }
+        if (rep == null) {
+            rep = new Repeat();
+            repeats.put(r.tag, rep);
+        } else if (rep.suppressed > 0) {
+            writer.write(repeatSummary(r.tag, rep));
+        }
+        rep.message = r.message;
+        rep.firstTime = r.time;
+        rep.suppressed = 0;
+        return false;
+    }
+
+    private static void sweepRepeats(Map<String, Repeat> repeats, Writer writer, long now) {
+        Iterator<Map.Entry<String, Repeat>> it = repeats.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Repeat> e = it.next();
+            Repeat rep = e.getValue();
+            if (now - rep.firstTime < REPEAT_WINDOW_MS) {
+                continue;
+            }
+            if (rep.suppressed > 0) {
+                writer.write(repeatSummary(e.getKey(), rep));
+            }
+            it.remove();
+        }
+    }
+
+    private static Record repeatSummary(String tag, Repeat rep) {
+        return new Record(Level.INFO, tag, "上一条消息又重复了 " + rep.suppressed + " 次", null);
+    }
+
+    /**
+     * 批量写出：按目标流各自缓冲，空闲时统一 flush
+     */
+    private static final class Writer {
+        private final OutputStream out;
+        private final OutputStream err;
+        private final StringBuilder outBuf = new StringBuilder(8192);
+        private final StringBuilder errBuf = new StringBuilder(1024);
+
+        Writer(OutputStream out, OutputStream err) {
+            this.out = out;
+            this.err = err;
+        }
+
+        void write(Record r) {
+            StringBuilder sb = r.level.compareTo(Level.WARN) >= 0 ? errBuf : outBuf;
+            if (r.tag == null) {
+                sb.append(r.message).append('\n');
+            } else {
+                sb.append(TS.format(Instant.ofEpochMilli(r.time))).append(' ');
+                String level = r.level.name();
+                sb.append(level);
+                for (int i = level.length(); i < 6; i++) sb.append(' ');
+                sb.append('[').append(r.tag).append("] ").append(r.message).append('\n');
+                if (r.stackTrace != null) {
+                    sb.append(r.stackTrace);
+                }
+            }
+            if (sb.length() >= 64 * 1024) {
+                flush();
+            }
+        }
+
+        void flush() {
+            flush(outBuf, out);
+            flush(errBuf, err);
+        }
+
+        private static void flush(StringBuilder sb, OutputStream os) {
+            if (sb.length() == 0) {
+                return;
+            }
+            try {
+                os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                os.flush();
+            } catch (IOException ignored) {
+                // 标准输出不可写时没有别的地方可报
+            }
+            sb.setLength(0);
+            if (sb.capacity() > 256 * 1024) {
+                sb.trimToSize();
+            }
+        }
+    }
+
+    private static Level parseLevel(String s) {
+        try {
+            return Level.valueOf(s.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
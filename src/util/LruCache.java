@@ -0,0 +1,83 @@
+package util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 有容量上限和过期时间的 LRU 缓存
+ * 基于访问顺序的 LinkedHashMap：命中时移到队尾，超出容量时淘汰队首（最久未访问），均为 O(1)；
+ * 过期条目在读取时惰性删除，不做全表扫描。所有操作在对象锁内完成，临界区只有几次指针操作。
+ */
+public class LruCache<K, V> {
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlMs;
+    private final LinkedHashMap<K, Entry<V>> map;
+
+    /**
+     * @param maxSize 最大条目数
+     * @param ttlMs   默认存活时间（毫秒）
+     */
+    public LruCache(int maxSize, long ttlMs) {
+        this.maxSize = maxSize;
+        this.ttlMs = ttlMs;
+        this.map = new LinkedHashMap<>(Math.min(maxSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > LruCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * 读取，未命中或已过期返回 null
+     */
+    public synchronized V get(K key) {
+        Entry<V> e = map.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (e.expiresAt <= System.currentTimeMillis()) {
+            map.remove(key);
+            return null;
+        }
+        return e.value;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, ttlMs);
+    }
+
+    /**
+     * 写入，使用指定的存活时间（例如凭证剩余有效期短于默认值时）
+     */
+    public synchronized void put(K key, V value, long ttlMs) {
+        if (ttlMs <= 0) {
+            map.remove(key);
+            return;
+        }
+        map.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMs));
+    }
+
+    public synchronized void remove(K key) {
+        map.remove(key);
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+}
@@ -0,0 +1,825 @@
+package util;
+
+import db.Db;
+import db.MessageDao;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 聊天消息全文索引
+ * 每个房间一份倒排索引：新消息先进入内存尾段，攒够一批后写成不可变的段文件，
+ * 段数过多时合并。倒排表按文档序号差值 + 词频以变长整数压缩存储。
+ * 中日韩文字按单字和相邻二字切分，其余按单词切分，检索不访问数据库。
+ * 索引来源：广播时实时写入，以及启动后从 messages 表按 ID 补建缺失部分。
+ */
+public class MessageSearchIndex {
+
+    private static final Path BASE_DIR = Paths.get(Env.get("MESSAGE_INDEX_DIR", "index/messages"));
+    // 尾段达到该条数后写成段文件
+    private static final int FLUSH_DOCS = Integer.parseInt(Env.get("MESSAGE_INDEX_FLUSH_DOCS", "2000"));
+    private static final long FLUSH_INTERVAL_MIN = 5;
+    // 段数超过该值时合并最小的一半
+    private static final int MAX_SEGMENTS = 8;
+    private static final int BACKFILL_BATCH = 1000;
+    private static final int MAX_WORD_LENGTH = 32;
+
+    private static final int MAGIC = 0x4d534958;  // "MSIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 48;
+    private static final int DOC_ENTRY_BYTES = 24;
+
+    // BM25 参数
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final ConcurrentHashMap<String, RoomIndex> rooms = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService BACKGROUND = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "message-index");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        BACKGROUND.scheduleAtFixedRate(MessageSearchIndex::flushAll, FLUSH_INTERVAL_MIN, FLUSH_INTERVAL_MIN, TimeUnit.MINUTES);
+        // 退出前把尾段写盘，未写入的部分下次启动时从数据库补建
+        Runtime.getRuntime().addShutdownHook(new Thread(MessageSearchIndex::flushAll, "message-index-flush"));
+    }
+
+    /**
+     * 一条搜索结果
+     */
+    public static class Hit {
+        public final long id;
+        public final long createdAt;
+        public final String nickname;
+        public final String content;
+        public final double score;
+
+        Hit(long id, long createdAt, String nickname, String content, double score) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.nickname = nickname;
+            this.content = content;
+            this.score = score;
+        }
+    }
+
+    /**
+     * 一页搜索结果
+     */
+    public static class Result {
+        public int total;
+        public boolean indexing;   // 仍在从数据库补建，结果可能不完整
+        public final List<Hit> hits = new ArrayList<>();
+    }
+
+    // ========== 对外接口 ==========
+
+    /**
+     * 索引一条新消息（广播路径调用）
+     */
+    public static void add(String roomKey, long id, String nickname, String content, long createdAt) {
+        if (id <= 0) {
+            return;
+        }
+        try {
+            room(roomKey).add(id, nickname, content, createdAt);
+        } catch (IOException e) {
+            Log.error("MsgIndex", "Add failed @" + Db.roomLabel(roomKey) + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * 搜索消息，所有关键词都须命中
+     * @param byTime true 按时间倒序，false 按相关度
+     */
+    public static Result search(String roomKey, String query, boolean byTime, int offset, int limit) throws IOException {
+        return room(roomKey).search(query, byTime, offset, limit);
+    }
+
+    /**
+     * 把所有房间的尾段写成段文件
+     */
+    public static void flushAll() {
+        for (RoomIndex room : rooms.values()) {
+            try {
+                room.flush();
+            } catch (IOException e) {
+                Log.error("MsgIndex", "Flush failed @" + Db.roomLabel(room.roomKey) + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // ========== 分词 ==========
+
+    /**
+     * 索引分词：单词整体一个词项；中日韩文字输出单字和相邻二字，结果含重复（用于词频）
+     */
+    static List<String> tokenize(String text) {
+        return split(text, true);
+    }
+
+    /**
+     * 查询分词：中日韩文字只用二字（单独一个字时用单字），去重
+     */
+    static List<String> tokenizeQuery(String text) {
+        return new ArrayList<>(new LinkedHashSet<>(split(text, false)));
+    }
+
+    private static List<String> split(String text, boolean forIndex) {
+        List<String> tokens = new ArrayList<>();
+        String s = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder word = new StringBuilder();
+        List<Integer> cjk = new ArrayList<>();
+        for (int i = 0; i <= s.length(); ) {
+            int cp = i < s.length() ? s.codePointAt(i) : -1;
+            i += cp < 0 ? 1 : Character.charCount(cp);
+            boolean isCjk = cp >= 0 && isCjk(cp);
+            boolean isWord = cp >= 0 && !isCjk && Character.isLetterOrDigit(cp);
+            if (!isWord && word.length() > 0) {
+                if (word.length() <= MAX_WORD_LENGTH) {
+                    tokens.add(word.toString());
+                }
+                word.setLength(0);
+            }
+            if (!isCjk && !cjk.isEmpty()) {
+                addCjkTokens(cjk, forIndex, tokens);
+                cjk.clear();
+            }
+            if (isWord) {
+                word.appendCodePoint(cp);
+            } else if (isCjk) {
+                cjk.add(cp);
+            }
+        }
+        return tokens;
+    }
+
+    private static void addCjkTokens(List<Integer> run, boolean forIndex, List<String> tokens) {
+        if (forIndex || run.size() == 1) {
+            for (int cp : run) {
+                tokens.add(new String(Character.toChars(cp)));
+            }
+        }
+        for (int i = 0; i + 1 < run.size(); i++) {
+            tokens.add(new StringBuilder().appendCodePoint(run.get(i)).appendCodePoint(run.get(i + 1)).toString());
+        }
+    }
+
+    private static boolean isCjk(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN
+            || script == Character.UnicodeScript.HIRAGANA
+            || script == Character.UnicodeScript.KATAKANA
+            || script == Character.UnicodeScript.HANGUL;
+    }
+
+    /**
+     * 取消息中可检索的文本：图片和表情不索引，文件消息只索引文件名
+     */
+    static String searchableText(String content) {
+        if (content == null || content.startsWith("[IMAGE:") || content.startsWith("[STICKER:")) {
+            return "";
+        }
+        if (content.startsWith("[FILE:") && content.endsWith("]")) {
+            int bar = content.indexOf('|');
+            return content.substring("[FILE:".length(), bar > 0 ? bar : content.length() - 1);
+        }
+        return content.replace("&lt;", "<").replace("&gt;", ">");
+    }
+
+    // ========== 房间索引 ==========
+
+    private static class Doc {
+        long id;
+        long createdAt;
+        int length;
+        String nickname;
+        String content;
+    }
+
+    /**
+     * 倒排表读取回调
+     */
+    private interface PostingVisitor {
+        void visit(int ord, int tf);
+    }
+
+    private static class RoomIndex {
+        final String roomKey;
+        final Path dir;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // 以下字段在写锁内修改
+        volatile List<Segment> segments = new ArrayList<>();
+        final List<Doc> tail = new ArrayList<>();
+        final Map<String, List<int[]>> tailPostings = new HashMap<>();
+        final BitSet indexed = new BitSet();
+        final Object mergeLock = new Object();
+        long totalLength;
+        int nextGeneration;
+        volatile boolean backfilling;
+        boolean flushScheduled;
+
+        RoomIndex(String roomKey) {
+            this.roomKey = roomKey;
+            this.dir = BASE_DIR.resolve("room_" + roomKey);
+        }
+
+        /**
+         * 打开已有段文件；任一段损坏则全部丢弃，从数据库重建
+         */
+        void open() throws IOException {
+            Files.createDirectories(dir);
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "seg_*.msx")) {
+                for (Path p : stream) {
+                    files.add(p);
+                }
+            }
+            Collections.sort(files);
+            List<Segment> loaded = new ArrayList<>();
+            try {
+                for (Path p : files) {
+                    loaded.add(Segment.open(p));
+                }
+            } catch (IOException e) {
+                Log.warn("MsgIndex", "Corrupt index @" + Db.roomLabel(roomKey) + ", rebuilding: " + e.getMessage());
+                for (Segment seg : loaded) {
+                    seg.close();
+                }
+                loaded.clear();
+                for (Path p : files) {
+                    Files.deleteIfExists(p);
+                }
+                files.clear();
+            }
+            for (Segment seg : loaded) {
+                totalLength += seg.totalLength;
+                for (int i = 0; i < seg.docCount; i++) {
+                    markIndexed(seg.ids[i]);
+                }
+            }
+            if (!files.isEmpty()) {
+                String last = files.get(files.size() - 1).getFileName().toString();
+                nextGeneration = Integer.parseInt(last.substring(4, last.length() - 4)) + 1;
+            }
+            segments = loaded;
+        }
+
+        void add(long id, String nickname, String content, long createdAt) {
+            List<String> tokens = tokenize(searchableText(content));
+            boolean flush = false;
+            lock.writeLock().lock();
+            try {
+                if (isIndexed(id)) {
+                    return;
+                }
+                markIndexed(id);
+                if (tokens.isEmpty()) {
+                    return;
+                }
+                Doc doc = new Doc();
+                doc.id = id;
+                doc.createdAt = createdAt;
+                doc.length = tokens.size();
+                doc.nickname = nickname;
+                doc.content = content;
+                int ord = tail.size();
+                tail.add(doc);
+                totalLength += doc.length;
+                for (Map.Entry<String, Integer> e : termFrequencies(tokens).entrySet()) {
+                    tailPostings.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(new int[]{ord, e.getValue()});
+                }
+                if (tail.size() >= FLUSH_DOCS && !flushScheduled) {
+                    flushScheduled = true;
+                    flush = true;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (flush) {
+                BACKGROUND.execute(() -> {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        Log.error("MsgIndex", "Flush failed @" + Db.roomLabel(roomKey) + ": " + e.getMessage());
+                    }
+                });
+            }
+        }
+
+        /**
+         * 尾段写成段文件，然后视段数合并
+         */
+        void flush() throws IOException {
+            lock.writeLock().lock();
+            try {
+                flushScheduled = false;
+                if (tail.isEmpty()) {
+                    return;
+                }
+                List<Doc> docs = new ArrayList<>(tail);
+                docs.sort(Comparator.comparingLong(d -> d.id));
+                Path path = dir.resolve(segmentName(nextGeneration++));
+                writeSegment(path, docs);
+                List<Segment> updated = new ArrayList<>(segments);
+                updated.add(Segment.open(path));
+                segments = updated;
+                tail.clear();
+                tailPostings.clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (segments.size() > MAX_SEGMENTS) {
+                merge();
+            }
+        }
+
+        /**
+         * 合并最小的一半段：重新分词写成一个新段，再原子替换
+         * 段文件不可变，读取和写新段时不持有读写锁
+         */
+        void merge() throws IOException {
+            // 定时写盘和自动写盘可能同时触发合并，串行执行并重新检查段数，避免同一段被合并两次
+            synchronized (mergeLock) {
+                if (segments.size() > MAX_SEGMENTS) {
+                    mergeSmallest();
+                }
+            }
+        }
+
+        private void mergeSmallest() throws IOException {
+            List<Segment> current = segments;
+            List<Segment> bySize = new ArrayList<>(current);
+            bySize.sort(Comparator.comparingInt(seg -> seg.docCount));
+            List<Segment> victims = new ArrayList<>(bySize.subList(0, current.size() / 2 + 1));
+
+            long start = System.currentTimeMillis();
+            List<Doc> docs = new ArrayList<>();
+            for (Segment seg : victims) {
+                docs.addAll(seg.docs());
+            }
+            docs.sort(Comparator.comparingLong(d -> d.id));
+            Path path;
+            lock.writeLock().lock();
+            try {
+                path = dir.resolve(segmentName(nextGeneration++));
+            } finally {
+                lock.writeLock().unlock();
+            }
+            writeSegment(path, docs);
+            Segment merged = Segment.open(path);
+
+            lock.writeLock().lock();
+            try {
+                List<Segment> updated = new ArrayList<>(segments);
+                updated.removeAll(victims);
+                updated.add(merged);
+                segments = updated;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (Segment seg : victims) {
+                seg.close();
+                Files.deleteIfExists(seg.path);
+            }
+            Log.info("MsgIndex", "Merged " + victims.size() + " segments (" + docs.size() + " messages) @"
+                + Db.roomLabel(roomKey) + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        /**
+         * 从数据库补建索引中缺失的消息（ID 大于已有段中最大 ID 的部分）
+         */
+        void backfill() {
+            backfilling = true;
+            long start = System.currentTimeMillis();
+            int count = 0;
+            try {
+                long afterId = 0;
+                for (Segment seg : segments) {
+                    if (seg.docCount > 0) {
+                        afterId = Math.max(afterId, seg.ids[seg.docCount - 1]);
+                    }
+                }
+                while (true) {
+                    List<MessageDao.StoredMessage> batch = MessageDao.scanAfter(afterId, BACKFILL_BATCH, roomKey);
+                    for (MessageDao.StoredMessage m : batch) {
+                        add(m.id, m.nickname, m.content, m.createdAt);
+                        afterId = m.id;
+                    }
+                    count += batch.size();
+                    // 自动写盘排在本任务之后，补建期间需要自己写
+                    if (tailSize() >= FLUSH_DOCS) {
+                        flush();
+                    }
+                    if (batch.size() < BACKFILL_BATCH) {
+                        break;
+                    }
+                }
+                if (count > 0) {
+                    flush();
+                    Log.info("MsgIndex", "Backfilled " + count + " messages @" + Db.roomLabel(roomKey)
+                        + " in " + (System.currentTimeMillis() - start) + "ms");
+                }
+            } catch (Exception e) {
+                Log.error("MsgIndex", "Backfill failed @" + Db.roomLabel(roomKey) + ": " + e.getMessage());
+            } finally {
+                backfilling = false;
+            }
+        }
+
+        Result search(String query, boolean byTime, int offset, int limit) throws IOException {
+            Result result = new Result();
+            result.indexing = backfilling;
+            List<String> terms = tokenizeQuery(query == null ? "" : query);
+            if (terms.isEmpty()) {
+                return result;
+            }
+
+            lock.readLock().lock();
+            try {
+                List<Segment> segs = segments;
+                int tailSource = segs.size();
+                long docCount = tail.size();
+                for (Segment seg : segs) {
+                    docCount += seg.docCount;
+                }
+                if (docCount == 0) {
+                    return result;
+                }
+                double avgLength = (double) totalLength / docCount;
+
+                // 文档频率低的词先处理，候选集尽早缩小
+                Map<String, Integer> df = new HashMap<>();
+                for (String term : terms) {
+                    int n = tailPostings.getOrDefault(term, Collections.emptyList()).size();
+                    for (Segment seg : segs) {
+                        n += seg.docFreq(term);
+                    }
+                    if (n == 0) {
+                        return result;
+                    }
+                    df.put(term, n);
+                }
+                terms.sort(Comparator.comparingInt(df::get));
+
+                // 候选键：高 32 位为来源（段下标，尾段为 segs.size()），低 32 位为段内序号
+                Map<Long, Double> scores = null;
+                for (String term : terms) {
+                    double idf = Math.log(1 + (docCount - df.get(term) + 0.5) / (df.get(term) + 0.5));
+                    Map<Long, Double> previous = scores;
+                    Map<Long, Double> next = new HashMap<>();
+                    for (int s = 0; s <= tailSource; s++) {
+                        final int source = s;
+                        PostingVisitor visitor = (ord, tf) -> {
+                            long key = ((long) source << 32) | ord;
+                            Double base = previous == null ? Double.valueOf(0) : previous.get(key);
+                            if (base != null) {
+                                int length = source == tailSource ? tail.get(ord).length : segs.get(source).lengths[ord];
+                                double norm = tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / avgLength));
+                                next.put(key, base + idf * norm);
+                            }
+                        };
+                        if (source == tailSource) {
+                            for (int[] p : tailPostings.getOrDefault(term, Collections.emptyList())) {
+                                visitor.visit(p[0], p[1]);
+                            }
+                        } else {
+                            segs.get(source).postings(term, visitor);
+                        }
+                    }
+                    scores = next;
+                    if (scores.isEmpty()) {
+                        return result;
+                    }
+                }
+
+                List<long[]> ranked = new ArrayList<>(scores.size());
+                for (long key : scores.keySet()) {
+                    int source = (int) (key >>> 32);
+                    int ord = (int) key;
+                    long id = source == tailSource ? tail.get(ord).id : segs.get(source).ids[ord];
+                    ranked.add(new long[]{key, id});
+                }
+                Map<Long, Double> finalScores = scores;
+                Comparator<long[]> newestFirst = (a, b) -> Long.compare(b[1], a[1]);
+                if (byTime) {
+                    ranked.sort(newestFirst);
+                } else {
+                    ranked.sort(Comparator.<long[]>comparingDouble(e -> finalScores.get(e[0])).reversed()
+                        .thenComparing(newestFirst));
+                }
+
+                result.total = ranked.size();
+                int end = Math.min(ranked.size(), offset + limit);
+                for (int i = Math.max(0, offset); i < end; i++) {
+                    long key = ranked.get(i)[0];
+                    int source = (int) (key >>> 32);
+                    int ord = (int) key;
+                    Doc doc = source == tailSource ? tail.get(ord) : segs.get(source).doc(ord);
+                    result.hits.add(new Hit(doc.id, doc.createdAt, doc.nickname, doc.content, finalScores.get(key)));
+                }
+                return result;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int tailSize() {
+            lock.readLock().lock();
+            try {
+                return tail.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private boolean isIndexed(long id) {
+            return id <= Integer.MAX_VALUE && indexed.get((int) id);
+        }
+
+        private void markIndexed(long id) {
+            if (id <= Integer.MAX_VALUE) {
+                indexed.set((int) id);
+            }
+        }
+    }
+
+    private static RoomIndex room(String roomKey) throws IOException {
+        RoomIndex room = rooms.get(roomKey);
+        if (room != null) {
+            return room;
+        }
+        synchronized (rooms) {
+            room = rooms.get(roomKey);
+            if (room != null) {
+                return room;
+            }
+            room = new RoomIndex(roomKey);
+            room.open();
+            rooms.put(roomKey, room);
+            if (Db.enabled()) {
+                room.backfilling = true;
+                BACKGROUND.execute(room::backfill);
+            }
+            return room;
+        }
+    }
+
+    private static Map<String, Integer> termFrequencies(List<String> tokens) {
+        Map<String, Integer> tf = new HashMap<>();
+        for (String t : tokens) {
+            tf.merge(t, 1, Integer::sum);
+        }
+        return tf;
+    }
+
+    private static String segmentName(int generation) {
+        return String.format("seg_%08d.msx", generation);
+    }
+
+    // ========== 段文件 ==========
+    //
+    // 头部（48 字节）：magic, version, docCount, termCount, storedPos, dictPos, postingsPos, totalLength
+    // 文档表：每条 24 字节 = id(long) createdAt(long) length(int) storedOffset(int)
+    // 存储区：每条 nickname(UTF) + content(int 长度 + UTF-8 字节)
+    // 词典：term(UTF) df(int) offset(int) byteLength(int)
+    // 倒排区：每个词项一串 (序号差值, 词频) 变长整数
+
+    private static void writeSegment(Path path, List<Doc> docs) throws IOException {
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        DataOutputStream storedOut = new DataOutputStream(stored);
+        int[] storedOffsets = new int[docs.size()];
+        TreeMap<String, ByteArrayOutputStream> postings = new TreeMap<>();
+        Map<String, int[]> lastOrdAndDf = new HashMap<>();
+        long totalLength = 0;
+
+        for (int ord = 0; ord < docs.size(); ord++) {
+            Doc doc = docs.get(ord);
+            storedOffsets[ord] = stored.size();
+            storedOut.writeUTF(doc.nickname == null ? "" : doc.nickname);
+            byte[] content = (doc.content == null ? "" : doc.content).getBytes(StandardCharsets.UTF_8);
+            storedOut.writeInt(content.length);
+            storedOut.write(content);
+            totalLength += doc.length;
+
+            for (Map.Entry<String, Integer> e : termFrequencies(tokenize(searchableText(doc.content))).entrySet()) {
+                ByteArrayOutputStream list = postings.computeIfAbsent(e.getKey(), k -> new ByteArrayOutputStream());
+                int[] state = lastOrdAndDf.computeIfAbsent(e.getKey(), k -> new int[]{-1, 0});
+                writeVarInt(list, ord - state[0]);
+                writeVarInt(list, e.getValue());
+                state[0] = ord;
+                state[1]++;
+            }
+        }
+
+        ByteArrayOutputStream dict = new ByteArrayOutputStream();
+        DataOutputStream dictOut = new DataOutputStream(dict);
+        ByteArrayOutputStream postingBytes = new ByteArrayOutputStream();
+        for (Map.Entry<String, ByteArrayOutputStream> e : postings.entrySet()) {
+            dictOut.writeUTF(e.getKey());
+            dictOut.writeInt(lastOrdAndDf.get(e.getKey())[1]);
+            dictOut.writeInt(postingBytes.size());
+            dictOut.writeInt(e.getValue().size());
+            e.getValue().writeTo(postingBytes);
+        }
+
+        long storedPos = HEADER_BYTES + (long) docs.size() * DOC_ENTRY_BYTES;
+        long dictPos = storedPos + stored.size();
+        long postingsPos = dictPos + dict.size();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".part");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(docs.size());
+            out.writeInt(postings.size());
+            out.writeLong(storedPos);
+            out.writeLong(dictPos);
+            out.writeLong(postingsPos);
+            out.writeLong(totalLength);
+            for (int ord = 0; ord < docs.size(); ord++) {
+                Doc doc = docs.get(ord);
+                out.writeLong(doc.id);
+                out.writeLong(doc.createdAt);
+                out.writeInt(doc.length);
+                out.writeInt(storedOffsets[ord]);
+            }
+            stored.writeTo(out);
+            dict.writeTo(out);
+            postingBytes.writeTo(out);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * 只读段：文档表和词典常驻内存，存储区和倒排区按需定位读取
+     */
+    private static class Segment {
+        final Path path;
+        final FileChannel channel;
+        final int docCount;
+        final long[] ids;
+        final long[] times;
+        final int[] lengths;
+        final int[] storedOffsets;
+        final long storedPos;
+        final long dictPos;
+        final long postingsPos;
+        final long totalLength;
+        final Map<String, int[]> dict;   // term -> {df, offset, byteLength}
+
+        private Segment(Path path, FileChannel channel, ByteBuffer header) throws IOException {
+            this.path = path;
+            this.channel = channel;
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("bad segment header: " + path);
+            }
+            docCount = header.getInt();
+            int termCount = header.getInt();
+            storedPos = header.getLong();
+            dictPos = header.getLong();
+            postingsPos = header.getLong();
+            totalLength = header.getLong();
+            if (postingsPos > channel.size() || dictPos > postingsPos || storedPos > dictPos) {
+                throw new IOException("truncated segment: " + path);
+            }
+
+            ByteBuffer table = read(HEADER_BYTES, docCount * DOC_ENTRY_BYTES);
+            ids = new long[docCount];
+            times = new long[docCount];
+            lengths = new int[docCount];
+            storedOffsets = new int[docCount];
+            for (int i = 0; i < docCount; i++) {
+                ids[i] = table.getLong();
+                times[i] = table.getLong();
+                lengths[i] = table.getInt();
+                storedOffsets[i] = table.getInt();
+            }
+
+            ByteBuffer dictBuf = read(dictPos, (int) (postingsPos - dictPos));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(dictBuf.array()));
+            dict = new HashMap<>(termCount * 2);
+            for (int i = 0; i < termCount; i++) {
+                String term = in.readUTF();
+                dict.put(term, new int[]{in.readInt(), in.readInt(), in.readInt()});
+            }
+        }
+
+        static Segment open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                readFully(channel, header, 0);
+                header.flip();
+                return new Segment(path, channel, header);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+        }
+
+        int docFreq(String term) {
+            int[] entry = dict.get(term);
+            return entry == null ? 0 : entry[0];
+        }
+
+        void postings(String term, PostingVisitor visitor) throws IOException {
+            int[] entry = dict.get(term);
+            if (entry == null) {
+                return;
+            }
+            ByteBuffer buf = read(postingsPos + entry[1], entry[2]);
+            int ord = -1;
+            for (int i = 0; i < entry[0]; i++) {
+                ord += readVarInt(buf);
+                visitor.visit(ord, readVarInt(buf));
+            }
+        }
+
+        Doc doc(int ord) throws IOException {
+            long start = storedPos + storedOffsets[ord];
+            long end = ord + 1 < docCount ? storedPos + storedOffsets[ord + 1] : dictPos;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(read(start, (int) (end - start)).array()));
+            return readDoc(in, ord);
+        }
+
+        /**
+         * 一次读出整个存储区（合并时使用）
+         */
+        List<Doc> docs() throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(read(storedPos, (int) (dictPos - storedPos)).array()));
+            List<Doc> docs = new ArrayList<>(docCount);
+            for (int ord = 0; ord < docCount; ord++) {
+                docs.add(readDoc(in, ord));
+            }
+            return docs;
+        }
+
+        private Doc readDoc(DataInputStream in, int ord) throws IOException {
+            Doc doc = new Doc();
+            doc.id = ids[ord];
+            doc.createdAt = times[ord];
+            doc.length = lengths[ord];
+            doc.nickname = in.readUTF();
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            doc.content = new String(content, StandardCharsets.UTF_8);
+            return doc;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            readFully(channel, buf, position);
+            buf.flip();
+            return buf;
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                int n = channel.read(buf, position + buf.position());
+                if (n < 0) {
+                    throw new EOFException("unexpected end of segment");
+                }
+            }
+        }
+
+        private static int readVarInt(ByteBuffer buf) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf.get();
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 进程内指标注册表，按 Prometheus 文本格式（0.0.4）导出，无第三方依赖。
+ * 计数器基于 LongAdder，直方图为 HDR 风格的对数分桶（每个 2 的幂区间再分 8 个子桶，相对误差约 12%），
+ * 记录一次只有几次原子加法，没有锁和对象分配。指标对象应在初始化时取得并保存，热点路径上不要反复查找。
+ */
+public final class Metrics {
+
+    private static final Map<String, Family> FAMILIES = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    // ========== 注册 ==========
+
+    /**
+     * 取得（或创建）计数器
+     * @param labels 标签名和值交替排列，例如 "path", "/send"
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").children.computeIfAbsent(labelKey(labels), k -> new Counter());
+    }
+
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "histogram").children.computeIfAbsent(labelKey(labels), k -> new Histogram());
+    }
+
+    /**
+     * 速率表，导出为累计总量 name_total（counter）和 1 分钟加权速率 name_per_second（gauge）
+     */
+    public static Meter meter(String name, String help, String... labels) {
+        return (Meter) family(name, help, "meter").children.computeIfAbsent(labelKey(labels), k -> new Meter());
+    }
+
+    /**
+     * 导出时取值的仪表
+     */
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").children.put(labelKey(labels), (GaugeValue) value::getAsDouble);
+    }
+
+    /**
+     * 一组按单个标签区分的仪表（例如每个房间的连接数），导出时整体取值
+     */
+    public static void gaugeFamily(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+        family(name, help, "gauge").dynamic = () -> {
+            Map<String, Object> out = new java.util.TreeMap<>();
+            for (Map.Entry<String, ? extends Number> e : values.get().entrySet()) {
+                out.put(labelKey(new String[] {label, e.getKey()}), (GaugeValue) e.getValue()::doubleValue);
+            }
+            return out;
+        };
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family f = FAMILIES.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (!f.type.equals(type)) {
+            throw new IllegalArgumentException("指标 " + name + " 已注册为 " + f.type);
+        }
+        return f;
+    }
+
+    private static String labelKey(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("标签名和值必须成对出现");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            String v = labels[i + 1] == null ? "" : labels[i + 1];
+            for (int j = 0; j < v.length(); j++) {
+                char c = v.charAt(j);
+                if (c == '\\' || c == '"') sb.append('\\').append(c);
+                else if (c == '\n') sb.append("\\n");
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    // ========== 指标类型 ==========
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    @FunctionalInterface
+    private interface GaugeValue {
+        double get();
+    }
+
+    /**
+     * 对数分桶直方图，单位为纳秒（也可记录任意非负整数，如字节数）。
+     * 下标 i < 8 对应取值 i；之后每个 2 的幂区间 [2^e, 2^(e+1)) 均分为 8 个子桶。
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+        // 最大约 2^40 ns（18 分钟），更大的值计入最后一个桶
+        private static final int MAX_EXP = 40;
+        private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(index(value));
+            sum.add(value);
+            // 大多数情况下不超过当前最大值，只有一次 volatile 读
+            long m = max.get();
+            while (value > m && !max.compareAndSet(m, value)) {
+                m = max.get();
+            }
+        }
+
+        static int index(long v) {
+            if (v < SUB) {
+                return (int) v;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            if (exp > MAX_EXP) {
+                return BUCKETS - 1;
+            }
+            int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        // 桶的上界（不含）
+        static long upperBound(int i) {
+            if (i < SUB) {
+                return i + 1;
+            }
+            int exp = i / SUB + SUB_BITS - 1;
+            int sub = i % SUB;
+            return (long) (SUB + sub + 1) << (exp - SUB_BITS);
+        }
+
+        public long count() {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                n += buckets.get(i);
+            }
+            return n;
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * 分位数（取所在桶的上界），没有数据时返回 0
+         */
+        public long quantile(double q) {
+            long[] snapshot = snapshot();
+            long total = 0;
+            for (long c : snapshot) total += c;
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && snapshot[i] > 0) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        long[] snapshot() {
+            long[] s = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                s[i] = buckets.get(i);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * 速率表：累计总量 + 1 分钟指数加权平均速率（每秒），每 5 秒惰性更新一次
+     */
+    public static final class Meter {
+        private static final long TICK_NANOS = 5_000_000_000L;
+        private static final double ALPHA = 1 - Math.exp(-5.0 / 60.0);
+
+        private final LongAdder total = new LongAdder();
+        private final LongAdder uncounted = new LongAdder();
+        private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+        private volatile double rate;
+        private volatile boolean initialized;
+
+        public void mark(long n) {
+            tickIfNecessary();
+            total.add(n);
+            uncounted.add(n);
+        }
+
+        public long total() {
+            return total.sum();
+        }
+
+        /**
+         * 最近约 1 分钟的平均速率（每秒）
+         */
+        public double rate() {
+            tickIfNecessary();
+            return rate;
+        }
+
+        private void tickIfNecessary() {
+            long last = lastTick.get();
+            long now = System.nanoTime();
+            long age = now - last;
+            if (age < TICK_NANOS) {
+                return;
+            }
+            long ticks = age / TICK_NANOS;
+            if (!lastTick.compareAndSet(last, last + ticks * TICK_NANOS)) {
+                return;
+            }
+            double r = rate;
+            double instant = uncounted.sumThenReset() / 5.0;
+            for (long i = 0; i < ticks; i++) {
+                if (!initialized) {
+                    r = instant;
+                    initialized = true;
+                } else {
+                    r += ALPHA * (instant - r);
+                }
+                // 之后的空闲区间速率为 0
+                instant = 0;
+            }
+            rate = r;
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Object> children = new ConcurrentHashMap<>();
+        volatile Supplier<Map<String, Object>> dynamic;
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    // ========== 导出 ==========
+
+    // 直方图导出的桶边界（纳秒）：2^12（约 4µs）到 2^36（约 69s），每隔一个 2 的幂，与内部桶边界对齐
+    private static final int FIRST_EXPORT_EXP = 12;
+    private static final int LAST_EXPORT_EXP = 36;
+
+    /**
+     * 按 Prometheus 文本格式导出全部指标；直方图单位转换为秒
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder(8192);
+        List<String> names = new ArrayList<>(FAMILIES.keySet());
+        java.util.Collections.sort(names);
+        for (String name : names) {
+            Family f = FAMILIES.get(name);
+            Map<String, Object> children = new java.util.TreeMap<>(f.children);
+            Supplier<Map<String, Object>> dynamic = f.dynamic;
+            if (dynamic != null) {
+                children.putAll(dynamic.get());
+            }
+            if (f.type.equals("meter")) {
+                header(sb, name + "_total", f.help, "counter");
+                for (Map.Entry<String, Object> e : children.entrySet()) {
+                    sample(sb, name + "_total", e.getKey(), null, ((Meter) e.getValue()).total());
+                }
+                header(sb, name + "_per_second", f.help + "（1 分钟加权平均速率）", "gauge");
+                for (Map.Entry<String, Object> e : children.entrySet()) {
+                    sample(sb, name + "_per_second", e.getKey(), null, ((Meter) e.getValue()).rate());
+                }
+                continue;
+            }
+            header(sb, name, f.help, f.type);
+            for (Map.Entry<String, Object> e : children.entrySet()) {
+                String labels = e.getKey();
+                Object m = e.getValue();
+                if (m instanceof Counter) {
+                    sample(sb, name, labels, null, ((Counter) m).get());
+                } else if (m instanceof GaugeValue) {
+                    sample(sb, name, labels, null, ((GaugeValue) m).get());
+                } else if (m instanceof Histogram) {
+                    writeHistogram(sb, name, labels, (Histogram) m);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeHistogram(StringBuilder sb, String name, String labels, Histogram h) {
+        long[] s = h.snapshot();
+        long cumulative = 0;
+        int i = 0;
+        for (int exp = FIRST_EXPORT_EXP; exp <= LAST_EXPORT_EXP; exp += 2) {
+            long bound = 1L << exp;
+            while (i < s.length && Histogram.upperBound(i) <= bound) {
+                cumulative += s[i++];
+            }
+            sample(sb, name + "_bucket", labels, "le=\"" + formatDouble(bound / 1e9) + "\"", cumulative);
+        }
+        while (i < s.length) {
+            cumulative += s[i++];
+        }
+        sample(sb, name + "_bucket", labels, "le=\"+Inf\"", cumulative);
+        sample(sb, name + "_sum", labels, null, h.sum() / 1e9);
+        sample(sb, name + "_count", labels, null, cumulative);
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, String extra, double value) {
+        sb.append(name);
+        if (!labels.isEmpty() || extra != null) {
+            sb.append('{').append(labels);
+            if (extra != null) {
+                if (!labels.isEmpty()) sb.append(',');
+                sb.append(extra);
+            }
+            sb.append('}');
+        }
+        sb.append(' ').append(formatDouble(value)).append('\n');
+    }
+
+    private static String formatDouble(double v) {
+        if (v == (long) v) {
+            return Long.toString((long) v);
+        }
+        return String.format(Locale.ROOT, "%.9g", v).replaceAll("0+(?=e|$)", "").replaceAll("\\.(?=e|$)", "");
+    }
+}
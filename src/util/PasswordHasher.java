@@ -0,0 +1,152 @@
+package util;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 密码哈希（PBKDF2-HMAC-SHA256，每个密码独立随机盐）
+ * 存储格式：pbkdf2$迭代次数$盐$哈希（Base64，无填充），迭代次数随记录保存，调高后旧记录仍可校验并在登录时升级。
+ * 哈希计算放在固定大小的专用线程池中执行，排队数有上限：突发登录不会占满 HTTP 线程的 CPU，
+ * 队列满时立即抛出 BusyException，由接口返回 429。
+ */
+public class PasswordHasher {
+
+    private static final String PREFIX = "pbkdf2$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    // 迭代次数（工作因子）；单核约每秒 270 万次迭代，210000 次约 80ms，即每核每秒约 12 次登录
+    public static final int ITERATIONS = Integer.parseInt(Env.get("PASSWORD_HASH_ITERATIONS", "210000"));
+    private static final int THREADS = Integer.parseInt(Env.get("PASSWORD_HASH_THREADS",
+        String.valueOf(Runtime.getRuntime().availableProcessors())));
+    private static final int QUEUE = Integer.parseInt(Env.get("PASSWORD_HASH_QUEUE", "32"));
+    // 排队 + 计算的最长等待
+    private static final long WAIT_SEC = 30;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder B64 = Base64.getEncoder().withoutPadding();
+    private static final Base64.Decoder B64_DECODER = Base64.getDecoder();
+
+    private static final ThreadPoolExecutor POOL;
+
+    static {
+        AtomicInteger seq = new AtomicInteger();
+        POOL = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE), r -> {
+                Thread t = new Thread(r, "password-hash-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 哈希线程池已满
+     */
+    public static class BusyException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public BusyException() {
+            super("服务器繁忙，请稍后重试");
+        }
+    }
+
+    /**
+     * 计算新密码的存储值
+     * @throws BusyException 线程池排队已满
+     */
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        int iterations = ITERATIONS;
+        byte[] hash = run(() -> pbkdf2(password, salt, iterations));
+        return PREFIX + iterations + "$" + B64.encodeToString(salt) + "$" + B64.encodeToString(hash);
+    }
+
+    /**
+     * 校验密码，stored 必须是 hash() 生成的格式
+     * @throws BusyException 线程池排队已满
+     */
+    public static boolean verify(String password, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !stored.startsWith(PREFIX)) {
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] salt = B64_DECODER.decode(parts[2]);
+            byte[] expected = B64_DECODER.decode(parts[3]);
+            byte[] actual = run(() -> pbkdf2(password, salt, iterations));
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 是否为本类生成的格式
+     */
+    public static boolean isHashed(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    /**
+     * 存储值的迭代次数低于当前配置，登录成功后应重新哈希
+     */
+    public static boolean needsRehash(String stored) {
+        if (!isHashed(stored)) {
+            return true;
+        }
+        int end = stored.indexOf('$', PREFIX.length());
+        try {
+            return end < 0 || Integer.parseInt(stored.substring(PREFIX.length(), end)) < ITERATIONS;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * 排队等待计算的任务数
+     */
+    public static int queued() {
+        return POOL.getQueue().size();
+    }
+
+    // ========== 内部 ==========
+
+    private static byte[] run(Callable<byte[]> task) {
+        Future<byte[]> future;
+        try {
+            future = POOL.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new BusyException();
+        }
+        try {
+            return future.get(WAIT_SEC, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new BusyException();
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new BusyException();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    static byte[] pbkdf2(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package util;
+
+import db.Db;
+import db.FileDao;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 存储用量账本
+ * 每个房间和房间内每个用户的已用空间、文件数保存在内存中，配额检查为 O(1)。
+ * 上传前先原子预留空间（房间和用户额度同时检查），写入成功后确认、失败则释放，并发上传不会超额。
+ * 用户用量定期写回 user_storage_quota，并定期与 user_files 的实际统计对账纠偏。
+ * 写库与记账之间有时间差，上传（预留期间）和删除（Operation 期间）都计为进行中的操作，
+ * 对账只在房间没有进行中的操作、且查询期间没有新操作开始时才生效。
+ */
+public class QuotaLedger {
+
+    // 房间共享配额（100GB）
+    public static final long ROOM_QUOTA = 107374182400L;
+    // 用户默认配额（与 initUserQuota 插入的默认值一致）
+    private static final long DEFAULT_USER_QUOTA = 107374182400L;
+
+    private static final long FLUSH_INTERVAL_SEC = Long.parseLong(Env.get("QUOTA_FLUSH_SEC", "30"));
+    private static final long RECONCILE_INTERVAL_MIN = Long.parseLong(Env.get("QUOTA_RECONCILE_MIN", "30"));
+
+    private static final ConcurrentHashMap<String, RoomLedger> rooms = new ConcurrentHashMap<>();
+    // 正在首次加载的房间，同一房间的并发访问等待同一次加载，不同房间互不阻塞
+    private static final ConcurrentHashMap<String, CompletableFuture<RoomLedger>> loading = new ConcurrentHashMap<>();
+    private static volatile ScheduledExecutorService scheduler;
+
+    /**
+     * 单个用户的用量
+     */
+    private static class UserUsage {
+        long totalQuota = -1;   // -1 表示尚未从数据库读取
+        long used;
+        long reserved;
+        int fileCount;
+        boolean dirty;
+    }
+
+    /**
+     * 单个房间的用量，所有字段在对象锁内读写
+     */
+    private static class RoomLedger {
+        final String roomKey;
+        final Map<Long, UserUsage> users = new ConcurrentHashMap<>();
+        long used;
+        long reserved;
+        int fileCount;
+        // 变更序号，对账期间有操作开始或结束则放弃本轮对账
+        long seq;
+        // 已开始写库但尚未记账的操作数
+        int inFlight;
+
+        RoomLedger(String roomKey) {
+            this.roomKey = roomKey;
+        }
+
+        synchronized long available(UserUsage user) {
+            long roomLeft = ROOM_QUOTA - used - reserved;
+            long userLeft = user.totalQuota - user.used - user.reserved;
+            return Math.max(0, Math.min(roomLeft, userLeft));
+        }
+
+        // 以下两个方法在对象锁内调用
+        void begin() {
+            inFlight++;
+            seq++;
+        }
+
+        void end() {
+            inFlight--;
+            seq++;
+        }
+    }
+
+    /**
+     * 一次进行中的删除，写库前开始，记账后（或失败时）必须调用 end
+     */
+    public static class Operation {
+        private final RoomLedger room;
+        private boolean done;
+
+        Operation(RoomLedger room) {
+            this.room = room;
+        }
+
+        public void end() {
+            synchronized (room) {
+                if (!done) {
+                    done = true;
+                    room.end();
+                }
+            }
+        }
+    }
+
+    /**
+     * 一次空间预留，必须调用 commit 或 release 之一；预留期间计为进行中的操作
+     */
+    public static class Reservation {
+        private final RoomLedger room;
+        private final UserUsage user;
+        public final long bytes;
+        private boolean done;
+
+        Reservation(RoomLedger room, UserUsage user, long bytes) {
+            this.room = room;
+            this.user = user;
+            this.bytes = bytes;
+        }
+
+        /**
+         * 确认写入，按实际大小记账
+         */
+        public void commit(long actualSize) {
+            synchronized (room) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                room.reserved -= bytes;
+                user.reserved -= bytes;
+                room.used += actualSize;
+                user.used += actualSize;
+                room.fileCount++;
+                user.fileCount++;
+                user.dirty = true;
+                room.end();
+            }
+        }
+
+        /**
+         * 放弃预留
+         */
+        public void release() {
+            synchronized (room) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                room.reserved -= bytes;
+                user.reserved -= bytes;
+                room.end();
+            }
+        }
+    }
+
+    /**
+     * 预留空间，房间或用户剩余额度不足时抛出异常
+     */
+    public static Reservation reserve(String roomKey, long userId, long bytes) throws SQLException, IOException {
+        RoomLedger room = room(roomKey);
+        UserUsage user = user(room, userId);
+        synchronized (room) {
+            if (bytes > room.available(user)) {
+                throw new IOException("存储空间不足");
+            }
+            room.reserved += bytes;
+            user.reserved += bytes;
+            room.begin();
+        }
+        return new Reservation(room, user, bytes);
+    }
+
+    /**
+     * 开始一次删除，在删除数据库记录之前调用
+     */
+    public static Operation beginDelete(String roomKey) throws SQLException {
+        RoomLedger room = room(roomKey);
+        synchronized (room) {
+            room.begin();
+        }
+        return new Operation(room);
+    }
+
+    /**
+     * 当前可用空间（房间和用户额度取较小值）
+     */
+    public static long available(String roomKey, long userId) throws SQLException {
+        RoomLedger room = room(roomKey);
+        return room.available(user(room, userId));
+    }
+
+    /**
+     * 文件删除后释放用量
+     */
+    public static void onFileDeleted(String roomKey, long userId, long size) throws SQLException {
+        RoomLedger room = room(roomKey);
+        UserUsage user = user(room, userId);
+        synchronized (room) {
+            room.used = Math.max(0, room.used - size);
+            user.used = Math.max(0, user.used - size);
+            room.fileCount = Math.max(0, room.fileCount - 1);
+            user.fileCount = Math.max(0, user.fileCount - 1);
+            user.dirty = true;
+        }
+    }
+
+    /**
+     * 批量删除后一次性释放用量
+     */
+    public static void onFilesDeleted(String roomKey, List<FileDao.FileInfo> files) throws SQLException {
+        if (files.isEmpty()) {
+            return;
+        }
+        RoomLedger room = room(roomKey);
+        Map<Long, long[]> byUser = new HashMap<>();
+        for (FileDao.FileInfo f : files) {
+            long[] usage = byUser.computeIfAbsent(f.userId, k -> new long[2]);
+            usage[0]++;
+            usage[1] += f.fileSize;
+        }
+        synchronized (room) {
+            for (Map.Entry<Long, long[]> entry : byUser.entrySet()) {
+                UserUsage user = room.users.computeIfAbsent(entry.getKey(), k -> new UserUsage());
+                long count = entry.getValue()[0];
+                long size = entry.getValue()[1];
+                room.used = Math.max(0, room.used - size);
+                user.used = Math.max(0, user.used - size);
+                room.fileCount = (int) Math.max(0, room.fileCount - count);
+                user.fileCount = (int) Math.max(0, user.fileCount - count);
+                user.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * 房间整体用量
+     */
+    public static FileDao.StorageQuota roomUsage(String roomKey) throws SQLException {
+        RoomLedger room = room(roomKey);
+        FileDao.StorageQuota quota = new FileDao.StorageQuota();
+        synchronized (room) {
+            quota.totalQuota = ROOM_QUOTA;
+            quota.usedSpace = room.used;
+            quota.fileCount = room.fileCount;
+        }
+        return quota;
+    }
+
+    /**
+     * 把有变化的用户用量写回数据库
+     */
+    public static void flush() {
+        for (RoomLedger room : rooms.values()) {
+            for (Map.Entry<Long, UserUsage> entry : room.users.entrySet()) {
+                UserUsage user = entry.getValue();
+                long used;
+                int count;
+                synchronized (room) {
+                    if (!user.dirty) {
+                        continue;
+                    }
+                    user.dirty = false;
+                    used = user.used;
+                    count = user.fileCount;
+                }
+                try {
+                    FileDao.setUserSpace(entry.getKey(), used, count, room.roomKey);
+                } catch (SQLException e) {
+                    synchronized (room) {
+                        user.dirty = true;
+                    }
+                    Log.error("Quota", "Flush failed for user " + entry.getKey()
+                        + " @" + room.roomKey + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 按 user_files 实际统计校正账本
+     * @return 是否完成（有进行中的操作或对账期间有操作开始则跳过，等下一轮）
+     */
+    public static boolean reconcile(String roomKey) throws SQLException {
+        RoomLedger room = rooms.get(roomKey);
+        if (room == null) {
+            return true;
+        }
+        long seq;
+        synchronized (room) {
+            // 已写库但未记账的操作会被查询结果和账本重复计算（或重复扣除）
+            if (room.inFlight > 0) {
+                return false;
+            }
+            seq = room.seq;
+        }
+        Map<Long, long[]> actual = FileDao.getUsageByUser(roomKey);
+        synchronized (room) {
+            if (room.seq != seq) {
+                return false;
+            }
+            long drift = 0;
+            long roomUsed = 0;
+            int roomCount = 0;
+            for (Map.Entry<Long, long[]> entry : actual.entrySet()) {
+                UserUsage user = room.users.computeIfAbsent(entry.getKey(), k -> new UserUsage());
+                long count = entry.getValue()[0];
+                long size = entry.getValue()[1];
+                if (user.used != size || user.fileCount != count) {
+                    drift += Math.abs(user.used - size);
+                    user.used = size;
+                    user.fileCount = (int) count;
+                    user.dirty = true;
+                }
+                roomUsed += size;
+                roomCount += count;
+            }
+            for (Map.Entry<Long, UserUsage> entry : room.users.entrySet()) {
+                UserUsage user = entry.getValue();
+                if (!actual.containsKey(entry.getKey()) && (user.used != 0 || user.fileCount != 0)) {
+                    drift += user.used;
+                    user.used = 0;
+                    user.fileCount = 0;
+                    user.dirty = true;
+                }
+            }
+            if (drift != 0 || room.used != roomUsed || room.fileCount != roomCount) {
+                Log.info("Quota", "Reconciled room " + Db.roomLabel(roomKey) + ", drift " + FileManager.formatFileSize(drift));
+            }
+            room.used = roomUsed;
+            room.fileCount = roomCount;
+        }
+        return true;
+    }
+
+    // ========== 内部 ==========
+
+    private static RoomLedger room(String roomKey) throws SQLException {
+        RoomLedger room = rooms.get(roomKey);
+        if (room != null) {
+            return room;
+        }
+        CompletableFuture<RoomLedger> future = new CompletableFuture<>();
+        CompletableFuture<RoomLedger> existing = loading.putIfAbsent(roomKey, future);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            // 上一次加载可能在 get 之后刚刚完成
+            room = rooms.get(roomKey);
+            if (room == null) {
+                room = load(roomKey);
+                rooms.put(roomKey, room);
+                startScheduler();
+            }
+            future.complete(room);
+            return room;
+        } catch (SQLException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(roomKey, future);
+        }
+    }
+
+    /**
+     * 首次访问：一次 GROUP BY 得到房间和每个用户的用量
+     */
+    private static RoomLedger load(String roomKey) throws SQLException {
+        RoomLedger room = new RoomLedger(roomKey);
+        for (Map.Entry<Long, long[]> entry : FileDao.getUsageByUser(roomKey).entrySet()) {
+            UserUsage user = new UserUsage();
+            user.fileCount = (int) entry.getValue()[0];
+            user.used = entry.getValue()[1];
+            // 启动时即写回一次，修正表中历史漂移
+            user.dirty = true;
+            room.users.put(entry.getKey(), user);
+            room.used += user.used;
+            room.fileCount += user.fileCount;
+        }
+        return room;
+    }
+
+    private static UserUsage user(RoomLedger room, long userId) throws SQLException {
+        UserUsage user = room.users.computeIfAbsent(userId, k -> new UserUsage());
+        if (user.totalQuota < 0) {
+            FileDao.StorageQuota row = FileDao.getUserQuota(userId, room.roomKey);
+            if (row == null) {
+                FileDao.initUserQuota(userId, room.roomKey);
+                row = FileDao.getUserQuota(userId, room.roomKey);
+            }
+            long total = row != null ? row.totalQuota : DEFAULT_USER_QUOTA;
+            synchronized (room) {
+                user.totalQuota = total;
+            }
+        }
+        return user;
+    }
+
+    private static synchronized void startScheduler() {
+        if (scheduler != null) {
+            return;
+        }
+        ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "quota-ledger");
+            t.setDaemon(true);
+            return t;
+        });
+        s.scheduleAtFixedRate(QuotaLedger::flush, FLUSH_INTERVAL_SEC, FLUSH_INTERVAL_SEC, TimeUnit.SECONDS);
+        s.scheduleAtFixedRate(() -> {
+            for (String roomKey : rooms.keySet()) {
+                try {
+                    reconcile(roomKey);
+                } catch (Exception e) {
+                    Log.error("Quota", "Reconcile failed @" + Db.roomLabel(roomKey) + ": " + e.getMessage());
+                }
+            }
+        }, RECONCILE_INTERVAL_MIN, RECONCILE_INTERVAL_MIN, TimeUnit.MINUTES);
+        // 退出前写回未持久化的用量
+        Runtime.getRuntime().addShutdownHook(new Thread(QuotaLedger::flush, "quota-ledger-flush"));
+        scheduler = s;
+    }
+}
@@ -0,0 +1,326 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 静态资源内存缓存
+ * 首次访问时加载文件，预先计算 gzip 版本和强 ETag，之后的请求直接从内存返回。
+ * 内容超出总预算时按最近最少使用淘汰，被淘汰和放不下的文件只保留元数据（大小、修改时间 ETag），从磁盘流式发送，
+ * 不会每次请求都重新读取、哈希和压缩。
+ * 缓存项每隔 REVALIDATE_MS 检查一次文件的大小和修改时间，变化后重新加载；
+ * 开发模式（DEV_MODE=true）下另外监听 web 目录变化，文件修改后立即失效。
+ * 运行时写入的目录（如 uploads/）不进缓存，每次按文件属性生成 ETag。
+ */
+public class StaticAssetCache {
+
+    // 单个文件超过该大小则不缓存（直接从磁盘流式发送）
+    private static final long MAX_CACHEABLE_BYTES = 1024 * 1024;
+    // 缓存总大小上限
+    private static final long MAX_TOTAL_BYTES =
+        Long.parseLong(Env.get("STATIC_CACHE_MB", "64")) * 1024 * 1024;
+    // gzip 后至少要节省 10% 才保留压缩版本
+    private static final double MIN_GZIP_RATIO = 0.9;
+    // 缓存项重新检查文件属性的间隔
+    private static final long REVALIDATE_MS = 2000;
+
+    private final Path root;
+    private final List<Path> streamedDirs = new ArrayList<>();
+    private final ConcurrentHashMap<Path, Asset> cache = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    /**
+     * 缓存的资源
+     */
+    public static class Asset {
+        public final Path file;
+        public final long size;
+        public final byte[] raw;       // 只有元数据（大文件、超出预算）时为 null
+        public final byte[] gzip;      // 不适合压缩时为 null
+        public final String etag;
+        public final String gzipEtag;
+        final long modified;
+        // 最近一次访问和检查文件属性的时间
+        volatile long lastUsed;
+        volatile long checkedAt;
+
+        Asset(Path file, long size, long modified, byte[] raw, byte[] gzip, String etag) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.raw = raw;
+            this.gzip = gzip;
+            this.etag = "\"" + etag + "\"";
+            this.gzipEtag = "\"" + etag + "-gz\"";
+            this.lastUsed = this.checkedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * 只有元数据的版本，ETag 由大小和修改时间生成
+         */
+        static Asset metadata(Path file, long size, long modified) {
+            return new Asset(file, size, modified, null, null,
+                Long.toHexString(size) + "-" + Long.toHexString(modified));
+        }
+
+        long memoryBytes() {
+            return (raw != null ? raw.length : 0) + (gzip != null ? gzip.length : 0);
+        }
+    }
+
+    /**
+     * @param streamedDirs 相对 webRoot 的目录，其中的文件不缓存（运行时会写入的目录）
+     */
+    public StaticAssetCache(String webRoot, String... streamedDirs) {
+        this.root = Paths.get(webRoot).toAbsolutePath().normalize();
+        for (String dir : streamedDirs) {
+            this.streamedDirs.add(root.resolve(dir).normalize());
+        }
+        if ("true".equalsIgnoreCase(Env.get("DEV_MODE", "false"))) {
+            startWatcher();
+        }
+    }
+
+    /**
+     * 获取资源，文件不存在或越界时返回 null
+     * @param requestPath 请求路径，如 /js/chat.js
+     */
+    public Asset get(String requestPath, boolean compressible) throws IOException {
+        Path file = root.resolve(requestPath.replaceFirst("^/+", "")).normalize();
+        if (!file.startsWith(root)) {
+            return null;
+        }
+
+        for (Path dir : streamedDirs) {
+            if (file.startsWith(dir)) {
+                BasicFileAttributes attrs = attributes(file);
+                return attrs == null ? null
+                    : Asset.metadata(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        Asset cached = cache.get(file);
+        if (cached != null) {
+            if (now - cached.checkedAt < REVALIDATE_MS) {
+                cached.lastUsed = now;
+                return cached;
+            }
+            BasicFileAttributes attrs = attributes(file);
+            if (attrs != null && attrs.size() == cached.size
+                    && attrs.lastModifiedTime().toMillis() == cached.modified) {
+                cached.checkedAt = cached.lastUsed = now;
+                return cached;
+            }
+            // 文件已修改或删除
+            remove(file, cached);
+        }
+
+        BasicFileAttributes attrs = attributes(file);
+        if (attrs == null) {
+            return null;
+        }
+
+        Asset asset = load(file, attrs, compressible);
+        Asset previous = cache.putIfAbsent(file, asset);
+        if (previous != null) {
+            return previous;
+        }
+        if (asset.raw != null && cachedBytes.addAndGet(asset.memoryBytes()) > MAX_TOTAL_BYTES) {
+            evict();
+        }
+        return asset;
+    }
+
+    /**
+     * 超出预算时淘汰最久未访问的内容，降级为只有元数据的缓存项（仍按修改时间检查）
+     */
+    private synchronized void evict() {
+        while (cachedBytes.get() > MAX_TOTAL_BYTES) {
+            Asset oldest = null;
+            for (Asset a : cache.values()) {
+                if (a.raw != null && (oldest == null || a.lastUsed < oldest.lastUsed)) {
+                    oldest = a;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            Asset meta = Asset.metadata(oldest.file, oldest.size, oldest.modified);
+            if (cache.replace(oldest.file, oldest, meta)) {
+                cachedBytes.addAndGet(-oldest.memoryBytes());
+            }
+        }
+    }
+
+    private void remove(Path file, Asset asset) {
+        if (cache.remove(file, asset)) {
+            cachedBytes.addAndGet(-asset.memoryBytes());
+        }
+    }
+
+    private static BasicFileAttributes attributes(Path file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            return attrs.isRegularFile() ? attrs : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 使某个文件的缓存失效
+     */
+    public void invalidate(Path file) {
+        Asset removed = cache.remove(file.toAbsolutePath().normalize());
+        if (removed != null) {
+            cachedBytes.addAndGet(-removed.memoryBytes());
+        }
+    }
+
+    /**
+     * If-None-Match 是否与 ETag 匹配
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || ifNoneMatch.isEmpty()) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 客户端是否接受 gzip
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String part : acceptEncoding.split(",")) {
+            String token = part.trim();
+            int semi = token.indexOf(';');
+            String coding = semi >= 0 ? token.substring(0, semi).trim() : token;
+            if (coding.equalsIgnoreCase("gzip")) {
+                if (semi < 0) {
+                    return true;
+                }
+                // q=0 表示明确拒绝
+                String params = token.substring(semi + 1).replace(" ", "");
+                if (params.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(params.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Asset load(Path file, BasicFileAttributes attrs, boolean compressible) throws IOException {
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        if (size > MAX_CACHEABLE_BYTES) {
+            // 大文件不进内存
+            return Asset.metadata(file, size, modified);
+        }
+
+        byte[] raw = Files.readAllBytes(file);
+        byte[] gzip = null;
+        if (compressible && raw.length > 256) {
+            byte[] compressed = gzip(raw);
+            if (compressed.length < raw.length * MIN_GZIP_RATIO) {
+                gzip = compressed;
+            }
+        }
+        return new Asset(file, raw.length, modified, raw, gzip, contentHash(raw));
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 3 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(bos) {
+            { def.setLevel(Deflater.BEST_COMPRESSION); }
+        }) {
+            gz.write(data);
+        }
+        return bos.toByteArray();
+    }
+
+    private static String contentHash(byte[] data) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 开发模式：监听 web 目录，文件变更时失效缓存
+     */
+    private void startWatcher() {
+        Thread watcher = new Thread(() -> {
+            try (WatchService ws = root.getFileSystem().newWatchService()) {
+                registerAll(ws, root);
+                Log.info("Static", "Watching " + root + " for changes (DEV_MODE)");
+                while (!Thread.currentThread().isInterrupted()) {
+                    WatchKey key = ws.take();
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            cache.clear();
+                            cachedBytes.set(0);
+                            continue;
+                        }
+                        Path changed = dir.resolve((Path) event.context());
+                        invalidate(changed);
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                            registerAll(ws, changed);
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException ignored) {
+            } catch (IOException e) {
+                Log.warn("Static", "Watcher stopped: " + e.getMessage());
+            }
+        }, "static-asset-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static void registerAll(WatchService ws, Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,196 @@
+package util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * 哈希时间轮，用于大量连接的超时检测
+ * 时间按固定刻度推进，每个条目放在“截止刻度 % 槽数”的槽里，每个刻度只检查当前槽，
+ * 开销与到期（或需要顺延）的条目数成正比，而不是与全部条目数成正比。
+ *
+ * 活动时只调用 {@link Entry#touch()} 记下当前刻度（同一刻度内重复调用不写内存，且不带内存屏障），
+ * 不移动条目；到槽时才按最后活动刻度判断是真正到期还是顺延到新的槽（惰性重排）。
+ * 同一刻度内到期的条目一次性交给回调，便于调用方批量处理。
+ *
+ * 槽只由时间轮线程读写；其他线程新登记的条目先进入无锁队列，在下一个刻度开始时放入对应的槽。
+ */
+public final class TimingWheel<T> {
+
+    private static final VarHandle LAST_TOUCH;
+
+    static {
+        try {
+            LAST_TOUCH = MethodHandles.lookup().findVarHandle(Entry.class, "lastTouch", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final long tickMs;
+    private final int mask;
+    private final List<Entry<T>>[] slots;
+    private final Queue<Entry<T>> incoming = new ConcurrentLinkedQueue<>();
+    private final Consumer<List<T>> onExpired;
+    // 当前刻度，只有时间轮线程递增
+    private volatile long tick;
+    private volatile int tracked;
+
+    /**
+     * @param name 后台线程名
+     * @param tickMs 刻度长度（毫秒），即超时判断的精度
+     * @param slotCount 槽数，会向上取整为 2 的幂；超时时长最好不超过 slotCount 个刻度
+     * @param onExpired 每个刻度到期的全部条目（非空时调用），在时间轮线程上执行
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(String name, long tickMs, int slotCount, Consumer<List<T>> onExpired) {
+        if (tickMs <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException("tickMs 和 slotCount 必须为正数");
+        }
+        int size = slotCount == 1 ? 1 : Integer.highestOneBit(slotCount - 1) << 1;
+        this.tickMs = tickMs;
+        this.mask = size - 1;
+        this.slots = new List[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        this.onExpired = onExpired;
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 时间轮中的一个条目；超时时长固定，每次 touch 从当前刻度重新计时
+     */
+    public static final class Entry<T> {
+        private final TimingWheel<T> wheel;
+        private final T value;
+        private final long timeoutTicks;
+        // 最后活动的刻度，以 opaque 方式读写
+        @SuppressWarnings("unused")
+        private long lastTouch;
+        private volatile boolean cancelled;
+
+        private Entry(TimingWheel<T> wheel, T value, long timeoutTicks, long now) {
+            this.wheel = wheel;
+            this.value = value;
+            this.timeoutTicks = timeoutTicks;
+            this.lastTouch = now;
+        }
+
+        public T value() {
+            return value;
+        }
+
+        /**
+         * 记录一次活动，截止时间顺延为当前刻度加超时时长
+         */
+        public void touch() {
+            long now = wheel.tick;
+            if ((long) LAST_TOUCH.getOpaque(this) != now) {
+                LAST_TOUCH.setOpaque(this, now);
+            }
+        }
+
+        /**
+         * 取消超时检测；条目在下次到槽时丢弃
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        long deadline() {
+            return (long) LAST_TOUCH.getOpaque(this) + timeoutTicks;
+        }
+    }
+
+    /**
+     * 登记一个条目，timeoutMs 内没有 touch 即视为到期（精度为一个刻度）
+     */
+    public Entry<T> schedule(T value, long timeoutMs) {
+        long ticks = Math.max(1, (timeoutMs + tickMs - 1) / tickMs);
+        Entry<T> entry = new Entry<>(this, value, ticks, tick);
+        incoming.add(entry);
+        return entry;
+    }
+
+    /**
+     * 正在跟踪的条目数（含已取消但尚未到槽的）
+     */
+    public int size() {
+        return tracked + incoming.size();
+    }
+
+    private void run() {
+        long next = System.nanoTime() + tickMs * 1_000_000L;
+        while (true) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            next += tickMs * 1_000_000L;
+            try {
+                advance();
+            } catch (RuntimeException e) {
+                Log.error("TimingWheel", "Error in " + Thread.currentThread().getName(), e);
+            }
+        }
+    }
+
+    /**
+     * 推进一个刻度：放入新条目，处理当前槽
+     */
+    private void advance() {
+        long now = tick + 1;
+        for (Entry<T> e; (e = incoming.poll()) != null; ) {
+            if (!e.cancelled) {
+                place(e, now);
+                tracked++;
+            }
+        }
+        tick = now;
+        int index = (int) (now & mask);
+        List<Entry<T>> due = slots[index];
+        if (due.isEmpty()) {
+            return;
+        }
+        // 换上新列表，顺延的条目可能放回同一个槽
+        slots[index] = new ArrayList<>();
+        List<T> expired = null;
+        for (Entry<T> e : due) {
+            if (e.cancelled) {
+                tracked--;
+            } else if (e.deadline() <= now) {
+                tracked--;
+                if (expired == null) expired = new ArrayList<>();
+                expired.add(e.value);
+            } else {
+                // 期间有活动，顺延到新的截止刻度
+                place(e, now);
+            }
+        }
+        if (expired != null) {
+            onExpired.accept(expired);
+        }
+    }
+
+    private void place(Entry<T> e, long now) {
+        // 当前槽已在处理或已处理过，最早放到下一刻度
+        long deadline = Math.max(e.deadline(), now + 1);
+        slots[(int) (deadline & mask)].add(e);
+    }
+}
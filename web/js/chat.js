@@ -13,6 +13,7 @@ class ChatApp {
         this.reconnectAttempts = 0;
         this.isConnected = false;
         this.onlineUsers = []; // 在线用户列表，用于@功能
+        this.presenceVersion = null; // 在线列表版本号，用于按顺序应用 presence 增量
         this.mentionIndex = -1; // @提及选择索引
         this.realOnlineCount = 0; // 服务器实时推送的在线人数
         this.historyOffset = 0; // 历史消息加载偏移量
@@ -44,37 +45,23 @@ class ChatApp {
         this.requestNotificationPermission();
     }
     
-    // 清理缓存中的重复消息（一次性修复）
+    // 缓存格式升级时清空旧的消息缓存（一次性）：
+    // 版本 3 起按服务端持久化的房间序号去重，旧缓存里的实时消息仍是进程内序号，与历史记录对不上
     cleanupDuplicateCache() {
-        const cacheVersion = localStorage.getItem('sysu_chat_cache_version');
-        if (cacheVersion === '2') return; // 已清理过
+        const versionKey = 'sysu_chat_cache_version';
+        if (localStorage.getItem(versionKey) === '3') return; // 已清理过
         
-        console.log('[Cache] Cleaning up duplicate messages in cache...');
+        console.log('[Cache] Clearing message cache from an older format...');
         try {
+            const stale = [];
             for (let i = 0; i < localStorage.length; i++) {
                 const key = localStorage.key(i);
-                if (key && key.startsWith('sysu_chat_cache_')) {
-                    const data = localStorage.getItem(key);
-                    if (data) {
-                        const parsed = JSON.parse(data);
-                        if (parsed && parsed.messages && Array.isArray(parsed.messages)) {
-                            const seen = new Set();
-                            const originalLength = parsed.messages.length;
-                            parsed.messages = parsed.messages.filter(msg => {
-                                const msgKey = msg.trim();
-                                if (seen.has(msgKey)) return false;
-                                seen.add(msgKey);
-                                return true;
-                            });
-                            if (parsed.messages.length < originalLength) {
-                                console.log(`[Cache] Removed ${originalLength - parsed.messages.length} duplicates from ${key}`);
-                                localStorage.setItem(key, JSON.stringify(parsed));
-                            }
-                        }
-                    }
+                if (key && key !== versionKey && key.startsWith('sysu_chat_cache_')) {
+                    stale.push(key);
                 }
             }
-            localStorage.setItem('sysu_chat_cache_version', '2');
+            stale.forEach(key => localStorage.removeItem(key));
+            localStorage.setItem(versionKey, '3');
         } catch (e) {
             console.warn('[Cache] Cleanup failed:', e);
         }
@@ -853,11 +840,12 @@ class ChatApp {
                                 }
                                 this.scrollToBottom();
                                 // 更新缓存（先去重再添加）
-                                const existingSet = new Set(cached.messages.map(m => m.trim()));
+                                const existingSet = new Set(cached.messages.map(m => this.messageKey(m)));
                                 for (const msg of newMessages) {
-                                    if (!existingSet.has(msg.trim())) {
+                                    const key = this.messageKey(msg);
+                                    if (!existingSet.has(key)) {
                                         cached.messages.push(msg);
-                                        existingSet.add(msg.trim());
+                                        existingSet.add(key);
                                     }
                                 }
                                 // 只保留最近的消息（限制缓存大小）
@@ -1029,8 +1017,8 @@ class ChatApp {
         try {
             const cached = this.loadFromCache(cacheKey) || { messages: [], timestamp: 0 };
             // 检查消息是否已存在于缓存中（去重）
-            const msgKey = message.trim();
-            if (!cached.messages.some(m => m.trim() === msgKey)) {
+            const msgKey = this.messageKey(message);
+            if (!cached.messages.some(m => this.messageKey(m) === msgKey)) {
                 cached.messages.push(message);
                 // 限制缓存大小
                 if (cached.messages.length > 200) {
@@ -1144,6 +1132,7 @@ class ChatApp {
         // 连接时清空之前的用户列表，等待服务器推送最新数据
         this.onlineUsers = [];
         this.realOnlineCount = 0;
+        this.presenceVersion = null;
 
         // 在 SSE URL 中传递用户昵称，以便服务器跟踪在线用户
         let eventsUrl = CONFIG.getApiUrl('eventsEndpoint');
@@ -1170,9 +1159,17 @@ class ChatApp {
             };
 
             this.eventSource.onmessage = (event) => {
-                this.handleMessage(event.data);
+                let data = event.data;
+                if (data.charAt(0) === '{') {
+                    try {
+                        data = JSON.parse(data);
+                    } catch (e) {
+                        console.warn('[SSE] Failed to parse message:', e);
+                    }
+                }
+                this.handleMessage(data);
                 // 实时消息添加到缓存
-                this.addToCache(event.data);
+                this.addToCache(data);
             };
 
             this.eventSource.addEventListener('info', (event) => {
@@ -1182,10 +1179,13 @@ class ChatApp {
                     if (info.online !== undefined) {
                         this.updateOnlineCount(info.online);
                     }
-                    // 更新在线用户列表
+                    // 更新在线用户列表（完整快照）
                     if (info.users !== undefined && Array.isArray(info.users)) {
                         this.setOnlineUsers(info.users);
                     }
+                    if (info.v !== undefined) {
+                        this.presenceVersion = info.v;
+                    }
                 } catch (e) {
                     console.warn('[SSE] Failed to parse info event:', e);
                 }
@@ -1206,7 +1206,25 @@ class ChatApp {
                 }
             });
             
-            // 监听在线人数更新事件
+            // 在线状态增量：{"v":版本,"count":人数,"joined":[...],"left":[...]}
+            this.eventSource.addEventListener('presence', (event) => {
+                try {
+                    this.applyPresenceDelta(JSON.parse(event.data));
+                } catch (e) {
+                    console.warn('[SSE] Failed to parse presence event:', e);
+                }
+            });
+            
+            // 图片变体生成完成：{"url":原图,"thumb":缩略图,"preview":预览图}
+            this.eventSource.addEventListener('image-variants', (event) => {
+                try {
+                    this.applyImageVariants(JSON.parse(event.data));
+                } catch (e) {
+                    console.warn('[SSE] Failed to parse image-variants event:', e);
+                }
+            });
+            
+            // 监听在线人数更新事件（旧版服务器推送完整列表）
             this.eventSource.addEventListener('online', (event) => {
                 console.log('[SSE] Online update:', event.data);
                 try {
@@ -1270,22 +1288,10 @@ class ChatApp {
             }
             
             // 发送 ping 请求
-            const pingUrl = CONFIG.getApiUrl('pingEndpoint') + 
-                `?roomKey=${encodeURIComponent(this.roomKey)}&nickname=${encodeURIComponent(this.nickname)}`;
-            
-            fetch(pingUrl, { method: 'GET' })
+            fetch(this.getPingUrl(), { method: 'GET' })
                 .then(response => response.json())
                 .then(data => {
-                    if (data.pong) {
-                        this.lastPongTime = Date.now();
-                        // 更新在线人数和用户列表
-                        if (data.online !== undefined) {
-                            this.updateOnlineCount(data.online);
-                        }
-                        if (data.users !== undefined && Array.isArray(data.users)) {
-                            this.setOnlineUsers(data.users);
-                        }
-                    }
+                    this.handlePong(data);
                 })
                 .catch(err => {
                     console.warn('[Ping] Failed:', err);
@@ -1321,20 +1327,10 @@ class ChatApp {
             return;
         }
         
-        const pingUrl = CONFIG.getApiUrl('pingEndpoint') + 
-            `?roomKey=${encodeURIComponent(this.roomKey)}&nickname=${encodeURIComponent(this.nickname)}`;
-        
-        fetch(pingUrl, { method: 'GET' })
+        fetch(this.getPingUrl(), { method: 'GET' })
             .then(response => response.json())
             .then(data => {
-                if (data.pong) {
-                    this.lastPongTime = Date.now();
-                    if (data.online !== undefined) {
-                        this.updateOnlineCount(data.online);
-                    }
-                    if (data.users !== undefined && Array.isArray(data.users)) {
-                        this.setOnlineUsers(data.users);
-                    }
+                if (this.handlePong(data)) {
                     console.log('[Ping] Immediate ping successful');
                 }
             })
@@ -1343,6 +1339,65 @@ class ChatApp {
             });
     }
     
+    /**
+     * ping 地址；带上已有的在线列表版本号，版本未变化时服务器不再返回完整列表
+     */
+    getPingUrl() {
+        let url = CONFIG.getApiUrl('pingEndpoint') + 
+            `?roomKey=${encodeURIComponent(this.roomKey)}&nickname=${encodeURIComponent(this.nickname)}`;
+        if (this.presenceVersion !== null) {
+            url += `&v=${this.presenceVersion}`;
+        }
+        return url;
+    }
+    
+    /**
+     * 处理 ping 响应，更新在线人数和用户列表
+     * @returns {boolean} 是否为有效的 pong
+     */
+    handlePong(data) {
+        if (!data.pong) {
+            return false;
+        }
+        this.lastPongTime = Date.now();
+        if (data.online !== undefined) {
+            this.updateOnlineCount(data.online);
+        }
+        if (data.users !== undefined && Array.isArray(data.users)) {
+            this.setOnlineUsers(data.users);
+            if (data.v !== undefined) {
+                this.presenceVersion = data.v;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * 应用一条 presence 增量；版本不连续（漏收或连接刚建立）时用一次 ping 取完整列表
+     */
+    applyPresenceDelta(delta) {
+        if (this.presenceVersion === null || delta.v <= this.presenceVersion) {
+            return;
+        }
+        if (delta.v !== this.presenceVersion + 1) {
+            this.presenceVersion = null;
+            this.sendImmediatePing();
+            return;
+        }
+        const left = new Set(delta.left || []);
+        const users = this.onlineUsers.filter(user => !left.has(user));
+        for (const user of delta.joined || []) {
+            if (!users.includes(user)) {
+                users.push(user);
+            }
+        }
+        this.presenceVersion = delta.v;
+        this.setOnlineUsers(users);
+        if (delta.count !== undefined) {
+            this.updateOnlineCount(delta.count);
+        }
+    }
+    
     /**
      * 通知服务器客户端断开连接
      */
@@ -1410,32 +1465,74 @@ class ChatApp {
     }
 
     handleMessage(data, isHistory = false, insertAtTop = false, skipScroll = false) {
-        // 生成消息唯一标识（基于原始消息文本）用于去重
-        const messageKey = data.trim();
+        const message = this.parseChatMessage(data);
+        if (!message) {
+            // 如果格式不匹配，显示为系统消息
+            this.addSystemMessage(String(data));
+            return;
+        }
         
         // 检查消息是否已经显示过（防止重复）
-        if (this.displayedMessages.has(messageKey)) {
-            console.log('[Message] Duplicate message skipped:', messageKey.substring(0, 50));
+        if (this.displayedMessages.has(message.key)) {
+            console.log('[Message] Duplicate message skipped:', message.key.substring(0, 50));
             return;
         }
-        
-        // 解析消息格式: [HH:mm:ss] 昵称: 内容
-        const match = data.match(/^\[(\d{2}:\d{2}:\d{2})\]\s+(.+?):\s+(.+)$/);
-        
-        if (match) {
-            const [, time, sender, text] = match;
-            // 记录已显示的消息（用于去重）
-            this.displayedMessages.add(messageKey);
-            // 限制集合大小，防止内存泄漏（保留最近 500 条）
-            if (this.displayedMessages.size > 500) {
-                const iterator = this.displayedMessages.values();
-                this.displayedMessages.delete(iterator.next().value);
+        // 记录已显示的消息（用于去重）
+        this.displayedMessages.add(message.key);
+        // 限制集合大小，防止内存泄漏（保留最近 500 条）
+        if (this.displayedMessages.size > 500) {
+            const iterator = this.displayedMessages.values();
+            this.displayedMessages.delete(iterator.next().value);
+        }
+        this.addChatMessage(message.sender, message.body, message.time, isHistory, insertAtTop, skipScroll);
+    }
+    
+    // 解析消息：新格式为 JSON 对象 {id, roomSeq, sender, time, kind, body, attachment}（或其 JSON 文本），
+    // 旧格式（缓存或兼容模式）为 "[HH:mm:ss] 昵称: 内容"
+    parseChatMessage(data) {
+        if (typeof data === 'string' && data.charAt(0) === '{') {
+            try {
+                data = JSON.parse(data);
+            } catch (e) {
+                return null;
             }
-            this.addChatMessage(sender, text, time, isHistory, insertAtTop, skipScroll);
-        } else {
-            // 如果格式不匹配，显示为系统消息
-            this.addSystemMessage(data);
         }
+        if (data && typeof data === 'object') {
+            if (typeof data.sender !== 'string' || typeof data.body !== 'string') return null;
+            return {
+                key: this.messageKey(data),
+                sender: data.sender,
+                body: data.body,
+                time: this.formatMessageTime(data.time)
+            };
+        }
+        const match = String(data).match(/^\[(\d{2}:\d{2}:\d{2})\]\s+(.+?):\s+(.+)$/);
+        if (!match) return null;
+        const [, time, sender, body] = match;
+        return { key: this.messageKey(data), sender, body, time };
+    }
+    
+    // 消息去重标识：实时消息在入库前广播、不带数据库 ID，但房间序号在广播时已分配并随消息入库，
+    // 同一条消息的实时推送和历史记录序号相同；序号列出现前的旧消息用数据库 ID。
+    // 不能按时间去重：MySQL 的 TIMESTAMP 只精确到秒，历史记录的时间和实时推送的毫秒时间不相等
+    messageKey(data) {
+        if (data && typeof data === 'object') {
+            if (data.roomSeq > 0) return `seq:${data.roomSeq}`;
+            if (data.id > 0) return `id:${data.id}`;
+            return `${data.sender}|${data.time}|${data.body}`;
+        }
+        return String(data).trim();
+    }
+    
+    // 当天的消息显示时分秒，更早的消息带上日期
+    formatMessageTime(millis) {
+        const date = new Date(millis);
+        const pad = (n) => String(n).padStart(2, '0');
+        const time = `${pad(date.getHours())}:${pad(date.getMinutes())}:${pad(date.getSeconds())}`;
+        if (date.toDateString() === new Date().toDateString()) {
+            return time;
+        }
+        return `${date.getFullYear()}-${pad(date.getMonth() + 1)}-${pad(date.getDate())} ${time}`;
     }
 
     async sendMessage() {
@@ -1553,12 +1650,31 @@ class ChatApp {
         this.appendMessage(messageEl, insertAtTop, skipScroll);
     }
     
+    // 已显示的原图消息换成缩略图（与 [IMAGE:缩略图|预览图|原图] 的渲染一致）
+    applyImageVariants(data) {
+        if (!data || !data.url || !data.thumb) return;
+        document.querySelectorAll('img.chat-image[data-original]').forEach((img) => {
+            if (img.dataset.original !== data.url) return;
+            img.srcset = `${data.thumb} 320w, ${data.preview || data.url} 1280w`;
+            img.sizes = '300px';
+            img.src = data.thumb;
+            img.removeAttribute('data-original');
+        });
+    }
+    
     processMessageContent(text) {
         // 检查是否是图片消息
         const imageMatch = text.match(/\[IMAGE:(.+?)\]/);
         if (imageMatch) {
-            const imageUrl = imageMatch[1];
-            return `<img src="${this.escapeHtml(imageUrl)}" class="chat-image" onclick="window.open('${this.escapeHtml(imageUrl)}', '_blank')" alt="图片">`;
+            // [IMAGE:缩略图|预览图|原图]，旧消息只有一个地址
+            const parts = imageMatch[1].split('|');
+            const imageUrl = parts[parts.length - 1];
+            if (parts.length === 3) {
+                const thumbUrl = this.escapeHtml(parts[0]);
+                const previewUrl = this.escapeHtml(parts[1]);
+                return `<img src="${thumbUrl}" srcset="${thumbUrl} 320w, ${previewUrl} 1280w" sizes="300px" class="chat-image" loading="lazy" onclick="window.open('${this.escapeHtml(imageUrl)}', '_blank')" alt="图片">`;
+            }
+            return `<img src="${this.escapeHtml(imageUrl)}" data-original="${this.escapeHtml(imageUrl)}" class="chat-image" onclick="window.open('${this.escapeHtml(imageUrl)}', '_blank')" alt="图片">`;
         }
         
         // 检查是否是表情包消息
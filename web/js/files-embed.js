@@ -9,6 +9,7 @@
         currentFolder: '/',
         folders: [],
         files: [],
+        selected: new Set(), // Ctrl/⌘ 多选的文件 ID
         loading: false,
     };
 
@@ -40,6 +41,8 @@
         els.folderCreateBtn = document.getElementById('filesFolderCreate');
         els.folderCancelBtn = document.getElementById('filesFolderCancel');
         els.contextMenu = document.getElementById('filesContextMenu');
+        els.batchDownloadBtn = document.getElementById('filesPanelBatchDownload');
+        els.batchDeleteBtn = document.getElementById('filesPanelBatchDelete');
     }
 
     function getAuth() {
@@ -177,6 +180,8 @@
     function renderList() {
         if (!els.list) return;
         els.list.innerHTML = '';
+        state.selected.clear();
+        updateBatchButtons();
         if (state.currentFolder !== '/') {
             const back = document.createElement('div');
             back.className = 'file-item back-item';
@@ -205,15 +210,20 @@
                 </div>
                 <div class="file-actions">
                     <button class="icon-btn" title="打开"><i data-lucide="folder-open"></i></button>
+                    <button class="icon-btn" title="打包下载"><i data-lucide="download"></i></button>
                     <button class="icon-btn" title="删除"><i data-lucide="trash-2"></i></button>
                 </div>`;
             item.addEventListener('click', () => selectItem(item));
             item.addEventListener('dblclick', () => navigateTo(folder.path));
-            const [openBtn, delBtn] = item.querySelectorAll('button');
+            const [openBtn, zipBtn, delBtn] = item.querySelectorAll('button');
             openBtn.addEventListener('click', (e) => {
                 e.stopPropagation();
                 navigateTo(folder.path);
             });
+            zipBtn.addEventListener('click', (e) => {
+                e.stopPropagation();
+                downloadZip({ folder: folder.path });
+            });
             delBtn.addEventListener('click', (e) => {
                 e.stopPropagation();
                 deleteFolder(folder);
@@ -235,6 +245,13 @@
                     <button class="icon-btn" title="下载"><i data-lucide="download"></i></button>
                     <button class="icon-btn" title="删除"><i data-lucide="trash-2"></i></button>
                 </div>`;
+            item.addEventListener('click', (e) => {
+                if (e.ctrlKey || e.metaKey) {
+                    toggleFileSelection(item, file);
+                } else {
+                    selectItem(item);
+                }
+            });
             item.addEventListener('dblclick', () => downloadFile(file));
             const [dlBtn, delBtn] = item.querySelectorAll('button');
             dlBtn.addEventListener('click', (e) => {
@@ -260,6 +277,28 @@
     function selectItem(item) {
         document.querySelectorAll('#filesPanelList .file-item').forEach((el) => el.classList.remove('selected'));
         item.classList.add('selected');
+        state.selected.clear();
+        updateBatchButtons();
+    }
+
+    function toggleFileSelection(item, file) {
+        if (state.selected.has(file.id)) {
+            state.selected.delete(file.id);
+            item.classList.remove('selected');
+        } else {
+            state.selected.add(file.id);
+            item.classList.add('selected');
+        }
+        updateBatchButtons();
+    }
+
+    function updateBatchButtons() {
+        const count = state.selected.size;
+        [els.batchDownloadBtn, els.batchDeleteBtn].forEach((btn) => {
+            if (!btn) return;
+            btn.classList.toggle('hidden', count === 0);
+            btn.title = btn.dataset.label + (count ? ` (${count})` : '');
+        });
     }
 
     function navigateTo(path) {
@@ -462,6 +501,52 @@
         }
     }
 
+    // 批量删除选中的文件，一次请求返回每个文件的结果
+    async function deleteSelectedFiles() {
+        const auth = getAuth();
+        if (!auth || state.selected.size === 0) return;
+        const fileIds = Array.from(state.selected);
+        if (!confirm(`确定删除选中的 ${fileIds.length} 个文件吗？`)) return;
+        try {
+            const resp = await fetch(`${API_BASE_URL}/api/files/batch-delete`, {
+                method: 'POST',
+                headers: {
+                    'Authorization': `Bearer ${auth.token}`,
+                    'Content-Type': 'application/json',
+                },
+                body: JSON.stringify({ roomKey: auth.roomKey, fileIds }),
+            });
+            const data = await resp.json();
+            if (!resp.ok || !data.success) throw new Error(data.error || '删除失败');
+            if (data.failed > 0) {
+                const firstError = (data.results.find((r) => !r.ok) || {}).error || '';
+                alert(`${data.succeeded} 个文件已删除，${data.failed} 个失败：${firstError}`);
+            }
+            loadFiles(state.currentFolder);
+            loadQuota();
+        } catch (err) {
+            console.error('[Files] batch delete failed', err);
+            alert('删除失败: ' + err.message);
+        }
+    }
+
+    // 打包下载：直接交给浏览器下载，服务端边打包边传输
+    function downloadZip({ ids, folder }) {
+        const auth = getAuth();
+        if (!auth) return;
+        let url = `${API_BASE_URL}/api/files/zip?roomKey=${encodeURIComponent(auth.roomKey)}&token=${encodeURIComponent(auth.token)}`;
+        if (folder) {
+            url += `&folder=${encodeURIComponent(folder)}`;
+        } else {
+            url += `&ids=${ids.join(',')}`;
+        }
+        const link = document.createElement('a');
+        link.href = url;
+        document.body.appendChild(link);
+        link.click();
+        document.body.removeChild(link);
+    }
+
     async function deleteFolder(folder) {
         const auth = getAuth();
         if (!auth) return;
@@ -650,6 +735,14 @@
         if (els.newFolderBtn) {
             els.newFolderBtn.addEventListener('click', openFolderModal);
         }
+        if (els.batchDownloadBtn) {
+            els.batchDownloadBtn.dataset.label = els.batchDownloadBtn.title;
+            els.batchDownloadBtn.addEventListener('click', () => downloadZip({ ids: Array.from(state.selected) }));
+        }
+        if (els.batchDeleteBtn) {
+            els.batchDeleteBtn.dataset.label = els.batchDeleteBtn.title;
+            els.batchDeleteBtn.addEventListener('click', deleteSelectedFiles);
+        }
         if (els.folderModalClose) {
             els.folderModalClose.addEventListener('click', closeFolderModal);
         }
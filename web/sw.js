@@ -3,7 +3,7 @@
  * 提供离线缓存和后台通知支持
  */
 
-const CACHE_NAME = 'sysu-chat-v1';
+const CACHE_NAME = 'sysu-chat-v6';
 const STATIC_ASSETS = [
     '/',
     '/index.html',